@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.IAuthenticator;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.MetricsProviderNull;
+import io.moquette.persistence.MemorySessionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many CONNECTs per second are accepted when a burst of clients connects at once and
+ * the authenticator takes <code>authenticationMillis</code> to answer, like a database query.
+ * <p>
+ * The credentials are checked:
+ * <ul>
+ *     <li><code>netty_thread</code>: in the Netty worker that read the CONNECT, the default;</li>
+ *     <li><code>platform_pool</code>: on a cached pool of platform threads;</li>
+ *     <li><code>virtual_thread</code>: on a virtual thread for each CONNECT, requires JDK 21.</li>
+ * </ul>
+ * The clients are connected through Netty's in-JVM local transport, so the MQTT messages are
+ * exchanged as objects and the codec is not part of the measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectStormBenchmark {
+
+    private static final int CONNECTS_PER_STORM = 256;
+    private static final int NETTY_WORKERS = 4;
+    // same default used by the Server
+    private static final int SESSION_QUEUE_SIZE = 1024;
+    private static final byte[] PASSWORD = "secret".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"netty_thread", "platform_pool", "virtual_thread"})
+    public String loginThreads;
+
+    @Param({"0", "2"})
+    public int authenticationMillis;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService loginExecutor;
+    private SessionEventLoopGroup loopsGroup;
+    private EventLoopGroup serverGroup;
+    private EventLoopGroup clientGroup;
+    private Channel serverChannel;
+    private Bootstrap clientBootstrap;
+    private LocalAddress address;
+    private volatile CountDownLatch connAcks;
+    private int nextClient;
+
+    @ChannelHandler.Sharable
+    private final class ConnAckCounter extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof MqttConnAckMessage) {
+                connAcks.countDown();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
+    @Setup
+    public void setUp() throws InterruptedException {
+        switch (loginThreads) {
+            case "netty_thread":
+                loginExecutor = null;
+                break;
+            case "platform_pool":
+                loginExecutor = Executors.newCachedThreadPool();
+                break;
+            case "virtual_thread":
+                if (!VirtualThreads.isSupported()) {
+                    throw new IllegalStateException("Virtual threads require JDK 21 or newer");
+                }
+                loginExecutor = VirtualThreads.newThreadPerTaskExecutor("login-");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown login threads: " + loginThreads);
+        }
+
+        scheduler = Executors.newScheduledThreadPool(1);
+        final MetricsProvider metricsProvider = new MetricsProviderNull();
+        final BrokerInterceptor interceptor = new BrokerInterceptor(Collections.emptyList());
+        final CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        final ISessionsRepository sessionsRepository = new MemorySessionsRepository();
+        loopsGroup = new SessionEventLoopGroup(interceptor, SESSION_QUEUE_SIZE, metricsProvider);
+        final SessionRegistry sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository,
+            new MemoryQueueRepository(), permitAll, scheduler, loopsGroup, metricsProvider);
+        final PostOffice postOffice = new PostOffice(subscriptions, new MemoryRetainedRepository(), sessionRegistry,
+            sessionsRepository, interceptor, permitAll, loopsGroup, metricsProvider);
+
+        final IAuthenticator slowAuthenticator = (clientId, username, password) -> {
+            if (authenticationMillis > 0) {
+                try {
+                    Thread.sleep(authenticationMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        };
+        final BrokerConfiguration config = new BrokerConfiguration(false, true, false,
+            BrokerConstants.NO_BUFFER_FLUSH);
+        final NewNettyMQTTHandler mqttHandler = new NewNettyMQTTHandler(new MQTTConnectionFactory(config,
+            slowAuthenticator, sessionRegistry, postOffice, loginExecutor));
+
+        address = new LocalAddress("moquette-connect-storm");
+        serverGroup = new DefaultEventLoopGroup(NETTY_WORKERS);
+        clientGroup = new DefaultEventLoopGroup(1);
+        serverChannel = new ServerBootstrap()
+            .group(serverGroup)
+            .channel(LocalServerChannel.class)
+            .childHandler(mqttHandler)
+            .bind(address).sync().channel();
+        clientBootstrap = new Bootstrap()
+            .group(clientGroup)
+            .channel(LocalChannel.class)
+            .handler(new ConnAckCounter());
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        serverChannel.close().sync();
+        clientGroup.shutdownGracefully().sync();
+        serverGroup.shutdownGracefully().sync();
+        if (loginExecutor != null) {
+            loginExecutor.shutdownNow();
+        }
+        loopsGroup.terminate();
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONNECTS_PER_STORM)
+    public void connectStorm() throws InterruptedException {
+        connAcks = new CountDownLatch(CONNECTS_PER_STORM);
+        final List<ChannelFuture> connections = new ArrayList<>(CONNECTS_PER_STORM);
+        for (int i = 0; i < CONNECTS_PER_STORM; i++) {
+            final String clientId = "storm-" + nextClient++;
+            final ChannelFuture connection = clientBootstrap.connect(address);
+            connection.addListener((ChannelFutureListener) future -> future.channel().writeAndFlush(
+                MqttMessageBuilders.connect()
+                    .protocolVersion(MqttVersion.MQTT_3_1_1)
+                    .clientId(clientId)
+                    .username("user")
+                    .password(PASSWORD)
+                    .cleanSession(true)
+                    .build()));
+            connections.add(connection);
+        }
+        if (!connAcks.await(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Missing CONNACKs: " + connAcks.getCount());
+        }
+        for (ChannelFuture connection : connections) {
+            connection.channel().close();
+        }
+        for (ChannelFuture connection : connections) {
+            connection.channel().closeFuture().sync();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.config.IConfig;
+import io.moquette.broker.config.MemoryConfig;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.mqtt.MqttConnAckMessage;
+import io.netty.handler.codec.mqtt.MqttDecoder;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the broker heap kept by each connected but idle MQTT client.
+ * <p>
+ * The broker is started in this JVM, the clients connect on loopback from a child JVM, so that their
+ * channels are not counted. The used heap is taken after a full GC, before and after all the clients
+ * are connected, and the difference is divided by the number of clients. Run with:
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar io.moquette.broker.IdleConnectionsFootprint [clients] [low_footprint]
+ * </pre>
+ * The defaults are 1.000.000 clients with <code>low_footprint_connections</code> enabled. Each loopback
+ * address has at most {@value #CONNECTIONS_PER_ADDRESS} clients, to not exhaust the ephemeral ports,
+ * so the clients bind to 127.0.0.1, 127.0.0.2 and so on. A million connections need each JVM allowed
+ * to open more than a million files (<code>ulimit -n</code>), and a kernel allowing two millions
+ * (<code>fs.nr_open</code> and <code>fs.file-max</code>).
+ */
+public final class IdleConnectionsFootprint {
+
+    private static final int DEFAULT_CLIENTS = 1_000_000;
+    static final int CONNECTIONS_PER_ADDRESS = 25_000;
+    // connects not yet acknowledged, to not overflow the accept backlog
+    private static final int MAX_PENDING_CONNECTS = 1_000;
+    // longer than the measure, so that the idle timeouts are scheduled but never expire
+    private static final int KEEP_ALIVE_SECONDS = 3_600;
+    private static final String CONNECTED = "CONNECTED";
+
+    private IdleConnectionsFootprint() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CLIENTS;
+        final boolean lowFootprint = args.length <= 1 || Boolean.parseBoolean(args[1]);
+
+        final int port = freePort();
+        final Properties props = new Properties();
+        props.setProperty(IConfig.HOST_PROPERTY_NAME, "0.0.0.0");
+        props.setProperty(IConfig.PORT_PROPERTY_NAME, Integer.toString(port));
+        props.setProperty(IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME, "false");
+        props.setProperty(IConfig.ALLOW_ANONYMOUS_PROPERTY_NAME, "true");
+        props.setProperty(IConfig.ENABLE_TELEMETRY_NAME, "false");
+        props.setProperty(IConfig.LOW_FOOTPRINT_CONNECTIONS, Boolean.toString(lowFootprint));
+        props.setProperty(BrokerConstants.NETTY_SO_BACKLOG_PROPERTY_NAME, Integer.toString(MAX_PENDING_CONNECTS));
+        final Server broker = new Server();
+        broker.startServer(new MemoryConfig(props));
+
+        final long heapBefore = usedHeapAfterGc();
+        final Process clientsProcess = startClients(port, clients);
+        try (BufferedReader out = new BufferedReader(
+                 new InputStreamReader(clientsProcess.getInputStream(), StandardCharsets.UTF_8))) {
+            String line = out.readLine();
+            while (line != null && !line.startsWith(CONNECTED)) {
+                System.out.println("[clients] " + line);
+                line = out.readLine();
+            }
+            if (line == null) {
+                throw new IllegalStateException("Clients exited before connecting");
+            }
+            final int connected = Integer.parseInt(line.substring(CONNECTED.length()).trim());
+            final long heapAfter = usedHeapAfterGc();
+            final long perConnection = (heapAfter - heapBefore) / connected;
+            System.out.printf("low_footprint_connections=%b clients=%d heap before=%d MB, after=%d MB, " +
+                    "per connection=%d bytes%n", lowFootprint, connected, heapBefore >> 20, heapAfter >> 20,
+                perConnection);
+        } finally {
+            clientsProcess.destroy();
+            clientsProcess.waitFor(1, TimeUnit.MINUTES);
+            broker.stopServer();
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Process startClients(int port, int clients) throws IOException {
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        final List<String> command = new ArrayList<>();
+        command.add(java);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Clients.class.getName());
+        command.add(Integer.toString(port));
+        command.add(Integer.toString(clients));
+        return new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .start();
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(500);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * The MQTT clients, each one connects, waits the CONNACK and then stays idle until the process is killed.
+     */
+    static final class Clients {
+
+        private Clients() {
+        }
+
+        private static final class ConnAckListener extends ChannelInboundHandlerAdapter {
+            private final Semaphore pendingConnects;
+            private final AtomicInteger connected;
+            private final AtomicInteger failed;
+            private boolean acknowledged;
+
+            ConnAckListener(Semaphore pendingConnects, AtomicInteger connected, AtomicInteger failed) {
+                this.pendingConnects = pendingConnects;
+                this.connected = connected;
+                this.failed = failed;
+            }
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                if (msg instanceof MqttConnAckMessage && !acknowledged) {
+                    acknowledged = true;
+                    connected.incrementAndGet();
+                    pendingConnects.release();
+                }
+                ReferenceCountUtil.release(msg);
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                if (!acknowledged) {
+                    // closed by the broker before the CONNACK
+                    acknowledged = true;
+                    failed.incrementAndGet();
+                    pendingConnects.release();
+                } else {
+                    connected.decrementAndGet();
+                }
+            }
+        }
+
+        public static void main(String[] args) throws Exception {
+            final int port = Integer.parseInt(args[0]);
+            final int clients = Integer.parseInt(args[1]);
+
+            final Semaphore pendingConnects = new Semaphore(MAX_PENDING_CONNECTS);
+            final AtomicInteger connected = new AtomicInteger();
+            final AtomicInteger failed = new AtomicInteger();
+            final EventLoopGroup group = new NioEventLoopGroup();
+            final Bootstrap bootstrap = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .option(ChannelOption.SO_REUSEADDR, true)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline()
+                            .addLast("decoder", new MqttDecoder())
+                            .addLast("encoder", MqttEncoder.INSTANCE)
+                            .addLast("connAck", new ConnAckListener(pendingConnects, connected, failed));
+                    }
+                });
+
+            final long start = System.nanoTime();
+            for (int i = 0; i < clients; i++) {
+                pendingConnects.acquire();
+                final String clientId = "idle-" + i;
+                final InetSocketAddress localAddress = new InetSocketAddress(loopbackAddress(i), 0);
+                bootstrap.connect(new InetSocketAddress("127.0.0.1", port), localAddress)
+                    .addListener((ChannelFutureListener) future -> {
+                        if (!future.isSuccess()) {
+                            failed.incrementAndGet();
+                            pendingConnects.release();
+                            return;
+                        }
+                        future.channel().writeAndFlush(MqttMessageBuilders.connect()
+                            .protocolVersion(MqttVersion.MQTT_3_1_1)
+                            .clientId(clientId)
+                            .keepAlive(KEEP_ALIVE_SECONDS)
+                            .cleanSession(true)
+                            .build());
+                    });
+                if ((i + 1) % 50_000 == 0) {
+                    System.out.printf("%d connections opened, %d failed%n", i + 1, failed.get());
+                }
+            }
+            // all the permits back when all the connects are acknowledged or failed
+            pendingConnects.acquire(MAX_PENDING_CONNECTS);
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            System.out.printf("%d clients connected in %d ms, %d failed%n", connected.get(), elapsedMillis,
+                failed.get());
+            System.out.println(CONNECTED + " " + connected.get());
+            System.out.flush();
+
+            // idle until killed
+            Thread.sleep(Long.MAX_VALUE);
+        }
+
+        private static String loopbackAddress(int client) {
+            final int address = client / CONNECTIONS_PER_ADDRESS;
+            return "127.0." + (address / 250) + "." + (address % 250 + 1);
+        }
+    }
+}
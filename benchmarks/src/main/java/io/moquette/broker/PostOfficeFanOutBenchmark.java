@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.moquette.broker.security.AcceptAllAuthenticator;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.MetricsProviderNull;
+import io.moquette.persistence.MemorySessionsRepository;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscribeMessage;
+import io.netty.util.ReferenceCountUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Measures the routing of a QoS0 PUBLISH to <code>subscribers</code> connected clients, from the
+ * {@link PostOffice} down to the write on each subscriber's channel, passing through the session loops.
+ * <p>
+ * The subscribers are backed by {@link EmbeddedChannel}s with the MQTT encoder, so the network is not part
+ * of the measure. With <code>sharedEncoding</code> the payload and the properties are encoded once and shared
+ * by all the subscribers, instead of encoding a full PUBLISH for each one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostOfficeFanOutBenchmark {
+
+    private static final String TOPIC = "site/3/device/42/sensors/temperature";
+    private static final String FILTER = "site/+/device/+/sensors/#";
+    private static final String PUBLISHER = "publisher";
+    // same default used by the Server
+    private static final int SESSION_QUEUE_SIZE = 1024;
+
+    @Param({"1", "100", "1000"})
+    public int subscribers;
+
+    @Param({"64", "1024"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean sharedEncoding;
+
+    private ScheduledExecutorService scheduler;
+    private SessionEventLoopGroup loopsGroup;
+    private SessionRegistry sessionRegistry;
+    private PostOffice postOffice;
+    private MQTTConnection publisher;
+    private final List<EmbeddedChannel> channels = new ArrayList<>();
+    private ByteBuf payload;
+
+    @Setup
+    public void setUp() throws ExecutionException, InterruptedException, TimeoutException {
+        scheduler = Executors.newScheduledThreadPool(1);
+        final MetricsProvider metricsProvider = new MetricsProviderNull();
+        final BrokerInterceptor interceptor = new BrokerInterceptor(Collections.emptyList());
+        final CTrieSubscriptionDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        final ISessionsRepository sessionsRepository = new MemorySessionsRepository();
+        loopsGroup = new SessionEventLoopGroup(interceptor, SESSION_QUEUE_SIZE, metricsProvider);
+        sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository, new MemoryQueueRepository(),
+            permitAll, scheduler, loopsGroup, metricsProvider);
+        postOffice = new PostOffice(subscriptions, new MemoryRetainedRepository(), sessionRegistry, sessionsRepository,
+            interceptor, permitAll, loopsGroup, metricsProvider);
+        postOffice.setFanOutSharedEncoding(sharedEncoding);
+
+        for (int i = 0; i < subscribers; i++) {
+            final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE);
+            final MQTTConnection subscriber = connect("subscriber-" + i, channel);
+            final MqttSubscribeMessage subscribe = MqttMessageBuilders.subscribe()
+                .addSubscription(MqttQoS.AT_MOST_ONCE, FILTER)
+                .messageId(1)
+                .build();
+            postOffice.subscribeClientToTopics(subscribe, subscriber.getClientId(), null, subscriber);
+            channels.add(channel);
+        }
+        publisher = connect(PUBLISHER, new EmbeddedChannel());
+        drainChannels();
+
+        payload = Unpooled.wrappedBuffer(new byte[payloadSize]);
+    }
+
+    private MQTTConnection connect(String clientId, EmbeddedChannel channel)
+        throws ExecutionException, InterruptedException, TimeoutException {
+        final BrokerConfiguration config = new BrokerConfiguration(true, true, false,
+            BrokerConstants.NO_BUFFER_FLUSH);
+        config.setFanOutSharedEncoding(sharedEncoding);
+        final MQTTConnection connection = new MQTTConnection(channel, config, new AcceptAllAuthenticator(),
+            sessionRegistry, postOffice);
+        connection.processConnect(MqttMessageBuilders.connect().clientId(clientId).build())
+            .completableFuture().get(5, TimeUnit.SECONDS);
+        return connection;
+    }
+
+    @TearDown
+    public void tearDown() {
+        drainChannels();
+        payload.release();
+        loopsGroup.terminate();
+        scheduler.shutdown();
+    }
+
+    @Benchmark
+    public void publishQos0() throws ExecutionException, InterruptedException, TimeoutException {
+        final MqttPublishMessage publish = MqttMessageBuilders.publish()
+            .topicName(TOPIC)
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .retained(false)
+            .payload(payload.retainedDuplicate())
+            .build();
+        postOffice.receivedPublishQos0(publisher, null, PUBLISHER, publish, Instant.MAX)
+            .get(5, TimeUnit.SECONDS);
+        // the future completes once all the session loops executed the write, so it's safe to drain here
+        drainChannels();
+    }
+
+    private void drainChannels() {
+        for (EmbeddedChannel channel : channels) {
+            Object msg;
+            while ((msg = channel.readOutbound()) != null) {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+}
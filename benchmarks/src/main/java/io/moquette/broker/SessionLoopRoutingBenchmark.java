@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.interception.BrokerInterceptor;
+import io.moquette.metrics.MetricsProviderNull;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the hand over of commands from many threads, like the Netty I/O threads, to the session
+ * loops, comparing the blocking queue with the ring buffer and its wait strategies.
+ * <p>
+ * The commands do nothing, so the measure is dominated by the queue. When a loop falls behind the
+ * routing thread waits for a free slot instead of failing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class SessionLoopRoutingBenchmark {
+
+    // same default used by the Server
+    private static final int SESSION_QUEUE_SIZE = 1024;
+    private static final int OFFER_TIMEOUT_MS = 10_000;
+    private static final int CLIENTS = 1024;
+
+    @Param({"blocking", "ring_buffer_park", "ring_buffer_busy_spin"})
+    public String loopQueue;
+
+    @Param({"1", "4"})
+    public int loops;
+
+    private SessionEventLoopGroup loopsGroup;
+    private String[] clientIds;
+
+    @State(Scope.Thread)
+    public static class RoutingThread {
+        int nextClient;
+    }
+
+    @Setup
+    public void setUp() {
+        final SessionEventLoop.Factory loopFactory;
+        switch (loopQueue) {
+            case "blocking":
+                loopFactory = BlockingQueueSessionEventLoop::new;
+                break;
+            case "ring_buffer_park":
+                loopFactory = ringBuffer(RingBufferSessionEventLoop.WaitStrategy.PARK);
+                break;
+            case "ring_buffer_busy_spin":
+                loopFactory = ringBuffer(RingBufferSessionEventLoop.WaitStrategy.BUSY_SPIN);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown loop queue: " + loopQueue);
+        }
+        loopsGroup = new SessionEventLoopGroup(new BrokerInterceptor(Collections.emptyList()), SESSION_QUEUE_SIZE,
+            OFFER_TIMEOUT_MS, loops, new HashSessionLoopAssignment(), loopFactory, new MetricsProviderNull());
+        clientIds = new String[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            clientIds[i] = "client-" + i;
+        }
+    }
+
+    private static SessionEventLoop.Factory ringBuffer(RingBufferSessionEventLoop.WaitStrategy waitStrategy) {
+        return (queueSize, queueId, offerTimeoutMs, metricsProvider) ->
+            new RingBufferSessionEventLoop(queueSize, queueId, offerTimeoutMs, waitStrategy, metricsProvider);
+    }
+
+    @TearDown
+    public void tearDown() {
+        loopsGroup.terminate();
+    }
+
+    @Benchmark
+    public PostOffice.RouteResult routeCommand(RoutingThread thread) {
+        final String clientId = clientIds[thread.nextClient++ & (CLIENTS - 1)];
+        return loopsGroup.routeCommand(clientId, "noop", () -> null);
+    }
+}
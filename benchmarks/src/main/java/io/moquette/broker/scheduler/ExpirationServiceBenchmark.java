@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the track and untrack of expiring entities, as done by the sessions that disconnect and
+ * reconnect, while many others are waiting for their expiry.
+ * <p>
+ * The expiries are hours away, so nothing is fired during the measure.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ExpirationServiceBenchmark {
+
+    private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Param({"delay_queue", "timing_wheel"})
+    public String scheduler;
+
+    @Param({"10000", "1000000"})
+    public int expiringEntities;
+
+    private ExpirationService<ExpiringEntity> expirationService;
+    private Clock clock;
+
+    private static final class ExpiringEntity implements Expirable {
+        private final Instant expireAt;
+
+        ExpiringEntity(Instant expireAt) {
+            this.expireAt = expireAt;
+        }
+
+        @Override
+        public Optional<Instant> expireAt() {
+            return Optional.of(expireAt);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reconnecting {
+        long next;
+    }
+
+    @Setup
+    public void setUp() {
+        clock = Clock.systemUTC();
+        final ExpirationService.Factory factory;
+        switch (scheduler) {
+            case "delay_queue":
+                factory = ExpirationService.DELAY_QUEUE;
+                break;
+            case "timing_wheel":
+                factory = ExpirationService.TIMING_WHEEL;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown scheduler: " + scheduler);
+        }
+        expirationService = factory.create(clock, entity -> {});
+        for (int i = 0; i < expiringEntities; i++) {
+            expirationService.track("waiting-" + i, expiringIn(HOUR_MILLIS));
+        }
+    }
+
+    private ExpiringEntity expiringIn(long minMillis) {
+        final long millis = minMillis + ThreadLocalRandom.current().nextLong(HOUR_MILLIS);
+        return new ExpiringEntity(Instant.ofEpochMilli(clock.millis() + millis));
+    }
+
+    @TearDown
+    public void tearDown() {
+        expirationService.shutdown();
+    }
+
+    @Benchmark
+    public boolean disconnectThenReconnect(Reconnecting session) {
+        final String clientId = "reconnecting-" + Thread.currentThread().getId() + "-" + (session.next++ & 1023);
+        expirationService.track(clientId, expiringIn(HOUR_MILLIS));
+        return expirationService.untrack(clientId);
+    }
+}
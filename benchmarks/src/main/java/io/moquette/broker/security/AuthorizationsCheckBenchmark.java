@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.security;
+
+import io.moquette.broker.subscriptions.Topic;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the write permission check done for each publish, with ACL files of growing size split
+ * among global, pattern and per user rules.
+ * <p>
+ * The clients publish on their own topics, so each check after the first hits the decisions cache;
+ * <code>distinctTopics</code> larger than the cache measures the compiled matcher alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorizationsCheckBenchmark {
+
+    private static final int USERS = 100;
+
+    @Param({"100", "5000"})
+    public int aclLines;
+
+    @Param({"1024", "65536"})
+    public int distinctTopics;
+
+    private AuthorizationsCollector authorizations;
+    private Topic[] topics;
+    private String[] users;
+    private String[] clients;
+    private int next;
+
+    @Setup
+    public void setUp() throws ParseException {
+        authorizations = new AuthorizationsCollector();
+        final int globalLines = aclLines / 4;
+        for (int i = 0; i < globalLines; i++) {
+            authorizations.parse("topic read building/" + i + "/+/status");
+        }
+        authorizations.parse("pattern write devices/%c/telemetry/#");
+        authorizations.parse("pattern readwrite users/%u/%c/inbox");
+        final int userLines = aclLines - globalLines - 2;
+        for (int i = 0; i < userLines; i++) {
+            authorizations.parse("user user" + (i % USERS));
+            authorizations.parse("topic write building/" + i + "/commands");
+        }
+
+        topics = new Topic[distinctTopics];
+        users = new String[distinctTopics];
+        clients = new String[distinctTopics];
+        for (int i = 0; i < distinctTopics; i++) {
+            clients[i] = "client" + i;
+            users[i] = "user" + (i % USERS);
+            topics[i] = new Topic("devices/" + clients[i] + "/telemetry/temperature");
+            // parse now, like the topics of the published messages
+            topics[i].getTokens();
+        }
+    }
+
+    @Benchmark
+    public boolean canWrite() {
+        final int i = next++ & (distinctTopics - 1);
+        return authorizations.canWrite(topics[i], users[i], clients[i]);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the matching of a published topic against a populated {@link CTrie}.
+ * <p>
+ * The tree contains <code>subscriptions</code> filters shaped as <code>site/{s}/device/{d}/{metric}</code>,
+ * a fraction of them (<code>wildcardPercentage</code>) use the <code>+</code> or <code>#</code> wildcards.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CTrieMatchBenchmark {
+
+    static final int SITES = 10;
+    static final int DEVICES_PER_SITE = 100;
+    static final String[] METRICS = {"temperature", "humidity", "pressure", "battery"};
+    private static final int PUBLISHED_TOPICS = 1024;
+
+    @Param({"1000", "100000"})
+    public int subscriptions;
+
+    @Param({"0", "10"})
+    public int wildcardPercentage;
+
+    private CTrie ctrie;
+    private Topic[] publishedTopics;
+    private int nextTopic;
+
+    @Setup
+    public void setUp() {
+        // fixed seed to have the same tree shape on every run
+        final Random random = new Random(42);
+        ctrie = new CTrie();
+        for (int i = 0; i < subscriptions; i++) {
+            final String filter = random.nextInt(100) < wildcardPercentage
+                ? randomWildcardFilter(random)
+                : randomTopicName(random);
+            ctrie.addToTree(new Subscription("client-" + i, Topic.asTopic(filter),
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE)));
+        }
+
+        publishedTopics = new Topic[PUBLISHED_TOPICS];
+        for (int i = 0; i < PUBLISHED_TOPICS; i++) {
+            publishedTopics[i] = Topic.asTopic(randomTopicName(random));
+        }
+    }
+
+    static String randomTopicName(Random random) {
+        return "site/" + random.nextInt(SITES) + "/device/" + random.nextInt(DEVICES_PER_SITE) + "/"
+            + METRICS[random.nextInt(METRICS.length)];
+    }
+
+    static String randomWildcardFilter(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return "site/" + random.nextInt(SITES) + "/device/+/" + METRICS[random.nextInt(METRICS.length)];
+            case 1:
+                return "site/" + random.nextInt(SITES) + "/device/" + random.nextInt(DEVICES_PER_SITE) + "/#";
+            default:
+                return "site/+/device/+/" + METRICS[random.nextInt(METRICS.length)];
+        }
+    }
+
+    @Benchmark
+    public List<Subscription> recursiveMatch() {
+        final Topic topic = publishedTopics[nextTopic++ & (PUBLISHED_TOPICS - 1)];
+        return ctrie.recursiveMatch(topic);
+    }
+}
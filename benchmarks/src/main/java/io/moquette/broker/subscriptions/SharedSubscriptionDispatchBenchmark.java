@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Measures the matching of a topic with a single shared subscription of {@value #MEMBERS} members, for
+ * each dispatch strategy, run with more threads (<code>-t</code>) to see the contention on the group.
+ * <p>
+ * At the end of each trial prints how the strategy spreads the load: the messages are dispatched to
+ * members that consume them at different speeds, the slowest is 4 times slower than the fastest, and
+ * the messages received and the max backlog of the members are reported.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SharedSubscriptionDispatchBenchmark {
+
+    private static final int MEMBERS = 100;
+    private static final int PUBLISHED_TOPICS = 1024;
+    private static final int SIMULATED_MESSAGES = 1_000_000;
+    private static final int CONSUME_PERIOD = 50;
+
+    @Param({"random", "round_robin", "least_inflight", "sticky_topic"})
+    public String strategy;
+
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] publishedTopics;
+    private int nextTopic;
+    // pending messages of each member, the loads read by least_inflight
+    private AtomicIntegerArray pending;
+
+    @Setup
+    public void setUp() {
+        pending = new AtomicIntegerArray(MEMBERS);
+        final Random random = new Random(42);
+        for (int i = 0; i < MEMBERS; i++) {
+            pending.set(i, random.nextInt(10));
+        }
+        directory = createDirectory(createDispatcher(strategy));
+
+        publishedTopics = new Topic[PUBLISHED_TOPICS];
+        for (int i = 0; i < PUBLISHED_TOPICS; i++) {
+            publishedTopics[i] = Topic.asTopic("devices/" + random.nextInt(100_000) + "/telemetry");
+        }
+    }
+
+    private SharedSubscriptionDispatcher createDispatcher(String strategy) {
+        final SharedSubscriptionDispatcher dispatcher;
+        switch (strategy) {
+            case "round_robin":
+                dispatcher = SharedSubscriptionDispatcher.roundRobin();
+                break;
+            case "least_inflight":
+                dispatcher = SharedSubscriptionDispatcher.leastInflight();
+                break;
+            case "sticky_topic":
+                dispatcher = SharedSubscriptionDispatcher.stickyTopic();
+                break;
+            default:
+                dispatcher = SharedSubscriptionDispatcher.random();
+        }
+        dispatcher.init(clientId -> pending.get(memberIndex(clientId)));
+        return dispatcher;
+    }
+
+    private static int memberIndex(String clientId) {
+        return Integer.parseInt(clientId.substring("member-".length()));
+    }
+
+    private CTrieSubscriptionDirectory createDirectory(SharedSubscriptionDispatcher dispatcher) {
+        final CTrieSubscriptionDirectory directory = new CTrieSubscriptionDirectory(0, dispatcher);
+        directory.init(new MemorySubscriptionsRepository());
+        for (int i = 0; i < MEMBERS; i++) {
+            directory.addShared(new Subscription("member-" + i, Topic.asTopic("devices/+/telemetry"),
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE), new ShareName("ingest")));
+        }
+        return directory;
+    }
+
+    @Benchmark
+    public List<Subscription> dispatch() {
+        final Topic topic = publishedTopics[nextTopic++ & (PUBLISHED_TOPICS - 1)];
+        return directory.matchWithoutQosSharpening(topic);
+    }
+
+    @TearDown(Level.Trial)
+    public void printLoadSpread() {
+        for (int i = 0; i < MEMBERS; i++) {
+            pending.set(i, 0);
+        }
+        // a fresh group, so that the sequences don't depend on the measured iterations
+        final CTrieSubscriptionDirectory simulated = createDirectory(createDispatcher(strategy));
+        final int[] received = new int[MEMBERS];
+        int maxBacklog = 0;
+        for (int msg = 0; msg < SIMULATED_MESSAGES; msg++) {
+            final Topic topic = publishedTopics[msg & (PUBLISHED_TOPICS - 1)];
+            final int member = memberIndex(simulated.matchWithoutQosSharpening(topic).get(0).getClientId());
+            received[member]++;
+            maxBacklog = Math.max(maxBacklog, pending.incrementAndGet(member));
+            // every member consumes a message each 50 to 200 publishes, all together slightly faster
+            // than the publishes
+            for (int i = 0; i < MEMBERS; i++) {
+                if (msg % (CONSUME_PERIOD * (1 + i % 4)) == 0 && pending.get(i) > 0) {
+                    pending.decrementAndGet(i);
+                }
+            }
+        }
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int count : received) {
+            min = Math.min(min, count);
+            max = Math.max(max, count);
+        }
+        System.out.printf("%n%s: %d messages to %d members, received min %d max %d, max backlog %d%n",
+            strategy, SIMULATED_MESSAGES, MEMBERS, min, max, maxBacklog);
+    }
+}
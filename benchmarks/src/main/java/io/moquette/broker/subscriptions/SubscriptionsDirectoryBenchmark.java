@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.broker.subscriptions.CTrieMatchBenchmark.randomTopicName;
+import static io.moquette.broker.subscriptions.CTrieMatchBenchmark.randomWildcardFilter;
+
+/**
+ * Measures {@link CTrieSubscriptionDirectory#matchQosSharpening(Topic)}, so the tree lookup plus the
+ * selection of the subscription with the highest QoS for each client, in presence of overlapping
+ * subscriptions and shared subscriptions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SubscriptionsDirectoryBenchmark {
+
+    private static final int PUBLISHED_TOPICS = 1024;
+    private static final MqttQoS[] QOS = {MqttQoS.AT_MOST_ONCE, MqttQoS.AT_LEAST_ONCE, MqttQoS.EXACTLY_ONCE};
+
+    @Param({"1000", "10000"})
+    public int clients;
+
+    @Param({"4"})
+    public int subscriptionsPerClient;
+
+    @Param({"0", "5"})
+    public int sharedGroups;
+
+    @Param({"0", "10000"})
+    public int matchCacheSize;
+
+    private CTrieSubscriptionDirectory directory;
+    private Topic[] publishedTopics;
+    private int nextTopic;
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        directory = new CTrieSubscriptionDirectory(matchCacheSize);
+        directory.init(new MemorySubscriptionsRepository());
+
+        for (int c = 0; c < clients; c++) {
+            final String clientId = "client-" + c;
+            for (int s = 0; s < subscriptionsPerClient; s++) {
+                // one plain filter plus wildcards, so that many clients match the same topic more than once
+                final String filter = s == 0 ? randomTopicName(random) : randomWildcardFilter(random);
+                directory.add(new Subscription(clientId, Topic.asTopic(filter),
+                    MqttSubscriptionOption.onlyFromQos(QOS[random.nextInt(QOS.length)])));
+            }
+            if (sharedGroups > 0) {
+                final ShareName shareName = new ShareName("group-" + random.nextInt(sharedGroups));
+                directory.addShared(new Subscription(clientId, Topic.asTopic(randomWildcardFilter(random)),
+                    MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE), shareName));
+            }
+        }
+
+        publishedTopics = new Topic[PUBLISHED_TOPICS];
+        for (int i = 0; i < PUBLISHED_TOPICS; i++) {
+            publishedTopics[i] = Topic.asTopic(randomTopicName(random));
+        }
+    }
+
+    @Benchmark
+    public List<Subscription> matchQosSharpening() {
+        final Topic topic = publishedTopics[nextTopic++ & (PUBLISHED_TOPICS - 1)];
+        return directory.matchQosSharpening(topic);
+    }
+}
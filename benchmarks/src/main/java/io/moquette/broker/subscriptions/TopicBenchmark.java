@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of the {@link Topic} operations executed on every PUBLISH: the parsing of the
+ * topic name, the head/tail traversal used by the {@link CTrie} and the match against a filter.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopicBenchmark {
+
+    @Param({"sensors/temperature", "site/3/device/42/sensors/temperature/celsius"})
+    public String topicName;
+
+    private Topic parsedTopic;
+    private Topic filter;
+
+    @Setup
+    public void setUp() {
+        parsedTopic = Topic.asTopic(topicName);
+        parsedTopic.getTokens();
+        // replace the middle level with a single level wildcard and the last one with a multi level
+        final List<Token> tokens = parsedTopic.getTokens();
+        final StringBuilder filterBuilder = new StringBuilder();
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0) {
+                filterBuilder.append('/');
+            }
+            if (i == tokens.size() - 1) {
+                filterBuilder.append('#');
+            } else if (i == tokens.size() / 2) {
+                filterBuilder.append('+');
+            } else {
+                filterBuilder.append(tokens.get(i));
+            }
+        }
+        filter = Topic.asTopic(filterBuilder.toString());
+        filter.getTokens();
+    }
+
+    @Benchmark
+    public List<Token> parse() {
+        return new Topic(topicName).getTokens();
+    }
+
+    @Benchmark
+    public void headTailTraversal(Blackhole bh) {
+        Topic current = parsedTopic;
+        while (!current.isEmpty()) {
+            bh.consume(current.headToken());
+            current = current.exceptHeadToken();
+        }
+    }
+
+    @Benchmark
+    public boolean matchFilter() {
+        return parsedTopic.match(filter);
+    }
+
+    @Benchmark
+    public boolean parseAndMatchFilter() {
+        return new Topic(topicName).match(filter);
+    }
+}
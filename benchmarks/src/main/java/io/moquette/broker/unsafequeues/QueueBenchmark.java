@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import io.moquette.BrokerConstants;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures the enqueue and dequeue of the memory mapped segmented {@link Queue}.
+ * <p>
+ * The {@link QueuePool} is recreated in a fresh temporary directory on every iteration, so that
+ * the page files don't grow across the whole run. The <code>durability</code> selects when the written
+ * pages are forced to disk, with the defaults of the broker configuration for the periodic mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueueBenchmark {
+
+    private static final int BURST_SIZE = 1_000;
+
+    /**
+     * The 16KB case doesn't fit evenly in a segment so exercises also the messages crossing segments.
+     * */
+    @Param({"64", "1024", "16384"})
+    public int payloadSize;
+
+    @Param({"none", "periodic", "sync"})
+    public String durability;
+
+    private Path dataPath;
+    private QueuePool queuePool;
+    private Queue queue;
+    private ByteBuffer payload;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("moquette-queue-bench");
+        queuePool = QueuePool.loadQueues(dataPath, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE, queueDurability(), QueuePool.ForceListener.NONE);
+        queue = queuePool.getOrCreate("benchmark");
+
+        final byte[] data = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            data[i] = (byte) ('A' + i % 26);
+        }
+        payload = ByteBuffer.wrap(data);
+    }
+
+    private QueueDurability queueDurability() {
+        switch (durability) {
+            case "none":
+                return QueueDurability.NONE;
+            case "periodic":
+                return QueueDurability.periodic(
+                    Duration.ofMillis(BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FLUSH_INTERVAL_MS),
+                    BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FLUSH_BYTES);
+            case "sync":
+                return QueueDurability.SYNC;
+            default:
+                throw new IllegalArgumentException("Unknown durability: " + durability);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, QueueException {
+        queuePool.close();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Steady state of a connected subscriber, every message is consumed as soon as it's stored.
+     * */
+    @Benchmark
+    public Optional<ByteBuffer> enqueueDequeue() throws QueueException {
+        queue.enqueue(payload.duplicate());
+        return queue.dequeue();
+    }
+
+    /**
+     * Offline subscriber that accumulates a backlog and drains it on reconnection.
+     * */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void enqueueBurstThenDrain(Blackhole bh) throws QueueException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            queue.enqueue(payload.duplicate());
+        }
+        for (int i = 0; i < BURST_SIZE; i++) {
+            bh.consume(queue.dequeue());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.unsafequeues;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Measures many writers, like the session loops, each one enqueueing into its own queue of the same
+ * {@link QueuePool}.
+ * <p>
+ * The segments are small so that the writers roll them often, allocating and recycling the segments
+ * concurrently. Run with <code>-t</code> to change the number of writers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class QueuePoolContentionBenchmark {
+
+    private static final int PAGE_SIZE = 4 * 1024 * 1024;
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int BURST_SIZE = 256;
+
+    @Param({"1024", "16384"})
+    public int payloadSize;
+
+    private Path dataPath;
+    private QueuePool queuePool;
+    private final AtomicInteger writers = new AtomicInteger();
+    private ByteBuffer payload;
+
+    @State(Scope.Thread)
+    public static class Writer {
+        Queue queue;
+
+        @Setup(Level.Iteration)
+        public void setUp(QueuePoolContentionBenchmark benchmark) throws QueueException {
+            queue = benchmark.queuePool.getOrCreate("writer-" + benchmark.writers.incrementAndGet());
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException, QueueException {
+        dataPath = Files.createTempDirectory("moquette-queue-contention-bench");
+        queuePool = QueuePool.loadQueues(dataPath, PAGE_SIZE, SEGMENT_SIZE);
+
+        final byte[] data = new byte[payloadSize];
+        for (int i = 0; i < payloadSize; i++) {
+            data[i] = (byte) ('A' + i % 26);
+        }
+        payload = ByteBuffer.wrap(data);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws IOException, QueueException {
+        queuePool.close();
+        try (Stream<Path> files = Files.walk(dataPath)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    /**
+     * Connected subscribers, the consumed segments are recycled while the others are allocated.
+     * */
+    @Benchmark
+    public Optional<ByteBuffer> enqueueDequeue(Writer writer) throws QueueException {
+        writer.queue.enqueue(payload.duplicate());
+        return writer.queue.dequeue();
+    }
+
+    /**
+     * Offline subscribers that accumulate a backlog, allocating new segments, and drain it on reconnection.
+     * */
+    @Benchmark
+    @OperationsPerInvocation(BURST_SIZE)
+    public void enqueueBurstThenDrain(Writer writer, Blackhole bh) throws QueueException {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            writer.queue.enqueue(payload.duplicate());
+        }
+        for (int i = 0; i < BURST_SIZE; i++) {
+            bh.consume(writer.queue.dequeue());
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the encoding and decoding of the messages stored in the segmented persistent queues.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentedPersistentQueueSerDesBenchmark {
+
+    @Param({"64", "4096"})
+    public int payloadSize;
+
+    @Param({"false", "true"})
+    public boolean withProperties;
+
+    private final SegmentedPersistentQueueSerDes serdes = new SegmentedPersistentQueueSerDes();
+    private final Topic topic = Topic.asTopic("site/3/device/42/sensors/temperature");
+    private ByteBuf payload;
+    private MqttProperties.MqttProperty[] properties;
+    private ByteBuffer encoded;
+
+    @Setup
+    public void setUp() {
+        payload = Unpooled.wrappedBuffer(new byte[payloadSize]);
+        if (withProperties) {
+            properties = new MqttProperties.MqttProperty[] {
+                new MqttProperties.StringProperty(MqttProperties.MqttPropertyType.CONTENT_TYPE.value(), "application/json"),
+                new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PAYLOAD_FORMAT_INDICATOR.value(), 1),
+                new MqttProperties.BinaryProperty(MqttProperties.MqttPropertyType.CORRELATION_DATA.value(), new byte[16])
+            };
+        } else {
+            properties = new MqttProperties.MqttProperty[0];
+        }
+        encoded = serdes.toBytes(newMessage());
+    }
+
+    @TearDown
+    public void tearDown() {
+        payload.release();
+    }
+
+    private SessionRegistry.PublishedMessage newMessage() {
+        // the serializer releases the payload once copied, so every message needs its own reference
+        return new SessionRegistry.PublishedMessage(topic, MqttQoS.AT_LEAST_ONCE, payload.retainedDuplicate(), false,
+            Instant.MAX, properties);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return serdes.toBytes(newMessage());
+    }
+
+    @Benchmark
+    public SessionRegistry.EnqueuedMessage decode() {
+        final SessionRegistry.EnqueuedMessage message = serdes.fromBytes(encoded.duplicate());
+        message.release();
+        return message;
+    }
+}
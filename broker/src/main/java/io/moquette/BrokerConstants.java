@@ -42,6 +42,33 @@ public final class BrokerConstants {
     public static final int DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE = 64 * MB;
     public static final String SEGMENTED_QUEUE_SEGMENT_SIZE = "queue_segment_size";
     public static final int DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE = 4 * MB;
+    /**
+     * When the segmented queues force the enqueued messages to disk: none (default), periodic or sync.
+     * */
+    public static final String SEGMENTED_QUEUE_DURABILITY = "queue_durability";
+    public static final String SEGMENTED_QUEUE_FLUSH_INTERVAL_MS = "queue_flush_interval_ms";
+    public static final int DEFAULT_SEGMENTED_QUEUE_FLUSH_INTERVAL_MS = 1000;
+    public static final String SEGMENTED_QUEUE_FLUSH_BYTES = "queue_flush_bytes";
+    public static final int DEFAULT_SEGMENTED_QUEUE_FLUSH_BYTES = 4 * MB;
+    /**
+     * Milliseconds between two compactions of the segmented queue pages, 0 (default) to disable them.
+     * */
+    public static final String SEGMENTED_QUEUE_COMPACTION_INTERVAL_MS = "queue_compaction_interval_ms";
+    public static final String SEGMENTED_QUEUE_COMPACTION_PAGE_USAGE_PERCENT = "queue_compaction_page_usage_percent";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_PAGE_USAGE_PERCENT = 50;
+    public static final String SEGMENTED_QUEUE_COMPACTION_BYTES_PER_SECOND = "queue_compaction_bytes_per_second";
+    public static final int DEFAULT_SEGMENTED_QUEUE_COMPACTION_BYTES_PER_SECOND = 16 * MB;
+    /**
+     * Bytes of messages each hybrid queue keeps in memory before spilling to the segmented queues.
+     * */
+    public static final String HYBRID_QUEUE_SESSION_MEMORY_BYTES = "queue_session_memory_bytes";
+    public static final int DEFAULT_HYBRID_QUEUE_SESSION_MEMORY_BYTES = MB;
+    /**
+     * Bytes of messages all the hybrid queues together keep in memory before spilling to the segmented queues.
+     * */
+    public static final String HYBRID_QUEUE_GLOBAL_MEMORY_BYTES = "queue_global_memory_bytes";
+    public static final int DEFAULT_HYBRID_QUEUE_GLOBAL_MEMORY_BYTES = 256 * MB;
+    public static final int DEFAULT_TOPICS_INTERNED_MAX_SIZE = 16_384;
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
     @Deprecated
     public static final String PASSWORD_FILE_PROPERTY_NAME = IConfig.PASSWORD_FILE_PROPERTY_NAME;
@@ -87,6 +114,10 @@ public final class BrokerConstants {
     public static final String DB_AUTHENTICATOR_URL = "authenticator.db.url";
     public static final String DB_AUTHENTICATOR_QUERY = "authenticator.db.query";
     public static final String DB_AUTHENTICATOR_DIGEST = "authenticator.db.digest";
+    public static final String DB_AUTHENTICATOR_POOL_SIZE = "authenticator.db.pool_size";
+    public static final String DB_AUTHENTICATOR_CACHE_SIZE = "authenticator.db.cache_size";
+    public static final String DB_AUTHENTICATOR_CACHE_TTL = "authenticator.db.cache_ttl";
+    public static final String DB_AUTHENTICATOR_CACHE_NEGATIVE_TTL = "authenticator.db.cache_negative_ttl";
     public static final int PORT = 1883;
     public static final int WEBSOCKET_PORT = 8080;
     public static final String WEBSOCKET_PATH = "/mqtt";
@@ -112,6 +143,7 @@ public final class BrokerConstants {
     public static final String BUFFER_FLUSH_MS_PROPERTY_NAME = IConfig.BUFFER_FLUSH_MS_PROPERTY_NAME;
     public static final int NO_BUFFER_FLUSH = -1;
     public static final int IMMEDIATE_BUFFER_FLUSH = 0;
+    public static final int LOOP_BUFFER_FLUSH = -2;
 
     @Deprecated
     public static final String ENABLE_TELEMETRY_NAME = IConfig.ENABLE_TELEMETRY_NAME;
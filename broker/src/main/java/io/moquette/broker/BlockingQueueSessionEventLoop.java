@@ -0,0 +1,111 @@
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProvider;
+import java.util.concurrent.ArrayBlockingQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session loop that receives the commands through a {@link BlockingQueue}.
+ * */
+final class BlockingQueueSessionEventLoop extends SessionEventLoop {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BlockingQueueSessionEventLoop.class);
+
+    private final BlockingQueue<FutureTask<String>> taskQueue;
+    private final boolean flushOnExit;
+
+    public BlockingQueueSessionEventLoop(int queueSize, int queueId, int offerTimeoutMs, MetricsProvider metricsProvider) {
+        this(new ArrayBlockingQueue<>(queueSize), queueId, offerTimeoutMs, true, metricsProvider);
+    }
+
+    /**
+     * @param flushOnExit consume the commands queue before exit.
+     *
+     */
+    public BlockingQueueSessionEventLoop(BlockingQueue<FutureTask<String>> taskQueue, int queueId, int offerTimeoutMs, boolean flushOnExit, MetricsProvider metricsProvider) {
+        super(queueId, offerTimeoutMs, metricsProvider);
+        this.taskQueue = taskQueue;
+        this.flushOnExit = flushOnExit;
+    }
+
+    @Override
+    public PostOffice.RouteResult addTask(String clientId, String actionDescription, SessionCommand cmd) {
+        final FutureTask<String> task = new FutureTask<>(() -> {
+            accountWait(cmd, System.nanoTime());
+            executeCommand(cmd);
+            return cmd.getSessionId();
+        });
+        if (Thread.currentThread() == this) {
+            executeAndAccount(task);
+            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+        }
+        cmd.markEnqueued();
+        if (taskQueue.offer(task)) {
+            metricsProvider.sessionQueueInc(queueId);
+            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+        } else {
+            if (timeoutUsed) {
+                LOG.warn("Session command queue {} is full executing action {}, retrying for max {}ms", queueId, actionDescription, offerTimeoutMs);
+                try {
+                    if (taskQueue.offer(task, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
+                        metricsProvider.sessionQueueInc(queueId);
+                        return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+                    }
+                } catch (InterruptedException ex) {
+                    LOG.warn("Interrupted waiting too queue task");
+                }
+            }
+            return rejectTask(clientId, actionDescription);
+        }
+    }
+
+    @Override
+    public void run() {
+        bindQueueId();
+        while (!Thread.interrupted() || (Thread.interrupted() && !taskQueue.isEmpty() && flushOnExit)) {
+            try {
+                // blocking call
+                final FutureTask<String> task = taskQueue.take();
+                metricsProvider.sessionQueueDec(queueId);
+                executeAndAccount(task);
+            } catch (InterruptedException e) {
+                LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
+                Thread.currentThread().interrupt();
+            }
+        }
+        LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
+    }
+
+    private void executeAndAccount(FutureTask<String> task) {
+        final long start = System.nanoTime();
+        try {
+            executeTask(task);
+        } finally {
+            accountExecution(start);
+        }
+    }
+
+    @Override
+    int queuedTasks() {
+        return taskQueue.size();
+    }
+
+    public static void executeTask(final FutureTask<String> task) {
+        if (!task.isCancelled()) {
+            try {
+                task.run();
+
+                // we ran it, but we have to grab the exception if raised
+                task.get();
+            } catch (Throwable th) {
+                LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
+                throw new RuntimeException(th);
+            }
+        }
+    }
+}
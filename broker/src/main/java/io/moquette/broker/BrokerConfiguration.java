@@ -29,6 +29,8 @@ class BrokerConfiguration {
     private final boolean reauthorizeSubscriptionsOnConnect;
     private final int bufferFlushMillis;
     private final int topicAliasMaximum;
+    private boolean fanOutSharedEncoding;
+    private boolean lowFootprintConnections;
     // integer max value means that the property is unset
     private int receiveMaximum;
     private Optional<Integer> serverKeepAlive = Optional.empty();
@@ -49,9 +51,12 @@ class BrokerConfiguration {
                 case "full":
                     bufferFlushMillis = BrokerConstants.NO_BUFFER_FLUSH;
                     break;
+                case "loop":
+                    bufferFlushMillis = BrokerConstants.LOOP_BUFFER_FLUSH;
+                    break;
                 default:
                     final String errorMsg = String.format("Can't state value of %s property. Has to be 'immediate', " +
-                        "'full' or a number >= -1, found %s", BrokerConstants.BUFFER_FLUSH_MS_PROPERTY_NAME, bufferFlushMillisProp);
+                        "'full', 'loop' or a number >= -1, found %s", BrokerConstants.BUFFER_FLUSH_MS_PROPERTY_NAME, bufferFlushMillisProp);
                     try {
                         bufferFlushMillis = Integer.parseInt(bufferFlushMillisProp);
                         if (bufferFlushMillis < -1) {
@@ -73,6 +78,10 @@ class BrokerConfiguration {
 
         topicAliasMaximum = props.intProp(IConfig.TOPIC_ALIAS_MAXIMUM_PROPERTY_NAME, BrokerConstants.DISABLED_TOPIC_ALIAS);
 
+        fanOutSharedEncoding = props.boolProp(IConfig.FAN_OUT_SHARED_ENCODING, false);
+
+        lowFootprintConnections = props.boolProp(IConfig.LOW_FOOTPRINT_CONNECTIONS, false);
+
         if (props.getProperty(IConfig.SERVER_KEEP_ALIVE_PROPERTY_NAME) != null) {
             serverKeepAlive = Optional.of((int) props.durationProp(IConfig.SERVER_KEEP_ALIVE_PROPERTY_NAME).toMillis() / 1_000);
         }
@@ -143,4 +152,22 @@ class BrokerConfiguration {
     public Optional<Integer> getServerKeepAlive() {
         return serverKeepAlive;
     }
+
+    public boolean isFanOutSharedEncoding() {
+        return fanOutSharedEncoding;
+    }
+
+    public boolean isLowFootprintConnections() {
+        return lowFootprintConnections;
+    }
+
+    // test method
+    void setLowFootprintConnections(boolean lowFootprintConnections) {
+        this.lowFootprintConnections = lowFootprintConnections;
+    }
+
+    // test method
+    void setFanOutSharedEncoding(boolean fanOutSharedEncoding) {
+        this.fanOutSharedEncoding = fanOutSharedEncoding;
+    }
 }
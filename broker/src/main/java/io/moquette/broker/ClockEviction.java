@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Second chance (CLOCK) eviction for the bounded caches, an approximation of LRU that doesn't need
+ * to reorder the entries on reads: a read only sets the referenced flag of the entry, and the clock
+ * hand skips, clearing it, the referenced entries once before evicting them.
+ * <p>
+ * Not thread safe, the caller has to guard the selection and the updates of the map with the same lock,
+ * while the reads can go lock free.
+ *
+ * @param <K> the type of the keys of the cache.
+ * @param <E> the type of the entries of the cache.
+ */
+public final class ClockEviction<K, E extends ClockEviction.Entry> {
+
+    /**
+     * Base class of the cached values, that tracks the accesses.
+     * */
+    public abstract static class Entry {
+        private volatile boolean referenced;
+
+        /**
+         * To be invoked on each read of the entry.
+         * */
+        public final void markReferenced() {
+            // avoid the volatile write when already set
+            if (!referenced) {
+                referenced = true;
+            }
+        }
+    }
+
+    private final Map<K, E> entries;
+    private Iterator<Map.Entry<K, E>> clockHand;
+
+    /**
+     * @param entries the map of the cache, its iterators must tolerate concurrent updates.
+     * */
+    public ClockEviction(Map<K, E> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the key of the entry to evict, null if the cache is empty.
+     * */
+    public K selectVictim() {
+        return selectVictim(entry -> false);
+    }
+
+    /**
+     * @param stale entries that are evicted even if referenced, like the expired ones.
+     * @return the key of the entry to evict, null if the cache is empty.
+     * */
+    public K selectVictim(Predicate<E> stale) {
+        // two rounds are enough: the first clears all the referenced flags
+        final int maxSteps = 2 * entries.size() + 1;
+        for (int i = 0; i < maxSteps; i++) {
+            if (clockHand == null || !clockHand.hasNext()) {
+                clockHand = entries.entrySet().iterator();
+                if (!clockHand.hasNext()) {
+                    return null;
+                }
+            }
+            final Map.Entry<K, E> candidate = clockHand.next();
+            final E entry = candidate.getValue();
+            final Entry tracked = entry;
+            if (tracked.referenced && !stale.test(entry)) {
+                tracked.referenced = false;
+            } else {
+                return candidate.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Restart from the beginning of the map, to be invoked when the map is cleared.
+     * */
+    public void reset() {
+        clockHand = null;
+    }
+}
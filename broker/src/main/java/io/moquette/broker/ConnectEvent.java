@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of the processing of a CONNECT by the session loop, up to the CONNACK write.
+ * */
+@Name("io.moquette.Connect")
+@Label("MQTT Connect")
+@Category({"Moquette", "Connection"})
+@Description("Creation or reopening of the session of a connecting client")
+@StackTrace(false)
+final class ConnectEvent extends Event {
+
+    @Label("Client ID")
+    String clientId;
+
+    @Label("Protocol Version")
+    int protocolVersion;
+
+    @Label("Clean Session")
+    boolean cleanSession;
+
+    @Label("Accepted")
+    @Description("False when the session couldn't be created and the connection was refused")
+    boolean accepted;
+}
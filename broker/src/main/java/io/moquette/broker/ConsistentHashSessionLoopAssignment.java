@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Arrays;
+
+/**
+ * Assigns the clients with a consistent hash ring where each loop owns many virtual nodes.
+ * <p>
+ * The client ids are spread evenly also when they differ only for a suffix, like "sensor-1",
+ * "sensor-2", and changing the number of loops between restarts moves only the clients owned by the
+ * added or removed loops.
+ */
+final class ConsistentHashSessionLoopAssignment implements SessionLoopAssignment {
+
+    static final int VIRTUAL_NODES_PER_LOOP = 128;
+
+    // sorted positions of the virtual nodes on the ring and the loop owning each of them
+    private long[] ring;
+
+    @Override
+    public void init(int loopsCount) {
+        final long[] nodes = new long[loopsCount * VIRTUAL_NODES_PER_LOOP];
+        int i = 0;
+        for (int loop = 0; loop < loopsCount; loop++) {
+            for (int node = 0; node < VIRTUAL_NODES_PER_LOOP; node++) {
+                final int position = mix(("session-loop-" + loop + "#" + node).hashCode());
+                // the position is in the high bits, so sorting orders by position, the loop is in the low bits
+                nodes[i++] = ((long) position << 32) | loop;
+            }
+        }
+        Arrays.sort(nodes);
+        this.ring = nodes;
+    }
+
+    @Override
+    public int loopFor(String clientId) {
+        final long key = (long) mix(clientId.hashCode()) << 32;
+        int idx = Arrays.binarySearch(ring, key);
+        if (idx < 0) {
+            idx = -idx - 1;
+        }
+        if (idx == ring.length) {
+            // wrap around the ring
+            idx = 0;
+        }
+        return (int) ring[idx];
+    }
+
+    // finalization step of MurmurHash3, spreads the bits of String.hashCode
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProvider;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.FastThreadLocal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes the channels written without a flush, consolidated for all the channels of an event loop.
+ * <p>
+ * Each event loop keeps the set of its dirty channels, those with writes not yet flushed, and at most
+ * one pending task that flushes all of them. The task runs after the max latency from the first write
+ * of the batch, or at the next iteration of the event loop when the max latency is zero, so the
+ * messages written to a channel by the same iteration, or during the same tick, go out with a single
+ * flush. The writes are done in the event loop of the channel, also when they're requested from the
+ * session loops, so the dirty set and the task are owned by that thread.
+ * */
+@Sharable
+final class EventLoopFlushHandler extends ChannelOutboundHandlerAdapter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventLoopFlushHandler.class);
+
+    private static final class PendingBytes {
+        long bytes;
+    }
+
+    private final class LoopFlusher implements Runnable {
+        private Map<ChannelHandlerContext, PendingBytes> dirty = new HashMap<>();
+        // swapped with dirty while flushing, so that the flushes can mark other channels dirty
+        private Map<ChannelHandlerContext, PendingBytes> flushing = new HashMap<>();
+        private final ArrayDeque<PendingBytes> recycled = new ArrayDeque<>();
+        private boolean scheduled;
+
+        void written(ChannelHandlerContext ctx, long bytes) {
+            PendingBytes pending = dirty.get(ctx);
+            if (pending == null) {
+                pending = recycled.isEmpty() ? new PendingBytes() : recycled.poll();
+                pending.bytes = 0;
+                dirty.put(ctx, pending);
+            }
+            pending.bytes += bytes;
+            if (!scheduled) {
+                scheduled = true;
+                final EventExecutor executor = ctx.executor();
+                if (maxLatencyNanos == 0) {
+                    executor.execute(this);
+                } else {
+                    executor.schedule(this, maxLatencyNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        void flushed(ChannelHandlerContext ctx) {
+            final PendingBytes pending = dirty.remove(ctx);
+            if (pending != null) {
+                recycled.offer(pending);
+            }
+        }
+
+        @Override
+        public void run() {
+            scheduled = false;
+            final Map<ChannelHandlerContext, PendingBytes> toFlush = dirty;
+            dirty = flushing;
+            flushing = toFlush;
+
+            long bytes = 0;
+            for (Map.Entry<ChannelHandlerContext, PendingBytes> entry : toFlush.entrySet()) {
+                bytes += entry.getValue().bytes;
+                recycled.offer(entry.getValue());
+                try {
+                    entry.getKey().flush();
+                } catch (Throwable th) {
+                    entry.getKey().fireExceptionCaught(th);
+                }
+            }
+            final int channels = toFlush.size();
+            toFlush.clear();
+            if (channels == 0) {
+                // all flushed explicitly after the writes
+                return;
+            }
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("Flushed {} channels, {} bytes", channels, bytes);
+            }
+            metricsProvider.addFlush(channels, bytes);
+        }
+    }
+
+    private final long maxLatencyNanos;
+    private final MetricsProvider metricsProvider;
+    private final FastThreadLocal<LoopFlusher> flushers = new FastThreadLocal<LoopFlusher>() {
+        @Override
+        protected LoopFlusher initialValue() {
+            return new LoopFlusher();
+        }
+    };
+
+    /**
+     * @param maxLatencyMillis max time a written message waits for the flush, 0 to flush at the next
+     *                         iteration of the event loop.
+     * */
+    EventLoopFlushHandler(long maxLatencyMillis, MetricsProvider metricsProvider) {
+        if (maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("Max flush latency can't be negative, was: " + maxLatencyMillis);
+        }
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.metricsProvider = metricsProvider;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        final long bytes = sizeOf(msg);
+        ctx.write(msg, promise);
+        flushers.get().written(ctx, bytes);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        // already flushed, like the acks sent with writeAndFlush
+        flushers.get().flushed(ctx);
+        ctx.flush();
+    }
+
+    private static long sizeOf(Object msg) {
+        if (msg instanceof ByteBuf) {
+            return ((ByteBuf) msg).readableBytes();
+        }
+        if (msg instanceof ByteBufHolder) {
+            return ((ByteBufHolder) msg).content().readableBytes();
+        }
+        return 0;
+    }
+}
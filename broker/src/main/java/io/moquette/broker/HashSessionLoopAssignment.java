@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Default assignment, the loop is selected by the hash code of the client id.
+ */
+final class HashSessionLoopAssignment implements SessionLoopAssignment {
+
+    private int loopsCount;
+
+    @Override
+    public void init(int loopsCount) {
+        this.loopsCount = loopsCount;
+    }
+
+    @Override
+    public int loopFor(String clientId) {
+        // the remainder is in (-loopsCount, loopsCount), abs of hashCode alone overflows for Integer.MIN_VALUE
+        return Math.abs(clientId.hashCode() % loopsCount);
+    }
+}
@@ -2,6 +2,7 @@ package io.moquette.broker;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
@@ -33,6 +34,18 @@ public class InMemoryQueue extends AbstractSessionMessageQueue<SessionRegistry.E
         return queue.poll();
     }
 
+    @Override
+    public int dequeue(int max, Consumer<? super SessionRegistry.EnqueuedMessage> consumer) {
+        checkDequeuePreconditions();
+        int count = 0;
+        SessionRegistry.EnqueuedMessage msg;
+        while (count < max && (msg = queue.poll()) != null) {
+            consumer.accept(msg);
+            count++;
+        }
+        return count;
+    }
+
     @Override
     public boolean isEmpty() {
         checkIsEmptyPreconditions();
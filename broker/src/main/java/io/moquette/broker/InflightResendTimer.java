@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.BrokerConstants;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Broker wide timer of the resends of the publishes not acknowledged in time, used by the MQTT3 sessions.
+ * <p>
+ * Each session with messages in flight has at most one timeout, for the earliest of their resend
+ * deadlines. When it expires the resend is routed to the session loop, that then schedules the next one.
+ * */
+final class InflightResendTimer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InflightResendTimer.class);
+
+    private static final long TICK_MILLIS = 100;
+
+    private final SessionEventLoopGroup loopsGroup;
+    private final HashedWheelTimer timer;
+
+    InflightResendTimer(SessionEventLoopGroup loopsGroup) {
+        this.loopsGroup = loopsGroup;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("inflight-resender", true), TICK_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    Timeout schedule(Session session, long delayMillis) {
+        return timer.newTimeout(timeout -> routeResend(session), delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void routeResend(Session session) {
+        loopsGroup.routeCommand(session.getClientID(), "resend inflight not acked", () -> {
+            session.resendTimedOutInflight();
+            return null;
+        }).ifFailed(() -> {
+            // the session still waits for this timeout, so it's retried in place of the session
+            LOG.warn("Can't route the resend of inflight messages to session {}, retrying later", session.getClientID());
+            timer.newTimeout(timeout -> routeResend(session), BrokerConstants.FLIGHT_BEFORE_RESEND_MS,
+                TimeUnit.MILLISECONDS);
+        });
+    }
+
+    void stop() {
+        timer.stop();
+    }
+}
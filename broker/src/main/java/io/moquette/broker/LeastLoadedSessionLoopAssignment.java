@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Binds a client, the first time one of its commands is routed, to the loop with less clients and keeps
+ * the binding while the client has a session or commands still to be executed.
+ * <p>
+ * Differently from the hashing strategies a few clients can't collide on the same loop, at the cost of
+ * two map updates for each command routed.
+ */
+final class LeastLoadedSessionLoopAssignment implements SessionLoopAssignment {
+
+    private static final class Binding {
+        final int loop;
+        // commands routed to the loop and not yet completed
+        int pendingCommands;
+        boolean sessionOpen;
+
+        Binding(int loop) {
+            this.loop = loop;
+        }
+
+        boolean unused() {
+            return pendingCommands == 0 && !sessionOpen;
+        }
+    }
+
+    // the bindings are updated only inside the compute methods, that are atomic per client
+    private final ConcurrentMap<String, Binding> assignedLoops = new ConcurrentHashMap<>();
+    private AtomicIntegerArray clientsPerLoop;
+
+    @Override
+    public void init(int loopsCount) {
+        this.clientsPerLoop = new AtomicIntegerArray(loopsCount);
+    }
+
+    /**
+     * @return the loop bound to the client or, when the client isn't bound, the loop it would be bound to
+     * right now.
+     * */
+    @Override
+    public int loopFor(String clientId) {
+        final Binding binding = assignedLoops.get(clientId);
+        if (binding != null) {
+            return binding.loop;
+        }
+        return leastLoadedLoop();
+    }
+
+    @Override
+    public int acquire(String clientId) {
+        return assignedLoops.compute(clientId, (id, binding) -> {
+            if (binding == null) {
+                binding = newBinding();
+            }
+            binding.pendingCommands++;
+            return binding;
+        }).loop;
+    }
+
+    @Override
+    public void completed(String clientId) {
+        assignedLoops.computeIfPresent(clientId, (id, binding) -> {
+            binding.pendingCommands--;
+            return dropIfUnused(binding);
+        });
+    }
+
+    @Override
+    public void bind(String clientId) {
+        assignedLoops.compute(clientId, (id, binding) -> {
+            if (binding == null) {
+                binding = newBinding();
+            }
+            binding.sessionOpen = true;
+            return binding;
+        });
+    }
+
+    @Override
+    public void release(String clientId) {
+        assignedLoops.computeIfPresent(clientId, (id, binding) -> {
+            binding.sessionOpen = false;
+            return dropIfUnused(binding);
+        });
+    }
+
+    private Binding newBinding() {
+        final Binding binding = new Binding(leastLoadedLoop());
+        clientsPerLoop.incrementAndGet(binding.loop);
+        return binding;
+    }
+
+    private Binding dropIfUnused(Binding binding) {
+        if (binding.unused()) {
+            clientsPerLoop.decrementAndGet(binding.loop);
+            return null;
+        }
+        return binding;
+    }
+
+    private int leastLoadedLoop() {
+        int selected = 0;
+        int minClients = clientsPerLoop.get(0);
+        for (int i = 1; i < clientsPerLoop.length(); i++) {
+            final int clients = clientsPerLoop.get(i);
+            if (clients < minClients) {
+                minClients = clients;
+                selected = i;
+            }
+        }
+        return selected;
+    }
+
+    int assignedClients(int loop) {
+        return clientsPerLoop.get(loop);
+    }
+
+    int boundClients() {
+        return assignedLoops.size();
+    }
+}
@@ -16,6 +16,8 @@
 package io.moquette.broker;
 
 import io.moquette.BrokerConstants;
+import io.moquette.broker.metrics.MQTTMessageLogger;
+import io.moquette.broker.security.IAsyncAuthenticator;
 import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.PemUtils;
 import io.moquette.broker.subscriptions.Topic;
@@ -24,6 +26,7 @@ import io.netty.buffer.ByteBufHolder;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.handler.codec.mqtt.MqttMessageBuilders.ConnAckPropertiesBuilder;
@@ -41,12 +44,14 @@ import java.nio.charset.StandardCharsets;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateEncodingException;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.function.Function;
 import javax.net.ssl.SSLPeerUnverifiedException;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
@@ -62,6 +67,8 @@ final class MQTTConnection {
 
     static final boolean sessionLoopDebug = Boolean.parseBoolean(System.getProperty("moquette.session_loop.debug", "false"));
     private static final int UNDEFINED_VERSION = -1;
+    private static final AtomicIntegerFieldUpdater<MQTTConnection> LAST_PACKET_ID_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(MQTTConnection.class, "lastPacketId");
 
     final Channel channel;
     private final BrokerConfiguration brokerConfig;
@@ -70,12 +77,17 @@ final class MQTTConnection {
     private final PostOffice postOffice;
     private final int topicAliasMaximum;
     private volatile boolean connected;
-    private final AtomicInteger lastPacketId = new AtomicInteger(0);
+    // updated through LAST_PACKET_ID_UPDATER, to not keep an AtomicInteger for each connection
+    private volatile int lastPacketId;
     private Session bindedSession;
     private int protocolVersion;
     private Quota receivedQuota;
     private Quota sendQuota;
     private TopicAliasMapping aliasMappings;
+    // runs the authentication out of the Netty thread, null to authenticate on the Netty thread
+    private final Executor loginExecutor;
+    // messages received while the CONNECT is authenticated, null when no authentication is in progress
+    private List<MqttMessage> pendingMessages;
 
     static final class ErrorCodeException extends Exception {
 
@@ -94,6 +106,16 @@ final class MQTTConnection {
 
     MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                    SessionRegistry sessionRegistry, PostOffice postOffice) {
+        this(channel, brokerConfig, authenticator, sessionRegistry, postOffice, null);
+    }
+
+    /**
+     * @param loginExecutor executes the authenticator calls, so that a slow authenticator doesn't
+     *                      block the Netty thread. If null the authentication is done in the Netty thread,
+     *                      unless the authenticator is an {@link IAsyncAuthenticator}.
+     * */
+    MQTTConnection(Channel channel, BrokerConfiguration brokerConfig, IAuthenticator authenticator,
+                   SessionRegistry sessionRegistry, PostOffice postOffice, Executor loginExecutor) {
         this.channel = channel;
         this.brokerConfig = brokerConfig;
         this.authenticator = authenticator;
@@ -102,9 +124,16 @@ final class MQTTConnection {
         this.connected = false;
         this.protocolVersion = UNDEFINED_VERSION;
         this.topicAliasMaximum = brokerConfig.topicAliasMaximum();
+        this.loginExecutor = loginExecutor;
     }
 
     void handleMessage(MqttMessage msg) {
+        if (pendingMessages != null) {
+            // keep the order with the CONNECT that is being authenticated
+            Utils.retain(msg, "pending authentication");
+            pendingMessages.add(msg);
+            return;
+        }
         MqttMessageType messageType = msg.fixedHeader().messageType();
         LOG.debug("Received MQTT message, type: {}", messageType);
         switch (messageType) {
@@ -232,7 +261,64 @@ final class MQTTConnection {
             serverGeneratedClientId = false;
         }
 
-        if (!login(msg, clientId)) {
+        if (loginExecutor != null || authenticator instanceof IAsyncAuthenticator) {
+            return authenticateAsync(msg, clientId, serverGeneratedClientId);
+        }
+        return completeConnect(msg, clientId, serverGeneratedClientId, login(msg, clientId));
+    }
+
+    private PostOffice.RouteResult authenticateAsync(MqttConnectMessage msg, String clientId,
+                                                     boolean serverGeneratedClientId) {
+        // stop reading until the CONNECT is routed, the messages already decoded are queued
+        pendingMessages = new ArrayList<>();
+        channel.config().setAutoRead(false);
+        final CompletableFuture<String> connected = loginAsync(msg, clientId)
+            .handleAsync((loggedIn, ex) -> {
+                if (ex != null) {
+                    LOG.error("Authenticator failed checking the credentials of CId={}", clientId, ex);
+                }
+                return resumeConnect(msg, clientId, serverGeneratedClientId, ex == null && loggedIn);
+            }, channel.eventLoop())
+            .thenCompose(Function.identity());
+        return PostOffice.RouteResult.success(clientId, connected);
+    }
+
+    /**
+     * Invoked in the Netty thread once the authentication is completed.
+     * */
+    private CompletableFuture<String> resumeConnect(MqttConnectMessage msg, String clientId,
+                                                    boolean serverGeneratedClientId, boolean loggedIn) {
+        final List<MqttMessage> received = pendingMessages;
+        pendingMessages = null;
+        final PostOffice.RouteResult result;
+        if (channel.isActive()) {
+            channel.config().setAutoRead(true);
+            result = completeConnect(msg, clientId, serverGeneratedClientId, loggedIn);
+        } else {
+            LOG.debug("Connection closed during the authentication. CId={}", clientId);
+            result = PostOffice.RouteResult.failed(clientId);
+        }
+        for (MqttMessage pending : received) {
+            try {
+                if (result.isSuccess()) {
+                    handleMessage(pending);
+                }
+            } catch (Throwable ex) {
+                LOG.error("Error processing protocol message: {}", pending.fixedHeader().messageType(), ex);
+                channel.close().addListener(CLOSE_ON_FAILURE);
+            } finally {
+                Utils.release(pending, "pending authentication");
+            }
+        }
+        if (!result.isSuccess()) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Connection refused for CId=" + clientId));
+        }
+        return result.completableFuture();
+    }
+
+    private PostOffice.RouteResult completeConnect(MqttConnectMessage msg, String clientId,
+                                                   boolean serverGeneratedClientId, boolean loggedIn) {
+        if (!loggedIn) {
             if (isProtocolVersion(msg, MqttVersion.MQTT_5)) {
                 final ConnAckPropertiesBuilder builder = prepareConnAckPropertiesBuilder(false, clientId);
                 builder.reasonString("User credentials provided are not recognized as valid");
@@ -258,7 +344,17 @@ final class MQTTConnection {
         protocolVersion = msg.variableHeader().version();
         return postOffice.routeCommand(clientId, "CONN", () -> {
             checkMatchSessionLoop(sessionId);
+            final ConnectEvent event = new ConnectEvent();
+            event.begin();
             executeConnect(msg, sessionId, serverGeneratedClientId);
+            event.end();
+            if (event.shouldCommit()) {
+                event.clientId = sessionId;
+                event.protocolVersion = protocolVersion;
+                event.cleanSession = msg.variableHeader().isCleanSession();
+                event.accepted = bindedSession != null;
+                event.commit();
+            }
             return null;
         });
     }
@@ -390,11 +486,9 @@ final class MQTTConnection {
                             });
                         }
 
+                        // In MQTT5 MQTT-4.4.0-1 avoid retries messages on timer base, the MQTT3 sessions
+                        // resend on timeout through the broker wide InflightResendTimer.
                         initializeKeepAliveTimeout(channel, msg, clientIdUsed);
-                        if (isNotProtocolVersion(msg, MqttVersion.MQTT_5)) {
-                            // In MQTT5 MQTT-4.4.0-1 avoid retries messages on timer base.
-                            setupInflightResender(channel);
-                        }
 
                         postOffice.dispatchConnection(msg);
                         LOG.trace("dispatch connection: {}", msg);
@@ -461,11 +555,6 @@ final class MQTTConnection {
         return builder;
     }
 
-    private void setupInflightResender(Channel channel) {
-        channel.pipeline()
-            .addFirst("inflightResender", new InflightResender(5_000, TimeUnit.MILLISECONDS));
-    }
-
     private void initializeKeepAliveTimeout(Channel channel, MqttConnectMessage msg, String clientId) {
         int keepAlive = msg.variableHeader().keepAliveTimeSeconds();
 
@@ -486,7 +575,13 @@ final class MQTTConnection {
     }
 
     private void setIdleTime(ChannelPipeline pipeline, int idleTime) {
-        if (pipeline.names().contains("idleStateHandler")) {
+        final ChannelHandler idleHandler = pipeline.get("idleStateHandler");
+        if (idleHandler instanceof SharedIdleStateHandler) {
+            // low footprint connections, the handler is shared and the idle time is kept by the channel
+            ((SharedIdleStateHandler) idleHandler).setIdleTime(pipeline.channel(), idleTime);
+            return;
+        }
+        if (idleHandler != null) {
             pipeline.remove("idleStateHandler");
         }
         pipeline.addFirst("idleStateHandler", new IdleStateHandler(idleTime, 0, 0));
@@ -518,32 +613,56 @@ final class MQTTConnection {
     }
 
     private boolean login(MqttConnectMessage msg, final String clientId) {
-        String userName = null;
-        byte[] pwd = null;
-
-        if (msg.variableHeader().hasUserName()) {
-            userName = msg.payload().userName();
-            // MQTT 3.1.2.9 does not mandate that there is a password - let the authenticator determine if it's needed
-            if (msg.variableHeader().hasPassword()) {
-                pwd = msg.payload().passwordInBytes();
-            }
+        final String userName = loginUserName(msg, clientId);
+        if (userName == null || userName.isEmpty()) {
+            return anonymousLogin(clientId);
+        }
+        return credentialsChecked(clientId, userName, authenticator.checkValid(clientId, userName, password(msg)));
+    }
+
+    /**
+     * Checks the credentials without blocking the Netty thread: with the asynchronous authenticator
+     * if available, otherwise calling the authenticator in the login executor.
+     * */
+    private CompletableFuture<Boolean> loginAsync(MqttConnectMessage msg, final String clientId) {
+        if (!(authenticator instanceof IAsyncAuthenticator)) {
+            return CompletableFuture.supplyAsync(() -> login(msg, clientId), loginExecutor);
+        }
+        final String userName = loginUserName(msg, clientId);
+        if (userName == null || userName.isEmpty()) {
+            return CompletableFuture.completedFuture(anonymousLogin(clientId));
         }
+        return ((IAsyncAuthenticator) authenticator).checkValidAsync(clientId, userName, password(msg))
+            .thenApply(valid -> credentialsChecked(clientId, userName, valid))
+            .toCompletableFuture();
+    }
 
+    private String loginUserName(MqttConnectMessage msg, String clientId) {
         if (brokerConfig.isPeerCertificateAsUsername()) {
             // Use peer cert as username
-            userName = readClientProvidedCertificates(clientId);
+            return readClientProvidedCertificates(clientId);
         }
+        return msg.variableHeader().hasUserName() ? msg.payload().userName() : null;
+    }
 
-        if (userName == null || userName.isEmpty()) {
-            if (brokerConfig.isAllowAnonymous()) {
-                return true;
-            } else {
-                LOG.info("Client didn't supply any credentials and MQTT anonymous mode is disabled. CId={}", clientId);
-                return false;
-            }
+    private static byte[] password(MqttConnectMessage msg) {
+        // MQTT 3.1.2.9 does not mandate that there is a password - let the authenticator determine if it's needed
+        if (msg.variableHeader().hasUserName() && msg.variableHeader().hasPassword()) {
+            return msg.payload().passwordInBytes();
+        }
+        return null;
+    }
+
+    private boolean anonymousLogin(String clientId) {
+        if (brokerConfig.isAllowAnonymous()) {
+            return true;
         }
+        LOG.info("Client didn't supply any credentials and MQTT anonymous mode is disabled. CId={}", clientId);
+        return false;
+    }
 
-        if (!authenticator.checkValid(clientId, userName, pwd)) {
+    private boolean credentialsChecked(String clientId, String userName, boolean valid) {
+        if (!valid) {
             LOG.info("Authenticator has rejected the MQTT credentials CId={}, username={}", clientId, userName);
             return false;
         }
@@ -702,13 +821,14 @@ final class MQTTConnection {
     }
 
     PostOffice.RouteResult processPublish(MqttPublishMessage msg) {
+        final long receivedNanos = System.nanoTime();
         final MqttQoS qos = msg.fixedHeader().qosLevel();
         final String username = NettyUtils.userName(channel);
         final String topicName = msg.variableHeader().topicName();
         final String clientId = getClientId();
         final int messageID = msg.variableHeader().packetId();
         LOG.trace("Processing PUBLISH message, topic: {}, messageId: {}, qos: {}", topicName, messageID, qos);
-        Topic topic = new Topic(topicName);
+        String routedTopicName = topicName;
 
         if (isProtocolVersion5()) {
             MqttProperties.MqttProperty topicAlias = msg.variableHeader()
@@ -716,9 +836,8 @@ final class MQTTConnection {
             if (topicAlias != null) {
                 try {
                     Optional<String> mappedTopicName = updateAndMapTopicAlias((MqttProperties.IntegerProperty) topicAlias, topicName);
-                    final String translatedTopicName = mappedTopicName.orElse(topicName);
-                    msg = copyPublishMessageExceptTopicAlias(msg, translatedTopicName, messageID);
-                    topic = new Topic(translatedTopicName);
+                    routedTopicName = mappedTopicName.orElse(topicName);
+                    msg = copyPublishMessageExceptTopicAlias(msg, routedTopicName, messageID);
                 } catch (ErrorCodeException e) {
                     brokerDisconnect(e.getErrorCode());
                     disconnectSession();
@@ -728,6 +847,8 @@ final class MQTTConnection {
             }
         }
 
+        // only once the alias is resolved, a publish that carries only the alias has an empty topic name
+        final Topic topic = Topic.interned(routedTopicName);
         if (!topic.isValid()) {
             LOG.debug("Drop connection because of invalid topic format");
             dropConnection();
@@ -752,6 +873,7 @@ final class MQTTConnection {
                         return null;
                     }
                     postOffice.receivedPublishQos0(this, username, clientId, finalMsg, expiry);
+                    postOffice.publishRouted(receivedNanos);
                     return null;
                 }).ifFailed(() -> Utils.release(finalMsg, PostOffice.BT_PUB_IN + " - failed"));
             case AT_LEAST_ONCE:
@@ -773,6 +895,7 @@ final class MQTTConnection {
                         .completableFuture().thenRun(() -> {
                             receivedQuota.releaseSlot();
                         });
+                    postOffice.publishRouted(receivedNanos);
                     return null;
                 }).ifFailed(() -> Utils.release(finalMsg, PostOffice.BT_PUB_IN + " - failed"));
             case EXACTLY_ONCE: {
@@ -787,20 +910,19 @@ final class MQTTConnection {
 
                 final PostOffice.RouteResult firstStepResult = postOffice.routeCommand(clientId, "PUB QoS2", () -> {
                     checkMatchSessionLoop(clientId);
-                    if (!isBoundToSession())
-                        return null;
-                    bindedSession.receivedPublishQos2(messageID, finalMsg);
-                    receivedQuota.consumeSlot();
+                    if (isBoundToSession()) {
+                        bindedSession.receivedPublishQos2(messageID, finalMsg);
+                        receivedQuota.consumeSlot();
+                    }
+                    // routed by the same command, so that the routing latency is recorded by the session loop
+                    postOffice.receivedPublishQos2(this, finalMsg, username, expiry);
+                    postOffice.publishRouted(receivedNanos);
                     return null;
                 });
                 if (!firstStepResult.isSuccess()) {
                     Utils.release(msg, PostOffice.BT_PUB_IN + " - failed");
                     LOG.trace("Failed to enqueue PUB QoS2 to session loop for {}", clientId);
-                    return firstStepResult;
                 }
-                firstStepResult.completableFuture().thenRun(() ->
-                    postOffice.receivedPublishQos2(this, finalMsg, username, expiry).completableFuture()
-                );
                 return firstStepResult;
             }
             default:
@@ -908,6 +1030,11 @@ final class MQTTConnection {
     }
 
     void sendPublish(MqttPublishMessage publishMsg) {
+        logSendPublish(publishMsg);
+        sendIfWritableElseDrop(publishMsg);
+    }
+
+    private void logSendPublish(MqttPublishMessage publishMsg) {
         final int packetId = publishMsg.variableHeader().packetId();
         final String topicName = publishMsg.variableHeader().topicName();
         MqttQoS qos = publishMsg.fixedHeader().qosLevel();
@@ -917,7 +1044,65 @@ final class MQTTConnection {
         } else {
             LOG.debug("Sending PUBLISH({}) message. MessageId={}, topic={} to {}", qos, packetId, topicName, getClientId());
         }
-        sendIfWritableElseDrop(publishMsg);
+    }
+
+    /**
+     * Write a PUBLISH of a batch without flushing, {@link #flushPublishes()} has to be invoked at the end of the batch.
+     * The writability is not checked because the batch started while the channel was writable and is
+     * bounded in size, so the messages already moved to the inflight window are not dropped.
+     * */
+    void writePublish(MqttPublishMessage publishMsg) {
+        logSendPublish(publishMsg);
+        if (!channel.isActive()) {
+            LOG.debug("Dropping PUBLISH message from the closed channel of {}", getClientId());
+            return;
+        }
+        final ByteBufHolder retainedDup = Utils.retainDuplicate(publishMsg, "mqtt connection write PUB");
+        channel.write(retainedDup).addListener(FIRE_EXCEPTION_ON_FAILURE);
+    }
+
+    /**
+     * Flush the PUBLISHes written with {@link #writePublish(MqttPublishMessage)}, unless the flushes are
+     * delegated to the buffer flush timer.
+     * */
+    void flushPublishes() {
+        if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            channel.flush();
+        }
+    }
+
+    boolean isSharedPublishEncodingEnabled() {
+        return brokerConfig.isFanOutSharedEncoding();
+    }
+
+    /**
+     * Send a PUBLISH encoded from the parts shared with the other subscribers of the message,
+     * the written buffer skips the MQTT encoder. The message metrics count it as any other write, while
+     * the message logger can't decode it, so it's logged here.
+     * */
+    void sendPublish(SharedPublishEncoding sharedEncoding, SessionRegistry.PublishedMessage msg, int packetId) {
+        final MqttQoS qos = msg.getPublishingQos();
+        if (!channel.isWritable()) {
+            LOG.debug("Dropping PUBLISH({}) message from the wire. MessageId={}, topic={} to {}", qos, packetId,
+                msg.getTopic(), getClientId());
+            return;
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("Sending PUBLISH({}) message. MessageId={}, topic={}, payload={} to {}", qos, packetId,
+                msg.getTopic(), DebugUtils.payload2Str(msg.getPayload()), getClientId());
+        } else {
+            LOG.debug("Sending PUBLISH({}) message. MessageId={}, topic={} to {}", qos, packetId, msg.getTopic(),
+                getClientId());
+        }
+        final ByteBuf encoded = sharedEncoding.encode(channel.alloc(), isProtocolVersion5(), msg, packetId);
+        MQTTMessageLogger.logEncodedPublish(channel, msg.getTopic().toString(), qos, packetId);
+        ChannelFuture channelFuture;
+        if (brokerConfig.getBufferFlushMillis() == BrokerConstants.IMMEDIATE_BUFFER_FLUSH) {
+            channelFuture = channel.writeAndFlush(encoded);
+        } else {
+            channelFuture = channel.write(encoded);
+        }
+        channelFuture.addListener(FIRE_EXCEPTION_ON_FAILURE);
     }
 
     void sendIfWritableElseDrop(MqttMessage msg) {
@@ -1013,12 +1198,8 @@ final class MQTTConnection {
         return createPublishMessage(topic.toString(), qos, payload, packetId, false, true, mqttProperties);
     }
 
-    public void resendNotAckedPublishes() {
-        bindedSession.resendInflightNotAcked();
-    }
-
     int nextPacketId() {
-        return lastPacketId.updateAndGet(v -> v == 65535 ? 1 : v + 1);
+        return LAST_PACKET_ID_UPDATER.updateAndGet(this, v -> v == 65535 ? 1 : v + 1);
     }
 
     @Override
@@ -18,22 +18,34 @@ package io.moquette.broker;
 import io.moquette.broker.security.IAuthenticator;
 import io.netty.channel.Channel;
 
+import java.util.concurrent.Executor;
+
 class MQTTConnectionFactory {
 
     private final BrokerConfiguration brokerConfig;
     private final IAuthenticator authenticator;
     private final SessionRegistry sessionRegistry;
     private final PostOffice postOffice;
+    private final Executor loginExecutor;
 
     MQTTConnectionFactory(BrokerConfiguration brokerConfig, IAuthenticator authenticator,
                           SessionRegistry sessionRegistry, PostOffice postOffice) {
+        this(brokerConfig, authenticator, sessionRegistry, postOffice, null);
+    }
+
+    /**
+     * @param loginExecutor executes the authentication of the CONNECTs, null to authenticate in the Netty threads.
+     * */
+    MQTTConnectionFactory(BrokerConfiguration brokerConfig, IAuthenticator authenticator,
+                          SessionRegistry sessionRegistry, PostOffice postOffice, Executor loginExecutor) {
         this.brokerConfig = brokerConfig;
         this.authenticator = authenticator;
         this.sessionRegistry = sessionRegistry;
         this.postOffice = postOffice;
+        this.loginExecutor = loginExecutor;
     }
 
     MQTTConnection create(Channel channel) {
-        return new MQTTConnection(channel, brokerConfig, authenticator, sessionRegistry, postOffice);
+        return new MQTTConnection(channel, brokerConfig, authenticator, sessionRegistry, postOffice, loginExecutor);
     }
 }
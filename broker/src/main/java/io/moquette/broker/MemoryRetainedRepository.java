@@ -16,6 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.TopicTrie;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -24,7 +25,6 @@ import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -35,11 +35,14 @@ final class MemoryRetainedRepository implements IRetainedRepository {
 
     private final ConcurrentMap<Topic, RetainedMessage> storage = new ConcurrentHashMap<>();
     private final ConcurrentMap<Topic, RetainedMessage> storageExpire = new ConcurrentHashMap<>();
+    // index of the topics present in storage or storageExpire, to avoid full scans on wildcard lookups
+    private final TopicTrie<Topic> topicsIndex = new TopicTrie<>();
 
     @Override
     public void cleanRetained(Topic topic) {
         storage.remove(topic);
         storageExpire.remove(topic);
+        topicsIndex.removeIf(topic, this::isNotStored);
     }
 
     @Override
@@ -47,6 +50,7 @@ final class MemoryRetainedRepository implements IRetainedRepository {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg));
         storage.put(topic, toStore);
+        topicsIndex.put(topic, topic);
     }
 
     @Override
@@ -54,6 +58,7 @@ final class MemoryRetainedRepository implements IRetainedRepository {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg), expiryTime);
         storageExpire.put(topic, toStore);
+        topicsIndex.put(topic, topic);
     }
 
     private static MqttProperties.MqttProperty[] extractPropertiesArray(MqttPublishMessage msg) {
@@ -77,8 +82,10 @@ final class MemoryRetainedRepository implements IRetainedRepository {
     public Collection<RetainedMessage> retainedOnTopic(String topic) {
         final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        matchingMessages.addAll(findMatching(searchTopic, storage));
-        matchingMessages.addAll(findMatching(searchTopic, storageExpire));
+        topicsIndex.match(searchTopic, matchedTopic -> {
+            addIfPresent(storage.get(matchedTopic), matchingMessages);
+            addIfPresent(storageExpire.get(matchedTopic), matchingMessages);
+        });
         return matchingMessages;
     }
 
@@ -87,14 +94,14 @@ final class MemoryRetainedRepository implements IRetainedRepository {
         return storageExpire.values();
     }
 
-    private List<RetainedMessage> findMatching(Topic searchTopic, ConcurrentMap<Topic, RetainedMessage> map) {
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : map.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
-            }
+    private boolean isNotStored(Topic topic) {
+        // a retain could happen concurrently to a clean, keep the index entry if so
+        return !storage.containsKey(topic) && !storageExpire.containsKey(topic);
+    }
+
+    private static void addIfPresent(RetainedMessage retainedMessage, List<RetainedMessage> matchingMessages) {
+        if (retainedMessage != null) {
+            matchingMessages.add(retainedMessage);
         }
-        return matchingMessages;
     }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded lock free queue for many producer threads and a single consumer thread.
+ * <p>
+ * Producers claim a slot with a CAS on the producer index and then publish the element in it, the
+ * consumer frees the slot and advances the consumer index, so producers never take a lock and the
+ * consumer never contends with them. Only the consumer thread may invoke {@link #drain(Consumer, int)}.
+ */
+final class MpscRingBuffer<E> {
+
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final AtomicLong producerIndex = new AtomicLong();
+    // written only by the consumer
+    private final AtomicLong consumerIndex = new AtomicLong();
+
+    /**
+     * @param requestedCapacity the minimum capacity, rounded up to the next power of two.
+     * */
+    MpscRingBuffer(int requestedCapacity) {
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive, was: " + requestedCapacity);
+        }
+        if (requestedCapacity > (1 << 30)) {
+            throw new IllegalArgumentException("Ring buffer capacity too big: " + requestedCapacity);
+        }
+        final int capacity = requestedCapacity == 1 ? 1 : Integer.highestOneBit(requestedCapacity - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return false if the buffer is full.
+     * */
+    boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("Null elements are not allowed");
+        }
+        final int capacity = mask + 1;
+        long index;
+        do {
+            index = producerIndex.get();
+            if (index - consumerIndex.get() >= capacity) {
+                return false;
+            }
+        } while (!producerIndex.compareAndSet(index, index + 1));
+        slots.lazySet((int) index & mask, element);
+        return true;
+    }
+
+    /**
+     * Remove up to limit elements, in insertion order, passing each one to the handler.
+     * Stops early on the first slot claimed by a producer but not yet published.
+     *
+     * @return the number of removed elements.
+     * */
+    int drain(Consumer<? super E> handler, int limit) {
+        long index = consumerIndex.get();
+        int drained = 0;
+        while (drained < limit) {
+            final int offset = (int) index & mask;
+            final E element = slots.get(offset);
+            if (element == null) {
+                break;
+            }
+            slots.lazySet(offset, null);
+            index++;
+            // free the slot before running the handler, so that producers can reuse it
+            consumerIndex.lazySet(index);
+            drained++;
+            handler.accept(element);
+        }
+        return drained;
+    }
+
+    boolean isEmpty() {
+        return consumerIndex.get() == producerIndex.get();
+    }
+
+    /**
+     * @return the number of claimed slots, including the ones still being published.
+     * */
+    int size() {
+        // read the consumer first, so that the difference is never negative
+        final long consumed = consumerIndex.get();
+        final long produced = producerIndex.get();
+        return (int) Math.min(produced - consumed, capacity());
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+}
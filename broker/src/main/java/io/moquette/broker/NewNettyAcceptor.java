@@ -19,6 +19,7 @@ package io.moquette.broker;
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.IConfig;
 import io.moquette.broker.metrics.*;
+import io.moquette.metrics.MetricsProvider;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.*;
@@ -132,6 +133,14 @@ class NewNettyAcceptor {
     private final Map<String, Integer> ports = new HashMap<>();
     private BytesMetricsCollector bytesMetricsCollector = new BytesMetricsCollector();
     private MessageMetricsCollector metricsCollector = new MessageMetricsCollector();
+    // stateless handlers, shared by all the channels
+    private final BytesMetricsHandler bytesMetricsHandler = new BytesMetricsHandler(bytesMetricsCollector);
+    private final MessageMetricsHandler messageMetricsHandler = new MessageMetricsHandler(metricsCollector);
+    private final MQTTMessageLogger messageLogger = new MQTTMessageLogger();
+    // not null when the connections are in low footprint mode
+    private SharedIdleStateHandler sharedIdleStateHandler;
+    // not null when the flushes of the written channels are consolidated
+    private EventLoopFlushHandler flushHandler;
 
     private int nettySoBacklog;
     private boolean nettySoReuseaddr;
@@ -142,7 +151,8 @@ class NewNettyAcceptor {
 
     private Class<? extends ServerSocketChannel> channelClass;
 
-    public void initialize(NewNettyMQTTHandler mqttHandler, IConfig props, ISslContextCreator sslCtxCreator, BrokerConfiguration brokerConfiguration) {
+    public void initialize(NewNettyMQTTHandler mqttHandler, IConfig props, ISslContextCreator sslCtxCreator,
+                           BrokerConfiguration brokerConfiguration, MetricsProvider metricsProvider) {
         LOG.debug("Initializing Netty acceptor");
 
         nettySoBacklog = props.intProp(BrokerConstants.NETTY_SO_BACKLOG_PROPERTY_NAME, 128);
@@ -152,6 +162,16 @@ class NewNettyAcceptor {
         nettyChannelTimeoutSeconds = props.intProp(BrokerConstants.NETTY_CHANNEL_TIMEOUT_SECONDS_PROPERTY_NAME, 10);
         maxBytesInMessage = props.intProp(BrokerConstants.NETTY_MAX_BYTES_PROPERTY_NAME,
                 BrokerConstants.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE);
+        final int writeFlushMillis = brokerConfiguration.getBufferFlushMillis();
+        if (writeFlushMillis == LOOP_BUFFER_FLUSH) {
+            flushHandler = new EventLoopFlushHandler(0, metricsProvider);
+        } else if (writeFlushMillis > IMMEDIATE_BUFFER_FLUSH) {
+            flushHandler = new EventLoopFlushHandler(writeFlushMillis, metricsProvider);
+        }
+        if (brokerConfiguration.isLowFootprintConnections()) {
+            LOG.info("Connections are in low footprint mode");
+            sharedIdleStateHandler = new SharedIdleStateHandler(nettyChannelTimeoutSeconds);
+        }
 
         boolean nativeTransport = props.boolProp(BrokerConstants.NETTY_NATIVE_PROPERTY_NAME, false);
         if (nativeTransport && classAvaliable(EPOLL_TRANSPORT) && Epoll.isAvailable()) {
@@ -252,30 +272,33 @@ class NewNettyAcceptor {
             return;
         }
         int port = Integer.parseInt(tcpPortProp);
-        final int writeFlushMillis = brokerConfiguration.getBufferFlushMillis();
         initFactory(host, port, PLAIN_MQTT_PROTO, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) {
                 ChannelPipeline pipeline = channel.pipeline();
-                configureMQTTPipeline(pipeline, timeoutHandler, handler, writeFlushMillis);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
 
     private void configureMQTTPipeline(ChannelPipeline pipeline, MoquetteIdleTimeoutHandler timeoutHandler,
-                                       NewNettyMQTTHandler handler, int writeFlushMillis) {
-        pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
+                                       NewNettyMQTTHandler handler) {
+        if (sharedIdleStateHandler != null) {
+            pipeline.addFirst("idleStateHandler", sharedIdleStateHandler);
+        } else {
+            pipeline.addFirst("idleStateHandler", new IdleStateHandler(nettyChannelTimeoutSeconds, 0, 0));
+        }
         pipeline.addAfter("idleStateHandler", "idleEventHandler", timeoutHandler);
         // pipeline.addLast("logger", new LoggingHandler("Netty", LogLevel.ERROR));
-        pipeline.addFirst("bytemetrics", new BytesMetricsHandler(bytesMetricsCollector));
-        if (writeFlushMillis > IMMEDIATE_BUFFER_FLUSH) {
-            pipeline.addLast("autoflush", new AutoFlushHandler(writeFlushMillis, TimeUnit.MILLISECONDS));
+        pipeline.addFirst("bytemetrics", bytesMetricsHandler);
+        if (flushHandler != null) {
+            pipeline.addLast("autoflush", flushHandler);
         }
         pipeline.addLast("decoder", new MqttDecoder(maxBytesInMessage));
         pipeline.addLast("encoder", MqttEncoder.INSTANCE);
-        pipeline.addLast("metrics", new MessageMetricsHandler(metricsCollector));
-        pipeline.addLast("messageLogger", new MQTTMessageLogger());
+        pipeline.addLast("metrics", messageMetricsHandler);
+        pipeline.addLast("messageLogger", messageLogger);
         pipeline.addLast("handler", handler);
     }
 
@@ -295,7 +318,6 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String path = props.getProperty(BrokerConstants.WEB_SOCKET_PATH_PROPERTY_NAME, BrokerConstants.WEBSOCKET_PATH);
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
-        final int writeFlushMillis = brokerConfiguration.getBufferFlushMillis();
         initFactory(host, port, "Websocket MQTT", new PipelineInitializer() {
 
             @Override
@@ -307,7 +329,7 @@ class NewNettyAcceptor {
                         new WebSocketServerProtocolHandler(path, MQTT_SUBPROTOCOL_CSV_LIST, false, maxFrameSize));
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
-                configureMQTTPipeline(pipeline, timeoutHandler, handler, writeFlushMillis);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -329,14 +351,13 @@ class NewNettyAcceptor {
         String host = props.getProperty(BrokerConstants.HOST_PROPERTY_NAME);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
-        final int writeFlushMillis = brokerConfiguration.getBufferFlushMillis();
         initFactory(host, sslPort, SSL_MQTT_PROTO, new PipelineInitializer() {
 
             @Override
             void init(SocketChannel channel) throws Exception {
                 ChannelPipeline pipeline = channel.pipeline();
                 pipeline.addLast("ssl", createSslHandler(channel, sslContext, needsClientAuth));
-                configureMQTTPipeline(pipeline, timeoutHandler, handler, writeFlushMillis);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -357,7 +378,6 @@ class NewNettyAcceptor {
         int maxFrameSize = props.intProp(BrokerConstants.WEB_SOCKET_MAX_FRAME_SIZE_PROPERTY_NAME, 65536);
         String sNeedsClientAuth = props.getProperty(BrokerConstants.NEED_CLIENT_AUTH, "false");
         final boolean needsClientAuth = Boolean.valueOf(sNeedsClientAuth);
-        final int writeFlushMillis = brokerConfiguration.getBufferFlushMillis();
         initFactory(host, sslPort, "Secure websocket", new PipelineInitializer() {
 
             @Override
@@ -372,7 +392,7 @@ class NewNettyAcceptor {
                 pipeline.addLast("ws2bytebufDecoder", new WebSocketFrameToByteBufDecoder());
                 pipeline.addLast("bytebuf2wsEncoder", new ByteBufToWebSocketFrameEncoder());
 
-                configureMQTTPipeline(pipeline, timeoutHandler, handler, writeFlushMillis);
+                configureMQTTPipeline(pipeline, timeoutHandler, handler);
             }
         });
     }
@@ -408,6 +428,9 @@ class NewNettyAcceptor {
             LOG.warn("Forcing shutdown of boss event loop...");
             bossGroup.shutdownGracefully(0L, 0L, TimeUnit.MILLISECONDS);
         }
+        if (sharedIdleStateHandler != null) {
+            sharedIdleStateHandler.stop();
+        }
 
         MessageMetrics metrics = metricsCollector.computeMetrics();
         BytesMetrics bytesMetrics = bytesMetricsCollector.computeMetrics();
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Map from packet id to the message in flight with that id, without boxing.
+ * <p>
+ * Open addressing with linear probing over arrays indexed by the packet id, that are consecutive for
+ * the messages sent in sequence, so they rarely collide. The arrays are allocated on the first put and
+ * kept while the session is active, when the map empties they only shrink back to the minimum capacity.
+ * They are dropped by {@link #trim()} when the session disconnects, so an idle session doesn't keep them.
+ * Optionally keeps for each entry the deadline after which it has to be resent.
+ * <p>
+ * Not thread safe, accessed only by the session loop of its session.
+ * */
+final class PacketIdMap<V> {
+
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+    private static final int MIN_CAPACITY = 16;
+    // packet ids are 1..65535, 0 marks a free slot
+    private static final int FREE = 0;
+
+    private final boolean withDeadlines;
+    private int[] keys;
+    private Object[] values;
+    private long[] deadlines;
+    private int size;
+
+    PacketIdMap(boolean withDeadlines) {
+        this.withDeadlines = withDeadlines;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    // visible for testing
+    int capacity() {
+        return keys == null ? 0 : keys.length;
+    }
+
+    V put(int packetId, V value) {
+        return put(packetId, value, NO_DEADLINE);
+    }
+
+    /**
+     * @return the message previously in flight with the same packet id, or null.
+     * */
+    @SuppressWarnings("unchecked")
+    V put(int packetId, V value, long deadline) {
+        checkPacketId(packetId);
+        if (keys == null) {
+            allocate(MIN_CAPACITY);
+        } else if ((size + 1) * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+        final int mask = keys.length - 1;
+        int slot = packetId & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == packetId) {
+                final V old = (V) values[slot];
+                values[slot] = value;
+                if (withDeadlines) {
+                    deadlines[slot] = deadline;
+                }
+                return old;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = packetId;
+        values[slot] = value;
+        if (withDeadlines) {
+            deadlines[slot] = deadline;
+        }
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(int packetId) {
+        final int slot = slotOf(packetId);
+        return slot < 0 ? null : (V) values[slot];
+    }
+
+    /**
+     * Set the resend deadline of the message in flight, if present.
+     * */
+    void setDeadline(int packetId, long deadline) {
+        final int slot = slotOf(packetId);
+        if (slot >= 0) {
+            deadlines[slot] = deadline;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(int packetId) {
+        int slot = slotOf(packetId);
+        if (slot < 0) {
+            return null;
+        }
+        final V removed = (V) values[slot];
+        size--;
+        if (size == 0 && keys.length > MIN_CAPACITY) {
+            // grown by a burst
+            allocate(MIN_CAPACITY);
+            return removed;
+        }
+        // backward shift of the following entries of the probe sequence, so that no tombstone is needed
+        final int mask = keys.length - 1;
+        int next = (slot + 1) & mask;
+        while (keys[next] != FREE) {
+            final int home = keys[next] & mask;
+            // move the entry only if its home slot isn't cyclically between the hole and its position
+            final boolean stays = slot <= next ? (slot < home && home <= next) : (slot < home || home <= next);
+            if (!stays) {
+                keys[slot] = keys[next];
+                values[slot] = values[next];
+                if (withDeadlines) {
+                    deadlines[slot] = deadlines[next];
+                }
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[slot] = FREE;
+        values[slot] = null;
+        return removed;
+    }
+
+    /**
+     * @return the packet ids in flight in ascending order.
+     * */
+    int[] packetIds() {
+        final int[] packetIds = new int[size];
+        int count = 0;
+        if (keys != null) {
+            for (int key : keys) {
+                if (key != FREE) {
+                    packetIds[count++] = key;
+                }
+            }
+        }
+        Arrays.sort(packetIds);
+        return packetIds;
+    }
+
+    /**
+     * Clear the deadlines elapsed at the given time.
+     *
+     * @return the packet ids of the expired deadlines, from the earliest.
+     * */
+    int[] drainExpired(long now) {
+        if (keys == null) {
+            return new int[0];
+        }
+        // deadline and packet id packed in a long, to sort them together
+        long[] expired = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE && deadlines[slot] <= now) {
+                expired[count++] = (deadlines[slot] << 16) | keys[slot];
+                deadlines[slot] = NO_DEADLINE;
+            }
+        }
+        Arrays.sort(expired, 0, count);
+        final int[] packetIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            packetIds[i] = (int) (expired[i] & 0xFFFF);
+        }
+        return packetIds;
+    }
+
+    /**
+     * @return the earliest resend deadline, {@link #NO_DEADLINE} if none is set.
+     * */
+    long earliestDeadline() {
+        long earliest = NO_DEADLINE;
+        if (keys != null) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != FREE && deadlines[slot] < earliest) {
+                    earliest = deadlines[slot];
+                }
+            }
+        }
+        return earliest;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEachValue(Consumer<V> action) {
+        if (keys == null) {
+            return;
+        }
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != FREE) {
+                action.accept((V) values[slot]);
+            }
+        }
+    }
+
+    void clear() {
+        size = 0;
+        release();
+    }
+
+    /**
+     * Drop the arrays if the map is empty.
+     * */
+    void trim() {
+        if (size == 0) {
+            release();
+        }
+    }
+
+    private int slotOf(int packetId) {
+        if (keys == null) {
+            return -1;
+        }
+        final int mask = keys.length - 1;
+        int slot = packetId & mask;
+        while (keys[slot] != FREE) {
+            if (keys[slot] == packetId) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new Object[capacity];
+        if (withDeadlines) {
+            deadlines = new long[capacity];
+        }
+    }
+
+    private void resize(int capacity) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        final long[] oldDeadlines = deadlines;
+        allocate(capacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == FREE) {
+                continue;
+            }
+            int slot = oldKeys[i] & mask;
+            while (keys[slot] != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            if (withDeadlines) {
+                deadlines[slot] = oldDeadlines[i];
+            }
+        }
+    }
+
+    private void release() {
+        keys = null;
+        values = null;
+        deadlines = null;
+    }
+
+    private static void checkPacketId(int packetId) {
+        if (packetId <= 0 || packetId > 65535) {
+            throw new IllegalArgumentException("Packet id must be in 1..65535, was: " + packetId);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(packetIds());
+    }
+}
@@ -16,7 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.scheduler.Expirable;
-import io.moquette.broker.scheduler.ScheduledExpirationService;
+import io.moquette.broker.scheduler.ExpirationService;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.ShareName;
 import io.moquette.broker.subscriptions.Subscription;
@@ -209,11 +209,12 @@ class PostOffice {
     private SessionRegistry sessionRegistry;
     private BrokerInterceptor interceptor;
     private TopicRewriter topicRewriter = new TopicRewriterUnity();
+    private boolean fanOutSharedEncoding;
     private final FailedPublishCollection failedPublishes = new FailedPublishCollection();
     private final SessionEventLoopGroup sessionLoops;
     private final Clock clock;
-    private final ScheduledExpirationService<ISessionsRepository.Will> willExpirationService;
-    private final ScheduledExpirationService<ExpirableTopic> retainedMessagesExpirationService;
+    private final ExpirationService<ISessionsRepository.Will> willExpirationService;
+    private final ExpirationService<ExpirableTopic> retainedMessagesExpirationService;
     private final MqttQoS maxServerGrantedQos;
     private final MetricsProvider metricsProvider;
 
@@ -256,6 +257,15 @@ class PostOffice {
                Authorizator authorizator,
                SessionEventLoopGroup sessionLoops, Clock clock, MqttQoS maxServerGrantedQos,
                MetricsProvider metricsProvider) {
+        this(subscriptions, retainedRepository, sessionRegistry, sessionRepository, interceptor, authorizator,
+            sessionLoops, clock, maxServerGrantedQos, ExpirationService.DELAY_QUEUE, metricsProvider);
+    }
+
+    PostOffice(ISubscriptionsDirectory subscriptions, IRetainedRepository retainedRepository,
+               SessionRegistry sessionRegistry, ISessionsRepository sessionRepository, BrokerInterceptor interceptor,
+               Authorizator authorizator,
+               SessionEventLoopGroup sessionLoops, Clock clock, MqttQoS maxServerGrantedQos,
+               ExpirationService.Factory expirationServices, MetricsProvider metricsProvider) {
         this.authorizator = authorizator;
         this.subscriptions = subscriptions;
         this.retainedRepository = retainedRepository;
@@ -267,10 +277,10 @@ class PostOffice {
         this.maxServerGrantedQos = maxServerGrantedQos;
         this.metricsProvider = metricsProvider;
 
-        this.willExpirationService = new ScheduledExpirationService<>(clock, this::publishWill);
+        this.willExpirationService = expirationServices.create(clock, this::publishWill);
         recreateWillExpires(sessionRepository);
 
-        this.retainedMessagesExpirationService = new ScheduledExpirationService<>(clock, this::cleanRetainedExpired);
+        this.retainedMessagesExpirationService = expirationServices.create(clock, this::cleanRetainedExpired);
         recreateRetainedExpires(retainedRepository);
     }
 
@@ -278,6 +288,13 @@ class PostOffice {
         this.topicRewriter = topicRewriter;
     }
 
+    /**
+     * @param fanOutSharedEncoding true to encode once the PUBLISHes sent to many subscribers.
+     * */
+    void setFanOutSharedEncoding(boolean fanOutSharedEncoding) {
+        this.fanOutSharedEncoding = fanOutSharedEncoding;
+    }
+
     private void cleanRetainedExpired(ExpirableTopic expirable) {
         retainedRepository.cleanRetained(expirable.topic);
     }
@@ -629,7 +646,7 @@ class PostOffice {
 
     CompletableFuture<Void> receivedPublishQos0(MQTTConnection connection, String username, String clientID, MqttPublishMessage msg,
                                                 Instant messageExpiry) {
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.interned(msg.variableHeader().topicName());
         if (!authorizator.canWrite(topic, username, clientID)) {
             LOG.error("client is not authorized to publish on topic: {}", topic);
             Utils.release(msg,PostOffice.BT_PUB_IN + " - ok, auth failed");
@@ -668,7 +685,7 @@ class PostOffice {
     RoutingResults receivedPublishQos1(MQTTConnection connection, String username, int messageID,
                                        MqttPublishMessage msg, Instant messageExpiry) {
         // verify if topic can be written
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.interned(msg.variableHeader().topicName());
         topic.getTokens();
         if (!topic.isValid()) {
             LOG.warn("Invalid topic format, force close the connection");
@@ -854,11 +871,29 @@ class PostOffice {
     private RoutingResults publish2Subscribers(String publisherClientId,
                                                Set<String> filterTargetClients, Instant messageExpiry,
                                                MqttPublishMessage msg) {
+        final PublishRoutingEvent event = new PublishRoutingEvent();
+        event.begin();
+        final RoutingResults results = routeToSubscribers(publisherClientId, filterTargetClients, messageExpiry,
+            msg, event);
+        event.end();
+        if (event.shouldCommit()) {
+            event.topic = msg.variableHeader().topicName();
+            event.commit();
+        }
+        return results;
+    }
+
+    private RoutingResults routeToSubscribers(String publisherClientId, Set<String> filterTargetClients,
+                                              Instant messageExpiry, MqttPublishMessage msg,
+                                              PublishRoutingEvent event) {
         metricsProvider.addPublish();
+        metricsProvider.addTopicPublish(SessionEventLoop.getThreadQueueId(), msg.variableHeader().topicName(),
+            msg.payload().readableBytes());
         final boolean retainPublish = msg.fixedHeader().isRetain();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.interned(msg.variableHeader().topicName());
         final MqttQoS publishingQos = msg.fixedHeader().qosLevel();
         List<Subscription> topicMatchingSubscriptions = subscriptions.matchQosSharpening(topic);
+        event.matches = topicMatchingSubscriptions.size();
         if (topicMatchingSubscriptions.isEmpty()) {
             // no matching subscriptions, clean exit
             LOG.trace("No matching subscriptions for topic: {}", topic);
@@ -882,6 +917,7 @@ class PostOffice {
         }
 
         int subscriptionCount = collector.countBatches();
+        event.batches = subscriptionCount;
         if (subscriptionCount <= 0) {
             // no matching subscriptions, clean exit
             LOG.trace("No matching subscriptions for topic: {}", topic);
@@ -923,18 +959,36 @@ class PostOffice {
     private void publishToSession(Topic topic, Collection<Subscription> subscriptions,
                                   MqttQoS publishingQos, boolean retainPublish, Instant messageExpiry, MqttPublishMessage msg) {
         ByteBuf duplicatedPayload = msg.payload().duplicate();
-        for (Subscription sub : subscriptions) {
-            MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
-            boolean retained = false;
-            if (sub.getOption().isRetainAsPublished()) {
-                retained = retainPublish;
+        // the properties are copied once for all the subscribers
+        final MqttProperties.MqttProperty[] sharedProperties =
+            SharedPublishEncoding.sharedProperties(msg.variableHeader().properties().listAll());
+        // and encoded once, if enabled
+        final SharedPublishEncoding sharedEncoding =
+            fanOutSharedEncoding ? new SharedPublishEncoding(sharedProperties) : null;
+        try {
+            for (Subscription sub : subscriptions) {
+                MqttQoS qos = lowerQosToTheSubscriptionDesired(sub, publishingQos);
+                boolean retained = false;
+                if (sub.getOption().isRetainAsPublished()) {
+                    retained = retainPublish;
+                }
+                publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, sharedProperties,
+                    sharedEncoding);
+            }
+        } finally {
+            if (sharedEncoding != null) {
+                sharedEncoding.release();
             }
-            publishToSession(duplicatedPayload, topic, sub, qos, retained, messageExpiry, msg);
         }
     }
 
+    /**
+     * @param sharedProperties the properties of the message, without subscription identifier.
+     * @param sharedEncoding the encoding shared by the subscribers, null if disabled.
+     * */
     private void publishToSession(ByteBuf payload, Topic topic, Subscription sub, MqttQoS qos, boolean retained,
-                                  Instant messageExpiry, MqttPublishMessage msg) {
+                                  Instant messageExpiry, MqttProperties.MqttProperty[] sharedProperties,
+                                  SharedPublishEncoding sharedEncoding) {
         Session targetSession = this.sessionRegistry.retrieve(sub.getClientId());
 
         boolean isSessionPresent = targetSession != null;
@@ -952,11 +1006,10 @@ class PostOffice {
             }
 
             metricsProvider.addMessage(SessionEventLoop.getThreadQueueId(), qos.value());
-            Collection<? extends MqttProperties.MqttProperty> existingProperties = msg.variableHeader().properties().listAll();
-            final MqttProperties.MqttProperty[] properties = prepareSubscriptionProperties(sub, existingProperties);
+            final MqttProperties.MqttProperty[] properties = subscriptionProperties(sub, sharedProperties);
             final SessionRegistry.PublishedMessage publishedMessage =
                 new SessionRegistry.PublishedMessage(topic, qos, payload, retained, messageExpiry, properties);
-            targetSession.sendPublishOnSessionAtQos(publishedMessage);
+            targetSession.sendPublishOnSessionAtQos(publishedMessage, sharedEncoding);
         } else {
             // If we are, the subscriber disconnected after the subscriptions tree selected that session as a
             // destination.
@@ -984,6 +1037,20 @@ class PostOffice {
         return properties.toArray(new MqttProperties.MqttProperty[0]);
     }
 
+    /**
+     * @param sharedProperties the properties of the published message, without subscription identifier.
+     * @return the shared properties, or a copy with the subscription identifier if the subscription has one.
+     * */
+    private MqttProperties.MqttProperty[] subscriptionProperties(Subscription sub,
+                                                                 MqttProperties.MqttProperty[] sharedProperties) {
+        if (!sub.hasSubscriptionIdentifier()) {
+            return sharedProperties;
+        }
+        final MqttProperties.MqttProperty[] properties = Arrays.copyOf(sharedProperties, sharedProperties.length + 1);
+        properties[sharedProperties.length] = createSubscriptionIdProperty(sub);
+        return properties;
+    }
+
     private MqttProperties.IntegerProperty createSubscriptionIdProperty(Subscription sub) {
         int subscriptionId = sub.getSubscriptionIdentifier().value();
         return new MqttProperties.IntegerProperty(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), subscriptionId);
@@ -997,7 +1064,7 @@ class PostOffice {
     RoutingResults receivedPublishQos2(MQTTConnection connection, MqttPublishMessage msg, String username,
                                        Instant messageExpiry) {
         LOG.trace("Processing PUB QoS2 message on connection: {}", connection);
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.interned(msg.variableHeader().topicName());
 
         final String clientId = connection.getClientId();
         if (!authorizator.canWrite(topic, username, clientId)) {
@@ -1061,7 +1128,7 @@ class PostOffice {
      */
     public RoutingResults internalPublish(MqttPublishMessage msg) {
         final MqttQoS qos = msg.fixedHeader().qosLevel();
-        final Topic topic = new Topic(msg.variableHeader().topicName());
+        final Topic topic = Topic.interned(msg.variableHeader().topicName());
         final ByteBuf payload = msg.payload();
         LOG.info("Sending internal PUBLISH message Topic={}, qos={}", topic, qos);
 
@@ -1136,10 +1203,24 @@ class PostOffice {
         interceptor.notifyClientConnectionLost(clientId, userName);
     }
 
+    /**
+     * Records the routing time of a PUBLISH received from a client, to be invoked by the session loop
+     * of the publisher once the message is dispatched to the subscribers.
+     *
+     * @param receivedNanos when the decoded PUBLISH started to be processed.
+     * */
+    void publishRouted(long receivedNanos) {
+        metricsProvider.addPublishRouting(SessionEventLoop.getThreadQueueId(), System.nanoTime() - receivedNanos);
+    }
+
     String sessionLoopThreadName(String clientId) {
         return sessionLoops.sessionLoopThreadName(clientId);
     }
 
+    List<SessionLoopStats> sessionLoopsStats() {
+        return sessionLoops.loopsStats();
+    }
+
     /**
      * Route the command to the owning SessionEventLoop
      * */
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event of the match of a PUBLISH against the subscriptions and its dispatch to the session loops.
+ * */
+@Name("io.moquette.PublishRouting")
+@Label("MQTT Publish Routing")
+@Category({"Moquette", "Routing"})
+@Description("Match of a published topic and dispatch to the session loops of the subscribers")
+@StackTrace(false)
+@Threshold("1 ms")
+final class PublishRoutingEvent extends Event {
+
+    @Label("Topic")
+    String topic;
+
+    @Label("Matched Subscriptions")
+    int matches;
+
+    @Label("Batches")
+    @Description("Session loops the PUBLISH was dispatched to")
+    int batches;
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Session loop that receives the commands through a {@link MpscRingBuffer}, so the threads that
+ * route commands don't contend on a lock, and executes them in batches.
+ * <p>
+ * When there is nothing to execute the loop waits according to its {@link WaitStrategy}.
+ * */
+final class RingBufferSessionEventLoop extends SessionEventLoop {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RingBufferSessionEventLoop.class);
+
+    static final int DRAIN_BATCH_SIZE = 256;
+    private static final int SPINS_BEFORE_PARK = 100;
+    private static final long OFFER_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    enum WaitStrategy {
+        /**
+         * Spin for a while then park the thread until a new command is added, it doesn't use CPU when idle.
+         * */
+        PARK,
+        /**
+         * Never release the CPU, to minimize the latency at the cost of a fully busy core for each loop.
+         * */
+        BUSY_SPIN
+    }
+
+    private final MpscRingBuffer<SessionCommand> commands;
+    private final WaitStrategy waitStrategy;
+    private final Consumer<SessionCommand> executor = this::executeQueued;
+    // true when the loop could be parked and producers have to wake it up
+    private volatile boolean parked;
+
+    RingBufferSessionEventLoop(int queueSize, int queueId, int offerTimeoutMs, WaitStrategy waitStrategy,
+                               MetricsProvider metricsProvider) {
+        super(queueId, offerTimeoutMs, metricsProvider);
+        this.commands = new MpscRingBuffer<>(queueSize);
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public PostOffice.RouteResult addTask(String clientId, String actionDescription, SessionCommand cmd) {
+        if (Thread.currentThread() == this) {
+            executeAndAccount(cmd);
+            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+        }
+        cmd.markEnqueued();
+        if (enqueue(cmd)) {
+            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+        }
+        if (timeoutUsed) {
+            LOG.warn("Session command queue {} is full executing action {}, retrying for max {}ms", queueId, actionDescription, offerTimeoutMs);
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(offerTimeoutMs);
+            while (System.nanoTime() - deadline < 0) {
+                LockSupport.parkNanos(OFFER_RETRY_NANOS);
+                if (enqueue(cmd)) {
+                    return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    LOG.warn("Interrupted waiting too queue task");
+                    break;
+                }
+            }
+        }
+        return rejectTask(clientId, actionDescription);
+    }
+
+    private boolean enqueue(SessionCommand cmd) {
+        if (!commands.offer(cmd)) {
+            return false;
+        }
+        metricsProvider.sessionQueueInc(queueId);
+        if (parked) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        bindQueueId();
+        int idleCycles = 0;
+        while (!Thread.interrupted()) {
+            if (commands.drain(executor, DRAIN_BATCH_SIZE) > 0) {
+                idleCycles = 0;
+            } else {
+                idleCycles = idle(idleCycles);
+            }
+        }
+        LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
+        // execute the commands already accepted
+        while (!commands.isEmpty()) {
+            if (commands.drain(executor, DRAIN_BATCH_SIZE) == 0) {
+                // a producer claimed a slot and is publishing the command
+                Thread.onSpinWait();
+            }
+        }
+        LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
+    }
+
+    private int idle(int idleCycles) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN || idleCycles < SPINS_BEFORE_PARK) {
+            Thread.onSpinWait();
+            return idleCycles + 1;
+        }
+        parked = true;
+        // check again after the flag is visible, a command added before that doesn't unpark the loop
+        if (commands.isEmpty()) {
+            LockSupport.park(this);
+        }
+        parked = false;
+        return idleCycles;
+    }
+
+    private void executeQueued(SessionCommand cmd) {
+        metricsProvider.sessionQueueDec(queueId);
+        executeAndAccount(cmd);
+    }
+
+    private void executeAndAccount(SessionCommand cmd) {
+        final long start = System.nanoTime();
+        accountWait(cmd, start);
+        try {
+            executeCommand(cmd);
+        } catch (Throwable th) {
+            LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
+            throw new RuntimeException(th);
+        } finally {
+            accountExecution(start);
+        }
+    }
+
+    @Override
+    int queuedTasks() {
+        return commands.size();
+    }
+}
@@ -22,6 +22,7 @@ import io.moquette.broker.config.IConfig;
 import io.moquette.broker.config.IResourceLoader;
 import io.moquette.broker.config.MemoryConfig;
 import io.moquette.broker.config.ResourceLoaderConfig;
+import io.moquette.broker.scheduler.ExpirationService;
 import io.moquette.broker.security.ACLFileParser;
 import io.moquette.broker.security.AcceptAllAuthenticator;
 import io.moquette.broker.security.DenyAllAuthorizatorPolicy;
@@ -29,14 +30,19 @@ import io.moquette.broker.security.IAuthenticator;
 import io.moquette.broker.security.IAuthorizatorPolicy;
 import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
 import io.moquette.broker.security.ResourceAuthenticator;
+import io.moquette.broker.unsafequeues.QueueCompaction;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.persistence.H2Builder;
+import io.moquette.persistence.HybridQueueRepository;
 import io.moquette.persistence.MemorySessionsRepository;
 import io.moquette.persistence.MemorySubscriptionsRepository;
 import io.moquette.interception.BrokerInterceptor;
 import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.broker.subscriptions.SharedSubscriptionDispatcher;
+import io.moquette.broker.subscriptions.Topic;
 import io.moquette.persistence.SegmentQueueRepository;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
 import io.netty.handler.codec.mqtt.MqttQoS;
@@ -58,12 +64,14 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 
@@ -80,6 +88,10 @@ public class Server {
 
     private ScheduledExecutorService scheduler;
     private NewNettyAcceptor acceptor;
+    // null when the CONNECTs are authenticated in the Netty threads
+    private ExecutorService loginExecutor;
+    // the authenticator loaded from the configuration, if it holds resources to release on stop
+    private AutoCloseable ownedAuthenticator;
     private volatile boolean initialized;
     private PostOffice dispatcher;
     private TopicRewriter topicRewriter;
@@ -236,7 +248,11 @@ public class Server {
             LOG.debug("Configuring persistent subscriptions store and queues, path: {}", dataPath);
             final int autosaveInterval = Integer.parseInt(config.getProperty(BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
             h2Builder = new H2Builder(scheduler, dataPath, autosaveInterval, clock).initStore();
-            queueRepository = initQueuesRepository(config, dataPath, h2Builder);
+            final int writeBehindMillis = config.intProp(IConfig.PERSISTENCE_WRITE_BEHIND_MS, 0);
+            if (writeBehindMillis > 0) {
+                h2Builder.writeBehind(writeBehindMillis);
+            }
+            queueRepository = initQueuesRepository(config, dataPath, h2Builder, metricsProvider);
             LOG.trace("Configuring H2 subscriptions repository");
             subscriptionsRepository = h2Builder.subscriptionsRepository();
             retainedRepository = h2Builder.retainedRepository();
@@ -249,7 +265,11 @@ public class Server {
             sessionsRepository = new MemorySessionsRepository();
         }
 
-        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        Topic.setInternedMaxSize(config.intProp(IConfig.TOPICS_INTERNED_MAX_SIZE,
+            BrokerConstants.DEFAULT_TOPICS_INTERNED_MAX_SIZE));
+        final int matchCacheSize = config.intProp(IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE, 0);
+        final SharedSubscriptionDispatcher sharedDispatcher = createSharedSubscriptionDispatcher(config);
+        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory(matchCacheSize, sharedDispatcher);
         subscriptions.init(subscriptionsRepository);
         final Authorizator authorizator = new Authorizator(authorizatorPolicy);
 
@@ -262,23 +282,32 @@ public class Server {
 
         final int sessionQueueSize = config.intProp(IConfig.SESSION_QUEUE_SIZE, 1024);
         final int offerTimeoutMs = config.intProp(IConfig.SESSION_QUEUE_OFFER_TIMEOUT_MS, 0);
-        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, offerTimeoutMs, metricsProvider);
+        final int sessionLoops = config.intProp(IConfig.SESSION_LOOPS, Runtime.getRuntime().availableProcessors());
+        final SessionLoopAssignment loopAssignment = createSessionLoopAssignment(config);
+        LOG.info("Starting {} session loops with assignment {}", sessionLoops, loopAssignment.getClass().getSimpleName());
+        final SessionEventLoop.Factory loopFactory = createSessionLoopFactory(config);
+        final SessionEventLoopGroup loopsGroup = new SessionEventLoopGroup(interceptor, sessionQueueSize, offerTimeoutMs,
+            sessionLoops, loopAssignment, loopFactory, metricsProvider);
+        final ExpirationService.Factory expirationServices = createExpirationServiceFactory(config);
         sessions = new SessionRegistry(subscriptions, sessionsRepository, queueRepository, authorizator, scheduler,
-            clock, globalSessionExpiry, loopsGroup, metricsProvider);
+            clock, globalSessionExpiry, loopsGroup, expirationServices, metricsProvider);
+        sharedDispatcher.init(sessions::pendingMessages);
 
         final MqttQoS serverGrantedQoS = parseMaxGrantedQoS(config);
         dispatcher = new PostOffice(subscriptions, retainedRepository, sessions, sessionsRepository, interceptor,
-            authorizator, loopsGroup, clock, serverGrantedQoS, metricsProvider);
+            authorizator, loopsGroup, clock, serverGrantedQoS, expirationServices, metricsProvider);
         if (topicRewriter != null) {
             dispatcher.setTopicRewriter(topicRewriter);
         }
         final BrokerConfiguration brokerConfig = new BrokerConfiguration(config);
+        dispatcher.setFanOutSharedEncoding(brokerConfig.isFanOutSharedEncoding());
+        loginExecutor = createLoginExecutor(config);
         MQTTConnectionFactory connectionFactory = new MQTTConnectionFactory(brokerConfig, authenticator, sessions,
-                                                                            dispatcher);
+                                                                            dispatcher, loginExecutor);
 
         final NewNettyMQTTHandler mqttHandler = new NewNettyMQTTHandler(connectionFactory);
         acceptor = new NewNettyAcceptor();
-        acceptor.initialize(mqttHandler, config, sslCtxCreator, brokerConfig);
+        acceptor.initialize(mqttHandler, config, sslCtxCreator, brokerConfig, metricsProvider);
 
         final long startTime = System.currentTimeMillis() - start;
         LOG.info("Moquette integration has been started successfully in {} ms", startTime);
@@ -322,7 +351,106 @@ public class Server {
         }
     }
 
-    private static IQueueRepository initQueuesRepository(IConfig config, Path dataPath, H2Builder h2Builder) throws IOException {
+    private static ExecutorService createLoginExecutor(IConfig config) {
+        if (!config.boolProp(IConfig.VIRTUAL_THREADS_ENABLED, false)) {
+            return null;
+        }
+        if (!VirtualThreads.isSupported()) {
+            LOG.warn("Virtual threads are not supported by this JVM, CONNECTs are authenticated in the Netty threads");
+            return null;
+        }
+        LOG.info("CONNECTs are authenticated on virtual threads");
+        return VirtualThreads.newThreadPerTaskExecutor("login-");
+    }
+
+    private ExpirationService.Factory createExpirationServiceFactory(IConfig config) {
+        final String scheduler = config.getProperty(IConfig.EXPIRATION_SCHEDULER, "delay_queue");
+        if ("delay_queue".equalsIgnoreCase(scheduler)) {
+            return ExpirationService.DELAY_QUEUE;
+        }
+        if ("timing_wheel".equalsIgnoreCase(scheduler)) {
+            LOG.info("Expirations are scheduled on a timing wheel");
+            return ExpirationService.TIMING_WHEEL;
+        }
+        final String errMsg = String.format("Invalid property for %s found [%s] while only delay_queue or " +
+            "timing_wheel are admitted", IConfig.EXPIRATION_SCHEDULER, scheduler);
+        throw new IllegalArgumentException(errMsg);
+    }
+
+    private SessionEventLoop.Factory createSessionLoopFactory(IConfig config) {
+        final String queue = config.getProperty(IConfig.SESSION_LOOP_QUEUE, "blocking");
+        if ("blocking".equalsIgnoreCase(queue)) {
+            return BlockingQueueSessionEventLoop::new;
+        }
+        if (!"ring_buffer".equalsIgnoreCase(queue)) {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only blocking or " +
+                "ring_buffer are admitted", IConfig.SESSION_LOOP_QUEUE, queue);
+            throw new IllegalArgumentException(errMsg);
+        }
+        final String strategy = config.getProperty(IConfig.SESSION_LOOP_WAIT_STRATEGY, "park");
+        final RingBufferSessionEventLoop.WaitStrategy waitStrategy;
+        if ("park".equalsIgnoreCase(strategy)) {
+            waitStrategy = RingBufferSessionEventLoop.WaitStrategy.PARK;
+        } else if ("busy_spin".equalsIgnoreCase(strategy)) {
+            waitStrategy = RingBufferSessionEventLoop.WaitStrategy.BUSY_SPIN;
+        } else {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only park or " +
+                "busy_spin are admitted", IConfig.SESSION_LOOP_WAIT_STRATEGY, strategy);
+            throw new IllegalArgumentException(errMsg);
+        }
+        LOG.info("Session loops use a ring buffer queue with {} wait strategy", waitStrategy);
+        return (queueSize, queueId, offerTimeoutMs, metricsProvider) ->
+            new RingBufferSessionEventLoop(queueSize, queueId, offerTimeoutMs, waitStrategy, metricsProvider);
+    }
+
+    private SessionLoopAssignment createSessionLoopAssignment(IConfig config) {
+        final String assignment = config.getProperty(IConfig.SESSION_LOOP_ASSIGNMENT, "hash");
+        if ("hash".equalsIgnoreCase(assignment)) {
+            return new HashSessionLoopAssignment();
+        }
+        if ("consistent_hash".equalsIgnoreCase(assignment)) {
+            return new ConsistentHashSessionLoopAssignment();
+        }
+        if ("least_loaded".equalsIgnoreCase(assignment)) {
+            return new LeastLoadedSessionLoopAssignment();
+        }
+        final SessionLoopAssignment custom = loadClass(assignment, SessionLoopAssignment.class, IConfig.class, config);
+        if (custom == null) {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only hash, consistent_hash, " +
+                "least_loaded or a SessionLoopAssignment class name are admitted", IConfig.SESSION_LOOP_ASSIGNMENT, assignment);
+            throw new IllegalArgumentException(errMsg);
+        }
+        return custom;
+    }
+
+    private SharedSubscriptionDispatcher createSharedSubscriptionDispatcher(IConfig config) {
+        final String dispatch = config.getProperty(IConfig.SHARED_SUBSCRIPTION_DISPATCH, "random");
+        if ("random".equalsIgnoreCase(dispatch)) {
+            return SharedSubscriptionDispatcher.random();
+        }
+        LOG.info("Shared subscriptions are dispatched with {} strategy", dispatch);
+        if ("round_robin".equalsIgnoreCase(dispatch)) {
+            return SharedSubscriptionDispatcher.roundRobin();
+        }
+        if ("least_inflight".equalsIgnoreCase(dispatch)) {
+            return SharedSubscriptionDispatcher.leastInflight();
+        }
+        if ("sticky_topic".equalsIgnoreCase(dispatch)) {
+            return SharedSubscriptionDispatcher.stickyTopic();
+        }
+        final SharedSubscriptionDispatcher custom = loadClass(dispatch, SharedSubscriptionDispatcher.class,
+            IConfig.class, config);
+        if (custom == null) {
+            final String errMsg = String.format("Invalid property for %s found [%s] while only random, round_robin, " +
+                "least_inflight, sticky_topic or a SharedSubscriptionDispatcher class name are admitted",
+                IConfig.SHARED_SUBSCRIPTION_DISPATCH, dispatch);
+            throw new IllegalArgumentException(errMsg);
+        }
+        return custom;
+    }
+
+    private static IQueueRepository initQueuesRepository(IConfig config, Path dataPath, H2Builder h2Builder,
+                                                         MetricsProvider metricsProvider) throws IOException {
         final IQueueRepository queueRepository;
         final String queueType = config.getProperty(IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME);
         if ("h2".equalsIgnoreCase(queueType)) {
@@ -330,20 +458,70 @@ public class Server {
             queueRepository = h2Builder.queueRepository();
         } else if ("segmented".equalsIgnoreCase(queueType)) {
             LOG.info("Configuring segmented queue store to {}", dataPath);
-            final int pageSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_PAGE_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE);
-            final int segmentSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SEGMENT_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
-            try {
-                queueRepository = new SegmentQueueRepository(dataPath, pageSize, segmentSize);
-            } catch (QueueException e) {
-                throw new IOException("Problem in configuring persistent queue on path " + dataPath, e);
-            }
+            queueRepository = createSegmentQueueRepository(config, dataPath, metricsProvider);
+        } else if ("hybrid".equalsIgnoreCase(queueType)) {
+            final int sessionMemoryBytes = config.intProp(BrokerConstants.HYBRID_QUEUE_SESSION_MEMORY_BYTES,
+                BrokerConstants.DEFAULT_HYBRID_QUEUE_SESSION_MEMORY_BYTES);
+            final int globalMemoryBytes = config.intProp(BrokerConstants.HYBRID_QUEUE_GLOBAL_MEMORY_BYTES,
+                BrokerConstants.DEFAULT_HYBRID_QUEUE_GLOBAL_MEMORY_BYTES);
+            LOG.info("Configuring hybrid queue store, {} bytes in memory per session, {} bytes in memory in total, " +
+                "spilling to {}", sessionMemoryBytes, globalMemoryBytes, dataPath);
+            queueRepository = new HybridQueueRepository(createSegmentQueueRepository(config, dataPath, metricsProvider),
+                sessionMemoryBytes, globalMemoryBytes);
         } else {
-            final String errMsg = String.format("Invalid property for %s found [%s] while only h2 or segmented are admitted", IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME, queueType);
+            final String errMsg = String.format("Invalid property for %s found [%s] while only h2, segmented or hybrid are admitted", IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME, queueType);
             throw new RuntimeException(errMsg);
         }
         return queueRepository;
     }
 
+    private static SegmentQueueRepository createSegmentQueueRepository(IConfig config, Path dataPath,
+                                                                       MetricsProvider metricsProvider) throws IOException {
+        final int pageSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_PAGE_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_PAGE_SIZE);
+        final int segmentSize = config.intProp(BrokerConstants.SEGMENTED_QUEUE_SEGMENT_SIZE, BrokerConstants.DEFAULT_SEGMENTED_QUEUE_SEGMENT_SIZE);
+        final QueueDurability durability = createQueueDurability(config);
+        LOG.info("Segmented queue durability: {}", durability);
+        final QueueCompaction compaction = createQueueCompaction(config);
+        LOG.info("Segmented queue compaction: {}", compaction);
+        try {
+            return new SegmentQueueRepository(dataPath, pageSize, segmentSize, durability, compaction, metricsProvider);
+        } catch (QueueException e) {
+            throw new IOException("Problem in configuring persistent queue on path " + dataPath, e);
+        }
+    }
+
+    private static QueueCompaction createQueueCompaction(IConfig config) {
+        final int intervalMillis = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_INTERVAL_MS, 0);
+        if (intervalMillis <= 0) {
+            return QueueCompaction.DISABLED;
+        }
+        final int pageUsagePercent = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_PAGE_USAGE_PERCENT,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_PAGE_USAGE_PERCENT);
+        final int bytesPerSecond = config.intProp(BrokerConstants.SEGMENTED_QUEUE_COMPACTION_BYTES_PER_SECOND,
+            BrokerConstants.DEFAULT_SEGMENTED_QUEUE_COMPACTION_BYTES_PER_SECOND);
+        return QueueCompaction.every(Duration.ofMillis(intervalMillis), pageUsagePercent / 100.0, bytesPerSecond);
+    }
+
+    private static QueueDurability createQueueDurability(IConfig config) {
+        final String mode = config.getProperty(BrokerConstants.SEGMENTED_QUEUE_DURABILITY, "none");
+        if ("none".equalsIgnoreCase(mode)) {
+            return QueueDurability.NONE;
+        }
+        if ("sync".equalsIgnoreCase(mode)) {
+            return QueueDurability.SYNC;
+        }
+        if ("periodic".equalsIgnoreCase(mode)) {
+            final int intervalMillis = config.intProp(BrokerConstants.SEGMENTED_QUEUE_FLUSH_INTERVAL_MS,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FLUSH_INTERVAL_MS);
+            final int flushBytes = config.intProp(BrokerConstants.SEGMENTED_QUEUE_FLUSH_BYTES,
+                BrokerConstants.DEFAULT_SEGMENTED_QUEUE_FLUSH_BYTES);
+            return QueueDurability.periodic(Duration.ofMillis(intervalMillis), flushBytes);
+        }
+        final String errMsg = String.format("Invalid property for %s found [%s] while only none, periodic or sync are admitted",
+            BrokerConstants.SEGMENTED_QUEUE_DURABILITY, mode);
+        throw new IllegalArgumentException(errMsg);
+    }
+
     private void collectAndSendTelemetryDataAsynch(IConfig config) {
         final Thread telCollector = new Thread(() -> collectAndSendTelemetryData(config));
         telCollector.start();
@@ -525,6 +703,10 @@ public class Server {
 
         if (authenticator == null && !authenticatorClassName.isEmpty()) {
             authenticator = loadClass(authenticatorClassName, IAuthenticator.class, IConfig.class, props);
+            if (authenticator instanceof AutoCloseable) {
+                // created by the broker, so released with it
+                ownedAuthenticator = (AutoCloseable) authenticator;
+            }
         }
 
         IResourceLoader resourceLoader = props.getResourceLoader();
@@ -635,6 +817,17 @@ public class Server {
             h2Builder.closeStore();
         }
 
+        if (loginExecutor != null) {
+            loginExecutor.shutdownNow();
+        }
+        if (ownedAuthenticator != null) {
+            try {
+                ownedAuthenticator.close();
+            } catch (Exception ex) {
+                LOG.warn("Failed to close the authenticator", ex);
+            }
+            ownedAuthenticator = null;
+        }
         interceptor.stop();
         dispatcher.terminate();
         metricsProvider.stop();
@@ -652,6 +845,19 @@ public class Server {
     public MetricsProvider getMetricsProvider() {
         return metricsProvider;
     }
+
+    /**
+     * SPI method used by Broker embedded applications to inspect how the load is spread on the
+     * session loops. Returns null if the broker is not started.
+     *
+     * @return the stats of each session loop.
+     */
+    public List<SessionLoopStats> getSessionLoopsStats() {
+        if (dispatcher == null) {
+            return null;
+        }
+        return dispatcher.sessionLoopsStats();
+    }
     
     /**
      * SPI method used by Broker embedded applications to get list of subscribers. Returns null if
@@ -21,19 +21,20 @@ import io.moquette.broker.SessionRegistry.EnqueuedMessage;
 import io.moquette.broker.SessionRegistry.PublishedMessage;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.MetricsProviderNull;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.*;
 import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
 import java.time.Instant;
 import java.util.*;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.stream.Collectors;
 
 class Session {
@@ -42,61 +43,59 @@ class Session {
     // By specification session expiry value of 0xEFFFFFFF (UINT_MAX) (seconds) means
     // session that doesn't expire, it's ~68 years.
     static final int INFINITE_EXPIRY = Integer.MAX_VALUE;
+    // max queued messages sent before flushing the channel
+    private static final int DRAIN_BATCH_SIZE = 256;
+    private static final MetricsProvider NO_METRICS = new MetricsProviderNull();
+    private static final AtomicReferenceFieldUpdater<Session, SessionStatus> STATUS_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(Session.class, SessionStatus.class, "status");
+    private static final AtomicIntegerFieldUpdater<Session> QUEUED_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(Session.class, "queuedMessages");
     private final boolean resendInflightOnTimeout;
     private Collection<Integer> nonAckPacketIds;
 
-    static class InFlightPacket implements Delayed {
-
-        final int packetId;
-        private long startTime;
-
-        InFlightPacket(int packetId, long delayInMilliseconds) {
-            this.packetId = packetId;
-            this.startTime = System.currentTimeMillis() + delayInMilliseconds;
-        }
-
-        @Override
-        public long getDelay(TimeUnit unit) {
-            long diff = startTime - System.currentTimeMillis();
-            return unit.convert(diff, TimeUnit.MILLISECONDS);
-        }
-
-        @Override
-        public int compareTo(Delayed o) {
-            if ((this.startTime - ((InFlightPacket) o).startTime) == 0) {
-                return 0;
-            }
-            if ((this.startTime - ((InFlightPacket) o).startTime) > 0) {
-                return 1;
-            } else {
-                return -1;
-            }
-        }
-    }
-
     enum SessionStatus {
         CONNECTED, CONNECTING, DISCONNECTING, DISCONNECTED, DESTROYED
     }
 
     private boolean clean;
     private final SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue;
-    private final AtomicReference<SessionStatus> status = new AtomicReference<>(SessionStatus.DISCONNECTED);
+    // messages enqueued by this instance and not yet dequeued, written only by the session loop and
+    // read by the publishers to dispatch the shared subscriptions
+    private volatile int queuedMessages;
+    // updated through STATUS_UPDATER, to not keep an AtomicReference for each session
+    private volatile SessionStatus status = SessionStatus.DISCONNECTED;
     private MQTTConnection mqttConnection;
-    private final Map<String, Subscription> subscriptions = new HashMap<>();
-    private final Map<Integer, SessionRegistry.EnqueuedMessage> inflightWindow = new HashMap<>();
-    // used only in MQTT3 where resends are done on timeout of ACKs.
-    private final DelayQueue<InFlightPacket> inflightTimeouts = new DelayQueue<>();
-    private final Map<Integer, MqttPublishMessage> qos2Receiving = new HashMap<>();
+    // allocated with the first subscription
+    private Map<String, Subscription> subscriptions = Collections.emptyMap();
+    // the resend deadlines are used only in MQTT3 where resends are done on timeout of ACKs.
+    private final PacketIdMap<SessionRegistry.EnqueuedMessage> inflightWindow = new PacketIdMap<>(true);
+    private final PacketIdMap<MqttPublishMessage> qos2Receiving = new PacketIdMap<>(false);
+    // null when the resends are triggered only explicitly, as in tests
+    private final InflightResendTimer resendTimer;
+    private final MetricsProvider metricsProvider;
+    private Timeout resendTimeout;
     private ISessionsRepository.SessionData data;
     private boolean resendingNonAcked = false;
 
     Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue) {
+        this(data, clean, sessionQueue, null);
+    }
+
+    Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue,
+            InflightResendTimer resendTimer) {
+        this(data, clean, sessionQueue, resendTimer, NO_METRICS);
+    }
+
+    Session(ISessionsRepository.SessionData data, boolean clean, SessionMessageQueue<SessionRegistry.EnqueuedMessage> sessionQueue,
+            InflightResendTimer resendTimer, MetricsProvider metricsProvider) {
         if (sessionQueue == null) {
             throw new IllegalArgumentException("sessionQueue parameter can't be null");
         }
         this.data = data;
         this.clean = clean;
         this.sessionQueue = sessionQueue;
+        this.resendTimer = resendTimer;
+        this.metricsProvider = metricsProvider;
         // in MQTT3 cleanSession = true means  expiryInterval=0 else infinite
 //        expiryInterval = clean ? 0 : 0xFFFFFFFF;
         this.resendInflightOnTimeout = data.protocolVersion() != MqttVersion.MQTT_5;
@@ -131,23 +130,35 @@ class Session {
     }
 
     public boolean disconnected() {
-        return status.get() == SessionStatus.DISCONNECTED;
+        return status == SessionStatus.DISCONNECTED;
     }
 
     public boolean connected() {
-        return status.get() == SessionStatus.CONNECTED;
+        return status == SessionStatus.CONNECTED;
     }
 
     public String getClientID() {
         return data.clientId();
     }
 
+    /**
+     * Estimate of the messages in flight and queued, that can be invoked by any thread. The messages
+     * found in a persistent queue when the session is restored are not counted.
+     * */
+    int pendingMessages() {
+        // size of the inflight window read without synchronization, may be stale
+        return inflightWindow.size() + queuedMessages;
+    }
+
     public List<Subscription> getSubscriptions() {
         return new ArrayList<>(subscriptions.values());
     }
 
     public void addSubscription(Subscription sub) {
         String topic = sub.getOriginalTopicFilterWithSharename();
+        if (subscriptions.isEmpty()) {
+            subscriptions = new HashMap<>();
+        }
         subscriptions.put(topic, sub);
     }
 
@@ -174,13 +185,13 @@ class Session {
     }
 
     boolean assignState(SessionStatus expected, SessionStatus newState) {
-        return status.compareAndSet(expected, newState);
+        return STATUS_UPDATER.compareAndSet(this, expected, newState);
     }
 
     public void closeImmediately() {
         mqttConnection.dropConnection();
         mqttConnection = null;
-        status.set(SessionStatus.DISCONNECTED);
+        status = SessionStatus.DISCONNECTED;
     }
 
     public void disconnect() {
@@ -193,6 +204,8 @@ class Session {
 
         mqttConnection = null;
         updateSessionData(data.withoutWill());
+        inflightWindow.trim();
+        qos2Receiving.trim();
 
         assignState(SessionStatus.DISCONNECTING, SessionStatus.DISCONNECTED);
     }
@@ -203,7 +216,6 @@ class Session {
 
     public void processPubRec(int pubRecPacketId) {
         // Message discarded, make sure any buffers in it are released
-        cleanFromInflight(pubRecPacketId);
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(pubRecPacketId);
         if (removed == null) {
             LOG.warn("Received a PUBREC with not matching packetId");
@@ -218,10 +230,11 @@ class Session {
         if (mqttConnection == null) {
             return;
         }
-        inflightWindow.put(pubRecPacketId, new SessionRegistry.PubRelMarker());
-        if (resendInflightOnTimeout) {
-            inflightTimeouts.add(new InFlightPacket(pubRecPacketId, FLIGHT_BEFORE_RESEND_MS));
-        }
+        final SessionRegistry.PubRelMarker pubRelMarker = new SessionRegistry.PubRelMarker();
+        // the round trip of QoS2 ends with the PUBCOMP
+        pubRelMarker.sentNanos = removed.sentNanos;
+        inflightWindow.put(pubRecPacketId, pubRelMarker);
+        trackForResend(pubRecPacketId);
         MqttMessage pubRel = MQTTConnection.pubrel(pubRecPacketId);
         mqttConnection.sendIfWritableElseDrop(pubRel);
 
@@ -234,12 +247,12 @@ class Session {
 
     public void processPubComp(int messageID) {
         // Message discarded, make sure any buffers in it are released
-        cleanFromInflight(messageID);
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(messageID);
         if (removed == null) {
             LOG.warn("Received a PUBCOMP with not matching packetId in the inflight cache");
             return;
         }
+        accountAcknowledged(removed, MqttQoS.EXACTLY_ONCE);
         Utils.release(removed, "target session - phase 2 Qos2 pull from inflight");
         mqttConnection.sendQuota().releaseSlot();
         drainQueueToConnection();
@@ -257,37 +270,55 @@ class Session {
     }
 
     void sendPublishOnSessionAtQos(PublishedMessage publishRequest) {
+        sendPublishOnSessionAtQos(publishRequest, null);
+    }
+
+    /**
+     * @param sharedEncoding the encoding shared with the other subscribers of the message, null if not shared.
+     * */
+    void sendPublishOnSessionAtQos(PublishedMessage publishRequest, SharedPublishEncoding sharedEncoding) {
+        publishRequest.enqueuedNanos = System.nanoTime();
         switch (publishRequest.getPublishingQos()) {
             case AT_MOST_ONCE:
                 if (connected()) {
-                    sendPublishQos0(publishRequest);
+                    sendPublishQos0(publishRequest, sharedEncoding);
                 }
                 break;
             case AT_LEAST_ONCE:
-                sendPublishQos1(publishRequest);
+                sendPublishQos1(publishRequest, sharedEncoding);
                 break;
             case EXACTLY_ONCE:
-                sendPublishQos2(publishRequest);
+                sendPublishQos2(publishRequest, sharedEncoding);
                 break;
             case FAILURE:
                 LOG.error("Not admissible");
         }
     }
 
-    private void sendPublishQos0(PublishedMessage publishRequest) {
+    private void sendPublishQos0(PublishedMessage publishRequest, SharedPublishEncoding sharedEncoding) {
         if (publishRequest.isExpired()) {
             LOG.debug("Sending publish at QoS0 already expired, drop it");
             return;
         }
 
+        sendPublish(mqttConnection, publishRequest, 0, sharedEncoding);
+    }
+
+    private void sendPublish(MQTTConnection connection, PublishedMessage publishRequest, int packetId,
+                             SharedPublishEncoding sharedEncoding) {
+        accountSent(publishRequest);
+        if (sharedEncoding != null && connection.isSharedPublishEncodingEnabled()) {
+            connection.sendPublish(sharedEncoding, publishRequest, packetId);
+            return;
+        }
         MqttProperties.MqttProperty[] mqttProperties = publishRequest.updatePublicationExpiryIfPresentOrAdd();
         MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(publishRequest.getTopic().toString(),
-            publishRequest.getPublishingQos(), publishRequest.getPayload(), 0,
+            publishRequest.getPublishingQos(), publishRequest.getPayload(), packetId,
             publishRequest.retained, false, mqttProperties);
-        mqttConnection.sendPublish(publishMsg);
+        connection.sendPublish(publishMsg);
     }
 
-    private void sendPublishQos1(PublishedMessage publishRequest) {
+    private void sendPublishQos1(PublishedMessage publishRequest, SharedPublishEncoding sharedEncoding) {
         if (!connected() && isClean()) {
             //pushing messages to disconnected not clean session
             return;
@@ -298,20 +329,21 @@ class Session {
         }
 
         final MQTTConnection localMqttConnectionRef = mqttConnection;
-        sendPublishInFlightWindowOrQueueing(localMqttConnectionRef, publishRequest);
+        sendPublishInFlightWindowOrQueueing(localMqttConnectionRef, publishRequest, sharedEncoding);
     }
 
-    private void sendPublishQos2(PublishedMessage publishRequest) {
+    private void sendPublishQos2(PublishedMessage publishRequest, SharedPublishEncoding sharedEncoding) {
         if (publishRequest.isExpired()) {
             LOG.debug("Sending publish at QoS2 already expired, drop it");
             return;
         }
         final MQTTConnection localMqttConnectionRef = mqttConnection;
-        sendPublishInFlightWindowOrQueueing(localMqttConnectionRef, publishRequest);
+        sendPublishInFlightWindowOrQueueing(localMqttConnectionRef, publishRequest, sharedEncoding);
     }
 
     private void sendPublishInFlightWindowOrQueueing(MQTTConnection localMqttConnectionRef,
-                                                     PublishedMessage publishRequest) {
+                                                     PublishedMessage publishRequest,
+                                                     SharedPublishEncoding sharedEncoding) {
         // retain the payload because it's going to be added to map or to the queue.
         Utils.retain(publishRequest, "target session - forward to inflight or queue");
 
@@ -327,19 +359,14 @@ class Session {
                 Utils.release(old, "target session - replace existing slot");
                 mqttConnection.sendQuota().releaseSlot();
             }
-            if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(packetId, FLIGHT_BEFORE_RESEND_MS));
-            }
+            trackForResend(packetId);
 
-            MqttProperties.MqttProperty[] mqttProperties = publishRequest.updatePublicationExpiryIfPresentOrAdd();
-            MqttPublishMessage publishMsg = MQTTConnection.createPublishMessage(
-                publishRequest.topic.toString(), publishRequest.getPublishingQos(),
-                publishRequest.payload, packetId, publishRequest.retained, false, mqttProperties);
-            localMqttConnectionRef.sendPublish(publishMsg);
+            sendPublish(localMqttConnectionRef, publishRequest, packetId, sharedEncoding);
 
             drainQueueToConnection();
         } else {
             sessionQueue.enqueue(publishRequest);
+            QUEUED_UPDATER.lazySet(this, queuedMessages + 1);
             LOG.debug("Enqueue to peer session {} at QoS {}", getClientID(), publishRequest.getPublishingQos());
         }
     }
@@ -360,13 +387,13 @@ class Session {
 
     void pubAckReceived(int ackPacketId) {
         // TODO remain to invoke in somehow m_interceptor.notifyMessageAcknowledged
-        cleanFromInflight(ackPacketId);
         SessionRegistry.EnqueuedMessage removed = inflightWindow.remove(ackPacketId);
         if (removed == null) {
             LOG.warn("Received a PUBACK with not matching packetId({}) in the inflight cache({})",
-                ackPacketId, inflightWindow.keySet());
+                ackPacketId, inflightWindow);
             return;
         }
+        accountAcknowledged(removed, MqttQoS.AT_LEAST_ONCE);
         Utils.release(removed, "target session - inflight remove");
 
         mqttConnection.sendQuota().releaseSlot();
@@ -378,8 +405,62 @@ class Session {
         }
     }
 
-    private void cleanFromInflight(int ackPacketId) {
-        inflightTimeouts.removeIf(d -> d.packetId == ackPacketId);
+    /**
+     * Records how long the message stayed in the session and marks the start of the round trip of
+     * its acknowledge.
+     * */
+    private void accountSent(PublishedMessage msg) {
+        final long now = System.nanoTime();
+        if (msg.enqueuedNanos != 0) {
+            metricsProvider.addMessageDelivery(SessionEventLoop.getThreadQueueId(), now - msg.enqueuedNanos);
+        }
+        msg.sentNanos = now;
+    }
+
+    private void accountAcknowledged(EnqueuedMessage msg, MqttQoS qos) {
+        // not known for the messages read back from the persistence
+        if (msg.sentNanos != 0) {
+            metricsProvider.addAckRoundTrip(SessionEventLoop.getThreadQueueId(), qos.value(),
+                System.nanoTime() - msg.sentNanos);
+        }
+    }
+
+    /**
+     * Set the deadline of the resend of a message just sent, with MQTT3 resends on timeout.
+     * */
+    private void trackForResend(int packetId) {
+        if (!resendInflightOnTimeout) {
+            return;
+        }
+        inflightWindow.setDeadline(packetId, System.currentTimeMillis() + FLIGHT_BEFORE_RESEND_MS);
+        if (resendTimer != null && resendTimeout == null) {
+            resendTimeout = resendTimer.schedule(this, FLIGHT_BEFORE_RESEND_MS);
+        }
+    }
+
+    private void scheduleNextResend() {
+        if (!resendInflightOnTimeout || resendTimer == null || resendTimeout != null) {
+            return;
+        }
+        final long earliestDeadline = inflightWindow.earliestDeadline();
+        if (earliestDeadline == PacketIdMap.NO_DEADLINE) {
+            return;
+        }
+        final long delay = Math.max(1, earliestDeadline - System.currentTimeMillis());
+        resendTimeout = resendTimer.schedule(this, delay);
+    }
+
+    /**
+     * Invoked by the {@link InflightResendTimer} when the earliest resend deadline expired.
+     * */
+    void resendTimedOutInflight() {
+        resendTimeout = null;
+        if (!connected() || mqttConnection == null) {
+            // resent and scheduled again on reconnection
+            return;
+        }
+        resendInflightNotAcked();
+        scheduleNextResend();
     }
 
     public void flushAllQueuedMessages() {
@@ -390,13 +471,10 @@ class Session {
         if (!resendingNonAcked) {
             if (resendInflightOnTimeout) {
                 // MQTT3 behavior, resend on timeout
-                Collection<InFlightPacket> expired = new ArrayList<>();
-                inflightTimeouts.drainTo(expired);
-                nonAckPacketIds = expired.stream().map(p -> p.packetId).collect(Collectors.toList());
+                nonAckPacketIds = toList(inflightWindow.drainExpired(System.currentTimeMillis()));
             } else {
                 // MQTT5 behavior resend only not acked present in reopened session.
-                // need a copy else removing from the nonAckPacketIds would remove also from inflightWindow
-                nonAckPacketIds = new ArrayList<>(inflightWindow.keySet());
+                nonAckPacketIds = toList(inflightWindow.packetIds());
             }
 
             debugLogPacketIds(nonAckPacketIds);
@@ -423,6 +501,14 @@ class Session {
 
     }
 
+    private static List<Integer> toList(int[] packetIds) {
+        final List<Integer> list = new ArrayList<>(packetIds.length);
+        for (int packetId : packetIds) {
+            list.add(packetId);
+        }
+        return list;
+    }
+
     private void resendNonAckedIdsPartition(Collection<Integer> packetIdsToResend) {
         for (Integer notAckPacketId : packetIdsToResend) {
             final EnqueuedMessage msg = inflightWindow.get(notAckPacketId);
@@ -432,9 +518,7 @@ class Session {
             }
             if (msg instanceof SessionRegistry.PubRelMarker) {
                 MqttMessage pubRel = MQTTConnection.pubrel(notAckPacketId);
-                if (resendInflightOnTimeout) {
-                    inflightTimeouts.add(new InFlightPacket(notAckPacketId, FLIGHT_BEFORE_RESEND_MS));
-                }
+                trackForResend(notAckPacketId);
                 mqttConnection.sendIfWritableElseDrop(pubRel);
             } else {
                 final PublishedMessage pubMsg = (PublishedMessage) msg;
@@ -445,9 +529,7 @@ class Session {
                 // message fetched from map, but not removed from map. No need to duplicate or release.
                 MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedDuplicatedPublishMessage(
                     notAckPacketId, topic, qos, payload, mqttProperties);
-                if (resendInflightOnTimeout) {
-                    inflightTimeouts.add(new InFlightPacket(notAckPacketId, FLIGHT_BEFORE_RESEND_MS));
-                }
+                trackForResend(notAckPacketId);
                 mqttConnection.sendPublish(publishMsg);
 
                 mqttConnection.sendQuota().consumeSlot();
@@ -468,44 +550,50 @@ class Session {
     }
 
     private void drainQueueToConnection() {
-        // consume the queue
+        // consume the queue in batches, flushing the channel once per batch
         while (connected() && !sessionQueue.isEmpty() && inflightHasSlotsAndConnectionIsUp()) {
-            final SessionRegistry.EnqueuedMessage msg = sessionQueue.dequeue();
-            if (msg == null) {
+            final int batchSize = Math.min(DRAIN_BATCH_SIZE, mqttConnection.sendQuota().availableSlots());
+            final int dequeued = sessionQueue.dequeue(batchSize, this::sendQueuedPublish);
+            QUEUED_UPDATER.lazySet(this, Math.max(0, queuedMessages - dequeued));
+            mqttConnection.flushPublishes();
+            if (dequeued == 0) {
                 // Our message was already fetched by another Thread.
                 return;
             }
-            final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
-            if (msgPub.isExpired()) {
-                LOG.debug("Drop an expired message contained in the queue");
-                return;
-            }
+        }
+    }
 
-            mqttConnection.sendQuota().consumeSlot();
-            int sendPacketId = mqttConnection.nextPacketId();
+    private void sendQueuedPublish(EnqueuedMessage msg) {
+        final SessionRegistry.PublishedMessage msgPub = (SessionRegistry.PublishedMessage) msg;
+        if (msgPub.isExpired()) {
+            LOG.debug("Drop an expired message contained in the queue");
+            Utils.release(msg, "target session - drop expired from queue");
+            return;
+        }
 
-            // Putting it in a map, but the retain is cancelled out by the below release.
-            EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
-            if (old != null) {
-                Utils.release(old, "target session - drain queue push to inflight");
-                mqttConnection.sendQuota().releaseSlot();
-            }
-            if (resendInflightOnTimeout) {
-                inflightTimeouts.add(new InFlightPacket(sendPacketId, FLIGHT_BEFORE_RESEND_MS));
-            }
+        mqttConnection.sendQuota().consumeSlot();
+        int sendPacketId = mqttConnection.nextPacketId();
 
-            MqttProperties.MqttProperty[] mqttProperties = msgPub.updatePublicationExpiryIfPresentOrAdd();
+        // Putting it in a map, but the retain is cancelled out by the below release.
+        EnqueuedMessage old = inflightWindow.put(sendPacketId, msg);
+        if (old != null) {
+            Utils.release(old, "target session - drain queue push to inflight");
+            mqttConnection.sendQuota().releaseSlot();
+        }
+        trackForResend(sendPacketId);
 
-            MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
-                msgPub.topic.toString(),
-                msgPub.publishingQos,
-                msgPub.payload,
-                sendPacketId,
-                mqttProperties);
-            mqttConnection.sendPublish(publishMsg);
+        MqttProperties.MqttProperty[] mqttProperties = msgPub.updatePublicationExpiryIfPresentOrAdd();
 
-            // we fetched msg from a map, but the release is cancelled out by the above retain
-        }
+        MqttPublishMessage publishMsg = MQTTConnection.createNotRetainedPublishMessage(
+            msgPub.topic.toString(),
+            msgPub.publishingQos,
+            msgPub.payload,
+            sendPacketId,
+            mqttProperties);
+        accountSent(msgPub);
+        mqttConnection.writePublish(publishMsg);
+
+        // we fetched msg from a map, but the release is cancelled out by the above retain
     }
 
     public void writabilityChanged() {
@@ -515,6 +603,8 @@ class Session {
     public void reconnectSession() {
         LOG.trace("Republishing all saved messages for session {}", this);
         resendInflightNotAcked();
+        // the timeout could have expired while disconnected
+        scheduleNextResend();
 
         if (!resendingNonAcked) {
             // if resend of inflight is bigger than send quota, till it's finished
@@ -552,13 +642,15 @@ class Session {
         // in case of in memory session queues all contained messages
         // has to be released.
         sessionQueue.closeAndPurge();
-        inflightTimeouts.clear();
-        for (EnqueuedMessage msg : inflightWindow.values()) {
-            Utils.release(msg, "session cleanup - inflight window");
-        }
-        for (MqttPublishMessage msg : qos2Receiving.values()) {
-            Utils.release(msg, "session cleanup - phase 2 cache");
+        QUEUED_UPDATER.lazySet(this, 0);
+        if (resendTimeout != null) {
+            resendTimeout.cancel();
+            resendTimeout = null;
         }
+        inflightWindow.forEachValue(msg -> Utils.release(msg, "session cleanup - inflight window"));
+        qos2Receiving.forEachValue(msg -> Utils.release(msg, "session cleanup - phase 2 cache"));
+        inflightWindow.clear();
+        qos2Receiving.clear();
     }
 
     ISessionsRepository.SessionData getSessionData() {
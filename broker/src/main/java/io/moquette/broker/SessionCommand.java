@@ -6,11 +6,15 @@ import java.util.concurrent.CompletableFuture;
 final class SessionCommand {
 
     private final String sessionId;
+    private final String actionDescription;
     private final Callable<Void> action;
     private final CompletableFuture<String> task;
+    // when the command was offered to the queue of the loop, 0 if executed directly by the loop thread
+    private long enqueuedNanos;
 
-    public  SessionCommand(String sessionId, Callable<Void> action) {
+    public  SessionCommand(String sessionId, String actionDescription, Callable<Void> action) {
         this.sessionId = sessionId;
+        this.actionDescription = actionDescription;
         this.action = action;
         this.task = new CompletableFuture<>();
     }
@@ -19,6 +23,18 @@ final class SessionCommand {
         return this.sessionId;
     }
 
+    String getActionDescription() {
+        return actionDescription;
+    }
+
+    void markEnqueued() {
+        this.enqueuedNanos = System.nanoTime();
+    }
+
+    long enqueuedNanos() {
+        return enqueuedNanos;
+    }
+
     public void execute() throws Exception {
         action.call();
     }
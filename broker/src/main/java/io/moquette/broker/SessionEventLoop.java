@@ -1,108 +1,106 @@
 package io.moquette.broker;
 
 import io.moquette.metrics.MetricsProvider;
-import java.util.concurrent.ArrayBlockingQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-final class SessionEventLoop extends Thread {
+/**
+ * Thread that executes the commands of the sessions bound to it, in the order they are added.
+ * The implementations differ on the queue that hands over the commands from the other threads.
+ * */
+abstract class SessionEventLoop extends Thread {
 
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoop.class);
 
-    private final BlockingQueue<FutureTask<String>> taskQueue;
-    private final boolean flushOnExit;
-    private final int queueId;
-    private final MetricsProvider metricsProvider;
-    private final int offerTimeoutMs;
-    private final boolean timeoutUsed;
     /**
-     * Allows a task to fetch the id of the session queue that is executing it.
-     */
-    private static final ThreadLocal<Integer> threadQueueId = new ThreadLocal<>();
-
-    public SessionEventLoop(int queueSize, int queueId, int offerTimeoutMs, MetricsProvider metricsProvider) {
-        this(new ArrayBlockingQueue<>(queueSize), queueId, offerTimeoutMs, true, metricsProvider);
+     * Creates the session loop with the given id, one for each of the loops in a {@link SessionEventLoopGroup}.
+     * */
+    @FunctionalInterface
+    interface Factory {
+        SessionEventLoop create(int queueSize, int queueId, int offerTimeoutMs, MetricsProvider metricsProvider);
     }
 
+    protected final int queueId;
+    protected final MetricsProvider metricsProvider;
+    protected final int offerTimeoutMs;
+    protected final boolean timeoutUsed;
+    // written only by this thread, read by the stats
+    private volatile long executedTasks;
+    private volatile long busyNanos;
+    private final LongAdder rejectedTasks = new LongAdder();
     /**
-     * @param flushOnExit consume the commands queue before exit.
-     *
+     * Allows a task to fetch the id of the session queue that is executing it.
      */
-    public SessionEventLoop(BlockingQueue<FutureTask<String>> taskQueue, int queueId, int offerTimeoutMs, boolean flushOnExit, MetricsProvider metricsProvider) {
-        this.taskQueue = taskQueue;
+    private static final ThreadLocal<Integer> threadQueueId = new ThreadLocal<>();
+
+    protected SessionEventLoop(int queueId, int offerTimeoutMs, MetricsProvider metricsProvider) {
         this.queueId = queueId;
         this.offerTimeoutMs = offerTimeoutMs;
-        this.flushOnExit = flushOnExit;
         this.metricsProvider = metricsProvider;
         this.timeoutUsed = offerTimeoutMs > 0;
     }
 
-    public PostOffice.RouteResult addTask(String clientId, String actionDescription, SessionCommand cmd) {
-        final FutureTask<String> task = new FutureTask<>(() -> {
-            cmd.execute();
-            cmd.complete();
-            return cmd.getSessionId();
-        });
-        if (Thread.currentThread() == this) {
-            SessionEventLoop.executeTask(task);
-            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
-        }
-        if (taskQueue.offer(task)) {
-            metricsProvider.sessionQueueInc(queueId);
-            return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
-        } else {
-            if (timeoutUsed) {
-                LOG.warn("Session command queue {} is full executing action {}, retrying for max {}ms", queueId, actionDescription, offerTimeoutMs);
-                try {
-                    if (taskQueue.offer(task, offerTimeoutMs, TimeUnit.MILLISECONDS)) {
-                        metricsProvider.sessionQueueInc(queueId);
-                        return PostOffice.RouteResult.success(clientId, cmd.completableFuture());
-                    }
-                } catch (InterruptedException ex) {
-                    LOG.warn("Interrupted waiting too queue task");
-                }
-            }
-            LOG.error("Session command queue {} is full executing action {}, queue failed", queueId, actionDescription);
-            metricsProvider.addSessionQueueOverrun(queueId);
-            return PostOffice.RouteResult.failed(clientId);
-        }
-    }
+    public abstract PostOffice.RouteResult addTask(String clientId, String actionDescription, SessionCommand cmd);
+
+    /**
+     * @return the number of commands waiting to be executed.
+     * */
+    abstract int queuedTasks();
 
-    @Override
-    public void run() {
+    /**
+     * To be invoked by the loop thread before executing any command.
+     * */
+    protected final void bindQueueId() {
         threadQueueId.set(queueId);
-        while (!Thread.interrupted() || (Thread.interrupted() && !taskQueue.isEmpty() && flushOnExit)) {
-            try {
-                // blocking call
-                final FutureTask<String> task = taskQueue.take();
-                metricsProvider.sessionQueueDec(queueId);
-                executeTask(task);
-            } catch (InterruptedException e) {
-                LOG.info("SessionEventLoop {} interrupted", Thread.currentThread().getName());
-                Thread.currentThread().interrupt();
-            }
+    }
+
+    /**
+     * To be invoked by the loop thread when it starts the execution of a command taken from the queue.
+     * */
+    protected final void accountWait(SessionCommand cmd, long startNanos) {
+        final long enqueuedNanos = cmd.enqueuedNanos();
+        if (enqueuedNanos != 0) {
+            metricsProvider.addSessionTaskWait(queueId, startNanos - enqueuedNanos);
         }
-        LOG.info("SessionEventLoop {} exit", Thread.currentThread().getName());
     }
 
-    public static void executeTask(final FutureTask<String> task) {
-        if (!task.isCancelled()) {
-            try {
-                task.run();
-
-                // we ran it, but we have to grab the exception if raised
-                task.get();
-            } catch (Throwable th) {
-                LOG.warn("SessionEventLoop {} reached exception in processing command", Thread.currentThread().getName(), th);
-                throw new RuntimeException(th);
-            }
+    /**
+     * Executes the command and completes it, recorded as a {@link SessionTaskEvent} when enabled.
+     * */
+    protected final void executeCommand(SessionCommand cmd) throws Exception {
+        final SessionTaskEvent event = new SessionTaskEvent();
+        event.begin();
+        cmd.execute();
+        cmd.complete();
+        event.end();
+        if (event.shouldCommit()) {
+            event.queueId = queueId;
+            event.clientId = cmd.getSessionId();
+            event.action = cmd.getActionDescription();
+            event.commit();
         }
     }
 
+    protected final void accountExecution(long startNanos) {
+        final long executionNanos = System.nanoTime() - startNanos;
+        busyNanos += executionNanos;
+        executedTasks++;
+        metricsProvider.addSessionTaskExecution(queueId, executionNanos);
+    }
+
+    protected final PostOffice.RouteResult rejectTask(String clientId, String actionDescription) {
+        LOG.error("Session command queue {} is full executing action {}, queue failed", queueId, actionDescription);
+        rejectedTasks.increment();
+        metricsProvider.addSessionQueueOverrun(queueId);
+        return PostOffice.RouteResult.failed(clientId);
+    }
+
+    SessionLoopStats stats() {
+        return new SessionLoopStats(queueId, queuedTasks(), executedTasks, rejectedTasks.sum(), busyNanos);
+    }
+
     public static int getThreadQueueId() {
         Integer id = threadQueueId.get();
         if (id == null) {
@@ -7,6 +7,8 @@ import io.moquette.metrics.MetricsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
@@ -20,7 +22,8 @@ class SessionEventLoopGroup {
     private static final Logger LOG = LoggerFactory.getLogger(SessionEventLoopGroup.class);
 
     private final SessionEventLoop[] sessionExecutors;
-    private final int eventLoops = Runtime.getRuntime().availableProcessors();
+    private final int eventLoops;
+    private final SessionLoopAssignment loopAssignment;
     private final ConcurrentMap<String, Throwable> loopThrownExceptions = new ConcurrentHashMap<>();
 
     SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, MetricsProvider metricsProvider) {
@@ -28,10 +31,34 @@ class SessionEventLoopGroup {
     }
 
     SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int offerTimeoutMs, MetricsProvider metricsProvider) {
+        this(interceptor, sessionQueueSize, offerTimeoutMs, Runtime.getRuntime().availableProcessors(),
+            new HashSessionLoopAssignment(), metricsProvider);
+    }
+
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int offerTimeoutMs, int eventLoops,
+                          SessionLoopAssignment loopAssignment, MetricsProvider metricsProvider) {
+        this(interceptor, sessionQueueSize, offerTimeoutMs, eventLoops, loopAssignment,
+            BlockingQueueSessionEventLoop::new, metricsProvider);
+    }
+
+    /**
+     * @param eventLoops number of session loops to start.
+     * @param loopAssignment the strategy that binds each client to a loop.
+     * @param loopFactory creates each of the session loops.
+     * */
+    SessionEventLoopGroup(BrokerInterceptor interceptor, int sessionQueueSize, int offerTimeoutMs, int eventLoops,
+                          SessionLoopAssignment loopAssignment, SessionEventLoop.Factory loopFactory,
+                          MetricsProvider metricsProvider) {
+        if (eventLoops <= 0) {
+            throw new IllegalArgumentException("Session loops count must be positive, was: " + eventLoops);
+        }
+        this.eventLoops = eventLoops;
+        this.loopAssignment = loopAssignment;
+        loopAssignment.init(eventLoops);
         metricsProvider.initSessionQueues(eventLoops, sessionQueueSize);
         this.sessionExecutors = new SessionEventLoop[eventLoops];
         for (int i = 0; i < eventLoops; i++) {
-            SessionEventLoop newLoop = new SessionEventLoop(sessionQueueSize, i, offerTimeoutMs, metricsProvider);
+            SessionEventLoop newLoop = loopFactory.create(sessionQueueSize, i, offerTimeoutMs, metricsProvider);
             newLoop.setName(sessionLoopName(i));
             newLoop.setUncaughtExceptionHandler((loopThread, ex) -> {
                 // executed in session loop thread
@@ -47,7 +74,23 @@ class SessionEventLoopGroup {
     }
 
     int targetQueueOrdinal(String clientId) {
-        return Math.abs(clientId.hashCode()) % this.eventLoops;
+        return loopAssignment.loopFor(clientId);
+    }
+
+    /**
+     * Notify the assignment strategy that the client opened a session, to be invoked from the loop of
+     * the client or before the loops receive any command.
+     * */
+    void bindClient(String clientId) {
+        loopAssignment.bind(clientId);
+    }
+
+    /**
+     * Notify the assignment strategy that the client has no more session state, to be invoked from
+     * the loop of the client.
+     * */
+    void releaseClient(String clientId) {
+        loopAssignment.release(clientId);
     }
 
     private String sessionLoopName(int i) {
@@ -63,17 +106,27 @@ class SessionEventLoopGroup {
      * Route the command to the owning SessionEventLoop
      */
     public PostOffice.RouteResult routeCommand(String clientId, String actionDescription, Callable<Void> action) {
-        SessionCommand cmd = new SessionCommand(clientId, action);
-
         if (clientId == null) {
             LOG.warn("Routing collision for action [{}]", actionDescription);
             return PostOffice.RouteResult.failed(null, "Seems awaiting new route feature completion, skipping.");
         }
 
-        final int targetQueueId = targetQueueOrdinal(cmd.getSessionId());
-        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, cmd.getSessionId(), targetQueueId);
+        // the client stays bound to the loop until the command is completed
+        final int targetQueueId = loopAssignment.acquire(clientId);
+        SessionCommand cmd = new SessionCommand(clientId, actionDescription, () -> {
+            try {
+                return action.call();
+            } finally {
+                loopAssignment.completed(clientId);
+            }
+        });
+        LOG.debug("Routing cmd [{}] for session [{}] to event processor {}", actionDescription, clientId, targetQueueId);
         final SessionEventLoop sessionExecutor = sessionExecutors[targetQueueId];
-        return sessionExecutor.addTask(clientId, actionDescription, cmd);
+        final PostOffice.RouteResult result = sessionExecutor.addTask(clientId, actionDescription, cmd);
+        if (!result.isSuccess()) {
+            loopAssignment.completed(clientId);
+        }
+        return result;
     }
 
     public void terminate() {
@@ -98,4 +151,12 @@ class SessionEventLoopGroup {
     public int getEventLoopCount() {
         return eventLoops;
     }
+
+    List<SessionLoopStats> loopsStats() {
+        final List<SessionLoopStats> stats = new ArrayList<>(eventLoops);
+        for (SessionEventLoop loop : sessionExecutors) {
+            stats.add(loop.stats());
+        }
+        return stats;
+    }
 }
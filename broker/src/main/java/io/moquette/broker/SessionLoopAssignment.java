@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Strategy that binds each client to one of the session event loops.
+ * <p>
+ * All the commands of a client are executed by the same loop, so the returned loop must not change
+ * while the client has a session. The methods are invoked concurrently by the Netty and the session
+ * loop threads.
+ * <p>
+ * Custom implementations are configured with the class name in the <code>session_loop_assignment</code>
+ * setting and need a public constructor accepting an {@link io.moquette.broker.config.IConfig} or without
+ * arguments.
+ */
+public interface SessionLoopAssignment {
+
+    /**
+     * Invoked once, before any other method.
+     *
+     * @param loopsCount the number of session loops.
+     * */
+    void init(int loopsCount);
+
+    /**
+     * @param clientId the id of the client.
+     * @return the index of the loop that executes the commands of the client, in [0, loopsCount).
+     * */
+    int loopFor(String clientId);
+
+    /**
+     * Invoked when a command of the client is routed: the client must stay bound to the returned loop
+     * until the matching {@link #completed(String)}, so that the queued commands of a client are never
+     * executed by two loops.
+     *
+     * @param clientId the id of the client.
+     * @return the index of the loop that executes the command, in [0, loopsCount).
+     * */
+    default int acquire(String clientId) {
+        return loopFor(clientId);
+    }
+
+    /**
+     * Invoked once for each {@link #acquire(String)}, after the command has been executed or when it
+     * couldn't be queued.
+     *
+     * @param clientId the id of the client.
+     * */
+    default void completed(String clientId) {
+    }
+
+    /**
+     * Invoked when a session of the client is opened, by the loop of the client, or when the sessions
+     * are reloaded at startup. The client stays bound to its loop until {@link #release(String)}.
+     *
+     * @param clientId the id of the client.
+     * */
+    default void bind(String clientId) {
+    }
+
+    /**
+     * Invoked by the loop of the client once the session state has been removed and the client
+     * didn't open a new session, so that any per client state can be dropped once the commands still
+     * pending for the client are completed.
+     *
+     * @param clientId the id of the client.
+     * */
+    default void release(String clientId) {
+    }
+}
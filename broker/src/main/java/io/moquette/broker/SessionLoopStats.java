@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+/**
+ * Snapshot of the load of a session event loop, to spot the loops made hot by a few heavy clients.
+ */
+public final class SessionLoopStats {
+
+    private final int loopId;
+    private final int queuedCommands;
+    private final long executedCommands;
+    private final long rejectedCommands;
+    private final long busyNanos;
+
+    SessionLoopStats(int loopId, int queuedCommands, long executedCommands, long rejectedCommands, long busyNanos) {
+        this.loopId = loopId;
+        this.queuedCommands = queuedCommands;
+        this.executedCommands = executedCommands;
+        this.rejectedCommands = rejectedCommands;
+        this.busyNanos = busyNanos;
+    }
+
+    public int getLoopId() {
+        return loopId;
+    }
+
+    /**
+     * @return the commands waiting in the queue of the loop.
+     * */
+    public int getQueuedCommands() {
+        return queuedCommands;
+    }
+
+    /**
+     * @return the commands executed since the start of the loop.
+     * */
+    public long getExecutedCommands() {
+        return executedCommands;
+    }
+
+    /**
+     * @return the commands dropped because the queue of the loop was full.
+     * */
+    public long getRejectedCommands() {
+        return rejectedCommands;
+    }
+
+    /**
+     * @return the time spent by the loop executing commands, in nanoseconds.
+     * */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionLoopStats{" +
+            "loopId=" + loopId +
+            ", queuedCommands=" + queuedCommands +
+            ", executedCommands=" + executedCommands +
+            ", rejectedCommands=" + rejectedCommands +
+            ", busyNanos=" + busyNanos +
+            '}';
+    }
+}
@@ -1,5 +1,7 @@
 package io.moquette.broker;
 
+import java.util.function.Consumer;
+
 /**
  * Queue definition used by the Session class.
  * Due to the fact that Session's code is executed in a single thread, because the
@@ -14,6 +16,14 @@ public interface SessionMessageQueue<T> {
      * */
     T dequeue();
 
+    /**
+     * Removes up to max messages from the head of the queue, in order, and passes them to the consumer.
+     * Cheaper than invoking {@link #dequeue()} max times when draining a backlog.
+     *
+     * @return the number of messages passed to the consumer, 0 if the queue is empty.
+     * */
+    int dequeue(int max, Consumer<? super T> consumer);
+
     boolean isEmpty();
 
     /**
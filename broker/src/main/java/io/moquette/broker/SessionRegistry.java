@@ -16,7 +16,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.Session.SessionStatus;
-import io.moquette.broker.scheduler.ScheduledExpirationService;
+import io.moquette.broker.scheduler.ExpirationService;
 import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
@@ -46,11 +46,15 @@ public class SessionRegistry {
 
     private int globalExpirySeconds;
     private final SessionEventLoopGroup loopsGroup;
+    private final InflightResendTimer resendTimer;
     static final Duration EXPIRED_SESSION_CLEANER_TASK_INTERVAL = Duration.ofSeconds(1);
-    private ScheduledExpirationService<ISessionsRepository.SessionData> sessionExpirationService;
+    private ExpirationService<ISessionsRepository.SessionData> sessionExpirationService;
 
     public abstract static class EnqueuedMessage {
 
+        // when the message was written to the client, to measure the round trip of its acknowledge
+        long sentNanos;
+
         /**
          * Releases any held resources. Must be called when the EnqueuedMessage is no
          * longer needed.
@@ -74,6 +78,9 @@ public class SessionRegistry {
         final boolean retained;
         final Instant messageExpiry;
         final MqttProperties.MqttProperty[] mqttProperties;
+        // when the message arrived in the session, 0 when not known as for the messages read back from a
+        // persistent queue
+        long enqueuedNanos;
 
         public PublishedMessage(Topic topic, MqttQoS publishingQos, ByteBuf payload, boolean retained,
                                 Instant messageExpiry, MqttProperties.MqttProperty... mqttProperties) {
@@ -120,16 +127,14 @@ public class SessionRegistry {
                 return mqttProperties;
             }
 
-            Duration duration = Duration.between(Instant.now(), messageExpiry);
-            // do some math rounding so that 2.9999 seconds remains 3 seconds
-            long remainingSeconds = Math.round(duration.toMillis() / 1_000.0);
             final int indexOfExpiry = findPublicationExpiryProperty(mqttProperties);
-            MqttProperties.IntegerProperty updatedProperty = new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), (int) remainingSeconds);
+            MqttProperties.IntegerProperty updatedProperty = new MqttProperties.IntegerProperty(MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), remainingExpirySeconds());
 
-            // update existing property
+            // update existing property, on a copy because the array could be shared by many subscribers
             if (indexOfExpiry != -1) {
-                mqttProperties[indexOfExpiry] = updatedProperty;
-                return mqttProperties;
+                MqttProperties.MqttProperty[] updatedProperties = mqttProperties.clone();
+                updatedProperties[indexOfExpiry] = updatedProperty;
+                return updatedProperties;
             }
 
             // insert a new property
@@ -138,6 +143,19 @@ public class SessionRegistry {
             return newProperties;
         }
 
+        /**
+         * @return the seconds before the message expires, to be sent as PUBLICATION_EXPIRY_INTERVAL,
+         * or -1 if the message doesn't expire.
+         * */
+        int remainingExpirySeconds() {
+            if (messageExpiry == Instant.MAX) {
+                return -1;
+            }
+            Duration duration = Duration.between(Instant.now(), messageExpiry);
+            // do some math rounding so that 2.9999 seconds remains 3 seconds
+            return (int) Math.round(duration.toMillis() / 1_000.0);
+        }
+
         /**
          * Linear search of PUBLICATION_EXPIRY_INTERVAL.
          * @param properties the array of properties.
@@ -152,7 +170,7 @@ public class SessionRegistry {
             return -1;
         }
 
-        private static boolean isPublicationExpiryProperty(MqttProperties.MqttProperty property) {
+        static boolean isPublicationExpiryProperty(MqttProperties.MqttProperty property) {
             return property instanceof MqttProperties.IntegerProperty
                 && property.propertyId() == MqttProperties.MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value();
         }
@@ -228,14 +246,28 @@ public class SessionRegistry {
                     Clock clock, int globalExpirySeconds,
                     SessionEventLoopGroup loopsGroup,
                     MetricsProvider metricsProvider) {
+        this(subscriptionsDirectory, sessionsRepository, queueRepository, authorizator, scheduler, clock,
+            globalExpirySeconds, loopsGroup, ExpirationService.DELAY_QUEUE, metricsProvider);
+    }
+
+    SessionRegistry(ISubscriptionsDirectory subscriptionsDirectory,
+                    ISessionsRepository sessionsRepository,
+                    IQueueRepository queueRepository,
+                    Authorizator authorizator,
+                    ScheduledExecutorService scheduler,
+                    Clock clock, int globalExpirySeconds,
+                    SessionEventLoopGroup loopsGroup,
+                    ExpirationService.Factory expirationServices,
+                    MetricsProvider metricsProvider) {
         this.subscriptionsDirectory = subscriptionsDirectory;
         this.sessionsRepository = sessionsRepository;
         this.queueRepository = queueRepository;
         this.authorizator = authorizator;
-        sessionExpirationService = new ScheduledExpirationService<>(clock, this::removeExpiredSession);
+        sessionExpirationService = expirationServices.create(clock, this::removeExpiredSession);
         this.clock = clock;
         this.globalExpirySeconds = globalExpirySeconds;
         this.loopsGroup = loopsGroup;
+        this.resendTimer = new InflightResendTimer(loopsGroup);
         this.metricsProvider = metricsProvider;
         recreateSessionPool();
     }
@@ -265,8 +297,9 @@ public class SessionRegistry {
             if (queueRepository.containsQueue(session.clientId())) {
                 final SessionMessageQueue<EnqueuedMessage> persistentQueue = queueRepository.getOrCreateQueue(session.clientId());
                 queues.remove(session.clientId());
-                Session rehydrated = new Session(session, false, persistentQueue);
+                Session rehydrated = new Session(session, false, persistentQueue, resendTimer, metricsProvider);
                 pool.put(session.clientId(), rehydrated);
+                loopsGroup.bindClient(session.clientId());
                 metricsProvider.addOpenSession();
 
                 trackForRemovalOnExpiration(session);
@@ -287,6 +320,7 @@ public class SessionRegistry {
 
             // publish the session
             final Session previous = pool.put(clientId, newSession);
+            loopsGroup.bindClient(clientId);
             metricsProvider.addOpenSession();
             if (previous != null) {
                 // if this happens mean that another Session Event Loop thread processed a CONNECT message
@@ -316,6 +350,7 @@ public class SessionRegistry {
             // publish new session
             final Session newSession = createNewSession(msg, clientId);
             Session previous = pool.put(clientId, newSession);
+            loopsGroup.bindClient(clientId);
             metricsProvider.addOpenSession();
             if (previous != null) {
                 LOG.error("We're re-opening a session for clientId {} and we purged the old session, but there is still a session in the pool! this is a bug!", clientId);
@@ -415,7 +450,7 @@ public class SessionRegistry {
             sessionData = new ISessionsRepository.SessionData(clientId, mqttVersion, expiryInterval, clock);
         }
 
-        newSession = new Session(sessionData, clean, queue);
+        newSession = new Session(sessionData, clean, queue, resendTimer, metricsProvider);
         newSession.markConnecting();
         sessionsRepository.saveSession(sessionData);
         if (MQTTConnection.isNeedResponseInformation(msg)) {
@@ -494,6 +529,15 @@ public class SessionRegistry {
         return pool.get(clientID);
     }
 
+    /**
+     * @return the estimate of the messages in flight and queued for the client, or Integer.MAX_VALUE when
+     * it has no session, used to dispatch the shared subscriptions.
+     * */
+    int pendingMessages(String clientID) {
+        final Session session = pool.get(clientID);
+        return session == null ? Integer.MAX_VALUE : session.pendingMessages();
+    }
+
     void connectionClosed(Session session) {
         session.disconnect();
         if (session.expireImmediately()) {
@@ -526,6 +570,10 @@ public class SessionRegistry {
             sessionExpirationService.untrack(clientID);
             loopsGroup.routeCommand(clientID, "Clean up removed session", () -> {
                 session.cleanUp();
+                if (!pool.containsKey(clientID)) {
+                    // no new session was opened meanwhile, the client can be moved to another loop
+                    loopsGroup.releaseClient(clientID);
+                }
                 return null;
             });
         }
@@ -579,6 +627,7 @@ public class SessionRegistry {
      */
     public void close() {
         sessionExpirationService.shutdown();
+        resendTimer.stop();
         // Update all not clean session with the proper expiry date
         updateNotCleanSessionsWithProperExpire();
         queueRepository.close();
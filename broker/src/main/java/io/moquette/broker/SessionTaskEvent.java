@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event of the execution of a command by a session loop.
+ * */
+@Name("io.moquette.SessionTask")
+@Label("Session Loop Task")
+@Category({"Moquette", "Session Loop"})
+@Description("Execution of a command of a client by its session loop")
+@StackTrace(false)
+@Threshold("1 ms")
+final class SessionTaskEvent extends Event {
+
+    @Label("Session Loop")
+    int queueId;
+
+    @Label("Client ID")
+    String clientId;
+
+    @Label("Action")
+    String action;
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Reader idle detection shared by all the channels, used in place of a Netty IdleStateHandler for each
+ * channel by the low footprint connections.
+ * <p>
+ * Each channel keeps only the time of its last read and one timeout in a broker wide
+ * {@link HashedWheelTimer}, instead of a handler and a task scheduled on its event loop. Reads don't
+ * reschedule the timeout, that when expires checks the last read and is rescheduled for the remaining
+ * time, so an active channel costs a timer check every idle period. The idle event is fired in the event
+ * loop of the channel, like the IdleStateHandler does.
+ * <p>
+ * The timer thread and the thread that changes the idle time both replace the timeout of the channel, each
+ * swaps in its own with a CAS, so that a channel never has two live timeouts.
+ * */
+@Sharable
+final class SharedIdleStateHandler extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<ReaderIdleTimeout> ATTR_KEY_IDLE = AttributeKey.valueOf("ReaderIdleTimeout");
+    private static final long TICK_MILLIS = 100;
+    private static final AtomicReferenceFieldUpdater<ReaderIdleTimeout, Timeout> TIMEOUT_UPDATER =
+        AtomicReferenceFieldUpdater.newUpdater(ReaderIdleTimeout.class, Timeout.class, "timeout");
+
+    private final class ReaderIdleTimeout implements TimerTask {
+        private final ChannelHandlerContext ctx;
+        private volatile long idleNanos;
+        private volatile long lastReadNanos;
+        // null when not scheduled
+        volatile Timeout timeout;
+
+        ReaderIdleTimeout(ChannelHandlerContext ctx, long idleNanos) {
+            this.ctx = ctx;
+            this.idleNanos = idleNanos;
+            this.lastReadNanos = System.nanoTime();
+        }
+
+        /**
+         * Replace the current timeout, cancelling it.
+         *
+         * @param delayNanos the delay of the new timeout, 0 to leave none.
+         * */
+        void reschedule(long delayNanos) {
+            final Timeout next = delayNanos > 0 ? timer.newTimeout(this, delayNanos, TimeUnit.NANOSECONDS) : null;
+            final Timeout previous = TIMEOUT_UPDATER.getAndSet(this, next);
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+
+        @Override
+        public void run(Timeout expired) {
+            if (!ctx.channel().isActive() || idleNanos <= 0 || timeout != expired) {
+                return;
+            }
+            final long remainingNanos = idleNanos - (System.nanoTime() - lastReadNanos);
+            // when idle fires again after another idle period, if the channel is still open
+            final Timeout next = timer.newTimeout(this, remainingNanos > 0 ? remainingNanos : idleNanos,
+                TimeUnit.NANOSECONDS);
+            if (!TIMEOUT_UPDATER.compareAndSet(this, expired, next)) {
+                // replaced by a change of the idle time in the meantime
+                next.cancel();
+                return;
+            }
+            if (remainingNanos <= 0) {
+                ctx.executor().execute(this::fireReaderIdle);
+            }
+        }
+
+        private void fireReaderIdle() {
+            if (ctx.channel().isActive()) {
+                ctx.fireUserEventTriggered(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT);
+            }
+        }
+    }
+
+    private final HashedWheelTimer timer;
+    private final long defaultIdleNanos;
+
+    SharedIdleStateHandler(int defaultIdleSeconds) {
+        this.defaultIdleNanos = TimeUnit.SECONDS.toNanos(defaultIdleSeconds);
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("idle-connections", true), TICK_MILLIS,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Change the reader idle time of the channel, as it's done after the CONNECT with the keep alive.
+     *
+     * @param idleSeconds the new idle time, 0 disables the idle detection.
+     * */
+    void setIdleTime(Channel channel, int idleSeconds) {
+        final ReaderIdleTimeout readerIdle = channel.attr(ATTR_KEY_IDLE).get();
+        if (readerIdle == null) {
+            return;
+        }
+        readerIdle.idleNanos = TimeUnit.SECONDS.toNanos(idleSeconds);
+        readerIdle.lastReadNanos = System.nanoTime();
+        readerIdle.reschedule(readerIdle.idleNanos);
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive() && ctx.channel().isRegistered()) {
+            // channelActive() was already fired and won't be invoked for this handler
+            initialize(ctx);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        initialize(ctx);
+        super.channelActive(ctx);
+    }
+
+    private void initialize(ChannelHandlerContext ctx) {
+        final ReaderIdleTimeout readerIdle = new ReaderIdleTimeout(ctx, defaultIdleNanos);
+        if (!ctx.channel().attr(ATTR_KEY_IDLE).compareAndSet(null, readerIdle)) {
+            return;
+        }
+        readerIdle.reschedule(defaultIdleNanos);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        final ReaderIdleTimeout readerIdle = ctx.channel().attr(ATTR_KEY_IDLE).get();
+        if (readerIdle != null) {
+            readerIdle.lastReadNanos = System.nanoTime();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        final ReaderIdleTimeout readerIdle = ctx.channel().attr(ATTR_KEY_IDLE).getAndSet(null);
+        if (readerIdle != null) {
+            readerIdle.reschedule(0);
+        }
+        super.channelInactive(ctx);
+    }
+
+    void stop() {
+        timer.stop();
+    }
+}
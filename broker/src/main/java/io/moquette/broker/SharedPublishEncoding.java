@@ -0,0 +1,297 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttProperties.MqttPropertyType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The parts of a PUBLISH that are the same for all the subscribers of a message, encoded once
+ * and shared by the packets sent to each subscriber.
+ * <p>
+ * A packet is a composite buffer made of a small header, written for each subscriber with the
+ * fixed header, topic name, packet id, subscription identifier and message expiry, followed by
+ * a slice of the shared MQTT5 properties and by a duplicate of the payload. The packets go
+ * directly to the channel, skipping the MQTT encoder.
+ * <p>
+ * Used by a single session loop while it delivers a message to its subscribers, then
+ * {@link #release()}d.
+ */
+final class SharedPublishEncoding {
+
+    private static final int PUBLISH_TYPE = 0x30;
+
+    private final MqttProperties.MqttProperty[] properties;
+    // encoded properties, without subscription identifier and expiry, created on first MQTT5 subscriber
+    private ByteBuf encodedProperties;
+    private String lastTopicName;
+    private byte[] lastEncodedTopic;
+
+    /**
+     * @param sharedProperties the properties of the published message, created by {@link #sharedProperties(Collection)}.
+     */
+    SharedPublishEncoding(MqttProperties.MqttProperty[] sharedProperties) {
+        this.properties = sharedProperties;
+    }
+
+    /**
+     * @param publishedProperties the properties of the published message.
+     * @return the properties to send to all the subscribers, that is without the subscription identifier
+     * because it's added by the subscription.
+     */
+    static MqttProperties.MqttProperty[] sharedProperties(
+        Collection<? extends MqttProperties.MqttProperty> publishedProperties) {
+        final List<MqttProperties.MqttProperty> shared = new ArrayList<>(publishedProperties.size());
+        for (MqttProperties.MqttProperty property : publishedProperties) {
+            if (property.propertyId() != MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value()) {
+                shared.add(property);
+            }
+        }
+        return shared.toArray(new MqttProperties.MqttProperty[0]);
+    }
+
+    /**
+     * @return the properties of the published message except the subscription identifier, must not be modified.
+     */
+    MqttProperties.MqttProperty[] properties() {
+        return properties;
+    }
+
+    /**
+     * @param alloc the allocator of the subscriber's channel.
+     * @param mqtt5 true if the subscriber uses MQTT5, so that the properties are sent.
+     * @param message the message to send, its properties must have been created from {@link #properties()}.
+     * @param packetId the packet id, ignored at QoS 0.
+     * @return the encoded PUBLISH packet, owned by the caller.
+     */
+    ByteBuf encode(ByteBufAllocator alloc, boolean mqtt5, SessionRegistry.PublishedMessage message, int packetId) {
+        final MqttQoS qos = message.getPublishingQos();
+        final byte[] topic = encodedTopic(message.getTopic().toString());
+        final ByteBuf payload = message.getPayload();
+
+        int subscriberPropertiesLength = 0;
+        int subscriptionId = -1;
+        int expirySeconds = -1;
+        ByteBuf sharedProperties = null;
+        int propertiesLength = 0;
+        if (mqtt5) {
+            subscriptionId = subscriptionIdentifier(message.getMqttProperties());
+            if (subscriptionId >= 0) {
+                subscriberPropertiesLength += 1 + variableLengthIntSize(subscriptionId);
+            }
+            expirySeconds = message.remainingExpirySeconds();
+            if (expirySeconds >= 0) {
+                subscriberPropertiesLength += 1 + 4;
+            }
+            sharedProperties = encodedProperties(alloc);
+            propertiesLength = subscriberPropertiesLength + sharedProperties.readableBytes();
+        }
+
+        int variableHeaderLength = 2 + topic.length;
+        if (qos.value() > 0) {
+            variableHeaderLength += 2;
+        }
+        if (mqtt5) {
+            variableHeaderLength += variableLengthIntSize(propertiesLength) + propertiesLength;
+        }
+        final int remainingLength = variableHeaderLength + payload.readableBytes();
+        final int headerLength = 1 + variableLengthIntSize(remainingLength)
+            + variableHeaderLength - (mqtt5 ? sharedProperties.readableBytes() : 0);
+
+        final ByteBuf header = alloc.buffer(headerLength);
+        header.writeByte(PUBLISH_TYPE | (qos.value() << 1) | (message.retained ? 0x01 : 0x00));
+        writeVariableLengthInt(header, remainingLength);
+        header.writeShort(topic.length);
+        header.writeBytes(topic);
+        if (qos.value() > 0) {
+            header.writeShort(packetId);
+        }
+        if (mqtt5) {
+            writeVariableLengthInt(header, propertiesLength);
+            if (subscriptionId >= 0) {
+                header.writeByte(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value());
+                writeVariableLengthInt(header, subscriptionId);
+            }
+            if (expirySeconds >= 0) {
+                header.writeByte(MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value());
+                header.writeInt(expirySeconds);
+            }
+        }
+
+        final CompositeByteBuf packet = alloc.compositeBuffer(3);
+        packet.addComponent(true, header);
+        if (mqtt5 && sharedProperties.isReadable()) {
+            packet.addComponent(true, sharedProperties.retainedDuplicate());
+        }
+        if (payload.isReadable()) {
+            packet.addComponent(true, payload.retainedDuplicate());
+        }
+        return packet;
+    }
+
+    /**
+     * Release the shared properties, the packets already encoded hold their own reference.
+     */
+    void release() {
+        if (encodedProperties != null) {
+            encodedProperties.release();
+            encodedProperties = null;
+        }
+    }
+
+    private byte[] encodedTopic(String topicName) {
+        // the subscribers without wildcards or rewrites receive the same topic name
+        if (!topicName.equals(lastTopicName)) {
+            lastEncodedTopic = topicName.getBytes(StandardCharsets.UTF_8);
+            lastTopicName = topicName;
+        }
+        return lastEncodedTopic;
+    }
+
+    private ByteBuf encodedProperties(ByteBufAllocator alloc) {
+        if (encodedProperties == null) {
+            final ByteBuf buf = alloc.buffer();
+            for (MqttProperties.MqttProperty property : properties) {
+                if (!SessionRegistry.PublishedMessage.isPublicationExpiryProperty(property)) {
+                    encodeProperty(buf, property);
+                }
+            }
+            encodedProperties = buf;
+        }
+        return encodedProperties;
+    }
+
+    private static int subscriptionIdentifier(MqttProperties.MqttProperty[] properties) {
+        for (MqttProperties.MqttProperty property : properties) {
+            if (property.propertyId() == MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value()) {
+                return (Integer) property.value();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes a property as defined by chapter 2.2.2.2 of MQTT5 specification, like the Netty's MQTT encoder.
+     */
+    static void encodeProperty(ByteBuf buf, MqttProperties.MqttProperty property) {
+        final int propertyId = property.propertyId();
+        final MqttPropertyType propertyType = MqttPropertyType.valueOf(propertyId);
+        switch (propertyType) {
+            case PAYLOAD_FORMAT_INDICATOR:
+            case REQUEST_PROBLEM_INFORMATION:
+            case REQUEST_RESPONSE_INFORMATION:
+            case MAXIMUM_QOS:
+            case RETAIN_AVAILABLE:
+            case WILDCARD_SUBSCRIPTION_AVAILABLE:
+            case SUBSCRIPTION_IDENTIFIER_AVAILABLE:
+            case SHARED_SUBSCRIPTION_AVAILABLE:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeByte((Integer) property.value());
+                break;
+            case SERVER_KEEP_ALIVE:
+            case RECEIVE_MAXIMUM:
+            case TOPIC_ALIAS_MAXIMUM:
+            case TOPIC_ALIAS:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeShort((Integer) property.value());
+                break;
+            case PUBLICATION_EXPIRY_INTERVAL:
+            case SESSION_EXPIRY_INTERVAL:
+            case WILL_DELAY_INTERVAL:
+            case MAXIMUM_PACKET_SIZE:
+                writeVariableLengthInt(buf, propertyId);
+                buf.writeInt((Integer) property.value());
+                break;
+            case SUBSCRIPTION_IDENTIFIER:
+                writeVariableLengthInt(buf, propertyId);
+                writeVariableLengthInt(buf, (Integer) property.value());
+                break;
+            case CONTENT_TYPE:
+            case RESPONSE_TOPIC:
+            case ASSIGNED_CLIENT_IDENTIFIER:
+            case AUTHENTICATION_METHOD:
+            case RESPONSE_INFORMATION:
+            case SERVER_REFERENCE:
+            case REASON_STRING:
+                writeVariableLengthInt(buf, propertyId);
+                writeUTF8String(buf, (String) property.value());
+                break;
+            case USER_PROPERTY:
+                final Object value = property.value();
+                if (value instanceof MqttProperties.StringPair) {
+                    writeUserProperty(buf, (MqttProperties.StringPair) value);
+                } else {
+                    for (Object pair : (List<?>) value) {
+                        writeUserProperty(buf, (MqttProperties.StringPair) pair);
+                    }
+                }
+                break;
+            case CORRELATION_DATA:
+            case AUTHENTICATION_DATA:
+                writeVariableLengthInt(buf, propertyId);
+                final byte[] binary = (byte[]) property.value();
+                buf.writeShort(binary.length);
+                buf.writeBytes(binary);
+                break;
+            default:
+                throw new EncoderException("Unknown property type: " + propertyType);
+        }
+    }
+
+    private static void writeUserProperty(ByteBuf buf, MqttProperties.StringPair pair) {
+        writeVariableLengthInt(buf, MqttPropertyType.USER_PROPERTY.value());
+        writeUTF8String(buf, pair.key);
+        writeUTF8String(buf, pair.value);
+    }
+
+    private static void writeUTF8String(ByteBuf buf, String s) {
+        final int lengthIndex = buf.writerIndex();
+        buf.writeShort(0);
+        final int length = ByteBufUtil.writeUtf8(buf, s);
+        buf.setShort(lengthIndex, length);
+    }
+
+    static void writeVariableLengthInt(ByteBuf buf, int num) {
+        do {
+            int digit = num % 128;
+            num /= 128;
+            if (num > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (num > 0);
+    }
+
+    static int variableLengthIntSize(int num) {
+        int count = 0;
+        do {
+            num /= 128;
+            count++;
+        } while (num > 0);
+        return count;
+    }
+}
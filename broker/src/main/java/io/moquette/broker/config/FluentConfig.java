@@ -18,6 +18,7 @@ import static io.moquette.broker.config.IConfig.BUFFER_FLUSH_MS_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.DATA_PATH_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.DEFAULT_NETTY_MAX_BYTES_IN_MESSAGE;
 import static io.moquette.broker.config.IConfig.ENABLE_TELEMETRY_NAME;
+import static io.moquette.broker.config.IConfig.FAN_OUT_SHARED_ENCODING;
 import static io.moquette.broker.config.IConfig.HOST_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.JKS_PATH_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.KEY_MANAGER_PASSWORD_PROPERTY_NAME;
@@ -27,15 +28,24 @@ import static io.moquette.broker.config.IConfig.NETTY_MAX_BYTES_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PASSWORD_FILE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PEER_CERTIFICATE_AS_USERNAME;
 import static io.moquette.broker.config.IConfig.PERSISTENCE_ENABLED_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.PERSISTENCE_WRITE_BEHIND_MS;
 import static io.moquette.broker.config.IConfig.PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PERSISTENT_QUEUE_TYPE_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.PORT_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.RECEIVE_MAXIMUM;
 import static io.moquette.broker.config.IConfig.SERVER_KEEP_ALIVE_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.SESSION_LOOPS;
+import static io.moquette.broker.config.IConfig.SESSION_LOOP_ASSIGNMENT;
+import static io.moquette.broker.config.IConfig.SESSION_LOOP_QUEUE;
+import static io.moquette.broker.config.IConfig.SESSION_LOOP_WAIT_STRATEGY;
 import static io.moquette.broker.config.IConfig.SESSION_QUEUE_SIZE;
+import static io.moquette.broker.config.IConfig.SHARED_SUBSCRIPTION_DISPATCH;
 import static io.moquette.broker.config.IConfig.SSL_PORT_PROPERTY_NAME;
 import static io.moquette.broker.config.IConfig.SSL_PROVIDER;
+import static io.moquette.broker.config.IConfig.SUBSCRIPTIONS_MATCH_CACHE_SIZE;
 import static io.moquette.broker.config.IConfig.TOPIC_ALIAS_MAXIMUM_PROPERTY_NAME;
+import static io.moquette.broker.config.IConfig.TOPICS_INTERNED_MAX_SIZE;
+import static io.moquette.broker.config.IConfig.VIRTUAL_THREADS_ENABLED;
 import static io.moquette.broker.config.IConfig.WEB_SOCKET_PORT_PROPERTY_NAME;
 
 /**
@@ -53,7 +63,7 @@ public class FluentConfig {
     }
 
     public enum PersistentQueueType {
-        H2, SEGMENTED;
+        H2, SEGMENTED, HYBRID;
     }
 
     public enum SSLProvider {
@@ -64,6 +74,22 @@ public class FluentConfig {
         JKS, JCEKS, PKCS12;
     }
 
+    public enum SessionLoopAssignmentKind {
+        HASH, CONSISTENT_HASH, LEAST_LOADED;
+    }
+
+    public enum SharedSubscriptionDispatchKind {
+        RANDOM, ROUND_ROBIN, LEAST_INFLIGHT, STICKY_TOPIC;
+    }
+
+    public enum SessionLoopQueueKind {
+        BLOCKING, RING_BUFFER;
+    }
+
+    public enum SessionLoopWaitStrategy {
+        PARK, BUSY_SPIN;
+    }
+
     private enum CreationKind {
         API, SERVER
     }
@@ -142,6 +168,15 @@ public class FluentConfig {
         return this;
     }
 
+    /**
+     * @param maxLagMillis max time the updates of subscriptions and sessions wait to be committed, 0 to
+     *                     write them synchronously.
+     * */
+    public FluentConfig persistenceWriteBehindMillis(int maxLagMillis) {
+        configAccumulator.put(PERSISTENCE_WRITE_BEHIND_MS, Integer.valueOf(maxLagMillis).toString());
+        return this;
+    }
+
     public FluentConfig persistentQueueType(PersistentQueueType type) {
         configAccumulator.put(PERSISTENT_QUEUE_TYPE_PROPERTY_NAME, type.name().toLowerCase(Locale.ROOT));
         return this;
@@ -197,6 +232,74 @@ public class FluentConfig {
         return this;
     }
 
+    public FluentConfig sessionLoops(int value) {
+        configAccumulator.put(SESSION_LOOPS, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig sessionLoopAssignment(SessionLoopAssignmentKind kind) {
+        configAccumulator.put(SESSION_LOOP_ASSIGNMENT, kind.name().toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /**
+     * @param assignmentClassName class name of a {@link io.moquette.broker.SessionLoopAssignment} implementation.
+     * */
+    public FluentConfig sessionLoopAssignment(String assignmentClassName) {
+        configAccumulator.put(SESSION_LOOP_ASSIGNMENT, assignmentClassName);
+        return this;
+    }
+
+    public FluentConfig sessionLoopQueue(SessionLoopQueueKind kind) {
+        configAccumulator.put(SESSION_LOOP_QUEUE, kind.name().toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    public FluentConfig sessionLoopWaitStrategy(SessionLoopWaitStrategy strategy) {
+        configAccumulator.put(SESSION_LOOP_WAIT_STRATEGY, strategy.name().toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    public FluentConfig subscriptionsMatchCacheSize(int value) {
+        configAccumulator.put(SUBSCRIPTIONS_MATCH_CACHE_SIZE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig topicsInternedMaxSize(int value) {
+        configAccumulator.put(TOPICS_INTERNED_MAX_SIZE, Integer.valueOf(value).toString());
+        return this;
+    }
+
+    public FluentConfig sharedSubscriptionDispatch(SharedSubscriptionDispatchKind kind) {
+        configAccumulator.put(SHARED_SUBSCRIPTION_DISPATCH, kind.name().toLowerCase(Locale.ROOT));
+        return this;
+    }
+
+    /**
+     * @param dispatcherClassName class name of a
+     *                            {@link io.moquette.broker.subscriptions.SharedSubscriptionDispatcher} implementation.
+     * */
+    public FluentConfig sharedSubscriptionDispatch(String dispatcherClassName) {
+        configAccumulator.put(SHARED_SUBSCRIPTION_DISPATCH, dispatcherClassName);
+        return this;
+    }
+
+    /**
+     * Authenticate the CONNECTs and notify the interceptors on virtual threads, when running on JDK 21 or newer.
+     * */
+    public FluentConfig enableVirtualThreads() {
+        configAccumulator.put(VIRTUAL_THREADS_ENABLED, "true");
+        return this;
+    }
+
+    /**
+     * Share the encoded payload and properties of a PUBLISH between all its subscribers.
+     * */
+    public FluentConfig enableFanOutSharedEncoding() {
+        configAccumulator.put(FAN_OUT_SHARED_ENCODING, "true");
+        return this;
+    }
+
     public FluentConfig disableTelemetry() {
         configAccumulator.put(ENABLE_TELEMETRY_NAME, "false");
         return this;
@@ -35,13 +35,20 @@ public abstract class IConfig {
     public static final String PEER_CERTIFICATE_AS_USERNAME = "peer_certificate_as_username";
     public static final String AUTHENTICATOR_CLASS_NAME = "authenticator_class";
     public static final String AUTHORIZATOR_CLASS_NAME = "authorizator_class";
-    public static final String PERSISTENT_QUEUE_TYPE_PROPERTY_NAME = "persistent_queue_type"; // h2 or segmented, default h2
+    public static final String PERSISTENT_QUEUE_TYPE_PROPERTY_NAME = "persistent_queue_type"; // h2, segmented or hybrid, default h2
     public static final String DATA_PATH_PROPERTY_NAME = "data_path";
     public static final String PERSISTENCE_ENABLED_PROPERTY_NAME = "persistence_enabled"; // true or false, default true
+    /**
+     * Max milliseconds the updates of the persisted subscriptions and sessions wait to be committed by a
+     * background thread, coalesced by client. 0 (default) disables the write behind, the updates are
+     * written by the session loops.
+     * */
+    public static final String PERSISTENCE_WRITE_BEHIND_MS = "persistence_write_behind_millis";
     /**
      * 0/immediate means immediate flush, like immediate_buffer_flush = true
      * -1/full means no explicit flush, let Netty flush when write buffers are full, like immediate_buffer_flush = false
-     * a number of milliseconds to between flushes
+     * loop means that the channels written are flushed together at the next iteration of their event loop
+     * a number of milliseconds to between flushes, the max time a written message waits for the flush
      * */
     public static final String BUFFER_FLUSH_MS_PROPERTY_NAME = "buffer_flush_millis";
     public static final String WEB_SOCKET_PORT_PROPERTY_NAME = "websocket_port";
@@ -51,6 +58,60 @@ public abstract class IConfig {
     public static final String PERSISTENT_CLIENT_EXPIRATION_PROPERTY_NAME = "persistent_client_expiration";
     public static final String SESSION_QUEUE_SIZE = "session_queue_size";
     public static final String SESSION_QUEUE_OFFER_TIMEOUT_MS = "session_queue_offer_timeout_millis";
+    /**
+     * Number of session loops, defaults to the number of available processors.
+     * */
+    public static final String SESSION_LOOPS = "session_loops";
+    /**
+     * How clients are bound to the session loops: hash (default), consistent_hash, least_loaded or the
+     * class name of a SessionLoopAssignment implementation.
+     * */
+    public static final String SESSION_LOOP_ASSIGNMENT = "session_loop_assignment";
+    /**
+     * Queue that hands over the commands to the session loops: blocking (default) or ring_buffer, a lock free
+     * queue drained in batches.
+     * */
+    public static final String SESSION_LOOP_QUEUE = "session_loop_queue";
+    /**
+     * How an idle ring_buffer session loop waits for commands: park (default) or busy_spin.
+     * */
+    public static final String SESSION_LOOP_WAIT_STRATEGY = "session_loop_wait_strategy";
+    /**
+     * How the expiration of sessions, wills and retained messages is scheduled: delay_queue (default) or
+     * timing_wheel, for many expiring entities.
+     * */
+    public static final String EXPIRATION_SCHEDULER = "expiration_scheduler";
+    /**
+     * Run the authentication of CONNECT and the interceptors notifications on virtual threads, ignored
+     * when the JVM doesn't support them (before JDK 21). Defaults to false.
+     * */
+    public static final String VIRTUAL_THREADS_ENABLED = "virtual_threads_enabled";
+    /**
+     * Max number of published topics for which the matched subscriptions are cached, 0 (default) disables the cache.
+     * */
+    public static final String SUBSCRIPTIONS_MATCH_CACHE_SIZE = "subscriptions_match_cache_size";
+    /**
+     * Max number of published topic names kept parsed and shared between the publishes, 0 disables it.
+     * Defaults to 16384.
+     * */
+    public static final String TOPICS_INTERNED_MAX_SIZE = "topics_interned_max_size";
+    /**
+     * How the messages matched by a shared subscription are dispatched to the members of its group:
+     * random (default), round_robin, least_inflight, sticky_topic or the class name of a
+     * {@link io.moquette.broker.subscriptions.SharedSubscriptionDispatcher}.
+     * */
+    public static final String SHARED_SUBSCRIPTION_DISPATCH = "shared_subscription_dispatch";
+    /**
+     * Encode once the parts of a PUBLISH that are the same for all the subscribers and share them,
+     * instead of encoding a full message for each subscriber. Defaults to false.
+     * */
+    public static final String FAN_OUT_SHARED_ENCODING = "fan_out_shared_encoding";
+    /**
+     * Reduce the memory kept by each connection, for brokers with many mostly idle clients: the keep alive
+     * of all the connections is checked by a single timer instead of a timer for each connection.
+     * Defaults to false.
+     * */
+    public static final String LOW_FOOTPRINT_CONNECTIONS = "low_footprint_connections";
     public static final String ENABLE_TELEMETRY_NAME = "telemetry_enabled";
     public static final String RECEIVE_MAXIMUM = "receive_maximum";
     /**
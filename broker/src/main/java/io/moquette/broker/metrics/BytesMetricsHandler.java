@@ -19,6 +19,7 @@ package io.moquette.broker.metrics;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.util.Attribute;
@@ -26,11 +27,12 @@ import io.netty.util.AttributeKey;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
 
+@Sharable
 public class BytesMetricsHandler extends ChannelDuplexHandler {
 
     private static final AttributeKey<BytesMetrics> ATTR_KEY_METRICS = AttributeKey.valueOf("BytesMetrics");
 
-    private BytesMetricsCollector m_collector;
+    private final BytesMetricsCollector m_collector;
 
     public BytesMetricsHandler(BytesMetricsCollector collector) {
         m_collector = collector;
@@ -17,6 +17,7 @@
 package io.moquette.broker.metrics;
 
 import io.moquette.broker.NettyUtils;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
@@ -55,9 +56,13 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
         MDC.clear();
     }
 
-    private void updateFishtags(ChannelHandlerContext ctx) {
-        MDC.put("channel", ctx.channel().toString());
-        final String clientId = NettyUtils.clientID(ctx.channel());
+    private static void updateFishtags(ChannelHandlerContext ctx) {
+        updateFishtags(ctx.channel());
+    }
+
+    private static void updateFishtags(Channel channel) {
+        MDC.put("channel", channel.toString());
+        final String clientId = NettyUtils.clientID(channel);
         if (clientId != null && !clientId.isEmpty()) {
             MDC.put("client.id", "[" + clientId + "]");
         }
@@ -120,6 +125,20 @@ public class MQTTMessageLogger extends ChannelDuplexHandler {
         }
     }
 
+    /**
+     * Logs a PUBLISH written to the channel already encoded, that reaches this handler as a buffer.
+     * */
+    public static void logEncodedPublish(Channel channel, String topicName, MqttQoS qos, int packetId) {
+        if (!LOG.isDebugEnabled()) {
+            return;
+        }
+        updateFishtags(channel);
+        MDC.put("msg.type", "[" + MqttMessageType.PUBLISH.name() + "]");
+        LOG.debug("{} PUBLISH <{}> to topics <{}> qos {} packetId <{}>", "C<-B", NettyUtils.clientID(channel),
+            topicName, qos, packetId);
+        MDC.clear();
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         updateFishtags(ctx);
@@ -18,6 +18,7 @@ package io.moquette.broker.metrics;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
 import io.netty.util.Attribute;
@@ -25,11 +26,12 @@ import io.netty.util.AttributeKey;
 
 import static io.netty.channel.ChannelFutureListener.CLOSE_ON_FAILURE;
 
+@Sharable
 public class MessageMetricsHandler extends ChannelDuplexHandler {
 
     private static final AttributeKey<MessageMetrics> ATTR_KEY_METRICS = AttributeKey.valueOf("MessageMetrics");
 
-    private MessageMetricsCollector m_collector;
+    private final MessageMetricsCollector m_collector;
 
     public MessageMetricsHandler(MessageMetricsCollector collector) {
         m_collector = collector;
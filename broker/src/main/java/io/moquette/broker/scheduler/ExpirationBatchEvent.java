@@ -0,0 +1,29 @@
+package io.moquette.broker.scheduler;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of the firing of the entities expired since the previous check.
+ * */
+@Name("io.moquette.ExpirationBatch")
+@Label("Expiration Batch")
+@Category({"Moquette", "Expiration"})
+@Description("Entities expired together by an expiration service")
+@StackTrace(false)
+final class ExpirationBatchEvent extends Event {
+
+    @Label("Service")
+    String service;
+
+    @Label("Expired")
+    int expired;
+
+    @Label("Pending")
+    @Description("Entities still tracked after the batch")
+    long pending;
+}
@@ -0,0 +1,36 @@
+package io.moquette.broker.scheduler;
+
+import java.time.Clock;
+import java.util.function.Consumer;
+
+/**
+ * Fires an action on the tracked entities once they reach their expiry instant.
+ * */
+public interface ExpirationService<T extends Expirable> {
+
+    /**
+     * Creates the expiration service of each expiring kind of entity.
+     * */
+    interface Factory {
+
+        <T extends Expirable> ExpirationService<T> create(Clock clock, Consumer<T> action);
+    }
+
+    Factory DELAY_QUEUE = ScheduledExpirationService::new;
+
+    Factory TIMING_WHEEL = TimingWheelExpirationService::new;
+
+    /**
+     * Track the entity, replacing the one already tracked with the same id.
+     *
+     * @throws RuntimeException if the entity has no expiry instant.
+     * */
+    void track(String entityId, T entity);
+
+    /**
+     * @return true if the entity was tracked and not yet expired.
+     * */
+    boolean untrack(String entityId);
+
+    void shutdown();
+}
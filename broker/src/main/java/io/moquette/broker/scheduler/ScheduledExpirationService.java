@@ -6,9 +6,9 @@ import org.slf4j.LoggerFactory;
 import java.time.Clock;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -16,7 +16,10 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
-public class ScheduledExpirationService<T extends Expirable> {
+/**
+ * Expiration service that keeps the tracked entities in a {@link DelayQueue}, polled every second.
+ * */
+public class ScheduledExpirationService<T extends Expirable> implements ExpirationService<T> {
 
     private static final Logger LOG = LoggerFactory.getLogger(ScheduledExpirationService.class);
 
@@ -27,7 +30,7 @@ public class ScheduledExpirationService<T extends Expirable> {
     private final Consumer<T> action;
     private final ScheduledExecutorService actionsExecutor;
 
-    private final Map<String, ExpirableTracker<T>> expiringEntitiesCache = new HashMap<>();
+    private final Map<String, ExpirableTracker<T>> expiringEntitiesCache = new ConcurrentHashMap<>();
 
     public ScheduledExpirationService(Clock clock, Consumer<T> action) {
         this.clock = clock;
@@ -39,6 +42,8 @@ public class ScheduledExpirationService<T extends Expirable> {
     }
 
     private void checkExpiredEntities() {
+        final ExpirationBatchEvent event = new ExpirationBatchEvent();
+        event.begin();
         List<ExpirableTracker<T>> expiredEntities = new ArrayList<>();
         int drainedEntities = expiringEntities.drainTo(expiredEntities);
         LOG.debug("Retrieved {} expired entity on {}", drainedEntities, expiringEntities.size());
@@ -46,8 +51,16 @@ public class ScheduledExpirationService<T extends Expirable> {
         expiredEntities.stream()
             .map(ExpirableTracker::expirable)
             .forEach(action);
+        event.end();
+        if (drainedEntities > 0 && event.shouldCommit()) {
+            event.service = "delay queue";
+            event.expired = drainedEntities;
+            event.pending = expiringEntities.size();
+            event.commit();
+        }
     }
 
+    @Override
     public void track(String entityId, T entity) {
         if (!entity.expireAt().isPresent()) {
             throw new RuntimeException("Can't track for expiration an entity without expiry instant, client_id: " + entityId);
@@ -57,14 +70,16 @@ public class ScheduledExpirationService<T extends Expirable> {
         expiringEntitiesCache.put(entityId, entityTracker);
     }
 
+    @Override
     public boolean untrack(String entityId) {
-        ExpirableTracker<T> entityTracker = expiringEntitiesCache.get(entityId);
+        ExpirableTracker<T> entityTracker = expiringEntitiesCache.remove(entityId);
         if (entityTracker == null) {
             return false; // not found
         }
         return expiringEntities.remove(entityTracker);
     }
 
+    @Override
     public void shutdown() {
         if (expiredEntityTask.cancel(false)) {
             LOG.info("Successfully cancelled expired entities task");
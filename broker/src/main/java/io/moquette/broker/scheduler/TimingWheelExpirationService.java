@@ -0,0 +1,301 @@
+package io.moquette.broker.scheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Expiration service that keeps the tracked entities in a hashed hierarchical timing wheel.
+ * <p>
+ * Each level has {@link #WHEEL_SIZE} slots, a slot of the first level spans one tick, a slot of the
+ * next level spans all the first level, and so on. An entity is placed in the lowest level whose range
+ * contains its expiry, and moves down a level each time the upper slot is reached, until it's fired
+ * from the first level. Track and untrack are O(1) and don't touch the wheel: they update the
+ * concurrent index and queue the change, applied in batch by the wheel thread at the next tick.
+ * <p>
+ * The entities are never fired before their expiry, and at most one tick plus the scheduling delay
+ * after it: the wheel advances through all the ticks elapsed on the clock, even when a tick runs late.
+ * */
+public class TimingWheelExpirationService<T extends Expirable> implements ExpirationService<T> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TimingWheelExpirationService.class);
+
+    static final Duration DEFAULT_TICK = Duration.ofMillis(100);
+    private static final int WHEEL_BITS = 6;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // with the default tick covers more than 200 years, the farther expiries wait in the overflow
+    private static final int LEVELS = 6;
+
+    private static final class Node<T> {
+        final String entityId;
+        final T entity;
+        final long deadlineTick;
+        volatile boolean cancelled;
+
+        // owned by the wheel thread
+        Slot<T> slot;
+        Node<T> prev;
+        Node<T> next;
+
+        Node(String entityId, T entity, long deadlineTick) {
+            this.entityId = entityId;
+            this.entity = entity;
+            this.deadlineTick = deadlineTick;
+        }
+    }
+
+    private static final class Slot<T> {
+        Node<T> head;
+
+        void add(Node<T> node) {
+            node.slot = this;
+            node.prev = null;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            }
+            head = node;
+        }
+
+        void remove(Node<T> node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            }
+            node.slot = null;
+            node.prev = null;
+            node.next = null;
+        }
+
+        Node<T> clear() {
+            final Node<T> nodes = head;
+            head = null;
+            return nodes;
+        }
+    }
+
+    private final Clock clock;
+    private final Consumer<T> action;
+    private final long tickMillis;
+    private final ConcurrentMap<String, Node<T>> index = new ConcurrentHashMap<>();
+    private final Queue<Node<T>> tracked = new ConcurrentLinkedQueue<>();
+    private final Queue<Node<T>> untracked = new ConcurrentLinkedQueue<>();
+
+    // owned by the wheel thread
+    private final Slot<T>[][] wheels;
+    private final Slot<T> overflow = new Slot<>();
+    private long currentTick;
+    private long scheduled;
+
+    private final ScheduledExecutorService actionsExecutor;
+    private final ScheduledFuture<?> tickTask;
+
+    public TimingWheelExpirationService(Clock clock, Consumer<T> action) {
+        this(clock, action, DEFAULT_TICK);
+    }
+
+    @SuppressWarnings("unchecked")
+    public TimingWheelExpirationService(Clock clock, Consumer<T> action, Duration tick) {
+        if (tick.toMillis() <= 0) {
+            throw new IllegalArgumentException("Tick must be at least 1 millisecond, was: " + tick);
+        }
+        this.clock = clock;
+        this.action = action;
+        this.tickMillis = tick.toMillis();
+        this.wheels = new Slot[LEVELS][WHEEL_SIZE];
+        for (Slot<T>[] wheel : wheels) {
+            for (int i = 0; i < WHEEL_SIZE; i++) {
+                wheel[i] = new Slot<>();
+            }
+        }
+        this.currentTick = clock.millis() / tickMillis;
+        this.actionsExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.tickTask = actionsExecutor.scheduleAtFixedRate(this::fireExpired, tickMillis, tickMillis,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Advance the wheel to the current time, then fire the expired entities. Invoked at each tick, and
+     * directly by the tests.
+     *
+     * @return the number of fired entities.
+     * */
+    synchronized int fireExpired() {
+        final ExpirationBatchEvent event = new ExpirationBatchEvent();
+        event.begin();
+        final List<Node<T>> expired = new ArrayList<>();
+        applyChanges(expired);
+
+        final long nowTick = clock.millis() / tickMillis;
+        if (scheduled == 0 && nowTick > currentTick) {
+            // nothing to cascade, skip the empty ticks
+            currentTick = nowTick;
+        }
+        while (currentTick < nowTick) {
+            currentTick++;
+            cascade(currentTick, expired);
+            collect(wheels[0][(int) (currentTick & WHEEL_MASK)].clear(), expired);
+        }
+
+        int fired = 0;
+        for (Node<T> node : expired) {
+            // loses against a concurrent untrack or track of the same id
+            if (index.remove(node.entityId, node)) {
+                fired++;
+                try {
+                    action.accept(node.entity);
+                } catch (RuntimeException ex) {
+                    LOG.error("Error firing the expiration of {}", node.entityId, ex);
+                }
+            }
+        }
+        if (fired > 0) {
+            LOG.debug("Fired {} expired entities, {} still scheduled", fired, scheduled);
+            event.end();
+            if (event.shouldCommit()) {
+                event.service = "timing wheel";
+                event.expired = fired;
+                event.pending = scheduled;
+                event.commit();
+            }
+        }
+        return fired;
+    }
+
+    private void applyChanges(List<Node<T>> expired) {
+        Node<T> node = tracked.poll();
+        while (node != null) {
+            if (!node.cancelled) {
+                schedule(node, expired);
+            }
+            node = tracked.poll();
+        }
+        node = untracked.poll();
+        while (node != null) {
+            if (node.slot != null) {
+                node.slot.remove(node);
+                scheduled--;
+            }
+            node = untracked.poll();
+        }
+    }
+
+    /**
+     * Move down the entities of the upper slots that start at this tick, from the highest level.
+     * */
+    private void cascade(long tick, List<Node<T>> expired) {
+        int level = 1;
+        while (level < LEVELS && (tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+            level++;
+        }
+        if (level == LEVELS && (tick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0) {
+            reschedule(overflow.clear(), expired);
+        }
+        for (int l = level - 1; l >= 1; l--) {
+            final int slot = (int) ((tick >>> (WHEEL_BITS * l)) & WHEEL_MASK);
+            reschedule(wheels[l][slot].clear(), expired);
+        }
+    }
+
+    private void reschedule(Node<T> nodes, List<Node<T>> expired) {
+        Node<T> node = nodes;
+        while (node != null) {
+            final Node<T> next = node.next;
+            node.slot = null;
+            scheduled--;
+            schedule(node, expired);
+            node = next;
+        }
+    }
+
+    private void collect(Node<T> nodes, List<Node<T>> expired) {
+        Node<T> node = nodes;
+        while (node != null) {
+            final Node<T> next = node.next;
+            node.slot = null;
+            scheduled--;
+            expired.add(node);
+            node = next;
+        }
+    }
+
+    private void schedule(Node<T> node, List<Node<T>> expired) {
+        final long deadline = node.deadlineTick;
+        if (deadline <= currentTick) {
+            expired.add(node);
+            return;
+        }
+        // the lowest level where the deadline and the current tick share all the upper bits
+        int level = 0;
+        while (level < LEVELS && ((deadline ^ currentTick) >>> (WHEEL_BITS * (level + 1))) != 0) {
+            level++;
+        }
+        final Slot<T> slot;
+        if (level == LEVELS) {
+            slot = overflow;
+        } else {
+            slot = wheels[level][(int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK)];
+        }
+        slot.add(node);
+        scheduled++;
+    }
+
+    @Override
+    public void track(String entityId, T entity) {
+        if (!entity.expireAt().isPresent()) {
+            throw new RuntimeException("Can't track for expiration an entity without expiry instant, client_id: " + entityId);
+        }
+        // rounded up, so that it's never fired before its expiry
+        final long deadlineTick = Math.floorDiv(entity.expireAt().get().toEpochMilli() + tickMillis - 1, tickMillis);
+        final Node<T> node = new Node<>(entityId, entity, deadlineTick);
+        final Node<T> replaced = index.put(entityId, node);
+        if (replaced != null) {
+            cancel(replaced);
+        }
+        tracked.offer(node);
+    }
+
+    @Override
+    public boolean untrack(String entityId) {
+        final Node<T> node = index.remove(entityId);
+        if (node == null) {
+            return false; // not found or already fired
+        }
+        cancel(node);
+        return true;
+    }
+
+    private void cancel(Node<T> node) {
+        node.cancelled = true;
+        untracked.offer(node);
+    }
+
+    @Override
+    public void shutdown() {
+        if (tickTask.cancel(false)) {
+            LOG.info("Successfully cancelled expired entities task");
+        } else {
+            LOG.warn("Can't cancel the execution of expired entities task, was already cancelled? {}, was done? {}",
+                tickTask.isCancelled(), tickTask.isDone());
+        }
+        actionsExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.security;
+
+import io.moquette.broker.subscriptions.Token;
+import io.moquette.broker.subscriptions.Topic;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ACL rules compiled in a tree of topic levels, so that a check visits only the rules that share
+ * a prefix with the topic instead of scanning all of them. Matches like {@link Topic#match(Topic)}
+ * with the rule as the topic filter.
+ * <p>
+ * When created for pattern rules, the levels containing <code>%c</code> or <code>%u</code> are
+ * bound to the client id and the username during the check, without building a topic for each
+ * rule. A placeholder matches exactly one level, so a client id containing <code>/</code>,
+ * <code>+</code> or <code>#</code> can't widen the rule.
+ * <p>
+ * Filled while parsing, by a single thread, then only read.
+ */
+final class ACLMatcher {
+
+    private static final String CLIENT_PLACEHOLDER = "%c";
+    private static final String USER_PLACEHOLDER = "%u";
+
+    private static final class Node {
+        final Map<String, Node> literals = new HashMap<>();
+        // levels with placeholders mixed with text, like "device-%c"
+        final Map<String, Node> templates = new HashMap<>();
+        Node single;
+        Node multi;
+        Node client;
+        Node user;
+        boolean read;
+        boolean write;
+        // like Authorization.grant, READWRITE is granted only by a READWRITE rule, not by a READ and a WRITE one
+        boolean readWrite;
+
+        void grant(Authorization.Permission permission) {
+            read |= permission != Authorization.Permission.WRITE;
+            write |= permission != Authorization.Permission.READ;
+            readWrite |= permission == Authorization.Permission.READWRITE;
+        }
+
+        boolean grants(Authorization.Permission permission) {
+            switch (permission) {
+                case READ:
+                    return read;
+                case WRITE:
+                    return write;
+                default:
+                    return readWrite;
+            }
+        }
+    }
+
+    private final Node root = new Node();
+    private final boolean bindPlaceholders;
+    private int rules;
+
+    /**
+     * @param bindPlaceholders true to replace <code>%c</code> and <code>%u</code> with the client id and
+     *                         username, false to match them literally.
+     */
+    ACLMatcher(boolean bindPlaceholders) {
+        this.bindPlaceholders = bindPlaceholders;
+    }
+
+    void add(Authorization auth) {
+        final List<Token> tokens = auth.topic.getTokens();
+        if (tokens == null) {
+            // an invalid topic filter can't match any topic
+            return;
+        }
+        Node node = root;
+        for (Token token : tokens) {
+            node = child(node, token.toString());
+        }
+        node.grant(auth.permission);
+        rules++;
+    }
+
+    private Node child(Node node, String level) {
+        switch (level) {
+            case "#":
+                if (node.multi == null) {
+                    node.multi = new Node();
+                }
+                return node.multi;
+            case "+":
+                if (node.single == null) {
+                    node.single = new Node();
+                }
+                return node.single;
+            default:
+                break;
+        }
+        if (bindPlaceholders) {
+            if (CLIENT_PLACEHOLDER.equals(level)) {
+                if (node.client == null) {
+                    node.client = new Node();
+                }
+                return node.client;
+            }
+            if (USER_PLACEHOLDER.equals(level)) {
+                if (node.user == null) {
+                    node.user = new Node();
+                }
+                return node.user;
+            }
+            if (level.contains(CLIENT_PLACEHOLDER) || level.contains(USER_PLACEHOLDER)) {
+                return node.templates.computeIfAbsent(level, l -> new Node());
+            }
+        }
+        return node.literals.computeIfAbsent(level, l -> new Node());
+    }
+
+    boolean isEmpty() {
+        return rules == 0;
+    }
+
+    /**
+     * @param topic the topic to check, a topic name or a topic filter.
+     * @param client the client id bound to <code>%c</code>, could be null.
+     * @param user the username bound to <code>%u</code>, could be null.
+     * @return true if a rule grants the permission on the topic.
+     */
+    boolean grants(Topic topic, Authorization.Permission permission, String client, String user) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null || rules == 0) {
+            return false;
+        }
+        return grants(root, tokens, 0, permission, client, user);
+    }
+
+    private boolean grants(Node node, List<Token> tokens, int level, Authorization.Permission permission,
+                           String client, String user) {
+        // # matches also the parent level
+        if (node.multi != null && node.multi.grants(permission)) {
+            return true;
+        }
+        if (level == tokens.size() && node.grants(permission)) {
+            return true;
+        }
+        // like Topic.match, + doesn't check that the level exists, only # could follow it
+        if (node.single != null && grants(node.single, tokens, level + 1, permission, client, user)) {
+            return true;
+        }
+        if (level >= tokens.size()) {
+            return false;
+        }
+        final String name = tokens.get(level).toString();
+        final Node literal = node.literals.get(name);
+        if (literal != null && grants(literal, tokens, level + 1, permission, client, user)) {
+            return true;
+        }
+        if (!bindPlaceholders) {
+            return false;
+        }
+        if (node.client != null && isNotEmpty(client) && name.equals(client)
+            && grants(node.client, tokens, level + 1, permission, client, user)) {
+            return true;
+        }
+        if (node.user != null && isNotEmpty(user) && name.equals(user)
+            && grants(node.user, tokens, level + 1, permission, client, user)) {
+            return true;
+        }
+        for (Map.Entry<String, Node> template : node.templates.entrySet()) {
+            final String bound = bind(template.getKey(), client, user);
+            if (name.equals(bound) && grants(template.getValue(), tokens, level + 1, permission, client, user)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the level with the placeholders replaced, or null if a placeholder has no value.
+     */
+    private static String bind(String template, String client, String user) {
+        String bound = template;
+        if (bound.contains(CLIENT_PLACEHOLDER)) {
+            if (!isNotEmpty(client)) {
+                return null;
+            }
+            bound = bound.replace(CLIENT_PLACEHOLDER, client);
+        }
+        if (bound.contains(USER_PLACEHOLDER)) {
+            if (!isNotEmpty(user)) {
+                return null;
+            }
+            bound = bound.replace(USER_PLACEHOLDER, user);
+        }
+        return bound;
+    }
+
+    private static boolean isNotEmpty(String value) {
+        return value != null && !value.isEmpty();
+    }
+}
@@ -19,29 +19,68 @@ package io.moquette.broker.security;
 import io.moquette.broker.subscriptions.Topic;
 
 import java.text.ParseException;
-import java.util.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Used by the ACLFileParser to push all authorizations it finds. ACLAuthorizator uses it in read
  * mode to check it topics matches the ACLs.
  *
- * Not thread safe.
+ * The authorizations are compiled in {@link ACLMatcher}s while parsed, and the results of the
+ * checks are cached until the next parsed line.
+ *
+ * Not thread safe while parsing, the checks can be done concurrently.
  */
 class AuthorizationsCollector implements IAuthorizatorPolicy {
 
-    private List<Authorization> m_globalAuthorizations = new ArrayList<>();
-    private List<Authorization> m_patternAuthorizations = new ArrayList<>();
-    private Map<String, List<Authorization>> m_userAuthorizations = new HashMap<>();
+    // max number of cached checks, when reached the cache is emptied
+    private static final int DECISIONS_CACHE_MAX_SIZE = 16_384;
+
+    private static final class Decision {
+        private final Topic topic;
+        private final Authorization.Permission permission;
+        private final String username;
+        private final String client;
+
+        Decision(Topic topic, Authorization.Permission permission, String username, String client) {
+            this.topic = topic;
+            this.permission = permission;
+            this.username = username;
+            this.client = client;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Decision other = (Decision) o;
+            return permission == other.permission && topic.equals(other.topic)
+                && Objects.equals(username, other.username) && Objects.equals(client, other.client);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(topic, permission, username, client);
+        }
+    }
+
+    private final ACLMatcher m_globalAuthorizations = new ACLMatcher(false);
+    private final ACLMatcher m_patternAuthorizations = new ACLMatcher(true);
+    private final Map<String, ACLMatcher> m_userAuthorizations = new HashMap<>();
+    private final ConcurrentMap<Decision, Boolean> m_decisions = new ConcurrentHashMap<>();
     private boolean m_parsingUsersSpecificSection;
     private boolean m_parsingPatternSpecificSection;
     private String m_currentUser = "";
 
     static final AuthorizationsCollector emptyImmutableCollector() {
-        AuthorizationsCollector coll = new AuthorizationsCollector();
-        coll.m_globalAuthorizations = Collections.emptyList();
-        coll.m_patternAuthorizations = Collections.emptyList();
-        coll.m_userAuthorizations = Collections.emptyMap();
-        return coll;
+        return new AuthorizationsCollector();
     }
 
     void parse(String line) throws ParseException {
@@ -51,18 +90,14 @@ class AuthorizationsCollector implements IAuthorizatorPolicy {
             return;
         }
         if (m_parsingUsersSpecificSection) {
-            // TODO in java 8 switch to m_userAuthorizations.putIfAbsent(m_currentUser, new
-            // ArrayList());
-            if (!m_userAuthorizations.containsKey(m_currentUser)) {
-                m_userAuthorizations.put(m_currentUser, new ArrayList<Authorization>());
-            }
-            List<Authorization> userAuths = m_userAuthorizations.get(m_currentUser);
-            userAuths.add(acl);
+            m_userAuthorizations.computeIfAbsent(m_currentUser, user -> new ACLMatcher(false)).add(acl);
         } else if (m_parsingPatternSpecificSection) {
             m_patternAuthorizations.add(acl);
         } else {
             m_globalAuthorizations.add(acl);
         }
+        // the policy changed
+        m_decisions.clear();
     }
 
     protected Authorization parseAuthLine(String line) throws ParseException {
@@ -114,39 +149,34 @@ class AuthorizationsCollector implements IAuthorizatorPolicy {
     }
 
     private boolean canDoOperation(Topic topic, Authorization.Permission permission, String username, String client) {
-        if (matchACL(m_globalAuthorizations, topic, permission)) {
+        final Decision decision = new Decision(topic, permission, username, client);
+        final Boolean cached = m_decisions.get(decision);
+        if (cached != null) {
+            return cached;
+        }
+        final boolean granted = evaluate(topic, permission, username, client);
+        if (m_decisions.size() >= DECISIONS_CACHE_MAX_SIZE) {
+            // cheaper than tracking the usage, the frequent checks are cached again
+            m_decisions.clear();
+        }
+        m_decisions.put(decision, granted);
+        return granted;
+    }
+
+    private boolean evaluate(Topic topic, Authorization.Permission permission, String username, String client) {
+        if (m_globalAuthorizations.grants(topic, permission, client, username)) {
             return true;
         }
 
         if (isNotEmpty(client) || isNotEmpty(username)) {
-            for (Authorization auth : m_patternAuthorizations) {
-                Topic substitutedTopic = new Topic(auth.topic.toString().replace("%c", client).replace("%u", username));
-                if (auth.grant(permission)) {
-                    if (topic.match(substitutedTopic)) {
-                        return true;
-                    }
-                }
+            if (m_patternAuthorizations.grants(topic, permission, client, username)) {
+                return true;
             }
         }
 
         if (isNotEmpty(username)) {
-            if (m_userAuthorizations.containsKey(username)) {
-                List<Authorization> auths = m_userAuthorizations.get(username);
-                if (matchACL(auths, topic, permission)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private boolean matchACL(List<Authorization> auths, Topic topic, Authorization.Permission permission) {
-        for (Authorization auth : auths) {
-            if (auth.grant(permission)) {
-                if (topic.match(auth.topic)) {
-                    return true;
-                }
-            }
+            final ACLMatcher userAuthorizations = m_userAuthorizations.get(username);
+            return userAuthorizations != null && userAuthorizations.grants(topic, permission, client, username);
         }
         return false;
     }
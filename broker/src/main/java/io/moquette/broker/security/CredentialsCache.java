@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.security;
+
+import io.moquette.broker.ClockEviction;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of the password hashes loaded by the {@link DBAuthenticator}, so that clients
+ * reconnecting in a burst don't query the database again.
+ * <p>
+ * Unknown users are cached too, with their own time to live, so that a client retrying with
+ * a wrong username doesn't hit the database on every attempt. Lookups are lock free; when the
+ * cache is full an entry is evicted with the {@link ClockEviction} policy, expired entries first.
+ */
+final class CredentialsCache {
+
+    static final class Entry extends ClockEviction.Entry {
+        // null if the user doesn't exist
+        final String storedPassword;
+        private final long expiresAtMillis;
+
+        private Entry(String storedPassword, long expiresAtMillis) {
+            this.storedPassword = storedPassword;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final Clock clock;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Object updateLock = new Object();
+    // guarded by updateLock
+    private final ClockEviction<String, Entry> eviction = new ClockEviction<>(entries);
+
+    CredentialsCache(int maxSize, Duration ttl, Duration negativeTtl) {
+        this(maxSize, ttl, negativeTtl, Clock.systemUTC());
+    }
+
+    CredentialsCache(int maxSize, Duration ttl, Duration negativeTtl, Clock clock) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.ttlMillis = ttl.toMillis();
+        this.negativeTtlMillis = negativeTtl.toMillis();
+        this.clock = clock;
+    }
+
+    /**
+     * @return the cached credentials of the user or null if not cached or expired.
+     * */
+    Entry get(String username) {
+        final Entry entry = entries.get(username);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAtMillis <= clock.millis()) {
+            entries.remove(username, entry);
+            return null;
+        }
+        entry.markReferenced();
+        return entry;
+    }
+
+    /**
+     * @param storedPassword the hash of the password loaded from the database, null if the user doesn't exist.
+     * */
+    void put(String username, String storedPassword) {
+        final long ttl = storedPassword != null ? ttlMillis : negativeTtlMillis;
+        if (ttl <= 0) {
+            return;
+        }
+        final Entry entry = new Entry(storedPassword, clock.millis() + ttl);
+        synchronized (updateLock) {
+            if (!entries.containsKey(username) && entries.size() >= maxSize) {
+                evictOne();
+            }
+            entries.put(username, entry);
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private void evictOne() {
+        final long now = clock.millis();
+        final String victim = eviction.selectVictim(entry -> entry.expiresAtMillis <= now);
+        if (victim != null) {
+            entries.remove(victim);
+        }
+    }
+}
@@ -19,6 +19,7 @@ package io.moquette.broker.security;
 import com.zaxxer.hikari.HikariDataSource;
 import io.moquette.BrokerConstants;
 import io.moquette.broker.config.IConfig;
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,23 +30,51 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Load user credentials from a SQL database. sql driver must be provided at runtime
+ * <p>
+ * The credentials are checked concurrently, up to the size of the connection pool. The asynchronous
+ * checks run on a dedicated pool of the same size, and the password hashes can be cached to
+ * absorb the reconnection bursts. The pools are released by {@link #close()}.
  */
-public class DBAuthenticator implements IAuthenticator {
+public class DBAuthenticator implements IAsyncAuthenticator, AutoCloseable {
 
     private static final Logger LOG = LoggerFactory.getLogger(DBAuthenticator.class);
 
-    private final MessageDigest messageDigest;
-    private HikariDataSource dataSource;
-    private String sqlQuery;
+    static final int DEFAULT_POOL_SIZE = 10;
+    private static final Duration DEFAULT_CACHE_TTL = Duration.ofMinutes(1);
+    private static final Duration DEFAULT_CACHE_NEGATIVE_TTL = Duration.ofSeconds(10);
+
+    // MessageDigest is not thread safe
+    private final ThreadLocal<MessageDigest> messageDigest;
+    private final HikariDataSource dataSource;
+    private final String sqlQuery;
+    private final ExecutorService queryExecutor;
+    // null if the cache is disabled
+    private final CredentialsCache cache;
 
     public DBAuthenticator(IConfig conf) {
         this(conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DRIVER, ""),
              conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_URL, ""),
              conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_QUERY, ""),
-             conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DIGEST, ""));
+             conf.getProperty(BrokerConstants.DB_AUTHENTICATOR_DIGEST, ""),
+             conf.intProp(BrokerConstants.DB_AUTHENTICATOR_POOL_SIZE, DEFAULT_POOL_SIZE),
+             conf.intProp(BrokerConstants.DB_AUTHENTICATOR_CACHE_SIZE, 0),
+             durationProp(conf, BrokerConstants.DB_AUTHENTICATOR_CACHE_TTL, DEFAULT_CACHE_TTL),
+             durationProp(conf, BrokerConstants.DB_AUTHENTICATOR_CACHE_NEGATIVE_TTL, DEFAULT_CACHE_NEGATIVE_TTL));
+    }
+
+    private static Duration durationProp(IConfig conf, String propertyName, Duration defaultValue) {
+        if (conf.getProperty(propertyName) == null) {
+            return defaultValue;
+        }
+        return conf.durationProp(propertyName);
     }
 
     /**
@@ -61,12 +90,49 @@ public class DBAuthenticator implements IAuthenticator {
      *            : password encoding algorithm : "MD5", "SHA-1", "SHA-256"
      */
     public DBAuthenticator(String driver, String jdbcUrl, String sqlQuery, String digestMethod) {
+        this(driver, jdbcUrl, sqlQuery, digestMethod, DEFAULT_POOL_SIZE, 0, DEFAULT_CACHE_TTL,
+             DEFAULT_CACHE_NEGATIVE_TTL);
+    }
+
+    /**
+     * provide authenticator from SQL database, with a credentials cache
+     *
+     * @param poolSize
+     *            : max number of connections to the database, and of concurrent checks
+     * @param cacheSize
+     *            : max number of users whose password hash is cached, 0 to disable the cache
+     * @param cacheTtl
+     *            : how long a password hash is cached
+     * @param cacheNegativeTtl
+     *            : how long a user not found in the database is cached
+     */
+    public DBAuthenticator(String driver, String jdbcUrl, String sqlQuery, String digestMethod, int poolSize,
+                           int cacheSize, Duration cacheTtl, Duration cacheNegativeTtl) {
+        this(driver, jdbcUrl, sqlQuery, digestMethod, poolSize,
+             cacheSize > 0 ? new CredentialsCache(cacheSize, cacheTtl, cacheNegativeTtl) : null);
+    }
+
+    DBAuthenticator(String driver, String jdbcUrl, String sqlQuery, String digestMethod, int poolSize,
+                    CredentialsCache cache) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("Pool size must be positive, was: " + poolSize);
+        }
+        // fail fast on a wrong algorithm, instead of at the first check
+        newMessageDigest(digestMethod);
+        this.messageDigest = ThreadLocal.withInitial(() -> newMessageDigest(digestMethod));
         this.sqlQuery = sqlQuery;
         this.dataSource = new HikariDataSource();
         this.dataSource.setJdbcUrl(jdbcUrl);
+        this.dataSource.setMaximumPoolSize(poolSize);
+        // more threads would only wait for a free connection
+        this.queryExecutor = Executors.newFixedThreadPool(poolSize,
+            new DefaultThreadFactory("db-authenticator", true));
+        this.cache = cache;
+    }
 
+    private static MessageDigest newMessageDigest(String digestMethod) {
         try {
-            this.messageDigest = MessageDigest.getInstance(digestMethod);
+            return MessageDigest.getInstance(digestMethod);
         } catch (NoSuchAlgorithmException nsaex) {
             LOG.error(String.format("Can't find %s for password encoding", digestMethod), nsaex);
             throw new RuntimeException(nsaex);
@@ -74,46 +140,75 @@ public class DBAuthenticator implements IAuthenticator {
     }
 
     @Override
-    public synchronized boolean checkValid(String clientId, String username, byte[] password) {
+    public boolean checkValid(String clientId, String username, byte[] password) {
         // Check Username / Password in DB using sqlQuery
         if (username == null || password == null) {
             LOG.info("username or password was null");
             return false;
         }
 
-        ResultSet resultSet = null;
-        PreparedStatement preparedStatement = null;
-        Connection conn = null;
+        final CredentialsCache.Entry cached = cache != null ? cache.get(username) : null;
+        if (cached != null) {
+            return matches(cached.storedPassword, password);
+        }
+        final String storedPassword;
         try {
-            conn = this.dataSource.getConnection();
-
-            preparedStatement = conn.prepareStatement(this.sqlQuery);
-            preparedStatement.setString(1, username);
-            resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                final String foundPwq = resultSet.getString(1);
-                messageDigest.update(password);
-                byte[] digest = messageDigest.digest();
-                String encodedPasswd = new String(Hex.encodeHex(digest));
-                return foundPwq.equals(encodedPasswd);
-            }
+            storedPassword = loadStoredPassword(username);
         } catch (SQLException sqlex) {
+            // errors are not cached, the next attempt queries the DB again
             LOG.error("Error quering DB for username: {}", username, sqlex);
-        } finally {
-            try {
-                if (resultSet != null) {
-                    resultSet.close();
-                }
-                if (preparedStatement != null) {
-                    preparedStatement.close();
-                }
-                if (conn != null) {
-                    conn.close();
-                }
-            } catch (SQLException e) {
-                LOG.error("Error releasing connection to the datasource", username, e);
+            return false;
+        }
+        if (cache != null) {
+            cache.put(username, storedPassword);
+        }
+        return matches(storedPassword, password);
+    }
+
+    /**
+     * Checks the cached credentials in the caller thread, otherwise queries the DB in the
+     * authenticator's pool.
+     */
+    @Override
+    public CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password) {
+        if (cache != null && username != null && password != null) {
+            final CredentialsCache.Entry cached = cache.get(username);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(matches(cached.storedPassword, password));
+            }
+        }
+        return CompletableFuture.supplyAsync(() -> checkValid(clientId, username, password), queryExecutor);
+    }
+
+    private boolean matches(String storedPassword, byte[] password) {
+        if (storedPassword == null) {
+            return false;
+        }
+        final MessageDigest digest = messageDigest.get();
+        digest.update(password);
+        String encodedPasswd = new String(Hex.encodeHex(digest.digest()));
+        return storedPassword.equals(encodedPasswd);
+    }
+
+    /**
+     * @return the password hash of the user, null if the user doesn't exist.
+     */
+    private String loadStoredPassword(String username) throws SQLException {
+        try (Connection conn = this.dataSource.getConnection();
+             PreparedStatement preparedStatement = conn.prepareStatement(this.sqlQuery)) {
+            preparedStatement.setString(1, username);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
             }
         }
-        return false;
+    }
+
+    /**
+     * Stops the checks still running and closes the connections to the database.
+     */
+    @Override
+    public void close() {
+        queryExecutor.shutdownNow();
+        dataSource.close();
     }
 }
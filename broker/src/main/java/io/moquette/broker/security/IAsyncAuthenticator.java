@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.security;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * username and password checker that doesn't block the caller, for authenticators that
+ * query a remote service. The broker calls {@link #checkValidAsync(String, String, byte[])}
+ * from the Netty I/O thread and sends the CONNACK when the result is available.
+ */
+public interface IAsyncAuthenticator extends IAuthenticator {
+
+    /**
+     * @return a stage completed with true if the credentials are valid. A stage completed
+     * exceptionally refuses the connection, like false.
+     */
+    CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password);
+}
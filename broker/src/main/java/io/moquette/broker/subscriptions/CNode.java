@@ -18,7 +18,6 @@ package io.moquette.broker.subscriptions;
 import io.netty.handler.codec.mqtt.MqttQoS;
 import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
 
-import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -28,19 +27,28 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 class CNode implements Comparable<CNode> {
 
-    public static final Random SECURE_RANDOM = new SecureRandom();
+    /**
+     * The members of a shared subscription, with the count of the messages dispatched to them, kept
+     * across the copies of the node.
+     * */
+    private static final class SharedGroup {
+        // sorted by client id
+        final List<Subscription> members = new ArrayList<>();
+        final AtomicInteger dispatched = new AtomicInteger();
+    }
+
     private final Token token;
     private final List<INode> children;
     // Sorted list of subscriptions. The sort is necessary for fast access, instead of linear scan.
     private List<Subscription> subscriptions;
-    // the list of SharedSubscription is sorted. The sort is necessary for fast access, instead of linear scan.
-    private Map<ShareName, List<Subscription>> sharedSubscriptions;
+    // the members of each SharedSubscription are sorted. The sort is necessary for fast access, instead of linear scan.
+    private Map<ShareName, SharedGroup> sharedSubscriptions;
 
     CNode(Token token) {
         this.children = new ArrayList<>();
@@ -51,7 +59,7 @@ class CNode implements Comparable<CNode> {
 
     //Copy constructor
     private CNode(Token token, List<INode> children, List<Subscription> subscriptions, Map<ShareName,
-                  List<Subscription>> sharedSubscriptions) {
+                  SharedGroup> sharedSubscriptions) {
         this.token = token; // keep reference, root comparison in directory logic relies on it for now.
         this.subscriptions = new ArrayList<>(subscriptions);
         this.sharedSubscriptions = new HashMap<>(sharedSubscriptions);
@@ -67,16 +75,38 @@ class CNode implements Comparable<CNode> {
     }
 
     Optional<INode> childOf(Token token) {
+        return Optional.ofNullable(childOrNull(token));
+    }
+
+    /**
+     * Allocation free version of {@link #childOf(Token)}, used on the matching path.
+     *
+     * @return the child node for the token or null if not present.
+     * */
+    INode childOrNull(Token token) {
         int idx = findIndexForToken(token);
         if (idx < 0) {
-            return Optional.empty();
+            return null;
         }
-        return Optional.of(children.get(idx));
+        return children.get(idx);
     }
 
+    // same contract of Collections.binarySearch, without creating a node to hold the searched token
     private int findIndexForToken(Token token) {
-        final INode tempTokenNode = new INode(new CNode(token));
-        return Collections.binarySearch(children, tempTokenNode, (INode node, INode tokenHolder) -> node.mainNode().token.compareTo(tokenHolder.mainNode().token));
+        int low = 0;
+        int high = children.size() - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = children.get(mid).mainNode().token.compareTo(token);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
     }
 
     @Override
@@ -102,18 +132,14 @@ class CNode implements Comparable<CNode> {
         return this.children.remove(idx);
     }
 
-    private List<Subscription> sharedSubscriptions() {
-        List<Subscription> selectedSubscriptions = new ArrayList<>(sharedSubscriptions.size());
+    private void collectSharedSubscriptions(List<Subscription> selectedSubscriptions, Topic topic,
+                                            SharedSubscriptionDispatcher dispatcher) {
+        final boolean usesSequence = dispatcher.usesSequence();
         // for each sharedSubscription related to a ShareName, select one subscription
-        for (Map.Entry<ShareName, List<Subscription>> subsForName : sharedSubscriptions.entrySet()) {
-            List<Subscription> list = subsForName.getValue();
-            final String shareName = subsForName.getKey().getShareName();
-            // select a subscription randomly
-            int randIdx = SECURE_RANDOM.nextInt(list.size());
-            Subscription sub = list.get(randIdx);
-            selectedSubscriptions.add(sub);
+        for (SharedGroup group : sharedSubscriptions.values()) {
+            final int sequence = usesSequence ? group.dispatched.getAndIncrement() : 0;
+            selectedSubscriptions.add(dispatcher.select(group.members, topic, sequence));
         }
-        return selectedSubscriptions;
     }
 
     List<Subscription> subscriptions() {
@@ -124,7 +150,11 @@ class CNode implements Comparable<CNode> {
     CNode addSubscription(final Subscription subscription) {
         if (subscription.hasShareName()) {
             final ShareName shareName = subscription.getShareName();
-            List<Subscription> subscriptionsForShare = sharedSubscriptions.getOrDefault(shareName, new ArrayList<>());
+            SharedGroup group = sharedSubscriptions.get(shareName);
+            if (group == null) {
+                group = new SharedGroup();
+            }
+            final List<Subscription> subscriptionsForShare = group.members;
             // if a shared subscription already exists for same clientId and share name, overwrite, because
             // the client could desire to update it.
             int idx = Collections.binarySearch(subscriptionsForShare, subscription);
@@ -133,7 +163,7 @@ class CNode implements Comparable<CNode> {
             } else {
                 subscriptionsForShare.add(-1 - idx, subscription);
             }
-            sharedSubscriptions.put(shareName, subscriptionsForShare);
+            sharedSubscriptions.put(shareName, group);
         } else {
             // if already contains one with same topic and same client, keep that with higher QoS
             int idx = Collections.binarySearch(subscriptions, subscription);
@@ -186,10 +216,10 @@ class CNode implements Comparable<CNode> {
 
     private boolean containsSharedSubscriptionsForClient(String clientId) {
         boolean result = false;
-        for (List<Subscription> sharedForShareName : this.sharedSubscriptions.values()) {
+        for (SharedGroup sharedForShareName : this.sharedSubscriptions.values()) {
             Subscription keyWrapper = wrapKey(clientId);
             Comparator<Subscription> compareByClientId = Comparator.comparing(Subscription::getClientId);
-            int res = Collections.binarySearch(sharedForShareName, keyWrapper, compareByClientId);
+            int res = Collections.binarySearch(sharedForShareName.members, keyWrapper, compareByClientId);
             result = res >= 0 || result;
         }
         return result;
@@ -214,7 +244,8 @@ class CNode implements Comparable<CNode> {
         String clientId = subscription.getClientId();
 
         if (subscription.hasShareName()) {
-            List<Subscription> subscriptionsForName = this.sharedSubscriptions.get(subscription.getShareName());
+            SharedGroup group = this.sharedSubscriptions.get(subscription.getShareName());
+            List<Subscription> subscriptionsForName = group.members;
             List<Subscription> toRemove = subscriptionsForName.stream()
                 .filter(sub -> sub.getClientId().equals(clientId))
                 .collect(Collectors.toList());
@@ -223,7 +254,7 @@ class CNode implements Comparable<CNode> {
             if (subscriptionsForName.isEmpty()) {
                 this.sharedSubscriptions.remove(subscription.getShareName());
             } else {
-                this.sharedSubscriptions.replace(subscription.getShareName(), subscriptionsForName);
+                this.sharedSubscriptions.replace(subscription.getShareName(), group);
             }
         } else {
             // collect Subscription instances to remove
@@ -243,11 +274,18 @@ class CNode implements Comparable<CNode> {
         return token.compareTo(o.token);
     }
 
-    public List<Subscription> sharedAndNonSharedSubscriptions() {
-        List<Subscription> shared = sharedSubscriptions();
-        List<Subscription> returnedSubscriptions = new ArrayList<>(subscriptions.size() + shared.size());
-        returnedSubscriptions.addAll(subscriptions);
-        returnedSubscriptions.addAll(shared);
-        return returnedSubscriptions;
+    /**
+     * Append the subscriptions of this node to the accumulator, selecting one member for each shared
+     * subscription.
+     *
+     * @param topic the published topic, matched by the subscriptions.
+     * @param dispatcher selects the member of the shared subscriptions.
+     * */
+    void collectSharedAndNonSharedSubscriptions(List<Subscription> accumulator, Topic topic,
+                                                SharedSubscriptionDispatcher dispatcher) {
+        accumulator.addAll(subscriptions);
+        if (!sharedSubscriptions.isEmpty()) {
+            collectSharedSubscriptions(accumulator, topic, dispatcher);
+        }
     }
 }
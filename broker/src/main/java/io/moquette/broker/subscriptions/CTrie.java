@@ -23,10 +23,16 @@ public class CTrie {
     }
 
     INode root;
+    private final SharedSubscriptionDispatcher sharedDispatcher;
 
     CTrie() {
+        this(SharedSubscriptionDispatcher.random());
+    }
+
+    CTrie(SharedSubscriptionDispatcher sharedDispatcher) {
         final CNode mainNode = new CNode(ROOT);
         this.root = new INode(mainNode);
+        this.sharedDispatcher = sharedDispatcher;
     }
 
     Optional<CNode> lookup(Topic topic) {
@@ -51,12 +57,40 @@ public class CTrie {
         MATCH, GODEEP, STOP
     }
 
-    private NavigationAction evaluate(Topic topicName, CNode cnode, int depth) {
+    /**
+     * Tells if the topic name is matched by the topic filter with the same rules used to walk the tree.
+     *
+     * @param topicFilter the filter, could contain single (+) and multi (#) level wildcards.
+     * @param topicName the published topic name.
+     * @return true if a subscription to the filter receives the messages published on the topic.
+     * */
+    static boolean matches(Topic topicFilter, Topic topicName) {
+        final List<Token> filterTokens = topicFilter.getTokens();
+        final List<Token> tokens = topicName.getTokens();
+        if (filterTokens == null || tokens == null) {
+            return false;
+        }
+        for (int index = 0; index < filterTokens.size(); index++) {
+            // the filter's token at index is the node at depth index + 1, below the root
+            final NavigationAction action = evaluate(tokens, index, filterTokens.get(index), index + 1);
+            if (action == NavigationAction.MATCH) {
+                return true;
+            }
+            if (action == NavigationAction.STOP) {
+                return false;
+            }
+        }
+        // each level went deeper consuming a token, the subscriptions of the node are collected if the topic ends
+        return filterTokens.size() == tokens.size();
+    }
+
+    private static NavigationAction evaluate(List<Token> tokens, int index, Token nodeToken, int depth) {
         // depth 0 is the root node of all the topics, so for topic filter
         // monitor/sensor we have <root> -> monitor -> sensor
         final boolean isFirstLevel = depth == 1;
-        if (Token.MULTI.equals(cnode.getToken())) {
-            Token token = topicName.headToken();
+        final boolean topicConsumed = index >= tokens.size();
+        if (Token.MULTI.equals(nodeToken)) {
+            Token token = topicConsumed ? null : tokens.get(index);
             if (token != null && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 // if reserved token is the first of the topicName
@@ -64,12 +98,13 @@ public class CTrie {
             }
             return NavigationAction.MATCH;
         }
-        if (topicName.isEmpty()) {
+        if (topicConsumed) {
             return NavigationAction.STOP;
         }
-        final Token token = topicName.headToken();
-        if (Token.SINGLE.equals(cnode.getToken()) || cnode.getToken().equals(token) || ROOT.equals(cnode.getToken())) {
-            if (Token.SINGLE.equals(cnode.getToken()) && token.isReserved() && isFirstLevel) {
+        final Token token = tokens.get(index);
+        // the root is identified by the depth, a topic level named as the root's token must not match anything
+        if (Token.SINGLE.equals(nodeToken) || nodeToken.equals(token) || depth == 0) {
+            if (Token.SINGLE.equals(nodeToken) && token.isReserved() && isFirstLevel) {
                 // [MQTT-4.7.2-1] single wildcard can't match reserved topics
                 return NavigationAction.STOP;
             }
@@ -79,43 +114,58 @@ public class CTrie {
     }
 
     public List<Subscription> recursiveMatch(Topic topicName) {
-        return recursiveMatch(topicName, this.root, 0);
+        final List<Token> tokens = topicName.getTokens();
+        if (tokens == null) {
+            // invalid topic name
+            return Collections.emptyList();
+        }
+        final List<Subscription> subscriptions = new ArrayList<>();
+        recursiveMatch(topicName, tokens, 0, this.root, 0, subscriptions);
+        return subscriptions;
     }
 
-    private List<Subscription> recursiveMatch(Topic topicName, INode inode, int depth) {
+    /**
+     * Walks the tree keeping the position in the tokens of the topic instead of creating the
+     * remaining topic at each level, and collects all the matched subscriptions in a single list.
+     *
+     * @param tokens the tokens of the topic name.
+     * @param index the position of the token to evaluate against the node.
+     * */
+    private void recursiveMatch(Topic topicName, List<Token> tokens, int index, INode inode, int depth,
+                                List<Subscription> subscriptions) {
         CNode cnode = inode.mainNode();
         if (cnode instanceof TNode) {
-            return Collections.emptyList();
+            return;
         }
-        NavigationAction action = evaluate(topicName, cnode, depth);
+        NavigationAction action = evaluate(tokens, index, cnode.getToken(), depth);
         if (action == NavigationAction.MATCH) {
-            return cnode.sharedAndNonSharedSubscriptions();
+            cnode.collectSharedAndNonSharedSubscriptions(subscriptions, topicName, sharedDispatcher);
+            return;
         }
         if (action == NavigationAction.STOP) {
-            return Collections.emptyList();
+            return;
         }
-        Topic remainingTopic = (ROOT.equals(cnode.getToken())) ? topicName : topicName.exceptHeadToken();
-        List<Subscription> subscriptions = new ArrayList<>();
+        // the root doesn't consume any token
+        final int remainingIndex = depth == 0 ? index : index + 1;
 
         // We should only consider the maximum three children children of
         // type #, + or exact match
-        Optional<INode> subInode = cnode.childOf(Token.MULTI);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        INode subInode = cnode.childOrNull(Token.MULTI);
+        if (subInode != null) {
+            recursiveMatch(topicName, tokens, remainingIndex, subInode, depth + 1, subscriptions);
         }
-        subInode = cnode.childOf(Token.SINGLE);
-        if (subInode.isPresent()) {
-            subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+        subInode = cnode.childOrNull(Token.SINGLE);
+        if (subInode != null) {
+            recursiveMatch(topicName, tokens, remainingIndex, subInode, depth + 1, subscriptions);
         }
-        if (remainingTopic.isEmpty()) {
-            subscriptions.addAll(cnode.sharedAndNonSharedSubscriptions());
+        if (remainingIndex >= tokens.size()) {
+            cnode.collectSharedAndNonSharedSubscriptions(subscriptions, topicName, sharedDispatcher);
         } else {
-            subInode = cnode.childOf(remainingTopic.headToken());
-            if (subInode.isPresent()) {
-                subscriptions.addAll(recursiveMatch(remainingTopic, subInode.get(), depth + 1));
+            subInode = cnode.childOrNull(tokens.get(remainingIndex));
+            if (subInode != null) {
+                recursiveMatch(topicName, tokens, remainingIndex, subInode, depth + 1, subscriptions);
             }
         }
-        return subscriptions;
     }
 
     /**
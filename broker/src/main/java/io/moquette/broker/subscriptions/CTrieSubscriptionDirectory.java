@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -35,10 +36,43 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     private final ConcurrentMap<String, List<Subscription>> clientSharedSubscriptions = new ConcurrentHashMap<>();
 
+    // null when the cache of the matched subscriptions is disabled
+    private final SubscriptionsMatchCache matchCache;
+    private final SharedSubscriptionDispatcher sharedDispatcher;
+
+    public CTrieSubscriptionDirectory() {
+        this(0);
+    }
+
+    /**
+     * @param matchCacheSize max number of published topics for which the matched subscriptions are
+     *                       cached, 0 to disable the cache.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize) {
+        this(matchCacheSize, SharedSubscriptionDispatcher.random());
+    }
+
+    /**
+     * @param matchCacheSize max number of published topics for which the matched subscriptions are
+     *                       cached, 0 to disable the cache.
+     * @param sharedDispatcher selects the member of the shared subscriptions that receives each message.
+     * */
+    public CTrieSubscriptionDirectory(int matchCacheSize, SharedSubscriptionDispatcher sharedDispatcher) {
+        if (matchCacheSize < 0) {
+            throw new IllegalArgumentException("Match cache size can't be negative, was: " + matchCacheSize);
+        }
+        this.matchCache = matchCacheSize > 0 ? new SubscriptionsMatchCache(matchCacheSize) : null;
+        this.sharedDispatcher = Objects.requireNonNull(sharedDispatcher, "sharedDispatcher can't be null");
+    }
+
     @Override
     public void init(ISubscriptionsRepository subscriptionsRepository) {
         LOG.info("Initializing CTrie");
-        ctrie = new CTrie();
+        ctrie = new CTrie(sharedDispatcher);
+        if (matchCache != null) {
+            LOG.info("Caching the matched subscriptions for up to {} topics", matchCache.maxSize());
+            matchCache.invalidateAll();
+        }
 
         LOG.info("Initializing subscriptions store...");
         this.subscriptionsRepository = subscriptionsRepository;
@@ -78,12 +112,49 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
 
     @Override
     public List<Subscription> matchQosSharpening(Topic topicName) {
+        if (matchCache == null) {
+            return resolveQosSharpening(topicName);
+        }
+        final List<Subscription> cached = matchCache.get(topicName);
+        if (cached != null) {
+            return cached;
+        }
+        final long generation = matchCache.generation();
+        final List<Subscription> resolved = resolveQosSharpening(topicName);
+        // the shared subscriptions select a different member of the group on each match, so can't be cached
+        if (!containsShared(resolved)) {
+            matchCache.put(topicName, resolved, generation);
+        }
+        return resolved;
+    }
+
+    private List<Subscription> resolveQosSharpening(Topic topicName) {
         final List<Subscription> subscriptions = matchWithoutQosSharpening(topicName);
 
         // for each session select the subscription with higher QoS
         return selectSubscriptionsWithHigherQoSForEachSession(subscriptions);
     }
 
+    private static boolean containsShared(List<Subscription> subscriptions) {
+        for (Subscription sub : subscriptions) {
+            if (sub.hasShareName()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void invalidateMatchesOf(Subscription sub) {
+        if (matchCache != null) {
+            matchCache.invalidate(sub.getTopicFilterInternal());
+        }
+    }
+
+    // visible for testing
+    SubscriptionsMatchCache matchCache() {
+        return matchCache;
+    }
+
     private static List<Subscription> selectSubscriptionsWithHigherQoSForEachSession(List<Subscription> subscriptions) {
         // for each session select the subscription with higher QoS
         Map<String, Subscription> subsGroupedByClient = new HashMap<>();
@@ -106,6 +177,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             throw new IllegalArgumentException("Adding a shared subscription using the non-shared method.");
         }
         boolean notExistingSubscription = ctrie.addToTree(sub);
+        invalidateMatchesOf(sub);
         subscriptionsRepository.addNewSubscription(sub);
         return notExistingSubscription;
     }
@@ -116,6 +188,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             throw new IllegalArgumentException("Adding a non-shared subscription using the shared method.");
         }
         ctrie.addToTree(sub);
+        invalidateMatchesOf(sub);
         subscriptionsRepository.addNewSharedSubscription(sub);
         List<Subscription> sharedSubscriptions = clientSharedSubscriptions.computeIfAbsent(sub.getClientId(), unused -> new ArrayList<>());
         sharedSubscriptions.add(sub);
@@ -133,6 +206,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             throw new IllegalArgumentException("Removing a shared subscription using the non-shared method.");
         }
         ctrie.removeFromTree(sub);
+        invalidateMatchesOf(sub);
         subscriptionsRepository.removeSubscription(sub);
     }
 
@@ -142,6 +216,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             throw new IllegalArgumentException("Removing a non-shared subscription using the shared method.");
         }
         ctrie.removeFromTree(subscription);
+        invalidateMatchesOf(subscription);
 
         subscriptionsRepository.removeSharedSubscription(subscription);
 
@@ -169,6 +244,7 @@ public class CTrieSubscriptionDirectory implements ISubscriptionsDirectory {
             // remove the client from all shared subscriptions
             for (Subscription subscription : sessionSharedSubscriptions) {
                 ctrie.removeFromTree(subscription);
+                invalidateMatchesOf(subscription);
             }
         }
 
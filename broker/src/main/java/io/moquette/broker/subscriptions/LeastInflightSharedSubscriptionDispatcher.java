@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Selects the member with less messages in flight and queued, so that a slow or disconnected member
+ * doesn't accumulate the messages of the group.
+ * <p>
+ * Each selection reads the load of all the members. The scan starts from a different member at each
+ * message, so that the members with the same load are selected in turn.
+ */
+final class LeastInflightSharedSubscriptionDispatcher implements SharedSubscriptionDispatcher {
+
+    private volatile ToIntFunction<String> pendingMessages = clientId -> 0;
+
+    @Override
+    public void init(ToIntFunction<String> pendingMessages) {
+        this.pendingMessages = pendingMessages;
+    }
+
+    @Override
+    public Subscription select(List<Subscription> members, Topic topic, int sequence) {
+        final ToIntFunction<String> load = pendingMessages;
+        final int size = members.size();
+        final int start = Math.floorMod(sequence, size);
+        Subscription selected = members.get(start);
+        int minLoad = load.applyAsInt(selected.getClientId());
+        for (int i = 1; i < size && minLoad > 0; i++) {
+            final Subscription member = members.get((start + i) % size);
+            final int memberLoad = load.applyAsInt(member.getClientId());
+            if (memberLoad < minLoad) {
+                minLoad = memberLoad;
+                selected = member;
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Selects a member at random, with the random generator of the publishing thread, so that the threads
+ * don't contend a shared generator.
+ */
+final class RandomSharedSubscriptionDispatcher implements SharedSubscriptionDispatcher {
+
+    @Override
+    public boolean usesSequence() {
+        return false;
+    }
+
+    @Override
+    public Subscription select(List<Subscription> members, Topic topic, int sequence) {
+        return members.get(ThreadLocalRandom.current().nextInt(members.size()));
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+
+/**
+ * Selects the members in turn, using the sequence of the messages counted by each group, so that the
+ * messages are spread evenly also when the members change.
+ */
+final class RoundRobinSharedSubscriptionDispatcher implements SharedSubscriptionDispatcher {
+
+    @Override
+    public Subscription select(List<Subscription> members, Topic topic, int sequence) {
+        return members.get(Math.floorMod(sequence, members.size()));
+    }
+}
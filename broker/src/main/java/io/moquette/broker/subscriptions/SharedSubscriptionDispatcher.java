@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * Strategy that selects, for each published message matched by a shared subscription, the member of the
+ * share group that receives it.
+ * <p>
+ * The selection is done while matching the subscriptions, concurrently by all the threads that publish,
+ * so it must not block.
+ * <p>
+ * Custom implementations are configured with the class name in the <code>shared_subscription_dispatch</code>
+ * setting and need a public constructor accepting an {@link io.moquette.broker.config.IConfig} or without
+ * arguments.
+ */
+public interface SharedSubscriptionDispatcher {
+
+    /**
+     * Invoked once the sessions are created, before the first message is published.
+     *
+     * @param pendingMessages gives the number of messages in flight and queued for a client id. It's an
+     *                        estimate, because the sessions are updated concurrently by their loops.
+     * */
+    default void init(ToIntFunction<String> pendingMessages) {
+    }
+
+    /**
+     * @return true if {@link #select(List, Topic, int)} uses the sequence, otherwise it's always 0 and the
+     * group doesn't count its messages.
+     * */
+    default boolean usesSequence() {
+        return true;
+    }
+
+    /**
+     * @param members the subscriptions of the share group, never empty, sorted by client id. Must not be
+     *                modified.
+     * @param topic the topic of the published message.
+     * @param sequence the number of messages dispatched to the group before this one, negative once
+     *                 overflowed.
+     * @return the member that receives the message.
+     * */
+    Subscription select(List<Subscription> members, Topic topic, int sequence);
+
+    /**
+     * Selects a member at random, as done by default.
+     * */
+    static SharedSubscriptionDispatcher random() {
+        return new RandomSharedSubscriptionDispatcher();
+    }
+
+    /**
+     * Selects the members in turn.
+     * */
+    static SharedSubscriptionDispatcher roundRobin() {
+        return new RoundRobinSharedSubscriptionDispatcher();
+    }
+
+    /**
+     * Selects the member with less messages in flight and queued.
+     * */
+    static SharedSubscriptionDispatcher leastInflight() {
+        return new LeastInflightSharedSubscriptionDispatcher();
+    }
+
+    /**
+     * Selects always the same member for a topic, while the members of the group don't change.
+     * */
+    static SharedSubscriptionDispatcher stickyTopic() {
+        return new StickyTopicSharedSubscriptionDispatcher();
+    }
+}
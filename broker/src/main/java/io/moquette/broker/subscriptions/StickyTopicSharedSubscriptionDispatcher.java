@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.List;
+
+/**
+ * Selects the member by the hash of the published topic, so that all the messages of a topic go to the
+ * same member, in order, while the members of the group don't change.
+ */
+final class StickyTopicSharedSubscriptionDispatcher implements SharedSubscriptionDispatcher {
+
+    @Override
+    public boolean usesSequence() {
+        return false;
+    }
+
+    @Override
+    public Subscription select(List<Subscription> members, Topic topic, int sequence) {
+        // spread the bits of the String hash, topics often differ only in the last characters
+        final int hash = topic.hashCode() * 0x9E3779B9;
+        return members.get(Math.floorMod(hash ^ (hash >>> 16), members.size()));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.broker.ClockEviction;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the subscriptions resolved for a published topic name.
+ * <p>
+ * Lookups are lock free. The cached topic names are also indexed in a {@link TopicTrie}, so that
+ * when a subscription changes only the entries matched by its topic filter are dropped. The trie
+ * only selects the candidates, which entries are matched is decided by {@link CTrie#matches(Topic, Topic)},
+ * the same rules used to resolve the subscriptions.
+ * <p>
+ * A result is stored only if no subscription changed while it was computed: the caller reads the
+ * {@link #generation()} before walking the tree and passes it to {@link #put(Topic, List, long)}.
+ * When the cache is full an entry is evicted with the {@link ClockEviction} policy.
+ */
+final class SubscriptionsMatchCache {
+
+    private static final class Entry extends ClockEviction.Entry {
+        final List<Subscription> subscriptions;
+
+        Entry(List<Subscription> subscriptions) {
+            this.subscriptions = subscriptions;
+        }
+    }
+
+    private final int maxSize;
+    private final ConcurrentMap<Topic, Entry> entries = new ConcurrentHashMap<>();
+    private final TopicTrie<Topic> cachedTopics = new TopicTrie<>();
+    private final AtomicLong generation = new AtomicLong();
+    private final Object updateLock = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // guarded by updateLock
+    private final ClockEviction<Topic, Entry> eviction = new ClockEviction<>(entries);
+
+    SubscriptionsMatchCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the counter of the subscription changes, to be read before resolving a topic.
+     * */
+    long generation() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cached subscriptions or null if the topic isn't cached.
+     * */
+    List<Subscription> get(Topic topic) {
+        final Entry entry = entries.get(topic);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.markReferenced();
+        hits.increment();
+        return entry.subscriptions;
+    }
+
+    /**
+     * Store the subscriptions resolved for the topic, unless any subscription was changed after
+     * the generation was read.
+     *
+     * @param topic the published topic name.
+     * @param subscriptions the resolved subscriptions, they must not be modified after this call.
+     * @param observedGeneration the value of {@link #generation()} read before resolving the topic.
+     * */
+    void put(Topic topic, List<Subscription> subscriptions, long observedGeneration) {
+        if (topic.getTokens() == null) {
+            // invalid topic, can't be indexed
+            return;
+        }
+        synchronized (updateLock) {
+            if (generation.get() != observedGeneration) {
+                // a concurrent change could have been missed by the result
+                return;
+            }
+            if (!entries.containsKey(topic) && entries.size() >= maxSize) {
+                evictOne();
+            }
+            entries.put(topic, new Entry(Collections.unmodifiableList(subscriptions)));
+            cachedTopics.put(topic, topic);
+        }
+    }
+
+    /**
+     * Drop all the cached topics that match the topic filter of a subscription that has been
+     * added, updated or removed. Has to be invoked after the change has been applied to the tree.
+     * */
+    void invalidate(Topic topicFilter) {
+        generation.incrementAndGet();
+        synchronized (updateLock) {
+            for (Topic topic : cachedTopics.match(topicFilter)) {
+                if (CTrie.matches(topicFilter, topic)) {
+                    remove(topic);
+                }
+            }
+        }
+    }
+
+    void invalidateAll() {
+        generation.incrementAndGet();
+        synchronized (updateLock) {
+            entries.clear();
+            cachedTopics.clear();
+            eviction.reset();
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    private void remove(Topic topic) {
+        entries.remove(topic);
+        cachedTopics.remove(topic);
+    }
+
+    private void evictOne() {
+        final Topic victim = eviction.selectVictim();
+        if (victim != null) {
+            remove(victim);
+        }
+    }
+}
@@ -16,12 +16,18 @@
 
 package io.moquette.broker.subscriptions;
 
+import io.moquette.BrokerConstants;
+
 import java.io.Serializable;
 import java.text.ParseException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -33,6 +39,41 @@ public class Topic implements Serializable, Comparable<Topic> {
 
     private static final long serialVersionUID = 2438799283749822L;
 
+    // max number of topic names kept by interned(String), 0 disables the interning
+    private static volatile int internedTopicsMaxSize = BrokerConstants.DEFAULT_TOPICS_INTERNED_MAX_SIZE;
+    private static final ConcurrentMap<String, Topic> INTERNED_TOPICS = new ConcurrentHashMap<>();
+
+    /**
+     * Immutable view of a tail of the tokens array, shared by the topic and all the topics
+     * obtained from it with {@link #exceptHeadToken()}.
+     * */
+    private static final class TokensView extends AbstractList<Token> implements RandomAccess {
+        private final Token[] tokens;
+        private final int from;
+
+        TokensView(Token[] tokens, int from) {
+            this.tokens = tokens;
+            this.from = from;
+        }
+
+        @Override
+        public Token get(int index) {
+            if (index < 0 || index >= size()) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+            return tokens[from + index];
+        }
+
+        @Override
+        public int size() {
+            return tokens.length - from;
+        }
+
+        TokensView tail() {
+            return new TokensView(tokens, from + 1);
+        }
+    }
+
     private final String topic;
 
     private transient List<Token> tokens;
@@ -51,17 +92,68 @@ public class Topic implements Serializable, Comparable<Topic> {
         return new Topic(s);
     }
 
+    /**
+     * Sets the max number of topic names kept by {@link #interned(String)}, 0 disables the interning.
+     *
+     * @param maxSize the max number of interned topic names.
+     * */
+    public static void setInternedMaxSize(int maxSize) {
+        internedTopicsMaxSize = maxSize;
+        INTERNED_TOPICS.clear();
+    }
+
+    /**
+     * Factory method for the topic names of the published messages, returns an already parsed
+     * instance if the same topic name was seen recently, avoiding to parse it again.
+     * The returned instance is shared, so it must not be used as a lock.
+     *
+     * @param topicName the topic string (es "/a/b").
+     * @return the parsed Topic instance.
+     * */
+    public static Topic interned(String topicName) {
+        if (topicName == null) {
+            // the map doesn't accept null keys, the topic is left to fail its own validation
+            return new Topic(topicName);
+        }
+        final Topic cached = INTERNED_TOPICS.get(topicName);
+        if (cached != null) {
+            return cached;
+        }
+        final Topic topic = new Topic(topicName);
+        // parse before sharing the instance with the other threads, invalid topics aren't shared
+        final int maxSize = internedTopicsMaxSize;
+        if (maxSize <= 0 || topic.getTokens() == null) {
+            return topic;
+        }
+        if (INTERNED_TOPICS.size() >= maxSize) {
+            // cheaper than tracking the usage, the hot topics are interned again on next publish
+            INTERNED_TOPICS.clear();
+        }
+        final Topic previous = INTERNED_TOPICS.putIfAbsent(topicName, topic);
+        return previous != null ? previous : topic;
+    }
+
     public Topic(String topic) {
         this.topic = topic;
     }
 
     Topic(List<Token> tokens) {
-        this.tokens = tokens;
+        this.tokens = new TokensView(tokens.toArray(new Token[0]), 0);
         List<String> strTokens = tokens.stream().map(Token::toString).collect(Collectors.toList());
         this.topic = String.join("/", strTokens);
         this.valid = true;
     }
 
+    private Topic(String topic, TokensView tokens) {
+        this.topic = topic;
+        this.tokens = tokens;
+        this.valid = true;
+        this.hasWildcard = tokens.contains(Token.MULTI) || tokens.contains(Token.SINGLE);
+    }
+
+    /**
+     * @return the immutable list of the tokens, or null if the topic is not valid.
+     * */
     public List<Token> getTokens() {
         if (tokens == null) {
             try {
@@ -125,7 +217,7 @@ public class Topic implements Serializable, Comparable<Topic> {
             }
         }
 
-        return res;
+        return new TokensView(res.toArray(new Token[0]), 0);
     }
 
     public Token headToken() {
@@ -150,9 +242,10 @@ public class Topic implements Serializable, Comparable<Topic> {
         if (tokens.isEmpty()) {
             return new Topic(Collections.emptyList());
         }
-        List<Token> tokensCopy = new ArrayList<>(tokens);
-        tokensCopy.remove(0);
-        return new Topic(tokensCopy);
+        // the tokens are shared, only the string of the remaining levels is created
+        final int separatorIdx = topic.indexOf('/');
+        final String remainingTopic = separatorIdx < 0 ? "" : topic.substring(separatorIdx + 1);
+        return new Topic(remainingTopic, ((TokensView) tokens).tail());
     }
 
     public boolean isValid() {
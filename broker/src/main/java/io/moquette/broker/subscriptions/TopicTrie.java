@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Index of topic names (without wildcards) organized as a tree of tokens. It's the dual of the
+ * {@link CTrie}: this stores topic names and is searched with topic filters, so that a lookup
+ * with a filter like <code>sensors/+/temp</code> visits only the branches that could match.
+ * <p>
+ * Reads are lock free, while updates are serialized to keep the pruning of empty branches safe.
+ *
+ * @param <V> the type of value associated to each topic name.
+ */
+public final class TopicTrie<V> {
+
+    private static final class Node<V> {
+        final ConcurrentMap<Token, Node<V>> children = new ConcurrentHashMap<>();
+        volatile V value;
+
+        boolean isRemovable() {
+            return value == null && children.isEmpty();
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+    private final Object updateLock = new Object();
+
+    /**
+     * Associate the value to the topic name, replacing any previous one.
+     *
+     * @param topic the topic name, must not contain wildcards.
+     * @param value the value to store.
+     * @return the previous value or null if the topic wasn't present.
+     */
+    public V put(Topic topic, V value) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            throw new IllegalArgumentException("Can't index an invalid topic: " + topic);
+        }
+        synchronized (updateLock) {
+            Node<V> node = root;
+            for (Token token : tokens) {
+                node = node.children.computeIfAbsent(token, t -> new Node<>());
+            }
+            final V previous = node.value;
+            node.value = value;
+            return previous;
+        }
+    }
+
+    /**
+     * Remove the topic name, pruning the branches that remain empty.
+     *
+     * @param topic the topic name to remove.
+     * @return the removed value or null if the topic wasn't present.
+     */
+    public V remove(Topic topic) {
+        return removeIf(topic, value -> true);
+    }
+
+    /**
+     * Remove the topic name if the condition, evaluated while holding the update lock, is satisfied by
+     * the stored value. Useful to keep the index in sync with an external storage without races
+     * with concurrent puts.
+     *
+     * @param topic the topic name to remove.
+     * @param condition the predicate the current value has to satisfy to be removed.
+     * @return the removed value or null if nothing was removed.
+     */
+    public V removeIf(Topic topic, Predicate<? super V> condition) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return null;
+        }
+        synchronized (updateLock) {
+            final List<Node<V>> path = new ArrayList<>(tokens.size() + 1);
+            Node<V> node = root;
+            path.add(node);
+            for (Token token : tokens) {
+                node = node.children.get(token);
+                if (node == null) {
+                    return null;
+                }
+                path.add(node);
+            }
+            final V removed = node.value;
+            if (removed == null || !condition.test(removed)) {
+                return null;
+            }
+            node.value = null;
+
+            // walk back to the root dropping the nodes that don't lead anymore to any topic
+            for (int i = tokens.size(); i > 0; i--) {
+                final Node<V> current = path.get(i);
+                if (!current.isRemovable()) {
+                    break;
+                }
+                path.get(i - 1).children.remove(tokens.get(i - 1), current);
+            }
+            return removed;
+        }
+    }
+
+    public V get(Topic topic) {
+        final List<Token> tokens = topic.getTokens();
+        if (tokens == null) {
+            return null;
+        }
+        Node<V> node = root;
+        for (Token token : tokens) {
+            node = node.children.get(token);
+            if (node == null) {
+                return null;
+            }
+        }
+        return node.value;
+    }
+
+    public boolean isEmpty() {
+        return root.children.isEmpty();
+    }
+
+    public void clear() {
+        synchronized (updateLock) {
+            root.children.clear();
+        }
+    }
+
+    /**
+     * Collect all the values of the topic names matched by the topic filter.
+     *
+     * @param topicFilter the filter, could contain single (+) and multi (#) level wildcards.
+     * @return the unordered list of the matched values.
+     */
+    public List<V> match(Topic topicFilter) {
+        final List<V> matched = new ArrayList<>();
+        match(topicFilter, matched::add);
+        return matched;
+    }
+
+    /**
+     * Visit all the values of the topic names matched by the topic filter.
+     *
+     * @param topicFilter the filter, could contain single (+) and multi (#) level wildcards.
+     * @param visitor the callback invoked for each matched value.
+     */
+    public void match(Topic topicFilter, Consumer<? super V> visitor) {
+        final List<Token> filterTokens = topicFilter.getTokens();
+        if (filterTokens == null || filterTokens.isEmpty()) {
+            return;
+        }
+        match(root, filterTokens, 0, visitor);
+    }
+
+    private static <V> void match(Node<V> node, List<Token> filterTokens, int depth, Consumer<? super V> visitor) {
+        if (depth == filterTokens.size()) {
+            visitValue(node, visitor);
+            return;
+        }
+        final Token filterToken = filterTokens.get(depth);
+        if (Token.MULTI.equals(filterToken)) {
+            // multi level wildcard matches also the parent level, as Topic.match does
+            visitSubtree(node, visitor);
+        } else if (Token.SINGLE.equals(filterToken)) {
+            for (Node<V> child : node.children.values()) {
+                match(child, filterTokens, depth + 1, visitor);
+            }
+        } else {
+            final Node<V> child = node.children.get(filterToken);
+            if (child != null) {
+                match(child, filterTokens, depth + 1, visitor);
+            }
+        }
+    }
+
+    private static <V> void visitSubtree(Node<V> node, Consumer<? super V> visitor) {
+        visitValue(node, visitor);
+        for (Node<V> child : node.children.values()) {
+            visitSubtree(child, visitor);
+        }
+    }
+
+    private static <V> void visitValue(Node<V> node, Consumer<? super V> visitor) {
+        final V value = node.value;
+        if (value != null) {
+            visitor.accept(value);
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package io.moquette.broker.unsafequeues;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log of the changes to the queue definitions, to recover them after a crash without
+ * waiting for the checkpoint written on close.
+ * <p>
+ * Each record is made of a header with the length and the CRC32 of the body, followed by the body,
+ * so that the recovery stops at the first record torn by the crash. The changes that modify the
+ * segments of a queue are appended while holding the lock of this journal, in the same order they
+ * are applied.
+ * <p>
+ * The records are buffered in memory and written to the file by {@link #write()}, or by
+ * {@link #force(PagesForce)} that forces them after the pages they refer to. When a snapshot of the
+ * queues is saved as a new checkpoint, the journal {@link #rotate(Runnable) rotates} to a new
+ * generation and the older generations are deleted.
+ * */
+final class CheckpointJournal {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CheckpointJournal.class);
+
+    static final byte SEGMENT_ADDED = 1;
+    static final byte COMMITTED = 2;
+    static final byte SEGMENT_MOVED = 3;
+    static final byte QUEUE_PURGED = 4;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receives the records read back by {@link #replay(Path, long, Visitor)}.
+     * */
+    interface Visitor {
+
+        void segmentAdded(String queueName, QueuePool.SegmentRef segment);
+
+        void committed(String queueName, QueuePool.SegmentRef headSegment, long headOffset,
+                       QueuePool.SegmentRef tailSegment, long tailOffset);
+
+        void segmentMoved(String queueName, QueuePool.SegmentRef from, QueuePool.SegmentRef to);
+
+        void queuePurged(String queueName);
+    }
+
+    private final Path dataPath;
+    private final Object writeLock = new Object();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long generation;
+    // opened at the first write, a generation without records has no file
+    private FileChannel channel;
+    private long writtenBytes;
+
+    CheckpointJournal(Path dataPath, long generation) {
+        this.dataPath = dataPath;
+        this.generation = generation;
+    }
+
+    static Path journalFile(Path dataPath, long generation) {
+        return dataPath.resolve(String.format("checkpoint.%d.journal", generation));
+    }
+
+    private static FileChannel open(Path journalFile) throws QueueException {
+        try {
+            return FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        } catch (IOException ex) {
+            throw new QueueException("Can't open checkpoint journal " + journalFile, ex);
+        }
+    }
+
+    static byte[] encodeName(String queueName) {
+        return queueName.getBytes(StandardCharsets.UTF_8);
+    }
+
+    synchronized void segmentAdded(byte[] queueName, QueuePool.SegmentRef segment) {
+        final int start = beginRecord(SEGMENT_ADDED, queueName, 8);
+        putSegment(segment);
+        endRecord(start);
+    }
+
+    /**
+     * Record the position of a queue at the end of an enqueue or a dequeue, the tail segments before the tail
+     * one have been consumed.
+     *
+     * @param headSegment the head segment, null if the queue has no segments.
+     * @param tailSegment the tail segment, null if the queue has no segments.
+     * */
+    synchronized void committed(byte[] queueName, QueuePool.SegmentRef headSegment, long headOffset,
+                                QueuePool.SegmentRef tailSegment, long tailOffset) {
+        final int start = beginRecord(COMMITTED, queueName, 32);
+        putSegment(headSegment);
+        buffer.putLong(headOffset);
+        putSegment(tailSegment);
+        buffer.putLong(tailOffset);
+        endRecord(start);
+    }
+
+    synchronized void segmentMoved(byte[] queueName, QueuePool.SegmentRef from, QueuePool.SegmentRef to) {
+        final int start = beginRecord(SEGMENT_MOVED, queueName, 16);
+        putSegment(from);
+        putSegment(to);
+        endRecord(start);
+    }
+
+    synchronized void queuePurged(byte[] queueName) {
+        final int start = beginRecord(QUEUE_PURGED, queueName, 0);
+        endRecord(start);
+    }
+
+    private int beginRecord(byte type, byte[] name, int fieldsSize) {
+        ensureCapacity(HEADER_SIZE + 1 + 2 + name.length + fieldsSize);
+        final int start = buffer.position();
+        // length and CRC are filled at the end
+        buffer.position(start + HEADER_SIZE);
+        buffer.put(type);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        return start;
+    }
+
+    private void putSegment(QueuePool.SegmentRef segment) {
+        if (segment == null) {
+            buffer.putInt(-1);
+            buffer.putInt(-1);
+            return;
+        }
+        buffer.putInt(segment.pageId);
+        buffer.putInt(segment.offset);
+    }
+
+    private void endRecord(int start) {
+        final int bodyStart = start + HEADER_SIZE;
+        final int bodyLength = buffer.position() - bodyStart;
+        crc.reset();
+        crc.update(buffer.array(), bodyStart, bodyLength);
+        buffer.putInt(start, bodyLength);
+        buffer.putInt(start + 4, (int) crc.getValue());
+    }
+
+    private void ensureCapacity(int recordSize) {
+        if (buffer.remaining() >= recordSize) {
+            return;
+        }
+        // the records are written only at flush, when the flushes lag the buffer grows
+        final ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + recordSize));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    private synchronized ByteBuffer drain() {
+        final ByteBuffer records = buffer;
+        records.flip();
+        buffer = ByteBuffer.allocate(Math.max(INITIAL_BUFFER_SIZE, Math.min(records.capacity(), 16 * INITIAL_BUFFER_SIZE)));
+        return records;
+    }
+
+    synchronized boolean hasPendingRecords() {
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Force the records appended up to now, after the pages they refer to.
+     *
+     * @param pages forces the pages written before the records.
+     * */
+    void force(PagesForce pages) throws QueueException {
+        synchronized (writeLock) {
+            // the records appended while the pages are forced could refer to data not yet forced
+            final ByteBuffer records = drain();
+            pages.force();
+            writeToChannel(records);
+            if (channel == null) {
+                return;
+            }
+            try {
+                channel.force(false);
+            } catch (IOException ex) {
+                throw new QueueException("Can't force checkpoint journal generation " + generation, ex);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface PagesForce {
+        void force() throws QueueException;
+    }
+
+    /**
+     * Write the buffered records to the file, without forcing them.
+     * */
+    void write() throws QueueException {
+        synchronized (writeLock) {
+            writeToChannel(drain());
+        }
+    }
+
+    private void writeToChannel(ByteBuffer records) throws QueueException {
+        if (!records.hasRemaining()) {
+            return;
+        }
+        if (channel == null) {
+            channel = open(journalFile(dataPath, generation));
+        }
+        try {
+            while (records.hasRemaining()) {
+                writtenBytes += channel.write(records);
+            }
+        } catch (IOException ex) {
+            throw new QueueException("Can't write checkpoint journal generation " + generation, ex);
+        }
+    }
+
+    /**
+     * @return bytes written to the file of the current generation.
+     * */
+    long writtenBytes() {
+        synchronized (writeLock) {
+            return writtenBytes;
+        }
+    }
+
+    /**
+     * Switch to the file of the next generation, the state captured by the snapshot task includes all the
+     * records of the previous generations and none of the next.
+     *
+     * @param snapshot captures the state saved in the checkpoint of the new generation, invoked while
+     *                 holding the lock of this journal.
+     * @return the new generation.
+     * */
+    long rotate(Runnable snapshot) throws QueueException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                snapshot.run();
+                writeToChannel(drain());
+                closeChannel();
+                generation++;
+                writtenBytes = 0;
+                return generation;
+            }
+        }
+    }
+
+    /**
+     * Delete the files of the generations before the given one, to be invoked once the checkpoint of that
+     * generation is safely saved.
+     * */
+    void deleteBefore(long generation) {
+        for (long journalGeneration : generations(dataPath)) {
+            if (journalGeneration >= generation) {
+                continue;
+            }
+            final Path journalFile = journalFile(dataPath, journalGeneration);
+            try {
+                Files.deleteIfExists(journalFile);
+            } catch (IOException ex) {
+                LOG.warn("Can't delete old checkpoint journal {}", journalFile, ex);
+            }
+        }
+    }
+
+    /**
+     * Write the buffered records and close the file.
+     * */
+    void close() throws QueueException {
+        synchronized (writeLock) {
+            writeToChannel(drain());
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() throws QueueException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+            channel = null;
+        } catch (IOException ex) {
+            throw new QueueException("Can't close checkpoint journal generation " + generation, ex);
+        }
+    }
+
+    private static List<Long> generations(Path dataPath) {
+        final List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> journals = Files.newDirectoryStream(dataPath, "checkpoint.*.journal")) {
+            for (Path journal : journals) {
+                final String fileName = journal.getFileName().toString();
+                final String generation = fileName.substring("checkpoint.".length(), fileName.length() - ".journal".length());
+                try {
+                    generations.add(Long.parseLong(generation));
+                } catch (NumberFormatException ex) {
+                    LOG.warn("Skipping unexpected file {}", journal);
+                }
+            }
+        } catch (IOException ex) {
+            LOG.warn("Can't list the checkpoint journals in {}", dataPath, ex);
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    /**
+     * Read the records of the journals from the given generation on, in order, stopping at the first
+     * record that's truncated or doesn't match its CRC.
+     *
+     * @return the number of records replayed.
+     * */
+    static long replay(Path dataPath, long fromGeneration, Visitor visitor) throws QueueException {
+        long records = 0;
+        for (long generation : generations(dataPath)) {
+            if (generation < fromGeneration) {
+                continue;
+            }
+            final Path journalFile = journalFile(dataPath, generation);
+            final ByteBuffer content;
+            try {
+                content = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+            } catch (IOException ex) {
+                throw new QueueException("Can't read checkpoint journal " + journalFile, ex);
+            }
+            final CRC32 crc = new CRC32();
+            while (content.remaining() >= HEADER_SIZE) {
+                final int recordStart = content.position();
+                final int bodyLength = content.getInt();
+                final int expectedCrc = content.getInt();
+                if (bodyLength <= 0 || bodyLength > content.remaining()) {
+                    content.position(recordStart);
+                    break;
+                }
+                crc.reset();
+                crc.update(content.array(), content.position(), bodyLength);
+                if ((int) crc.getValue() != expectedCrc) {
+                    content.position(recordStart);
+                    break;
+                }
+                final ByteBuffer body = content.slice();
+                body.limit(bodyLength);
+                content.position(content.position() + bodyLength);
+                dispatch(body, visitor);
+                records++;
+            }
+            if (content.hasRemaining()) {
+                LOG.warn("Checkpoint journal {} has {} bytes of incomplete or corrupted records after position {}, " +
+                    "ignoring them", journalFile, content.remaining(), content.position());
+                // a later generation could be written only after this one was complete
+                break;
+            }
+        }
+        return records;
+    }
+
+    private static void dispatch(ByteBuffer body, Visitor visitor) throws QueueException {
+        final byte type = body.get();
+        final byte[] name = new byte[body.getShort() & 0xFFFF];
+        body.get(name);
+        final String queueName = new String(name, StandardCharsets.UTF_8);
+        switch (type) {
+            case SEGMENT_ADDED:
+                visitor.segmentAdded(queueName, readSegment(body));
+                break;
+            case COMMITTED:
+                final QueuePool.SegmentRef headSegment = readSegment(body);
+                final long headOffset = body.getLong();
+                final QueuePool.SegmentRef tailSegment = readSegment(body);
+                visitor.committed(queueName, headSegment, headOffset, tailSegment, body.getLong());
+                break;
+            case SEGMENT_MOVED:
+                final QueuePool.SegmentRef from = readSegment(body);
+                visitor.segmentMoved(queueName, from, readSegment(body));
+                break;
+            case QUEUE_PURGED:
+                visitor.queuePurged(queueName);
+                break;
+            default:
+                throw new QueueException("Unknown checkpoint journal record type " + type);
+        }
+    }
+
+    private static QueuePool.SegmentRef readSegment(ByteBuffer body) {
+        final int pageId = body.getInt();
+        final int offset = body.getInt();
+        return pageId < 0 ? null : new QueuePool.SegmentRef(pageId, offset);
+    }
+}
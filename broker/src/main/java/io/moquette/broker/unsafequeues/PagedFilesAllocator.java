@@ -119,6 +119,26 @@ class PagedFilesAllocator implements SegmentAllocator {
         return new Segment(page, begin, end);
     }
 
+    @Override
+    public int currentPageId() {
+        return lastPage;
+    }
+
+    @Override
+    public boolean deletePage(int pageId) {
+        // the mapped buffers of the page already handed out stay valid, the new ones map a new file
+        pageCache.remove(pageId);
+        final Path pageFile = pagesFolder.resolve(String.format("%d.page", pageId));
+        try {
+            Files.deleteIfExists(pageFile);
+            LOG.debug("Deleted page file {}", pageFile);
+            return true;
+        } catch (IOException ex) {
+            LOG.warn("Can't delete page file {}", pageFile, ex);
+            return false;
+        }
+    }
+
     @Override
     public void close() throws QueueException {
         if (currentPageFile != null) {
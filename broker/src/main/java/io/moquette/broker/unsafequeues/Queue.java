@@ -8,6 +8,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 /**
  * Not thread safe disk persisted queue.
@@ -28,6 +29,7 @@ public class Queue {
     private final QueuePool queuePool;
     private final SegmentAllocator allocator;
     private final PagedFilesAllocator.AllocationListener allocationListener;
+    private final QueueFlusher flusher;
 //    private final ReentrantLock lock = new ReentrantLock();
 
     Queue(String name, Segment headSegment, VirtualPointer currentHeadPtr,
@@ -41,6 +43,9 @@ public class Queue {
         this.allocator = allocator;
         this.allocationListener = allocationListener;
         this.queuePool = queuePool;
+        // without a pool, as in tests, the data is never forced
+        this.flusher = queuePool != null ? queuePool.flusher()
+            : new QueueFlusher(QueueDurability.NONE, QueuePool.ForceListener.NONE);
     }
 
     /**
@@ -50,9 +55,14 @@ public class Queue {
         final int messageSize = LENGTH_HEADER_SIZE + payload.remaining();
         if (headSegment.hasSpace(currentHeadPtr, messageSize)) {
             LOG.debug("Head segment has sufficient space for message length {}", LENGTH_HEADER_SIZE + payload.remaining());
-            writeData(headSegment, currentHeadPtr.plus(1), payload);
+            final VirtualPointer start = currentHeadPtr.plus(1);
             // move head segment
             currentHeadPtr = currentHeadPtr.moveForward(messageSize);
+            markEnd();
+            writeData(headSegment, start, payload);
+            flusher.written(headSegment);
+            committed();
+            flusher.enqueued(messageSize);
             return;
         }
 
@@ -76,6 +86,7 @@ public class Queue {
             ByteBuffer slice = rawData.slice();
             slice.limit(copySize);
             writeDataNoHeader(headSegment, currentHeadPtr.plus(1), slice);
+            flusher.written(headSegment);
             currentHeadPtr = currentHeadPtr.moveForward(bytesRemainingInHeaderSegment);
             // No need to move newSegmentPointer the pointer because the last spinningMove has already moved it
 
@@ -99,11 +110,56 @@ public class Queue {
 
             currentHeadPtr = currentHeadPtr.moveForward(copySize);
             writeDataNoHeader(newSegment, newSegment.begin, slice);
+            flusher.written(newSegment);
             headSegment = newSegment;
 
             // shift forward the consumption point
             rawData.position(rawData.position() + copySize);
         }
+        markEnd();
+        committed();
+        flusher.enqueued(messageSize);
+    }
+
+    /**
+     * Zero the header after the head, so that the recovery finds where the written messages end.
+     * */
+    void markEnd() {
+        final int length = (int) Math.min(LENGTH_HEADER_SIZE, headSegment.bytesAfter(currentHeadPtr));
+        if (length > 0) {
+            headSegment.clear(currentHeadPtr.plus(1), length);
+        }
+    }
+
+    /**
+     * Move the head past the messages written in the head segment after the position the queue was loaded
+     * with, that could be older than the last enqueue because the positions are journaled periodically.
+     * Each enqueue writes the header of its message last and {@link #markEnd() marks the end} after it,
+     * the messages that continue in another segment are journaled right away.
+     *
+     * @return the number of messages recovered.
+     * */
+    int recoverHead() {
+        int recovered = 0;
+        while (headSegment.bytesAfter(currentHeadPtr) >= LENGTH_HEADER_SIZE) {
+            final int payloadLength = headSegment.readHeader(currentHeadPtr.plus(1));
+            if (payloadLength <= 0 || !headSegment.hasSpace(currentHeadPtr, LENGTH_HEADER_SIZE + payloadLength)) {
+                break;
+            }
+            currentHeadPtr = currentHeadPtr.moveForward(LENGTH_HEADER_SIZE + payloadLength);
+            recovered++;
+        }
+        return recovered;
+    }
+
+    /**
+     * Notify the pointers at the end of an enqueue or a dequeue, the only points where they are
+     * at the boundary of a message.
+     * */
+    private void committed() {
+        if (queuePool != null) {
+            queuePool.committed(name, currentHeadPtr, currentTailPtr);
+        }
     }
 
     private void writeDataNoHeader(Segment segment, SegmentPointer start, ByteBuffer data) {
@@ -129,8 +185,9 @@ public class Queue {
      * */
     private void writeData(Segment segment, VirtualPointer start, int size, ByteBuffer data) {
         ByteBuffer length = (ByteBuffer) ByteBuffer.allocate(LENGTH_HEADER_SIZE).putInt(size).flip();
-        segment.write(start, length); // write 4 bytes header
         segment.write(start.plus(LENGTH_HEADER_SIZE), data); // write the payload
+        // the header is written last, so the recovery never finds a header without its payload
+        segment.write(start, length); // write 4 bytes header
     }
 
     /**
@@ -169,6 +226,38 @@ public class Queue {
      * Read next message or return null if the queue has no data.
      * */
     public Optional<ByteBuffer> dequeue() throws QueueException {
+        final Optional<ByteBuffer> message = readNextMessage();
+        if (message.isPresent()) {
+            committed();
+        }
+        return message;
+    }
+
+    /**
+     * Read up to <code>max</code> messages, committing the new position once for all of them.
+     *
+     * @return the number of messages passed to the consumer.
+     * */
+    public int dequeue(int max, Consumer<ByteBuffer> consumer) throws QueueException {
+        int count = 0;
+        try {
+            while (count < max && !isEmpty()) {
+                final Optional<ByteBuffer> message = readNextMessage();
+                if (!message.isPresent()) {
+                    break;
+                }
+                count++;
+                consumer.accept(message.get());
+            }
+        } finally {
+            if (count > 0) {
+                committed();
+            }
+        }
+        return count;
+    }
+
+    private Optional<ByteBuffer> readNextMessage() throws QueueException {
         if (!currentHeadPtr.isGreaterThan(currentTailPtr)) {
             if (currentTailPtr.isGreaterThan(currentHeadPtr)) {
                 // sanity check
@@ -0,0 +1,69 @@
+package io.moquette.broker.unsafequeues;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Policy of the background compaction of the page files of a {@link QueuePool}.
+ * <p>
+ * A compaction moves the live segments out of the sparsely used pages, into the free segments of
+ * the lower pages, then deletes the page files left without used segments. The page files are
+ * created again only when the free segments of the remaining ones are exhausted.
+ * */
+public final class QueueCompaction {
+
+    public static final QueueCompaction DISABLED = new QueueCompaction(Duration.ZERO, 0, 0);
+
+    private final Duration interval;
+    private final double maxPageUsage;
+    private final long maxBytesPerSecond;
+
+    private QueueCompaction(Duration interval, double maxPageUsage, long maxBytesPerSecond) {
+        this.interval = interval;
+        this.maxPageUsage = maxPageUsage;
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    /**
+     * @param interval time between two compactions.
+     * @param maxPageUsage fraction of used segments, from 0 to 1, below which the segments of a page
+     *                     are moved to free it.
+     * @param maxBytesPerSecond max bytes copied per second while moving the segments, 0 or negative for
+     *                          no limit.
+     * */
+    public static QueueCompaction every(Duration interval, double maxPageUsage, long maxBytesPerSecond) {
+        Objects.requireNonNull(interval, "interval can't be null");
+        if (interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException("Compaction interval must be positive, was: " + interval);
+        }
+        if (maxPageUsage < 0 || maxPageUsage > 1) {
+            throw new IllegalArgumentException("Max page usage must be between 0 and 1, was: " + maxPageUsage);
+        }
+        return new QueueCompaction(interval, maxPageUsage, maxBytesPerSecond);
+    }
+
+    public boolean isEnabled() {
+        return !interval.isZero();
+    }
+
+    public Duration interval() {
+        return interval;
+    }
+
+    public double maxPageUsage() {
+        return maxPageUsage;
+    }
+
+    public long maxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        if (!isEnabled()) {
+            return "QueueCompaction{disabled}";
+        }
+        return "QueueCompaction{interval=" + interval + ", maxPageUsage=" + maxPageUsage +
+            ", maxBytesPerSecond=" + maxBytesPerSecond + "}";
+    }
+}
@@ -0,0 +1,110 @@
+package io.moquette.broker.unsafequeues;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies the {@link QueueCompaction} of a {@link QueuePool}.
+ * <p>
+ * Visits the sparse pages from the highest, moving each of their used segments into the lowest
+ * free segment, so that the pages at the end of the data folder empty out while the allocation,
+ * which prefers the lowest free segments, fills the ones at the start. Then the pool deletes the
+ * pages left without used segments. The copies are paced to stay under the configured rate.
+ * */
+final class QueueCompactor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueCompactor.class);
+
+    private final QueuePool queuePool;
+    private final QueueCompaction compaction;
+    private final int segmentsPerPage;
+    private final ScheduledExecutorService scheduler;
+
+    QueueCompactor(QueuePool queuePool, QueueCompaction compaction, int segmentsPerPage) {
+        this.queuePool = queuePool;
+        this.compaction = compaction;
+        this.segmentsPerPage = segmentsPerPage;
+        if (compaction.isEnabled()) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("queue-compactor", true));
+            final long intervalMillis = compaction.interval().toMillis();
+            scheduler.scheduleWithFixedDelay(this::backgroundCompact, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    private void backgroundCompact() {
+        try {
+            compact();
+        } catch (QueueException ex) {
+            LOG.error("Can't compact the queue pages, will retry on next compaction", ex);
+        } catch (InterruptedException ex) {
+            // closing
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the number of page files deleted.
+     * */
+    int compact() throws QueueException, InterruptedException {
+        final long start = System.nanoTime();
+        final long maxUsedSegments = (long) (compaction.maxPageUsage() * segmentsPerPage);
+        long movedBytes = 0;
+        int movedSegments = 0;
+        final NavigableMap<Integer, Map<QueuePool.SegmentRef, String>> usedByPage = queuePool.usedSegmentsByPage();
+        for (Map<QueuePool.SegmentRef, String> pageSegments : usedByPage.descendingMap().values()) {
+            if (pageSegments.size() > maxUsedSegments) {
+                continue;
+            }
+            for (Map.Entry<QueuePool.SegmentRef, String> used : pageSegments.entrySet()) {
+                if (queuePool.relocateSegment(used.getValue(), used.getKey())) {
+                    movedSegments++;
+                    movedBytes += queuePool.segmentSize();
+                    throttle(movedBytes, start);
+                }
+            }
+        }
+        final int deletedPages = queuePool.reclaimFreePages();
+        if (movedSegments > 0 || deletedPages > 0) {
+            LOG.info("Compacted queue pages, moved {} segments and deleted {} page files in {} ms", movedSegments,
+                deletedPages, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+        return deletedPages;
+    }
+
+    private void throttle(long movedBytes, long startNanos) throws InterruptedException {
+        if (compaction.maxBytesPerSecond() <= 0) {
+            return;
+        }
+        final long expectedNanos = (long) (movedBytes * 1_000_000_000.0 / compaction.maxBytesPerSecond());
+        final long aheadNanos = expectedNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    /**
+     * Stop the background compactions, interrupting the one in progress.
+     * */
+    void close() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Queue compactor didn't terminate in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.moquette.broker.unsafequeues;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Policy that decides when the pages written by the queues are forced to disk.
+ * */
+public final class QueueDurability {
+
+    public enum Mode {
+        /**
+         * Never force, the pages are written back when the operating system decides to.
+         * */
+        NONE,
+        /**
+         * Force all the dirty pages in background at a fixed interval, or earlier when too many
+         * bytes are waiting, so that a crash loses a bounded amount of messages.
+         * */
+        PERIODIC,
+        /**
+         * Force the dirty pages before returning from each enqueue.
+         * */
+        SYNC
+    }
+
+    public static final QueueDurability NONE = new QueueDurability(Mode.NONE, Duration.ZERO, 0);
+    public static final QueueDurability SYNC = new QueueDurability(Mode.SYNC, Duration.ZERO, 0);
+
+    private final Mode mode;
+    private final Duration interval;
+    private final long maxPendingBytes;
+
+    private QueueDurability(Mode mode, Duration interval, long maxPendingBytes) {
+        this.mode = mode;
+        this.interval = interval;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * @param interval max time between two forces of the written pages.
+     * @param maxPendingBytes bytes enqueued that trigger a force before the interval elapses, 0 or
+     *                        negative to force only at each interval.
+     * */
+    public static QueueDurability periodic(Duration interval, long maxPendingBytes) {
+        Objects.requireNonNull(interval, "interval can't be null");
+        if (interval.isZero() || interval.isNegative()) {
+            throw new IllegalArgumentException("Flush interval must be positive, was: " + interval);
+        }
+        return new QueueDurability(Mode.PERIODIC, interval, maxPendingBytes);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public Duration interval() {
+        return interval;
+    }
+
+    public long maxPendingBytes() {
+        return maxPendingBytes;
+    }
+
+    @Override
+    public String toString() {
+        if (mode != Mode.PERIODIC) {
+            return "QueueDurability{mode=" + mode + "}";
+        }
+        return "QueueDurability{mode=" + mode + ", interval=" + interval + ", maxPendingBytes=" + maxPendingBytes + "}";
+    }
+}
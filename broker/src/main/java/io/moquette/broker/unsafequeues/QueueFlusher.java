@@ -0,0 +1,200 @@
+package io.moquette.broker.unsafequeues;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the {@link QueueDurability} of a {@link QueuePool}.
+ * <p>
+ * The queues mark the pages they write as dirty, then a force writes all the dirty pages of all
+ * the queues in one pass, so that many enqueues share the cost of the same force (group commit).
+ * Forces are serialized: an enqueue in SYNC mode that finds a force in progress waits for it and
+ * then forces only what's still dirty.
+ * <p>
+ * With a {@link CheckpointJournal}, each flush also writes the journal records, forcing them after the
+ * pages they refer to. With {@link QueueDurability.Mode#NONE} the records are written but nothing is forced.
+ * The positions of the queues that didn't change segment are journaled by the flush, not by each enqueue.
+ * */
+final class QueueFlusher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueueFlusher.class);
+
+    private final QueueDurability durability;
+    private final QueuePool.ForceListener listener;
+    // null when the queues are not journaled, as in tests
+    private final CheckpointJournal journal;
+    // page id -> a segment of the page, all the segments of a page share the same mapped buffer
+    private final ConcurrentMap<Integer, Segment> dirtyPages = new ConcurrentHashMap<>();
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final Object forceLock = new Object();
+    private final ScheduledExecutorService scheduler;
+    // appends the records of the dirty queue positions
+    private volatile Runnable beforeJournalWrite = () -> {};
+
+    QueueFlusher(QueueDurability durability, QueuePool.ForceListener listener) {
+        this(durability, listener, null);
+    }
+
+    QueueFlusher(QueueDurability durability, QueuePool.ForceListener listener, CheckpointJournal journal) {
+        this.durability = durability;
+        this.listener = listener;
+        this.journal = journal;
+        if (durability.mode() == QueueDurability.Mode.PERIODIC) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("queue-flusher", true));
+            final long intervalMillis = durability.interval().toMillis();
+            scheduler.scheduleWithFixedDelay(this::backgroundFlush, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+    }
+
+    void beforeJournalWrite(Runnable task) {
+        this.beforeJournalWrite = task;
+    }
+
+    /**
+     * Mark the page of the segment as dirty, to be invoked after the data is written.
+     * */
+    void written(Segment segment) {
+        if (durability.mode() != QueueDurability.Mode.NONE) {
+            dirtyPages.putIfAbsent(segment.begin.pageId(), segment);
+        }
+    }
+
+    /**
+     * Forget the dirty data of a page that's going to be deleted.
+     * */
+    void discard(int pageId) {
+        dirtyPages.remove(pageId);
+    }
+
+    /**
+     * Notify the end of an enqueue, after all its segments are marked as written.
+     *
+     * @throws QueueException if in SYNC mode and the force fails.
+     * */
+    void enqueued(int bytes) throws QueueException {
+        switch (durability.mode()) {
+            case NONE:
+                return;
+            case SYNC:
+                pendingBytes.addAndGet(bytes);
+                flush();
+                return;
+            case PERIODIC:
+                final long pending = pendingBytes.addAndGet(bytes);
+                if (durability.maxPendingBytes() > 0 && pending >= durability.maxPendingBytes()
+                    && flushRequested.compareAndSet(false, true)) {
+                    try {
+                        scheduler.execute(this::backgroundFlush);
+                    } catch (RejectedExecutionException ex) {
+                        // closing, the last flush is done by close
+                        flushRequested.set(false);
+                    }
+                }
+                return;
+            default:
+                throw new IllegalStateException("Unknown durability mode " + durability.mode());
+        }
+    }
+
+    long pendingBytes() {
+        return pendingBytes.get();
+    }
+
+    private void backgroundFlush() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (QueueException ex) {
+            LOG.error("Can't force the queue pages to disk, will retry on next flush", ex);
+        }
+    }
+
+    /**
+     * Force all the dirty pages to disk, then the journal records.
+     * */
+    void flush() throws QueueException {
+        synchronized (forceLock) {
+            if (journal != null) {
+                beforeJournalWrite.run();
+            }
+            if (durability.mode() == QueueDurability.Mode.NONE) {
+                if (journal != null) {
+                    journal.write();
+                }
+                return;
+            }
+            if (journal == null) {
+                forceDirtyPages();
+            } else if (!dirtyPages.isEmpty() || journal.hasPendingRecords()) {
+                journal.force(this::forceDirtyPages);
+            }
+        }
+    }
+
+    /**
+     * Periodic write of the journal records, in the modes that don't have a flush schedule.
+     * */
+    void flushJournal() throws QueueException {
+        if (journal != null && durability.mode() != QueueDurability.Mode.PERIODIC) {
+            flush();
+        }
+    }
+
+    private void forceDirtyPages() throws QueueException {
+        if (dirtyPages.isEmpty()) {
+            return;
+        }
+        // the bytes enqueued up to now are in pages already marked dirty
+        final long bytes = pendingBytes.getAndSet(0);
+        final long start = System.nanoTime();
+        final Iterator<Map.Entry<Integer, Segment>> it = dirtyPages.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<Integer, Segment> dirtyPage = it.next();
+            // removed before forcing, so a write that happens during the force marks it again
+            it.remove();
+            try {
+                dirtyPage.getValue().force();
+            } catch (UncheckedIOException ex) {
+                dirtyPages.putIfAbsent(dirtyPage.getKey(), dirtyPage.getValue());
+                pendingBytes.addAndGet(bytes);
+                throw new QueueException("Problem forcing page " + dirtyPage.getKey() + " to disk", ex);
+            }
+        }
+        final long durationNanos = System.nanoTime() - start;
+        LOG.trace("Forced {} bytes to disk in {} ns", bytes, durationNanos);
+        listener.forced(durationNanos, bytes);
+    }
+
+    /**
+     * Stop the background flushes and force the pages still dirty, with their journal records.
+     * */
+    void close() throws QueueException {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            try {
+                if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                    LOG.warn("Queue flusher didn't terminate in time");
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+}
@@ -1,29 +1,43 @@
 package io.moquette.broker.unsafequeues;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
@@ -33,8 +47,39 @@ public class QueuePool {
 
     static final boolean queueDebug = Boolean.parseBoolean(System.getProperty("moquette.queue.debug", "false"));
 
+    // size of the checkpoint journal that triggers a new snapshot
+    static final long SNAPSHOT_JOURNAL_BYTES = 64 * 1024 * 1024;
+    private static final long CHECKPOINTER_INTERVAL_MILLIS = 1000;
+    // segments reserved at once by a thread that finds the allocation lock contended
+    static final int ARENA_SEGMENTS = 4;
+
     private final SegmentAllocationCallback callback;
 
+    /**
+     * Segments reserved by an enqueuing thread, neither used nor recycled until the thread takes them.
+     * Accessed holding its monitor, because the checkpointer releases the arenas not used by their thread.
+     * */
+    private static final class Arena {
+        final ArrayDeque<Segment> segments = new ArrayDeque<>(ARENA_SEGMENTS);
+        // cleared by the owner on each use, an arena still idle at the next checkpoint is released
+        boolean idle;
+    }
+
+    /**
+     * Notified after each force of the dirty pages to disk.
+     * */
+    @FunctionalInterface
+    public interface ForceListener {
+
+        ForceListener NONE = (durationNanos, bytes) -> {};
+
+        /**
+         * @param durationNanos how long the force took.
+         * @param bytes the bytes enqueued since the previous force and made durable by this one.
+         * */
+        void forced(long durationNanos, long bytes);
+    }
+
     // visible for testing
     static class SegmentRef implements Comparable<SegmentRef> {
         final int pageId;
@@ -64,6 +109,19 @@ public class QueuePool {
             }
             return Integer.compare(offset, o.offset);
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SegmentRef that = (SegmentRef) o;
+            return pageId == that.pageId && offset == that.offset;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pageId, offset);
+        }
     }
 
     private static class QueueName {
@@ -92,19 +150,93 @@ public class QueuePool {
         }
     }
 
+    /**
+     * The segments of a queue, locked while modified or read. The changes that are journaled are made
+     * holding first the lock of the journal, so that the records follow the order of the changes.
+     * */
+    private static final class QueueSegments {
+        final byte[] journalName;
+        // from head to tail
+        final LinkedList<SegmentRef> refs = new LinkedList<>();
+        // tail segments read by the dequeue in progress, recycled when it's committed
+        final List<SegmentRef> consumed = new ArrayList<>(2);
+        // total of the consumed segments, to notice a segment reached by the tail while it's relocated
+        long consumedCount;
+        // position at the end of the last enqueue or dequeue, null segments when the queue had none
+        SegmentRef committedHead;
+        long committedHeadOffset = -1;
+        SegmentRef committedTail;
+        long committedTailOffset = -1;
+        // committed position not yet journaled
+        boolean dirty;
+
+        QueueSegments(String name) {
+            this.journalName = CheckpointJournal.encodeName(name);
+        }
+
+        /**
+         * @return the segments from head to tail, including the ones consumed by the dequeue in progress.
+         * */
+        List<SegmentRef> committedSegments() {
+            final List<SegmentRef> segments = new ArrayList<>(refs.size() + consumed.size());
+            segments.addAll(refs);
+            for (int i = consumed.size() - 1; i >= 0; i--) {
+                segments.add(consumed.get(i));
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * A queue as saved in the checkpoint, updated by the journal records replayed on load.
+     * */
+    private static final class QueueCheckpoint {
+        final LinkedList<SegmentRef> segments;
+        SegmentRef headSegment;
+        long headOffset;
+        SegmentRef tailSegment;
+        long tailOffset;
+
+        QueueCheckpoint(LinkedList<SegmentRef> segments, SegmentRef headSegment, long headOffset,
+                        SegmentRef tailSegment, long tailOffset) {
+            this.segments = segments;
+            this.headSegment = headSegment;
+            this.headOffset = headOffset;
+            this.tailSegment = tailSegment;
+            this.tailOffset = tailOffset;
+        }
+    }
+
     private final SegmentAllocator allocator;
     private final Path dataPath;
     private final int segmentSize;
-    private final ConcurrentMap<QueueName, LinkedList<SegmentRef>> queueSegments = new ConcurrentHashMap<>();
+    private final ConcurrentMap<QueueName, QueueSegments> queueSegments = new ConcurrentHashMap<>();
     private final ConcurrentMap<QueueName, Queue> queues = new ConcurrentHashMap<>();
+    // queues whose position is journaled by the next flush
+    private final ConcurrentLinkedQueue<QueueSegments> dirtyQueues = new ConcurrentLinkedQueue<>();
+    // added without lock by the recycling, polled only holding the segmentsAllocationLock
     private final ConcurrentSkipListSet<SegmentRef> recycledSegments = new ConcurrentSkipListSet<>();
+    // pages whose file has been deleted by the compaction, created again when the recycled segments are exhausted
+    private final TreeSet<Integer> deletedPages = new TreeSet<>();
     private final ReentrantLock segmentsAllocationLock = new ReentrantLock();
-
-    private QueuePool(SegmentAllocator allocator, Path dataPath, int segmentSize) {
+    private final ThreadLocal<Arena> arenas = ThreadLocal.withInitial(Arena::new);
+    // arenas holding reserved segments, tracked so that the ones of dead or idle threads are released
+    private final Set<Arena> reservingArenas = ConcurrentHashMap.newKeySet();
+    private final Object checkpointLock = new Object();
+    private final CheckpointJournal journal;
+    private final QueueFlusher flusher;
+    private QueueCompactor compactor;
+    private ScheduledExecutorService checkpointer;
+
+    private QueuePool(SegmentAllocator allocator, Path dataPath, int segmentSize, CheckpointJournal journal,
+                      QueueFlusher flusher) {
         this.allocator = allocator;
         this.dataPath = dataPath;
         this.segmentSize = segmentSize;
         this.callback = new SegmentAllocationCallback(this);
+        this.journal = journal;
+        this.flusher = flusher;
+        flusher.beforeJournalWrite(this::journalDirtyQueues);
     }
 
     private static class SegmentAllocationCallback implements PagedFilesAllocator.AllocationListener {
@@ -124,33 +256,112 @@ public class QueuePool {
     private void segmentedCreated(String name, Segment segment) {
         LOG.debug("Registering new segment {} for queue {}", segment, name);
         final QueueName queueName = new QueueName(name);
-        List<SegmentRef> segmentRefs = this.queueSegments.computeIfAbsent(queueName, k -> new LinkedList<>());
+        final SegmentRef segmentRef = new SegmentRef(segment);
+        synchronized (journal) {
+            final QueueSegments segments = this.queueSegments.computeIfAbsent(queueName, k -> {
+                final QueueSegments created = new QueueSegments(name);
+                // a new queue starts untouched in its first segment
+                created.committedHead = segmentRef;
+                created.committedTail = segmentRef;
+                return created;
+            });
+            synchronized (segments) {
+                // adds in head
+                segments.refs.addFirst(segmentRef);
+                journal.segmentAdded(segments.journalName, segmentRef);
+
+                LOG.debug("queueSegments for queue {} after insertion {}", queueName, segments.refs);
+            }
+        }
+    }
 
-        // adds in head
-        segmentRefs.add(0, new SegmentRef(segment));
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, QueueDurability.NONE, ForceListener.NONE);
+    }
 
-        LOG.debug("queueSegments for queue {} after insertion {}", queueName, segmentRefs);
+    /**
+     * @param durability when the written pages are forced to disk.
+     * @param forceListener notified of each force, could be invoked by the flusher thread or by the enqueuing one.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, QueueDurability durability,
+                                       ForceListener forceListener) throws QueueException {
+        return loadQueues(dataPath, pageSize, segmentSize, durability, forceListener, QueueCompaction.DISABLED);
     }
 
-    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize) throws QueueException {
+    /**
+     * The queues are restored from the checkpoint saved by the last snapshot, then from the records of
+     * the checkpoint journal written after it, so that a crash loses at most the operations whose records
+     * were not yet written, or forced, according to the durability. The messages enqueued in the head segment
+     * after the last journaled position are found again from the marks at their end.
+     *
+     * @param durability when the written pages are forced to disk.
+     * @param forceListener notified of each force, could be invoked by the flusher thread or by the enqueuing one.
+     * @param compaction when the page files are compacted and deleted.
+     * */
+    public static QueuePool loadQueues(Path dataPath, int pageSize, int segmentSize, QueueDurability durability,
+                                       ForceListener forceListener, QueueCompaction compaction) throws QueueException {
+        final long start = System.nanoTime();
         // read in checkpoint.properties
         final Properties checkpointProps = createOrLoadCheckpointFile(dataPath);
+        final Map<String, QueueCheckpoint> checkpoints = decodeQueues(checkpointProps);
+
+        // apply the changes journaled after the checkpoint
+        final long generation = Long.parseLong(checkpointProps.getProperty("journal.generation", "0"));
+        final JournalReplay replay = new JournalReplay(checkpoints);
+        final long records = CheckpointJournal.replay(dataPath, generation, replay);
+        replay.discardUncommitted();
+        // checkpoints written before the end marks can have stale data after the heads
+        final boolean endMarked = Boolean.parseBoolean(checkpointProps.getProperty("queues.end_marked", "false"));
 
         // load last references to segment and instantiate the allocator
-        final int lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
-        final int lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        int lastPage = Integer.parseInt(checkpointProps.getProperty("segments.last_page", "0"));
+        int lastSegment = Integer.parseInt(checkpointProps.getProperty("segments.last_segment", "0"));
+        final SegmentRef lastAdded = replay.lastAdded;
+        if (lastAdded != null) {
+            // segments allocated after the checkpoint
+            final int allocatedInPage = lastAdded.offset / segmentSize + 1;
+            if (lastAdded.pageId > lastPage || (lastAdded.pageId == lastPage && allocatedInPage > lastSegment)) {
+                lastPage = lastAdded.pageId;
+                lastSegment = allocatedInPage;
+            }
+        }
 
         final PagedFilesAllocator allocator = new PagedFilesAllocator(dataPath, pageSize, segmentSize, lastPage, lastSegment);
 
-        final QueuePool queuePool = new QueuePool(allocator, dataPath, segmentSize);
-        queuePool.loadQueueDefinitions(checkpointProps);
-        LOG.debug("Loaded queues definitions: {}", queuePool.queueSegments);
+        final CheckpointJournal journal = new CheckpointJournal(dataPath, generation);
+        final QueuePool queuePool = new QueuePool(allocator, dataPath, segmentSize, journal,
+            new QueueFlusher(durability, forceListener, journal));
+        queuePool.loadQueueDefinitions(checkpoints, endMarked);
+        LOG.debug("Loaded queues definitions: {}", checkpoints.keySet());
 
-        queuePool.loadRecycledSegments(checkpointProps);
+        queuePool.loadRecycledSegments(checkpoints);
         LOG.debug("Recyclable segments are: {}", queuePool.recycledSegments);
+
+        // the replayed journals are replaced by the new checkpoint
+        queuePool.snapshot();
+        LOG.info("Loaded {} queues, replaying {} checkpoint journal records, in {} ms", checkpoints.size(), records,
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+        queuePool.compactor = new QueueCompactor(queuePool, compaction, pageSize / segmentSize);
+        queuePool.checkpointer = Executors.newSingleThreadScheduledExecutor(
+            new DefaultThreadFactory("queue-checkpointer", true));
+        queuePool.checkpointer.scheduleWithFixedDelay(queuePool::backgroundCheckpoint, CHECKPOINTER_INTERVAL_MILLIS,
+            CHECKPOINTER_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         return queuePool;
     }
 
+    private void backgroundCheckpoint() {
+        releaseIdleArenas();
+        try {
+            flusher.flushJournal();
+            if (journal.writtenBytes() >= SNAPSHOT_JOURNAL_BYTES) {
+                snapshot();
+            }
+        } catch (QueueException ex) {
+            LOG.error("Can't write the queues checkpoint, will retry on next run", ex);
+        }
+    }
+
     public Set<String> queueNames() {
         return queues.keySet().stream().map(qn -> qn.name).collect(Collectors.toSet());
     }
@@ -186,12 +397,15 @@ public class QueuePool {
         return checkpointProps;
     }
 
-    private void loadQueueDefinitions(Properties checkpointProps) throws QueueException {
+    private static Map<String, QueueCheckpoint> decodeQueues(Properties checkpointProps) {
         // structure of queues definitions in properties file:
         // queues.0.name = bla bla
         // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
         // queues.0.head_offset = bytes offset from the start of the page where last data was written
         // queues.0.tail_offset = bytes offset from the start of the page where first data could be read
+        // queues.0.head_segment = (id_page, offset) of the head at the last commit, empty if none
+        // queues.0.tail_segment = (id_page, offset) of the tail at the last commit, empty if none
+        final Map<String, QueueCheckpoint> checkpoints = new LinkedHashMap<>();
         boolean noMoreQueues = false;
         int queueId = 0;
         while (!noMoreQueues) {
@@ -200,20 +414,149 @@ public class QueuePool {
                 noMoreQueues = true;
                 continue;
             }
-            final QueueName queueName = new QueueName(checkpointProps.getProperty(queueKey));
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            final int numSegments = segmentRefs.size();
-            queueSegments.put(queueName, segmentRefs);
-
+            final String name = checkpointProps.getProperty(queueKey);
+            final LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
             final long headOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.head_offset", queueId)));
-            final SegmentRef headSegmentRef = segmentRefs.get(0);
-            final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, headOffset);
+            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
+            // checkpoints written before the journal have no committed segments, they are head and tail
+            final String headSegment = checkpointProps.getProperty(String.format("queues.%d.head_segment", queueId));
+            final String tailSegment = checkpointProps.getProperty(String.format("queues.%d.tail_segment", queueId));
+            checkpoints.put(name, new QueueCheckpoint(segmentRefs,
+                headSegment == null ? segmentRefs.peekFirst() : decodeSegment(headSegment), headOffset,
+                tailSegment == null ? segmentRefs.peekLast() : decodeSegment(tailSegment), tailOffset));
+
+            queueId++;
+        }
+        return checkpoints;
+    }
+
+    /**
+     * Applies the records of the checkpoint journal to the queues loaded from the checkpoint.
+     * */
+    private static final class JournalReplay implements CheckpointJournal.Visitor {
+
+        private final Map<String, QueueCheckpoint> checkpoints;
+        // the highest segment added to a queue, to resume the allocation after it
+        private SegmentRef lastAdded;
+
+        private JournalReplay(Map<String, QueueCheckpoint> checkpoints) {
+            this.checkpoints = checkpoints;
+        }
+
+        @Override
+        public void segmentAdded(String queueName, SegmentRef segment) {
+            QueueCheckpoint queue = checkpoints.get(queueName);
+            if (queue == null) {
+                // a new queue starts untouched in its first segment
+                queue = new QueueCheckpoint(new LinkedList<>(), segment, -1, segment, -1);
+                checkpoints.put(queueName, queue);
+            }
+            queue.segments.addFirst(segment);
+            if (lastAdded == null || segment.compareTo(lastAdded) > 0) {
+                lastAdded = segment;
+            }
+        }
+
+        @Override
+        public void committed(String queueName, SegmentRef headSegment, long headOffset,
+                              SegmentRef tailSegment, long tailOffset) {
+            final QueueCheckpoint queue = checkpoints.get(queueName);
+            if (queue == null) {
+                LOG.warn("Skipping journaled commit of unknown queue {}", queueName);
+                return;
+            }
+            // the segments after the tail have been consumed
+            if (tailSegment == null) {
+                queue.segments.clear();
+            } else if (queue.segments.contains(tailSegment)) {
+                while (!queue.segments.getLast().equals(tailSegment)) {
+                    queue.segments.removeLast();
+                }
+            }
+            queue.headSegment = headSegment;
+            queue.headOffset = headOffset;
+            queue.tailSegment = tailSegment;
+            queue.tailOffset = tailOffset;
+        }
+
+        @Override
+        public void segmentMoved(String queueName, SegmentRef from, SegmentRef to) {
+            final QueueCheckpoint queue = checkpoints.get(queueName);
+            if (queue == null) {
+                return;
+            }
+            final int index = queue.segments.indexOf(from);
+            if (index >= 0) {
+                queue.segments.set(index, to);
+            }
+            if (from.equals(queue.headSegment)) {
+                queue.headSegment = to;
+            }
+            if (from.equals(queue.tailSegment)) {
+                queue.tailSegment = to;
+            }
+        }
+
+        @Override
+        public void queuePurged(String queueName) {
+            checkpoints.remove(queueName);
+        }
+
+        /**
+         * Drop the segments added by the operations in progress at the crash, the pointers journaled
+         * by the last commit of each queue refer to the segments it had at that time.
+         * */
+        void discardUncommitted() {
+            final Iterator<Map.Entry<String, QueueCheckpoint>> it = checkpoints.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<String, QueueCheckpoint> entry = it.next();
+                final QueueCheckpoint queue = entry.getValue();
+                if (queue.headSegment == null) {
+                    // drained, or only written by an enqueue never committed
+                    it.remove();
+                    continue;
+                }
+                if (!queue.segments.contains(queue.headSegment) || !queue.segments.contains(queue.tailSegment)) {
+                    LOG.error("Queue {} has head {} and tail {} out of its segments {}, dropping it", entry.getKey(),
+                        queue.headSegment, queue.tailSegment, queue.segments);
+                    it.remove();
+                    continue;
+                }
+                while (!queue.segments.getFirst().equals(queue.headSegment)) {
+                    queue.segments.removeFirst();
+                }
+                while (!queue.segments.getLast().equals(queue.tailSegment)) {
+                    queue.segments.removeLast();
+                }
+            }
+        }
+    }
+
+    /**
+     * @param recoverHeads true to move the heads past the messages written after their journaled position.
+     * */
+    private void loadQueueDefinitions(Map<String, QueueCheckpoint> checkpoints, boolean recoverHeads)
+        throws QueueException {
+        for (Map.Entry<String, QueueCheckpoint> entry : checkpoints.entrySet()) {
+            final QueueName queueName = new QueueName(entry.getKey());
+            final QueueCheckpoint checkpoint = entry.getValue();
+            final LinkedList<SegmentRef> segmentRefs = checkpoint.segments;
+            final int numSegments = segmentRefs.size();
+            final QueueSegments segments = new QueueSegments(queueName.name);
+            segments.refs.addAll(segmentRefs);
+            segments.committedHead = checkpoint.headSegment;
+            segments.committedHeadOffset = checkpoint.headOffset;
+            segments.committedTail = checkpoint.tailSegment;
+            segments.committedTailOffset = checkpoint.tailOffset;
+            queueSegments.put(queueName, segments);
+
+            final SegmentRef headSegmentRef = segmentRefs.getFirst();
+            final SegmentPointer currentHead = new SegmentPointer(headSegmentRef.pageId, checkpoint.headOffset);
             // TODO this reopen could be done in lazy way during getOrCreate method.
             Segment headSegment = allocator.reopenSegment(headSegmentRef.pageId, headSegmentRef.offset);
 
-            final long tailOffset = Long.parseLong(checkpointProps.getProperty(String.format("queues.%d.tail_offset", queueId)));
             final SegmentRef tailSegmentRef = segmentRefs.getLast();
-            final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, tailOffset);
+            final SegmentPointer currentTail = new SegmentPointer(tailSegmentRef.pageId, checkpoint.tailOffset);
             Segment tailSegment = allocator.reopenSegment(tailSegmentRef.pageId, tailSegmentRef.offset);
 
             // Create relative positioned head and tail pointers
@@ -223,30 +566,22 @@ public class QueuePool {
             final VirtualPointer logicalHead = new VirtualPointer((long) (numSegments - 1) * segmentSize + currentHead.offset());
             final Queue queue = new Queue(queueName.name, headSegment, logicalHead, tailSegment, logicalTail,
                 allocator, callback, this);
+            if (recoverHeads) {
+                final int recovered = queue.recoverHead();
+                if (recovered > 0) {
+                    LOG.debug("Recovered {} messages after the journaled head of queue {}", recovered, queueName);
+                    segments.committedHeadOffset = queue.currentHead().segmentOffset(segmentSize);
+                }
+            }
+            queue.markEnd();
             queues.put(queueName, queue);
-
-            queueId++;
         }
     }
 
-    private void loadRecycledSegments(Properties checkpointProps) throws QueueException {
+    private void loadRecycledSegments(Map<String, QueueCheckpoint> checkpoints) throws QueueException {
         TreeSet<SegmentRef> usedSegments = new TreeSet<>();
-
-        boolean noMoreQueues = false;
-        int queueId = 0;
-
-        // load all queues definitions from checkpoint file
-        // TODO second use of this, extract as an iterator
-        while (!noMoreQueues) {
-            final String queueKey = String.format("queues.%d.name", queueId);
-            if (!checkpointProps.containsKey(queueKey)) {
-                noMoreQueues = true;
-                continue;
-            }
-            LinkedList<SegmentRef> segmentRefs = decodeSegments(checkpointProps.getProperty(String.format("queues.%d.segments", queueId)));
-            usedSegments.addAll(segmentRefs);
-
-            queueId++;
+        for (QueueCheckpoint checkpoint : checkpoints.values()) {
+            usedSegments.addAll(checkpoint.segments);
         }
 
         if (usedSegments.isEmpty()) {
@@ -258,12 +593,23 @@ public class QueuePool {
 
         segmentsAllocationLock.lock();
         try {
-            recycledSegments.addAll(recreatedSegments);
+            for (SegmentRef segment : recreatedSegments) {
+                if (Files.exists(pageFile(segment.pageId))) {
+                    recycledSegments.add(segment);
+                } else {
+                    // deleted by a compaction
+                    deletedPages.add(segment.pageId);
+                }
+            }
         } finally {
             segmentsAllocationLock.unlock();
         }
     }
 
+    private Path pageFile(int pageId) {
+        return dataPath.resolve(String.format("%d.page", pageId));
+    }
+
     /**
      * @param usedSegments sorted set of used segments
      * */
@@ -296,6 +642,7 @@ public class QueuePool {
                 // recreate recycled segments between 2 used segments
                 recreatedSegments.addAll(recreateRecycledSegmentsBetween(prev, current));
             }
+            prev = current;
         }
         return recreatedSegments;
     }
@@ -349,7 +696,10 @@ public class QueuePool {
         return recreatedSegments;
     }
 
-    private LinkedList<SegmentRef> decodeSegments(String s) {
+    private static LinkedList<SegmentRef> decodeSegments(String s) {
+        if (s.isEmpty()) {
+            return new LinkedList<>();
+        }
         final String[] segments = s.substring(s.indexOf("(") + 1, s.lastIndexOf(")"))
                 .split("\\), \\(");
 
@@ -364,6 +714,11 @@ public class QueuePool {
         return acc;
     }
 
+    private static SegmentRef decodeSegment(String s) {
+        final LinkedList<SegmentRef> segments = decodeSegments(s);
+        return segments.peekFirst();
+    }
+
     public Queue getOrCreate(String queueName) throws QueueException {
         final QueueName queueN = new QueueName(queueName);
         if (queues.containsKey(queueN)) {
@@ -379,6 +734,8 @@ public class QueuePool {
             // of a new page, -1
             final Queue queue = new Queue(queueName, segment, VirtualPointer.buildUntouched(), segment, VirtualPointer.buildUntouched(),
                 this.allocator, callback, this);
+            // a recycled segment contains the data of its previous use
+            queue.markEnd();
             queues.put(queueN, queue);
             return queue;
         }
@@ -386,76 +743,366 @@ public class QueuePool {
 
     void purgeQueue(String name) {
         final QueueName queueName = new QueueName(name);
-        final LinkedList<SegmentRef> segmentRefs = queueSegments.remove(queueName);
-        SegmentRef segmentRef = segmentRefs.pollLast();
+        synchronized (journal) {
+            final QueueSegments segments = queueSegments.remove(queueName);
+            synchronized (segments) {
+                journal.queuePurged(segments.journalName);
+                segments.dirty = false;
+                segments.refs.addAll(segments.consumed);
+                segments.consumed.clear();
+                SegmentRef segmentRef = segments.refs.pollLast();
+                LOG.debug("Purging segments for queue {}", queueName);
+                while (segmentRef != null) {
+                    LOG.debug("Purging segment {} from queue {}", segmentRef, queueName);
+                    recycledSegments.add(segmentRef);
+                    segmentRef = segments.refs.pollLast();
+                }
+            }
+        }
+        queues.remove(queueName);
+    }
+
+    /**
+     * Update the position of a queue at the end of an enqueue or dequeue. Within the same segments the queue
+     * is only marked dirty, and its position is journaled by the next flush, the recovery finds the messages
+     * enqueued after it. When the head or the tail moved to another segment the position is journaled now,
+     * then the tail segments it consumed are recycled, only now that the record that drops them precedes the
+     * records of their next use.
+     * */
+    void committed(String name, VirtualPointer head, VirtualPointer tail) {
+        final QueueSegments segments = queueSegments.get(new QueueName(name));
+        if (segments == null) {
+            // purged
+            return;
+        }
+        synchronized (segments) {
+            if (segments.consumed.isEmpty() && Objects.equals(segments.refs.peekFirst(), segments.committedHead)) {
+                segments.committedHeadOffset = head.segmentOffset(segmentSize);
+                segments.committedTailOffset = tail.segmentOffset(segmentSize);
+                if (!segments.dirty) {
+                    segments.dirty = true;
+                    dirtyQueues.add(segments);
+                }
+                return;
+            }
+        }
+        synchronized (journal) {
+            synchronized (segments) {
+                segments.committedHead = segments.refs.peekFirst();
+                segments.committedHeadOffset = head.segmentOffset(segmentSize);
+                segments.committedTail = segments.refs.peekLast();
+                segments.committedTailOffset = tail.segmentOffset(segmentSize);
+                journal.committed(segments.journalName, segments.committedHead, segments.committedHeadOffset,
+                    segments.committedTail, segments.committedTailOffset);
+                segments.dirty = false;
+                if (!segments.consumed.isEmpty()) {
+                    recycledSegments.addAll(segments.consumed);
+                    segments.consumed.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Journal the position of the queues marked dirty, invoked by the flusher before writing the records.
+     * */
+    private void journalDirtyQueues() {
+        QueueSegments segments = dirtyQueues.poll();
+        if (segments == null) {
+            return;
+        }
+        synchronized (journal) {
+            while (segments != null) {
+                synchronized (segments) {
+                    if (segments.dirty) {
+                        journal.committed(segments.journalName, segments.committedHead, segments.committedHeadOffset,
+                            segments.committedTail, segments.committedTailOffset);
+                        segments.dirty = false;
+                    }
+                }
+                segments = dirtyQueues.poll();
+            }
+        }
+    }
+
+    int segmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Snapshot of the segments used by the queues, grouped by page, excluding the page the allocator
+     * is filling.
+     *
+     * @return page id -> segment -> name of the queue that uses it.
+     * */
+    NavigableMap<Integer, Map<SegmentRef, String>> usedSegmentsByPage() {
+        final int currentPage = allocator.currentPageId();
+        final NavigableMap<Integer, Map<SegmentRef, String>> usedByPage = new TreeMap<>();
+        for (Map.Entry<QueueName, QueueSegments> entry : queueSegments.entrySet()) {
+            final QueueSegments segments = entry.getValue();
+            synchronized (segments) {
+                for (SegmentRef segmentRef : segments.refs) {
+                    if (segmentRef.pageId != currentPage) {
+                        usedByPage.computeIfAbsent(segmentRef.pageId, k -> new HashMap<>())
+                            .put(segmentRef, entry.getKey().name);
+                    }
+                }
+            }
+        }
+        return usedByPage;
+    }
+
+    /**
+     * Copy the content of a segment of the queue into the lowest free segment, if it's in a lower page.
+     * Only the segments between the head and the tail are moved, because the queue keeps a reference
+     * to those two.
+     *
+     * @return true if the segment has been moved and recycled.
+     * */
+    boolean relocateSegment(String name, SegmentRef segmentRef) throws QueueException {
+        final QueueSegments segments = queueSegments.get(new QueueName(name));
+        if (segments == null) {
+            // purged in the meantime
+            return false;
+        }
+        final SegmentRef target;
+        final Segment destination;
+        final long consumedCount;
+        final int distanceFromTail;
+        synchronized (segments) {
+            final int index = segments.refs.indexOf(segmentRef);
+            if (index <= 0 || index >= segments.refs.size() - 1) {
+                // head or tail, or no more in the queue
+                return false;
+            }
+            final Segment source;
+            segmentsAllocationLock.lock();
+            try {
+                target = recycledSegments.isEmpty() ? null : recycledSegments.first();
+                if (target == null || target.pageId >= segmentRef.pageId) {
+                    return false;
+                }
+                recycledSegments.remove(target);
+                source = allocator.reopenSegment(segmentRef.pageId, segmentRef.offset);
+                destination = allocator.reopenSegment(target.pageId, target.offset);
+            } finally {
+                segmentsAllocationLock.unlock();
+            }
+            LOG.debug("Moving segment {} of queue {} to {}", segmentRef, name, target);
+            source.copyTo(destination);
+            consumedCount = segments.consumedCount;
+            distanceFromTail = segments.refs.size() - 1 - index;
+        }
+        // durable before the source is recycled, so the data is never only in memory
+        destination.force();
+
+        synchronized (journal) {
+            synchronized (segments) {
+                final int index = segments.refs.indexOf(segmentRef);
+                // once reached by the tail it could be recycled and reused, even by this queue
+                final boolean reachedByTail = segments.consumedCount - consumedCount >= distanceFromTail;
+                final boolean moved = index > 0 && index < segments.refs.size() - 1 && !reachedByTail;
+                if (moved) {
+                    segments.refs.set(index, target);
+                    if (segmentRef.equals(segments.committedHead)) {
+                        segments.committedHead = target;
+                    }
+                    journal.segmentMoved(segments.journalName, segmentRef, target);
+                }
+                recycledSegments.add(moved ? segmentRef : target);
+                return moved;
+            }
+        }
+    }
+
+    /**
+     * Delete the files of the pages whose segments are all free, after writing a checkpoint that
+     * doesn't reference them anymore.
+     *
+     * @return the number of deleted page files.
+     * */
+    int reclaimFreePages() throws QueueException {
+        final int segmentsPerPage = allocator.getPageSize() / segmentSize;
+        final List<Integer> freePages = new ArrayList<>();
         segmentsAllocationLock.lock();
-        LOG.debug("Purging segments for queue {}", queueName);
         try {
-            while (segmentRef != null) {
-                LOG.debug("Purging segment {} from queue {}", segmentRef, queueName);
-                recycledSegments.add(segmentRef);
-                segmentRef = segmentRefs.pollLast();
+            final Map<Integer, Integer> freeSegmentsByPage = new HashMap<>();
+            for (SegmentRef recycled : recycledSegments) {
+                freeSegmentsByPage.merge(recycled.pageId, 1, Integer::sum);
+            }
+            final int currentPage = allocator.currentPageId();
+            for (Map.Entry<Integer, Integer> entry : freeSegmentsByPage.entrySet()) {
+                final int pageId = entry.getKey();
+                if (entry.getValue() == segmentsPerPage && pageId != currentPage) {
+                    recycledSegments.removeIf(segmentRef -> segmentRef.pageId == pageId);
+                    deletedPages.add(pageId);
+                    freePages.add(pageId);
+                }
             }
         } finally {
             segmentsAllocationLock.unlock();
         }
-        queues.remove(queueName);
+        if (freePages.isEmpty()) {
+            return 0;
+        }
+
+        snapshot();
+
+        int deleted = 0;
+        segmentsAllocationLock.lock();
+        try {
+            for (int pageId : freePages) {
+                if (!deletedPages.contains(pageId)) {
+                    // reused after the checkpoint
+                    continue;
+                }
+                flusher.discard(pageId);
+                if (allocator.deletePage(pageId)) {
+                    deleted++;
+                }
+            }
+        } finally {
+            segmentsAllocationLock.unlock();
+        }
+        LOG.debug("Deleted free pages {}", freePages);
+        return deleted;
+    }
+
+    /**
+     * Run a compaction now, used in tests.
+     *
+     * @return the number of deleted page files.
+     * */
+    int compact() throws QueueException, InterruptedException {
+        return compactor.compact();
+    }
+
+    /**
+     * Bytes enqueued and not yet forced to disk, always 0 with {@link QueueDurability#NONE}.
+     * */
+    public long pendingBytes() {
+        return flusher.pendingBytes();
+    }
+
+    QueueFlusher flusher() {
+        return flusher;
     }
 
     /**
      * Free mapped files
      * */
     public void close() throws QueueException {
+        checkpointer.shutdown();
+        try {
+            if (!checkpointer.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Queue checkpointer didn't terminate in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        compactor.close();
+        flusher.close();
+        for (Arena arena : reservingArenas) {
+            releaseArena(arena);
+        }
+
+        snapshot();
+        journal.close();
         allocator.close();
+    }
 
-        //save all into the checkpoint file
-        Properties checkpoint = new Properties();
-        allocator.dumpState(checkpoint);
+    /**
+     * Save the state of the queues into the checkpoint file, replacing it atomically so that a crash
+     * leaves the previous or the new one, then delete the journals it replaces.
+     * */
+    private void snapshot() throws QueueException {
+        synchronized (checkpointLock) {
+            final Properties checkpoint = new Properties();
+            final long generation = journal.rotate(() -> captureState(checkpoint));
+            checkpoint.setProperty("journal.generation", String.valueOf(generation));
+            // the captured pointers refer to data that must be on disk before the checkpoint
+            flusher.flush();
+
+            final Path propertiesFile = dataPath.resolve("checkpoint.properties");
+            final Path tmpFile = dataPath.resolve("checkpoint.properties.tmp");
+            try (FileOutputStream out = new FileOutputStream(tmpFile.toFile());
+                 Writer writer = new OutputStreamWriter(out)) {
+                checkpoint.store(writer, "DON'T EDIT, AUTOGENERATED");
+                writer.flush();
+                out.getFD().sync();
+            } catch (IOException ex) {
+                throw new QueueException("Problem writing checkpoint.properties file", ex);
+            }
+            try {
+                Files.move(tmpFile, propertiesFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                throw new QueueException("Problem replacing checkpoint.properties file", ex);
+            }
+            journal.deleteBefore(generation);
+        }
+    }
 
-        int queueCounter = 0;
-        for (Map.Entry<QueueName, LinkedList<SegmentRef>> entry : queueSegments.entrySet()) {
-            // queues.0.name = bla bla
-            final QueueName queueName = entry.getKey();
-            checkpoint.setProperty("queues." + queueCounter + ".name", queueName.name);
-
-            // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
-            final LinkedList<SegmentRef> segmentRefs = entry.getValue();
-            final String segmentsDef = segmentRefs.stream()
-                .map(SegmentRef::toString)
-                .collect(Collectors.joining(", "));
-            checkpoint.setProperty("queues." + queueCounter + ".segments", segmentsDef);
-
-            // queues.0.head_offset = bytes offset from the start of the page where last data was written
-            final Queue queue = queues.get(queueName);
-            checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(queue.currentHead().segmentOffset(segmentSize)));
-            checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(queue.currentTail().segmentOffset(segmentSize)));
-        }
-
-        final File propertiesFile = dataPath.resolve("checkpoint.properties").toFile();
-        final FileWriter fileWriter;
+    /**
+     * Invoked holding the lock of the journal, so that no change happens between the captured state and
+     * the journal of the new generation.
+     * */
+    private void captureState(Properties checkpoint) {
+        segmentsAllocationLock.lock();
         try {
-            fileWriter = new FileWriter(propertiesFile);
-        } catch (IOException ex) {
-            throw new QueueException("Problem opening checkpoint.properties file", ex);
+            allocator.dumpState(checkpoint);
+        } finally {
+            segmentsAllocationLock.unlock();
         }
-        try {
-            checkpoint.store(fileWriter, "DON'T EDIT, AUTOGENERATED");
-        } catch (IOException ex) {
-            throw new QueueException("Problem writing checkpoint.properties file", ex);
+
+        checkpoint.setProperty("queues.end_marked", "true");
+        int queueCounter = 0;
+        for (Map.Entry<QueueName, QueueSegments> entry : queueSegments.entrySet()) {
+            final QueueSegments segments = entry.getValue();
+            synchronized (segments) {
+                // the checkpoint has the last position
+                segments.dirty = false;
+                final List<SegmentRef> segmentRefs = segments.committedSegments();
+                if (segmentRefs.isEmpty()) {
+                    // drained, the next segment added creates it again
+                    continue;
+                }
+                // queues.0.name = bla bla
+                checkpoint.setProperty("queues." + queueCounter + ".name", entry.getKey().name);
+
+                // queues.0.segments = head (id_page, offset), (id_page, offset), ... tail
+                final String segmentsDef = segmentRefs.stream()
+                    .map(SegmentRef::toString)
+                    .collect(Collectors.joining(", "));
+                checkpoint.setProperty("queues." + queueCounter + ".segments", segmentsDef);
+
+                // queues.0.head_offset = bytes offset from the start of the page where last data was written
+                checkpoint.setProperty("queues." + queueCounter + ".head_offset", String.valueOf(segments.committedHeadOffset));
+                checkpoint.setProperty("queues." + queueCounter + ".tail_offset", String.valueOf(segments.committedTailOffset));
+                checkpoint.setProperty("queues." + queueCounter + ".head_segment", encodeSegment(segments.committedHead));
+                checkpoint.setProperty("queues." + queueCounter + ".tail_segment", encodeSegment(segments.committedTail));
+            }
+            queueCounter++;
         }
     }
 
+    private static String encodeSegment(SegmentRef segmentRef) {
+        return segmentRef == null ? "" : segmentRef.toString();
+    }
+
     Optional<Segment> openNextTailSegment(String name) throws QueueException {
         // definition from QueuePool.queueSegments
         final QueueName queueName = new QueueName(name);
-        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
+        final QueueSegments segments = queueSegments.get(queueName);
 
-        final SegmentRef pollSegment = segmentRefs.peekLast();
+        final SegmentRef pollSegment;
+        synchronized (segments) {
+            pollSegment = segments.refs.peekLast();
+        }
         if (pollSegment == null) {
             return Optional.empty();
         }
 
-        final Path pageFile = dataPath.resolve(String.format("%d.page", pollSegment.pageId));
+        final Path pageFile = pageFile(pollSegment.pageId);
         if (!Files.exists(pageFile)) {
             throw new QueueException("Can't find file for page file" + pageFile);
         }
@@ -473,36 +1120,136 @@ public class QueuePool {
     }
 
     /**
-     * Notify the actual tail segment was completely read
+     * Notify the actual tail segment was completely read, it's recycled when the dequeue is committed.
      * */
     void consumedTailSegment(String name) {
         final QueueName queueName = new QueueName(name);
-        final LinkedList<SegmentRef> segmentRefs = queueSegments.get(queueName);
-        final SegmentRef segmentRef = segmentRefs.pollLast();
+        final QueueSegments segments = queueSegments.get(queueName);
+        final SegmentRef segmentRef;
+        synchronized (segments) {
+            segmentRef = segments.refs.pollLast();
+            segments.consumed.add(segmentRef);
+            segments.consumedCount++;
+        }
         LOG.debug("Consumed tail segment {} from queue {}", segmentRef, queueName);
+    }
+
+    /**
+     * Uncontended, it returns the lowest free segment, as a single writer always did. When another thread
+     * is allocating, it takes a segment reserved by the current thread instead of waiting, or waits once
+     * to reserve {@link #ARENA_SEGMENTS} of them, so that concurrent writers rolling their segments don't
+     * serialize on every roll.
+     * */
+    Segment nextFreeSegment() throws QueueException {
+        final SegmentAllocationEvent event = new SegmentAllocationEvent();
+        event.begin();
+        final Segment segment = reserveFreeSegment(event);
+        event.end();
+        if (event.shouldCommit()) {
+            event.pageId = segment.begin.pageId();
+            event.offset = segment.begin.offset();
+            event.commit();
+        }
+        return segment;
+    }
+
+    private Segment reserveFreeSegment(SegmentAllocationEvent event) throws QueueException {
+        final Arena arena = arenas.get();
+        if (segmentsAllocationLock.tryLock()) {
+            try {
+                // back to the lowest free segment, the contention is over
+                releaseArena(arena);
+                return allocateSegment();
+            } finally {
+                segmentsAllocationLock.unlock();
+            }
+        }
+        synchronized (arena) {
+            arena.idle = false;
+            final Segment reserved = arena.segments.pollFirst();
+            if (reserved != null) {
+                event.fromArena = true;
+                return reserved;
+            }
+        }
         segmentsAllocationLock.lock();
         try {
-            recycledSegments.add(segmentRef);
+            final Segment segment = allocateSegment();
+            synchronized (arena) {
+                for (int i = 1; i < ARENA_SEGMENTS; i++) {
+                    arena.segments.addLast(allocateSegment());
+                }
+                reservingArenas.add(arena);
+                LOG.debug("Reserved segments {} for thread {}", arena.segments, Thread.currentThread().getName());
+            }
+            return segment;
         } finally {
             segmentsAllocationLock.unlock();
         }
     }
 
-    Segment nextFreeSegment() throws QueueException {
-        segmentsAllocationLock.lock();
-        try {
-            if (recycledSegments.isEmpty()) {
-                LOG.debug("no recycled segments available, request the creation of new one");
-                return allocator.nextFreeSegment();
+    /**
+     * Release the arenas not used since the previous run, so that the segments reserved by a thread
+     * that terminated or stopped enqueuing are recycled.
+     * */
+    private void releaseIdleArenas() {
+        for (Arena arena : reservingArenas) {
+            synchronized (arena) {
+                if (arena.idle) {
+                    releaseArena(arena);
+                } else {
+                    arena.idle = true;
+                }
             }
-            final SegmentRef recycledSegment = recycledSegments.pollFirst();
-            if (recycledSegment == null) {
-                throw new QueueException("Invalid state, expected available recycled segment");
+        }
+    }
+
+    private void releaseArena(Arena arena) {
+        synchronized (arena) {
+            Segment segment = arena.segments.pollFirst();
+            while (segment != null) {
+                recycledSegments.add(new SegmentRef(segment));
+                segment = arena.segments.pollFirst();
             }
-            LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId, recycledSegment.offset);
-            return allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset);
-        } finally {
-            segmentsAllocationLock.unlock();
+            reservingArenas.remove(arena);
+        }
+    }
+
+    // visible for testing
+    ReentrantLock segmentsAllocationLock() {
+        return segmentsAllocationLock;
+    }
+
+    // visible for testing
+    int reservedSegments() {
+        int reserved = 0;
+        for (Arena arena : reservingArenas) {
+            synchronized (arena) {
+                reserved += arena.segments.size();
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Invoked holding the segmentsAllocationLock.
+     * */
+    private Segment allocateSegment() throws QueueException {
+        if (recycledSegments.isEmpty() && !deletedPages.isEmpty()) {
+            // recreate a page deleted by the compaction before growing the pages
+            final int pageId = deletedPages.pollFirst();
+            LOG.debug("no recycled segments available, recreating deleted page {}", pageId);
+            recycledSegments.addAll(recreateRecycledSegments(0, allocator.getPageSize(), pageId));
+        }
+        if (recycledSegments.isEmpty()) {
+            LOG.debug("no recycled segments available, request the creation of new one");
+            return allocator.nextFreeSegment();
+        }
+        final SegmentRef recycledSegment = recycledSegments.pollFirst();
+        if (recycledSegment == null) {
+            throw new QueueException("Invalid state, expected available recycled segment");
         }
+        LOG.debug("Reusing recycled segment from page: {} at page offset: {}", recycledSegment.pageId, recycledSegment.offset);
+        return allocator.reopenSegment(recycledSegment.pageId, recycledSegment.offset);
     }
 }
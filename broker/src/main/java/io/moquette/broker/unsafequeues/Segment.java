@@ -52,6 +52,17 @@ final class Segment {
         }
     }
 
+    /**
+     * Copy all the bytes of this segment into the target one, of the same size.
+     * */
+    void copyTo(Segment target) {
+        final ByteBuffer source = mappedBuffer.duplicate();
+        source.position(begin.offset()).limit(begin.offset() + segmentSize);
+        final ByteBuffer destination = target.mappedBuffer.duplicate();
+        destination.position(target.begin.offset());
+        destination.put(source);
+    }
+
     // fill the segment with value bytes
     void fillWith(byte value) {
         LOG.debug("Wipe segment {}", this);
@@ -61,6 +72,16 @@ final class Segment {
         }
     }
 
+    /**
+     * Zero the bytes starting from the pointer.
+     * */
+    void clear(VirtualPointer start, int length) {
+        final int startPos = rebasedOffset(start);
+        for (int i = startPos; i < startPos + length; i++) {
+            mappedBuffer.put(i, (byte) 0);
+        }
+    }
+
     // debug method
     private void checkContentStartWith(ByteBuffer content) {
         if (content.get(0) == 0 && content.get(1) == 0 && content.get(2) == 0 && content.get(3) == 0) {
@@ -0,0 +1,27 @@
+package io.moquette.broker.unsafequeues;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event of the allocation of a segment to a queue of the pool.
+ * */
+@Name("io.moquette.SegmentAllocation")
+@Label("Queue Segment Allocation")
+@Category({"Moquette", "Persistence"})
+@Description("Allocation of a free segment for a segmented queue")
+final class SegmentAllocationEvent extends Event {
+
+    @Label("Page")
+    int pageId;
+
+    @Label("Page Offset")
+    long offset;
+
+    @Label("From Arena")
+    @Description("Taken from the segments reserved by the thread, without locking")
+    boolean fromArena;
+}
@@ -15,6 +15,21 @@ interface SegmentAllocator {
 
     Segment reopenSegment(int pageId, int beginOffset) throws QueueException;
 
+    /**
+     * @return the id of the page where the next segments are allocated.
+     * */
+    int currentPageId();
+
+    /**
+     * Delete the file of a page without used segments, a later {@link #reopenSegment(int, int)} on the
+     * page creates it again.
+     *
+     * This method has to be invoked inside a lock, it's not thread safe.
+     *
+     * @return true if the file has been deleted.
+     * */
+    boolean deletePage(int pageId);
+
     void close() throws QueueException;
 
     void dumpState(Properties checkpoint);
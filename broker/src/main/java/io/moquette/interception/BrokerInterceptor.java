@@ -18,6 +18,7 @@ package io.moquette.interception;
 
 import io.moquette.BrokerConstants;
 import io.moquette.broker.Utils;
+import io.moquette.broker.VirtualThreads;
 import io.moquette.interception.messages.*;
 import io.moquette.broker.config.IConfig;
 import io.moquette.broker.subscriptions.Subscription;
@@ -43,7 +44,7 @@ public final class BrokerInterceptor implements Interceptor {
     private final Map<Class<?>, List<InterceptHandler>> handlers;
     private final ExecutorService executor;
 
-    private BrokerInterceptor(int poolSize, List<InterceptHandler> handlers) {
+    private BrokerInterceptor(ExecutorService executor, List<InterceptHandler> handlers) {
         LOG.info("Initializing broker interceptor. InterceptorIds={}", getInterceptorIds(handlers));
         this.handlers = new HashMap<>();
         for (Class<?> messageType : InterceptHandler.ALL_MESSAGE_TYPES) {
@@ -52,7 +53,7 @@ public final class BrokerInterceptor implements Interceptor {
         for (InterceptHandler handler : handlers) {
             this.addInterceptHandler(handler);
         }
-        executor = Executors.newFixedThreadPool(poolSize);
+        this.executor = executor;
     }
 
     /**
@@ -61,17 +62,31 @@ public final class BrokerInterceptor implements Interceptor {
      * @param handlers InterceptHandlers listeners.
      */
     public BrokerInterceptor(List<InterceptHandler> handlers) {
-        this(1, handlers);
+        this(Executors.newFixedThreadPool(1), handlers);
     }
 
     /**
-     * Configures a broker interceptor using the pool size specified in the IConfig argument.
+     * Configures a broker interceptor using the pool size specified in the IConfig argument, or
+     * virtual threads when enabled and supported, that run the notifications one at a time in order.
      * @param props configuration properties.
      * @param handlers InterceptHandlers listeners.
      *
      */
     public BrokerInterceptor(IConfig props, List<InterceptHandler> handlers) {
-        this(Integer.parseInt(props.getProperty(BrokerConstants.BROKER_INTERCEPTOR_THREAD_POOL_SIZE, "1")), handlers);
+        this(createExecutor(props), handlers);
+    }
+
+    private static ExecutorService createExecutor(IConfig props) {
+        if (props.boolProp(IConfig.VIRTUAL_THREADS_ENABLED, false)) {
+            if (VirtualThreads.isSupported()) {
+                LOG.info("Interceptors are notified on virtual threads");
+                // a virtual thread per notification would lose their order
+                return new SerialExecutorService(VirtualThreads.newThreadPerTaskExecutor("interceptor-"));
+            }
+            LOG.warn("Virtual threads are not supported by this JVM, interceptors use a thread pool");
+        }
+        final int poolSize = Integer.parseInt(props.getProperty(BrokerConstants.BROKER_INTERCEPTOR_THREAD_POOL_SIZE, "1"));
+        return Executors.newFixedThreadPool(poolSize);
     }
 
     /**
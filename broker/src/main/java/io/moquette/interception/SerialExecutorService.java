@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.interception;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Executes the tasks one at a time, in submission order, on the threads of the delegate.
+ * <p>
+ * Used in front of an executor that starts a thread per task, like the virtual threads one, which
+ * would otherwise run the notifications concurrently and in any order.
+ */
+final class SerialExecutorService extends AbstractExecutorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SerialExecutorService.class);
+
+    private final ExecutorService delegate;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // true while a task of the delegate is draining the queue
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private volatile boolean shutdown;
+
+    SerialExecutorService(ExecutorService delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        tasks.add(task);
+        if (draining.compareAndSet(false, true)) {
+            try {
+                delegate.execute(this::drain);
+            } catch (RejectedExecutionException ex) {
+                draining.set(false);
+                tasks.remove(task);
+                throw ex;
+            }
+        }
+    }
+
+    private void drain() {
+        do {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LOG.warn("Task failed", ex);
+                }
+            }
+            draining.set(false);
+            // a task added after the last poll, whose submitter saw the queue still draining
+        } while (!tasks.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        // the drain already started completes the queued tasks
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        final List<Runnable> notExecuted = new ArrayList<>();
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            notExecuted.add(task);
+        }
+        delegate.shutdownNow();
+        return notExecuted;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
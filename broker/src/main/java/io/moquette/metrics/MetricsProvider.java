@@ -17,6 +17,8 @@ package io.moquette.metrics;
 
 import io.moquette.broker.config.IConfig;
 
+import java.util.function.LongSupplier;
+
 /**
  * Interface that a metrics implementation must implement.
  * It mainly defines methods that are used to track Moquette metrics.
@@ -74,4 +76,75 @@ public interface MetricsProvider {
      * @param qos The QoS of the message.
      */
     public void addMessage(int queue, int qos);
+
+    /**
+     * Notify the metrics provider about the bytes enqueued in the segmented queues and not yet forced
+     * to disk. This will be called once, only when the segmented queues are used.
+     * @param pendingBytes Supplier of the bytes waiting to be forced.
+     */
+    public void initQueuePendingBytes(LongSupplier pendingBytes);
+
+    /**
+     * Register a force to disk of the pages written by the segmented queues.
+     * @param durationNanos How long the force took, in nanoseconds.
+     * @param bytes The bytes made durable by the force.
+     */
+    public void addQueueForce(long durationNanos, long bytes);
+
+    /**
+     * Register a consolidated flush of the channels written by a Netty event loop.
+     * @param channels The number of channels flushed.
+     * @param bytes The bytes written to those channels since their previous flush.
+     */
+    public void addFlush(int channels, long bytes);
+
+    /**
+     * Register a PUBLISH routed to its subscribers, with its topic, to account the load of each topic.
+     * @param queue The queueId of the session loop of the publisher, 0-based, or -1 if called from a
+     *              non-session thread.
+     * @param topicName The topic of the PUBLISH.
+     * @param bytes The size of the payload.
+     */
+    public void addTopicPublish(int queue, String topicName, int bytes);
+
+    /**
+     * Register the time a PUBLISH took from its processing by the connection, just after the decode, to
+     * the dispatch of the message to the sessions of its subscribers.
+     * @param queue The queueId of the session loop of the publisher, 0-based, or -1 if called from a
+     *              non-session thread.
+     * @param durationNanos The duration, in nanoseconds.
+     */
+    public void addPublishRouting(int queue, long durationNanos);
+
+    /**
+     * Register the time a command waited in the queue of a session loop, from its offer to the start of
+     * its execution. The commands executed directly by the loop thread are not registered.
+     * @param queue The queueId, 0-based.
+     * @param durationNanos The duration, in nanoseconds.
+     */
+    public void addSessionTaskWait(int queue, long durationNanos);
+
+    /**
+     * Register the execution time of a command by a session loop.
+     * @param queue The queueId, 0-based.
+     * @param durationNanos The duration, in nanoseconds.
+     */
+    public void addSessionTaskExecution(int queue, long durationNanos);
+
+    /**
+     * Register the time a message spent in the session of a subscriber, from its arrival to its write to
+     * the channel of the client.
+     * @param queue The queueId, 0-based, or -1 if called from a non-session thread.
+     * @param durationNanos The duration, in nanoseconds.
+     */
+    public void addMessageDelivery(int queue, long durationNanos);
+
+    /**
+     * Register the round trip of the acknowledge of a message sent to a client, from the write of the
+     * PUBLISH to the reception of the PUBACK, for QoS 1, or of the PUBCOMP, for QoS 2.
+     * @param queue The queueId, 0-based, or -1 if called from a non-session thread.
+     * @param qos The QoS of the message.
+     * @param durationNanos The duration, in nanoseconds.
+     */
+    public void addAckRoundTrip(int queue, int qos, long durationNanos);
 }
@@ -17,6 +17,8 @@ package io.moquette.metrics;
 
 import io.moquette.broker.config.IConfig;
 
+import java.util.function.LongSupplier;
+
 /**
  * A MetricsProvider interface that does nothing.
  */
@@ -67,4 +69,49 @@ public class MetricsProviderNull extends AbstractMetricsProvider {
         // ignored
     }
 
+    @Override
+    public void initQueuePendingBytes(LongSupplier pendingBytes) {
+        // ignored
+    }
+
+    @Override
+    public void addQueueForce(long durationNanos, long bytes) {
+        // ignored
+    }
+
+    @Override
+    public void addFlush(int channels, long bytes) {
+        // ignored
+    }
+
+    @Override
+    public void addTopicPublish(int queue, String topicName, int bytes) {
+        // ignored
+    }
+
+    @Override
+    public void addPublishRouting(int queue, long durationNanos) {
+        // ignored
+    }
+
+    @Override
+    public void addSessionTaskWait(int queue, long durationNanos) {
+        // ignored
+    }
+
+    @Override
+    public void addSessionTaskExecution(int queue, long durationNanos) {
+        // ignored
+    }
+
+    @Override
+    public void addMessageDelivery(int queue, long durationNanos) {
+        // ignored
+    }
+
+    @Override
+    public void addAckRoundTrip(int queue, int qos, long durationNanos) {
+        // ignored
+    }
+
 }
@@ -101,9 +101,9 @@ public final class EnqueuedMessageValueType extends BasicDataType<EnqueuedMessag
             final ByteBuf payload = payloadDataType.read(buff);
             if (SerdesUtils.containsProperties(buff)) {
                 MqttProperties.MqttProperty[] mqttProperties = propertiesDataType.read(buff);
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, Instant.MAX, mqttProperties);
+                return new SessionRegistry.PublishedMessage(Topic.interned(topicStr), qos, payload, false, Instant.MAX, mqttProperties);
             } else {
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, Instant.MAX);
+                return new SessionRegistry.PublishedMessage(Topic.interned(topicStr), qos, payload, false, Instant.MAX);
             }
         } else {
             throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
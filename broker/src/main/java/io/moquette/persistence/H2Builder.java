@@ -25,6 +25,8 @@ public class H2Builder {
     private final ScheduledExecutorService scheduler;
     private final Clock clock;
     private MVStore mvStore;
+    // null when the repositories write synchronously
+    private WriteBehindWriter writeBehind;
 
     public H2Builder(ScheduledExecutorService scheduler, Path storePath, int autosaveInterval, Clock clock) {
         this.storePath = storePath.resolve("moquette_store.h2").toAbsolutePath().toString();
@@ -56,16 +58,47 @@ public class H2Builder {
         LOG.trace("Scheduling H2 commit task");
         scheduler.scheduleWithFixedDelay(() -> {
             LOG.trace("Committing to H2");
-            mvStore.commit();
+            final H2CommitEvent event = new H2CommitEvent();
+            event.begin();
+            event.version = mvStore.commit();
+            event.commit();
         }, autosaveInterval, autosaveInterval, TimeUnit.SECONDS);
         return this;
     }
 
+    /**
+     * Apply the updates of the subscriptions and sessions repositories on a background thread, coalesced
+     * and committed in batches, instead of in the session loops.
+     *
+     * @param maxLagMillis max time an update waits before being committed to the store.
+     * */
+    public H2Builder writeBehind(int maxLagMillis) {
+        LOG.info("Write behind of subscriptions and sessions with max lag of {} ms", maxLagMillis);
+        writeBehind = new WriteBehindWriter(maxLagMillis, mvStore::commit);
+        return this;
+    }
+
     public ISubscriptionsRepository subscriptionsRepository() {
-        return new H2SubscriptionsRepository(mvStore);
+        final ISubscriptionsRepository repository = new H2SubscriptionsRepository(mvStore);
+        if (writeBehind == null) {
+            return repository;
+        }
+        return new WriteBehindSubscriptionsRepository(repository, writeBehind);
+    }
+
+    /**
+     * Wait that all the updates of the repositories are committed to the store.
+     * */
+    public void flush() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
     }
 
     public void closeStore() {
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
         mvStore.close();
     }
 
@@ -78,6 +111,10 @@ public class H2Builder {
     }
 
     public ISessionsRepository sessionsRepository() {
-        return new H2SessionsRepository(mvStore, clock);
+        final ISessionsRepository repository = new H2SessionsRepository(mvStore, clock);
+        if (writeBehind == null) {
+            return repository;
+        }
+        return new WriteBehindSessionsRepository(repository, writeBehind);
     }
 }
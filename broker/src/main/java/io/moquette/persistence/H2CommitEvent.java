@@ -0,0 +1,22 @@
+package io.moquette.persistence;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event of a commit of the H2 MVStore.
+ * */
+@Name("io.moquette.H2Commit")
+@Label("H2 Commit")
+@Category({"Moquette", "Persistence"})
+@Description("Periodic commit of the changes to the H2 store")
+@StackTrace(false)
+final class H2CommitEvent extends Event {
+
+    @Label("Version")
+    long version;
+}
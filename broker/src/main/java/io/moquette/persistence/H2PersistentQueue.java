@@ -21,7 +21,10 @@ import io.moquette.broker.SessionRegistry;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
 class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
@@ -85,6 +88,25 @@ class H2PersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.Enqu
         return tail;
     }
 
+    @Override
+    public int dequeue(int max, Consumer<? super SessionRegistry.EnqueuedMessage> consumer) {
+        checkDequeuePreconditions();
+        final long firstTail = tail.get();
+        final long end = Math.min(head.get(), firstTail + max);
+        if (end <= firstTail) {
+            return 0;
+        }
+        final List<SessionRegistry.EnqueuedMessage> batch = new ArrayList<>((int) (end - firstTail));
+        for (long idx = firstTail; idx < end; idx++) {
+            batch.add(queueMap.remove(idx));
+        }
+        // the tail is stored once for the whole batch
+        tail.set(end);
+        this.metadataMap.put("tail", end);
+        batch.forEach(consumer);
+        return batch.size();
+    }
+
     @Override
     public boolean isEmpty() {
         checkIsEmptyPreconditions();
@@ -4,6 +4,7 @@ import io.moquette.broker.IRetainedRepository;
 import io.moquette.broker.RetainedMessage;
 import io.moquette.broker.subscriptions.Subscription;
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.subscriptions.TopicTrie;
 import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.mqtt.MqttProperties;
 import io.netty.handler.codec.mqtt.MqttPublishMessage;
@@ -13,18 +14,23 @@ import org.h2.mvstore.MVStore;
 import org.h2.mvstore.WriteBuffer;
 import org.h2.mvstore.type.BasicDataType;
 import org.h2.mvstore.type.StringDataType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
-import java.util.Map;
 
 public class H2RetainedRepository implements IRetainedRepository {
 
+    private static final Logger LOG = LoggerFactory.getLogger(H2RetainedRepository.class);
+
     private final MVMap<Topic, RetainedMessage> retainedMap;
     private final MVMap<Topic, RetainedMessage> retainedExpireMap;
+    // in memory index of the topics present in the two maps, to avoid full scans on wildcard lookups
+    private final TopicTrie<Topic> topicsIndex = new TopicTrie<>();
 
     private final MVMap.Builder<Topic, RetainedMessage> retainedBuilder = new MVMap.Builder<Topic, RetainedMessage>()
         .valueType(new RetainedMessageValueType());
@@ -34,12 +40,30 @@ public class H2RetainedRepository implements IRetainedRepository {
         this.retainedMap = mvStore.openMap("retained_store", retainedBuilder);
 //        this.retainedExpireMap = mvStore.openMap("retained_expiry_store");
         this.retainedExpireMap = mvStore.openMap("retained_expiry_store", retainedBuilder);
+        rebuildTopicsIndex();
+    }
+
+    private void rebuildTopicsIndex() {
+        for (Topic topic : retainedMap.keySet()) {
+            topicsIndex.put(topic, topic);
+        }
+        for (Topic topic : retainedExpireMap.keySet()) {
+            topicsIndex.put(topic, topic);
+        }
+        LOG.debug("Reloaded retained topics index, {} retained and {} retained with expiry", retainedMap.size(),
+            retainedExpireMap.size());
     }
 
     @Override
     public void cleanRetained(Topic topic) {
         retainedMap.remove(topic);
         retainedExpireMap.remove(topic);
+        topicsIndex.removeIf(topic, this::isNotStored);
+    }
+
+    private boolean isNotStored(Topic topic) {
+        // a retain could happen concurrently to a clean, keep the index entry if so
+        return !retainedMap.containsKey(topic) && !retainedExpireMap.containsKey(topic);
     }
 
     @Override
@@ -47,6 +71,7 @@ public class H2RetainedRepository implements IRetainedRepository {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg));
         retainedMap.put(topic, toStore);
+        topicsIndex.put(topic, topic);
     }
 
     private static MqttProperties.MqttProperty[] extractPropertiesArray(MqttPublishMessage msg) {
@@ -59,6 +84,7 @@ public class H2RetainedRepository implements IRetainedRepository {
         byte[] rawPayload = payloadToByteArray(msg);
         final RetainedMessage toStore = new RetainedMessage(topic, msg.fixedHeader().qosLevel(), rawPayload, extractPropertiesArray(msg), expiryTime);
         retainedExpireMap.put(topic, toStore);
+        topicsIndex.put(topic, topic);
     }
 
     private static byte[] payloadToByteArray(MqttPublishMessage msg) {
@@ -77,21 +103,18 @@ public class H2RetainedRepository implements IRetainedRepository {
     public Collection<RetainedMessage> retainedOnTopic(String topic) {
         final Topic searchTopic = new Topic(topic);
         final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        matchingMessages.addAll(findMatching(searchTopic, retainedMap));
-        matchingMessages.addAll(findMatching(searchTopic, retainedExpireMap));
+        topicsIndex.match(searchTopic, matchedTopic -> {
+            addIfPresent(retainedMap.get(matchedTopic), matchingMessages);
+            addIfPresent(retainedExpireMap.get(matchedTopic), matchingMessages);
+        });
 
         return matchingMessages;
     }
 
-    private List<RetainedMessage> findMatching(Topic searchTopic, MVMap<Topic, RetainedMessage> mapToSearch) {
-        final List<RetainedMessage> matchingMessages = new ArrayList<>();
-        for (Map.Entry<Topic, RetainedMessage> entry : mapToSearch.entrySet()) {
-            final Topic scanTopic = entry.getKey();
-            if (scanTopic.match(searchTopic)) {
-                matchingMessages.add(entry.getValue());
-            }
+    private static void addIfPresent(RetainedMessage retainedMessage, List<RetainedMessage> matchingMessages) {
+        if (retainedMessage != null) {
+            matchingMessages.add(retainedMessage);
         }
-        return matchingMessages;
     }
 
     @Override
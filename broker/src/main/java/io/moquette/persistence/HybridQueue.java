@@ -0,0 +1,147 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.AbstractSessionMessageQueue;
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+import io.moquette.broker.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Consumer;
+
+/**
+ * Session queue of {@link HybridQueueRepository}, the head of the messages is in memory and the tail
+ * is spilled on a segmented queue, created only when the memory budgets are exceeded and purged as
+ * soon as it's drained.
+ * */
+class HybridQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HybridQueue.class);
+
+    // estimated memory held by a message besides topic and payload
+    static final int MESSAGE_OVERHEAD_BYTES = 64;
+
+    private final HybridQueueRepository queueRepository;
+    private final String queueName;
+    private final Queue<SessionRegistry.EnqueuedMessage> memory = new ArrayDeque<>();
+    private long memoryBytes;
+    // the messages following the ones in memory, null when nothing is spilled
+    private SessionMessageQueue<SessionRegistry.EnqueuedMessage> disk;
+
+    HybridQueue(HybridQueueRepository queueRepository, String queueName,
+                SessionMessageQueue<SessionRegistry.EnqueuedMessage> spilled) {
+        this.queueRepository = queueRepository;
+        this.queueName = queueName;
+        this.disk = spilled;
+    }
+
+    static long estimatedSize(SessionRegistry.EnqueuedMessage message) {
+        if (message instanceof SessionRegistry.PublishedMessage) {
+            final SessionRegistry.PublishedMessage publish = (SessionRegistry.PublishedMessage) message;
+            return MESSAGE_OVERHEAD_BYTES + publish.getTopic().toString().length()
+                + publish.getPayload().readableBytes();
+        }
+        return MESSAGE_OVERHEAD_BYTES;
+    }
+
+    @Override
+    public void enqueue(SessionRegistry.EnqueuedMessage message) {
+        checkEnqueuePreconditions(message);
+        if (disk == null) {
+            final long size = estimatedSize(message);
+            if (memoryBytes + size <= queueRepository.sessionMemoryBudget() && queueRepository.reserveMemory(size)) {
+                memory.add(message);
+                memoryBytes += size;
+                return;
+            }
+            LOG.debug("Memory budget exceeded, spilling queue {} to disk, {} bytes in memory", queueName, memoryBytes);
+            disk = queueRepository.createDiskQueue(queueName);
+        }
+        // once spilled, all the messages go to disk to be read back in order
+        disk.enqueue(message);
+    }
+
+    @Override
+    public SessionRegistry.EnqueuedMessage dequeue() {
+        checkDequeuePreconditions();
+        final SessionRegistry.EnqueuedMessage message = memory.poll();
+        if (message != null) {
+            dequeuedFromMemory(message);
+            return message;
+        }
+        if (disk == null || purgeDiskIfDrained()) {
+            return null;
+        }
+        final SessionRegistry.EnqueuedMessage spilled = disk.dequeue();
+        purgeDiskIfDrained();
+        return spilled;
+    }
+
+    @Override
+    public int dequeue(int max, Consumer<? super SessionRegistry.EnqueuedMessage> consumer) {
+        checkDequeuePreconditions();
+        int count = 0;
+        SessionRegistry.EnqueuedMessage message;
+        while (count < max && (message = memory.poll()) != null) {
+            dequeuedFromMemory(message);
+            consumer.accept(message);
+            count++;
+        }
+        if (count < max && disk != null) {
+            count += disk.dequeue(max - count, consumer);
+            purgeDiskIfDrained();
+        }
+        return count;
+    }
+
+    private void dequeuedFromMemory(SessionRegistry.EnqueuedMessage message) {
+        final long size = estimatedSize(message);
+        memoryBytes -= size;
+        queueRepository.releaseMemory(size);
+    }
+
+    /**
+     * @return true if there were no more spilled messages and the disk queue has been purged.
+     * */
+    private boolean purgeDiskIfDrained() {
+        if (!disk.isEmpty()) {
+            return false;
+        }
+        // give back the segments, a session that catches up goes back to memory
+        LOG.debug("Spilled messages of queue {} drained", queueName);
+        disk.closeAndPurge();
+        disk = null;
+        return true;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        checkIsEmptyPreconditions();
+        return memory.isEmpty() && (disk == null || disk.isEmpty());
+    }
+
+    @Override
+    public void closeAndPurge() {
+        SessionRegistry.EnqueuedMessage message;
+        while ((message = memory.poll()) != null) {
+            dequeuedFromMemory(message);
+            Utils.release(message, "hybrid queue cleanup");
+        }
+        if (disk != null) {
+            disk.closeAndPurge();
+            disk = null;
+        }
+        queueRepository.dropQueue(queueName);
+        this.closed = true;
+    }
+
+    long memoryBytes() {
+        return memoryBytes;
+    }
+
+    boolean isSpilled() {
+        return disk != null;
+    }
+}
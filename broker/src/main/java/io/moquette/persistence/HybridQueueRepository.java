@@ -0,0 +1,106 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.IQueueRepository;
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue repository that keeps the messages in memory while the sessions keep up, and stores on the
+ * segmented queues the messages of the sessions that fall behind.
+ * <p>
+ * Each queue holds its head in memory up to a per-session budget of bytes, all the queues together
+ * up to a global budget. When a budget is exceeded the following messages are spilled on a
+ * segmented queue, and stay there until that queue is drained, so that they are read back in order.
+ * Only the spilled messages survive a restart.
+ * */
+public class HybridQueueRepository implements IQueueRepository {
+
+    private final SegmentQueueRepository diskRepository;
+    private final long sessionMemoryBudget;
+    private final long globalMemoryBudget;
+    private final AtomicLong globalMemoryBytes = new AtomicLong();
+    private final ConcurrentMap<String, HybridQueue> queues = new ConcurrentHashMap<>();
+
+    /**
+     * @param diskRepository where the messages exceeding the memory budgets are spilled.
+     * @param sessionMemoryBudget max bytes of messages a single queue keeps in memory.
+     * @param globalMemoryBudget max bytes of messages all the queues keep in memory.
+     * */
+    public HybridQueueRepository(SegmentQueueRepository diskRepository, long sessionMemoryBudget,
+                                 long globalMemoryBudget) {
+        this.diskRepository = diskRepository;
+        this.sessionMemoryBudget = sessionMemoryBudget;
+        this.globalMemoryBudget = globalMemoryBudget;
+    }
+
+    @Override
+    public Set<String> listQueueNames() {
+        final Set<String> names = new HashSet<>(queues.keySet());
+        names.addAll(diskRepository.listQueueNames());
+        return names;
+    }
+
+    @Override
+    public boolean containsQueue(String clientId) {
+        return queues.containsKey(clientId) || diskRepository.containsQueue(clientId);
+    }
+
+    @Override
+    public SessionMessageQueue<SessionRegistry.EnqueuedMessage> getOrCreateQueue(String clientId) {
+        return queues.computeIfAbsent(clientId, name -> {
+            // messages spilled before a restart are read before any new one
+            final SessionMessageQueue<SessionRegistry.EnqueuedMessage> spilled =
+                diskRepository.containsQueue(name) ? diskRepository.getOrCreateQueue(name) : null;
+            return new HybridQueue(this, name, spilled);
+        });
+    }
+
+    @Override
+    public void close() {
+        queues.clear();
+        diskRepository.close();
+    }
+
+    long sessionMemoryBudget() {
+        return sessionMemoryBudget;
+    }
+
+    /**
+     * @return true if the bytes fit in the global budget and have been reserved.
+     * */
+    boolean reserveMemory(long bytes) {
+        long current;
+        do {
+            current = globalMemoryBytes.get();
+            if (current + bytes > globalMemoryBudget) {
+                return false;
+            }
+        } while (!globalMemoryBytes.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    void releaseMemory(long bytes) {
+        globalMemoryBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Bytes of messages kept in memory by all the queues.
+     * */
+    public long memoryBytes() {
+        return globalMemoryBytes.get();
+    }
+
+    SessionMessageQueue<SessionRegistry.EnqueuedMessage> createDiskQueue(String queueName) {
+        return diskRepository.getOrCreateQueue(queueName);
+    }
+
+    void dropQueue(String queueName) {
+        queues.remove(queueName);
+    }
+}
@@ -9,6 +9,7 @@ import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionRegistry.EnqueuedMessage> {
 
@@ -55,6 +56,20 @@ public class SegmentPersistentQueue extends AbstractSessionMessageQueue<SessionR
         return message;
     }
 
+    @Override
+    public int dequeue(int max, Consumer<? super SessionRegistry.EnqueuedMessage> consumer) {
+        checkDequeuePreconditions();
+
+        final int count;
+        try {
+            count = segmentedQueue.dequeue(max, content -> consumer.accept(serdes.fromBytes(content)));
+        } catch (QueueException e) {
+            throw new RuntimeException(e);
+        }
+        LOG.debug("Retrieved {} messages", count);
+        return count;
+    }
+
     @Override
     public boolean isEmpty() {
         return segmentedQueue.isEmpty();
@@ -4,8 +4,11 @@ import io.moquette.broker.IQueueRepository;
 import io.moquette.broker.SessionMessageQueue;
 import io.moquette.broker.SessionRegistry;
 import io.moquette.broker.unsafequeues.Queue;
+import io.moquette.broker.unsafequeues.QueueCompaction;
+import io.moquette.broker.unsafequeues.QueueDurability;
 import io.moquette.broker.unsafequeues.QueueException;
 import io.moquette.broker.unsafequeues.QueuePool;
+import io.moquette.metrics.MetricsProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +30,18 @@ public class SegmentQueueRepository implements IQueueRepository {
         queuePool = QueuePool.loadQueues(path, pageSize, segmentSize);
     }
 
+    /**
+     * @param durability when the enqueued messages are forced to disk.
+     * @param compaction when the page files are compacted and the free ones deleted.
+     * @param metricsProvider notified of the forces and of the bytes waiting for one.
+     * */
+    public SegmentQueueRepository(Path path, int pageSize, int segmentSize, QueueDurability durability,
+                                  QueueCompaction compaction, MetricsProvider metricsProvider) throws QueueException {
+        queuePool = QueuePool.loadQueues(path, pageSize, segmentSize, durability, metricsProvider::addQueueForce,
+            compaction);
+        metricsProvider.initQueuePendingBytes(queuePool::pendingBytes);
+    }
+
     @Override
     public Set<String> listQueueNames() {
         return queuePool.queueNames();
@@ -181,9 +181,9 @@ class SegmentedPersistentQueueSerDes {
             final ByteBuf payload = readPayload(buff);
             if (SerdesUtils.containsProperties(buff)) {
                 MqttProperties.MqttProperty[] mqttProperties = readProperties(buff);
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry, mqttProperties);
+                return new SessionRegistry.PublishedMessage(Topic.interned(topicStr), qos, payload, false, messageExpiry, mqttProperties);
             } else {
-                return new SessionRegistry.PublishedMessage(Topic.asTopic(topicStr), qos, payload, false, messageExpiry);
+                return new SessionRegistry.PublishedMessage(Topic.interned(topicStr), qos, payload, false, messageExpiry);
             }
         } else {
             throw new IllegalArgumentException("Can't recognize record of type: " + messageType);
@@ -0,0 +1,81 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.ISessionsRepository;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+/**
+ * Sessions repository that hands over the updates to a {@link WriteBehindWriter}, keeping only the
+ * last state of the session and of the will of each client. The listings, used when the broker starts,
+ * flush the pending updates before reading.
+ * */
+final class WriteBehindSessionsRepository implements ISessionsRepository {
+
+    private enum Kind {
+        SESSION, WILL
+    }
+
+    private static final class ClientKey {
+        final String clientId;
+        final Kind kind;
+
+        ClientKey(String clientId, Kind kind) {
+            this.clientId = clientId;
+            this.kind = kind;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ClientKey that = (ClientKey) o;
+            return clientId.equals(that.clientId) && kind == that.kind;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clientId.hashCode() + kind.hashCode();
+        }
+    }
+
+    private final ISessionsRepository delegate;
+    private final WriteBehindWriter writer;
+
+    WriteBehindSessionsRepository(ISessionsRepository delegate, WriteBehindWriter writer) {
+        this.delegate = delegate;
+        this.writer = writer;
+    }
+
+    @Override
+    public Collection<SessionData> list() {
+        writer.flush();
+        return delegate.list();
+    }
+
+    @Override
+    public void saveSession(SessionData session) {
+        writer.write(new ClientKey(session.clientId(), Kind.SESSION), () -> delegate.saveSession(session));
+    }
+
+    @Override
+    public void delete(SessionData session) {
+        writer.write(new ClientKey(session.clientId(), Kind.SESSION), () -> delegate.delete(session));
+    }
+
+    @Override
+    public void listSessionsWill(BiConsumer<String, Will> visitor) {
+        writer.flush();
+        delegate.listSessionsWill(visitor);
+    }
+
+    @Override
+    public void saveWill(String clientId, Will will) {
+        writer.write(new ClientKey(clientId, Kind.WILL), () -> delegate.saveWill(clientId, will));
+    }
+
+    @Override
+    public void deleteWill(String clientId) {
+        writer.write(new ClientKey(clientId, Kind.WILL), () -> delegate.deleteWill(clientId));
+    }
+}
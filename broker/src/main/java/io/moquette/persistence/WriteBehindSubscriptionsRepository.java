@@ -0,0 +1,115 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.ISubscriptionsRepository;
+import io.moquette.broker.subscriptions.ShareName;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+
+import java.util.Collection;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Subscriptions repository that hands over the updates to a {@link WriteBehindWriter}, coalescing
+ * the add and remove of the same subscription. The listings, used when the broker starts, flush the
+ * pending updates before reading.
+ * */
+final class WriteBehindSubscriptionsRepository implements ISubscriptionsRepository {
+
+    private static final class SubscriptionKey {
+        final String clientId;
+        // null if not a shared subscription
+        final ShareName shareName;
+        final Topic topicFilter;
+
+        SubscriptionKey(Subscription subscription, boolean shared) {
+            this.clientId = subscription.getClientId();
+            this.shareName = shared ? subscription.getShareName() : null;
+            this.topicFilter = subscription.getTopicFilterInternal();
+        }
+
+        boolean isSharedOf(String clientId) {
+            return shareName != null && this.clientId.equals(clientId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            SubscriptionKey that = (SubscriptionKey) o;
+            return clientId.equals(that.clientId) && Objects.equals(shareName, that.shareName) &&
+                topicFilter.equals(that.topicFilter);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientId, shareName, topicFilter);
+        }
+    }
+
+    private static final class AllSharedKey {
+        final String clientId;
+
+        AllSharedKey(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return clientId.equals(((AllSharedKey) o).clientId);
+        }
+
+        @Override
+        public int hashCode() {
+            return clientId.hashCode();
+        }
+    }
+
+    private final ISubscriptionsRepository delegate;
+    private final WriteBehindWriter writer;
+
+    WriteBehindSubscriptionsRepository(ISubscriptionsRepository delegate, WriteBehindWriter writer) {
+        this.delegate = delegate;
+        this.writer = writer;
+    }
+
+    @Override
+    public Set<Subscription> listAllSubscriptions() {
+        writer.flush();
+        return delegate.listAllSubscriptions();
+    }
+
+    @Override
+    public void addNewSubscription(Subscription subscription) {
+        writer.write(new SubscriptionKey(subscription, false), () -> delegate.addNewSubscription(subscription));
+    }
+
+    @Override
+    public void removeSubscription(Subscription subscription) {
+        writer.write(new SubscriptionKey(subscription, false), () -> delegate.removeSubscription(subscription));
+    }
+
+    @Override
+    public void removeAllSharedSubscriptions(String clientId) {
+        writer.writeSuperseding(new AllSharedKey(clientId), () -> delegate.removeAllSharedSubscriptions(clientId),
+            key -> key instanceof SubscriptionKey && ((SubscriptionKey) key).isSharedOf(clientId));
+    }
+
+    @Override
+    public void removeSharedSubscription(Subscription subscription) {
+        writer.write(new SubscriptionKey(subscription, true), () -> delegate.removeSharedSubscription(subscription));
+    }
+
+    @Override
+    public void addNewSharedSubscription(Subscription subscription) {
+        writer.write(new SubscriptionKey(subscription, true), () -> delegate.addNewSharedSubscription(subscription));
+    }
+
+    @Override
+    public Collection<Subscription> listAllSharedSubscription() {
+        writer.flush();
+        return delegate.listAllSharedSubscription();
+    }
+}
@@ -0,0 +1,156 @@
+package io.moquette.persistence;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * Applies the writes of the repositories on a background thread, so that the session loops don't
+ * update the store in their critical path.
+ * <p>
+ * The writes are coalesced by key: a write replaces the one of the same key still pending, so a client
+ * that changes the same record many times costs a single update. The pending writes are applied in
+ * batches, in the order of their last update, and each batch is committed to the store at once. A write
+ * waits at most the max lag, or less when {@link #MAX_PENDING_WRITES} accumulate.
+ * */
+final class WriteBehindWriter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindWriter.class);
+
+    static final int MAX_PENDING_WRITES = 4096;
+
+    // key -> last write of the key, in the order of their last update
+    private final LinkedHashMap<Object, Runnable> pending = new LinkedHashMap<>();
+    private final Object applyLock = new Object();
+    private final Runnable commit;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ScheduledExecutorService scheduler;
+    private volatile boolean closed;
+
+    /**
+     * @param maxLagMillis max time a write is pending before being applied.
+     * @param commit the commit of the store, invoked after each batch.
+     * */
+    WriteBehindWriter(int maxLagMillis, Runnable commit) {
+        if (maxLagMillis <= 0) {
+            throw new IllegalArgumentException("Max lag must be positive, was " + maxLagMillis);
+        }
+        this.commit = commit;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new DefaultThreadFactory("write-behind", true));
+        scheduler.scheduleWithFixedDelay(this::backgroundFlush, maxLagMillis, maxLagMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Enqueue the write, replacing the pending one with the same key.
+     * */
+    void write(Object key, Runnable write) {
+        writeSuperseding(key, write, null);
+    }
+
+    /**
+     * Enqueue the write, dropping also the pending writes whose keys match the predicate, because this
+     * write overrides them, like a delete of all the records of a client.
+     * */
+    void writeSuperseding(Object key, Runnable write, Predicate<Object> superseded) {
+        if (closed) {
+            // the store is closing, keep the write in the order of the caller
+            write.run();
+            return;
+        }
+        final int pendingWrites;
+        synchronized (pending) {
+            if (superseded != null) {
+                pending.keySet().removeIf(superseded);
+            }
+            // removed before the put, so that the key moves after the writes that happened in the meantime
+            pending.remove(key);
+            pending.put(key, write);
+            pendingWrites = pending.size();
+        }
+        if (closed) {
+            // raced with the close, that could have already done its last flush
+            flush();
+            return;
+        }
+        if (pendingWrites >= MAX_PENDING_WRITES && flushRequested.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(this::backgroundFlush);
+            } catch (RejectedExecutionException ex) {
+                // closing, the last flush is done by close
+                flushRequested.set(false);
+            }
+        }
+    }
+
+    int pendingWrites() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    private void backgroundFlush() {
+        flushRequested.set(false);
+        try {
+            flush();
+        } catch (RuntimeException ex) {
+            LOG.error("Can't commit the write behind batch, will retry on next flush", ex);
+        }
+    }
+
+    /**
+     * Barrier that applies and commits all the writes enqueued before the call.
+     * */
+    void flush() {
+        synchronized (applyLock) {
+            final List<Runnable> batch;
+            synchronized (pending) {
+                if (pending.isEmpty()) {
+                    return;
+                }
+                batch = new ArrayList<>(pending.size());
+                final Iterator<Map.Entry<Object, Runnable>> it = pending.entrySet().iterator();
+                while (it.hasNext()) {
+                    batch.add(it.next().getValue());
+                    it.remove();
+                }
+            }
+            for (Runnable write : batch) {
+                try {
+                    write.run();
+                } catch (RuntimeException ex) {
+                    LOG.error("Failed write behind update, skipping it", ex);
+                }
+            }
+            commit.run();
+            LOG.trace("Committed {} write behind updates", batch.size());
+        }
+    }
+
+    /**
+     * Stop the background flushes and apply the pending writes, the following ones are applied directly.
+     * */
+    void close() {
+        closed = true;
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOG.warn("Write behind flusher didn't terminate in time");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProviderMock;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EventLoopFlushHandlerTest {
+
+    /**
+     * Counts the messages flushed and stops them before the EmbeddedChannel, that runs the pending tasks
+     * on each write.
+     * */
+    private static final class FlushRecorder extends ChannelOutboundHandlerAdapter {
+        private int written;
+        private int flushed;
+        private int flushes;
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+            ReferenceCountUtil.release(msg);
+            written++;
+            promise.setSuccess();
+        }
+
+        @Override
+        public void flush(ChannelHandlerContext ctx) {
+            flushed += written;
+            written = 0;
+            flushes++;
+        }
+    }
+
+    private final MetricsProviderMock metrics = new MetricsProviderMock();
+
+    // through the pipeline, because EmbeddedChannel.write() also runs the pending tasks
+    private static void writeBytes(EmbeddedChannel channel, int size) {
+        channel.pipeline().write(Unpooled.wrappedBuffer(new byte[size]));
+    }
+
+    @Test
+    public void givenWritesOnManyChannelsThenAreFlushedTogetherAtTheNextLoopIteration() {
+        final EventLoopFlushHandler sut = new EventLoopFlushHandler(0, metrics);
+        final FlushRecorder firstRecorder = new FlushRecorder();
+        final EmbeddedChannel first = new EmbeddedChannel(firstRecorder, sut);
+        final FlushRecorder secondRecorder = new FlushRecorder();
+        final EmbeddedChannel second = new EmbeddedChannel(secondRecorder, sut);
+
+        writeBytes(first, 10);
+        writeBytes(first, 20);
+        writeBytes(second, 5);
+        assertEquals(0, firstRecorder.flushed, "Nothing flushed before the loop iteration ends");
+        assertEquals(0, secondRecorder.flushed, "Nothing flushed before the loop iteration ends");
+
+        // the flush task of the event loop that first wrote
+        first.runPendingTasks();
+
+        assertEquals(2, firstRecorder.flushed);
+        assertEquals(1, firstRecorder.flushes, "The writes on the same channel are flushed once");
+        assertEquals(1, secondRecorder.flushed);
+        assertEquals(2, metrics.getFlushedChannels());
+        assertEquals(35, metrics.getFlushedBytes());
+    }
+
+    @Test
+    public void givenExplicitFlushThenTheChannelIsNotFlushedAgain() {
+        final EventLoopFlushHandler sut = new EventLoopFlushHandler(0, metrics);
+        final FlushRecorder recorder = new FlushRecorder();
+        final EmbeddedChannel channel = new EmbeddedChannel(recorder, sut);
+
+        writeBytes(channel, 10);
+        channel.pipeline().flush();
+        channel.runPendingTasks();
+
+        assertEquals(1, recorder.flushed);
+        assertEquals(1, recorder.flushes);
+        assertEquals(0, metrics.getFlushedChannels(), "Already flushed by the writer");
+    }
+
+    @Test
+    public void givenMaxLatencyThenWritesAreFlushedOnlyOnceElapsed() throws InterruptedException {
+        final EventLoopFlushHandler sut = new EventLoopFlushHandler(50, metrics);
+        final FlushRecorder recorder = new FlushRecorder();
+        final EmbeddedChannel channel = new EmbeddedChannel(recorder, sut);
+
+        writeBytes(channel, 10);
+        channel.runPendingTasks();
+        assertEquals(0, recorder.flushed, "Must wait the max latency");
+
+        Thread.sleep(100);
+        writeBytes(channel, 10);
+        channel.runPendingTasks();
+
+        assertEquals(2, recorder.flushed, "Flushed together with the write of the same tick");
+        assertEquals(1, recorder.flushes);
+        assertEquals(1, metrics.getFlushedChannels());
+        assertEquals(20, metrics.getFlushedBytes());
+    }
+}
@@ -9,15 +9,15 @@ import java.time.ZoneId;
  * Utility class to represent a clock that can be moved in time.
  * This is used for tests that needs to verify conditions after a certain amount of time.
  * */
-class ForwardableClock extends Clock {
+public class ForwardableClock extends Clock {
 
     private Clock currentClock;
 
-    ForwardableClock(Clock clock) {
+    public ForwardableClock(Clock clock) {
         this.currentClock = clock;
     }
 
-    void forward(Duration period) {
+    public void forward(Duration period) {
         currentClock = Clock.offset(currentClock, period);
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.security.IAsyncAuthenticator;
+import io.moquette.broker.security.PermitAllAuthorizatorPolicy;
+import io.moquette.broker.subscriptions.CTrieSubscriptionDirectory;
+import io.moquette.broker.subscriptions.ISubscriptionsDirectory;
+import io.moquette.metrics.MetricsProvider;
+import io.moquette.metrics.MetricsProviderNull;
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttConnectMessage;
+import io.netty.handler.codec.mqtt.MqttMessage;
+import io.netty.handler.codec.mqtt.MqttMessageBuilders;
+import io.netty.handler.codec.mqtt.MqttMessageType;
+import io.netty.handler.codec.mqtt.MqttPublishMessage;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static io.moquette.BrokerConstants.NO_BUFFER_FLUSH;
+import static io.moquette.broker.NettyChannelAssertions.assertEqualsConnAck;
+import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_ACCEPTED;
+import static io.netty.handler.codec.mqtt.MqttConnectReturnCode.CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD;
+import static java.util.Collections.singleton;
+import static java.util.Collections.singletonMap;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MQTTConnectionAsyncLoginTest {
+
+    private static final String CLIENT_ID = "FAKE_123";
+    private static final String TEST_USER = "fakeuser";
+    private static final String TEST_PWD = "fakepwd";
+    private static final BrokerConfiguration CONFIG = new BrokerConfiguration(false, true, false, NO_BUFFER_FLUSH);
+
+    private final CountDownLatch authenticationGate = new CountDownLatch(1);
+    private ScheduledExecutorService scheduler;
+    private ExecutorService loginExecutor;
+    private SessionEventLoopGroup loopsGroup;
+    private SessionRegistry sessionRegistry;
+    private PostOffice postOffice;
+    private MQTTConnection sut;
+    private EmbeddedChannel channel;
+    private final List<Object> outbound = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        loginExecutor = Executors.newSingleThreadExecutor();
+
+        final MockAuthenticator authenticator = new MockAuthenticator(singleton(CLIENT_ID), singletonMap(TEST_USER, TEST_PWD));
+        ISubscriptionsDirectory subscriptions = new CTrieSubscriptionDirectory();
+        subscriptions.init(new MemorySubscriptionsRepository());
+        final MetricsProvider mp = new MetricsProviderNull();
+        final Authorizator permitAll = new Authorizator(new PermitAllAuthorizatorPolicy());
+        loopsGroup = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 1024, mp);
+        final ISessionsRepository sessionsRepository = MQTTConnectionPublishTest.memorySessionsRepository();
+        sessionRegistry = new SessionRegistry(subscriptions, sessionsRepository,
+            new MemoryQueueRepository(), permitAll, scheduler, loopsGroup, mp);
+        postOffice = new PostOffice(subscriptions, new MemoryRetainedRepository(), sessionRegistry,
+            sessionsRepository, ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, permitAll, loopsGroup, mp);
+
+        channel = new EmbeddedChannel();
+        sut = new MQTTConnection(channel, CONFIG, (clientId, username, password) -> {
+            try {
+                // simulates a slow authentication backend
+                authenticationGate.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return authenticator.checkValid(clientId, username, password);
+        }, sessionRegistry, postOffice, loginExecutor);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        loginExecutor.shutdownNow();
+        loopsGroup.terminate();
+        scheduler.shutdown();
+    }
+
+    private MqttConnectMessage connectWithPassword(String password) {
+        return MqttMessageBuilders.connect()
+            .protocolVersion(MqttVersion.MQTT_3_1_1)
+            .clientId(CLIENT_ID)
+            .username(TEST_USER)
+            .password(password.getBytes(StandardCharsets.UTF_8))
+            .cleanSession(true)
+            .build();
+    }
+
+    private void awaitCompletion(CompletableFuture<?> connected) {
+        // the authentication result is processed in the channel's event loop
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> {
+            channel.runPendingTasks();
+            return connected.isDone();
+        });
+    }
+
+    @Test
+    public void givenSlowAuthenticationThenTheNettyThreadIsNotBlockedAndLaterMessagesAreHandledAfterConnect() {
+        final CompletableFuture<?> connected = sut.processConnect(connectWithPassword(TEST_PWD)).completableFuture();
+
+        // the Netty thread is free while the authentication is in progress
+        assertFalse(channel.config().isAutoRead(), "Reads must be suspended during the authentication");
+        sut.handleMessage(MqttMessage.PINGREQ);
+        assertNull(channel.readOutbound(), "Messages must wait the completion of the CONNECT");
+
+        authenticationGate.countDown();
+        awaitCompletion(connected);
+
+        assertFalse(connected.isCompletedExceptionally());
+        assertTrue(channel.config().isAutoRead());
+        // the CONNACK is written by the session loop, so it could follow the PINGRESP
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() ->
+            outboundTypes().containsAll(List.of(MqttMessageType.CONNACK, MqttMessageType.PINGRESP)));
+    }
+
+    private List<MqttMessageType> outboundTypes() {
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            outbound.add(msg);
+        }
+        final List<MqttMessageType> types = new ArrayList<>();
+        for (Object received : outbound) {
+            final MqttMessage mqttMessage = (MqttMessage) received;
+            if (mqttMessage.fixedHeader().messageType() == MqttMessageType.CONNACK) {
+                assertEqualsConnAck(CONNECTION_ACCEPTED, mqttMessage);
+            }
+            types.add(mqttMessage.fixedHeader().messageType());
+        }
+        return types;
+    }
+
+    @Test
+    public void givenAsyncAuthenticatorThenTheConnectIsCompletedWhenTheCheckCompletes() {
+        final CompletableFuture<Boolean> check = new CompletableFuture<>();
+        final IAsyncAuthenticator asyncAuthenticator = new IAsyncAuthenticator() {
+            @Override
+            public CompletionStage<Boolean> checkValidAsync(String clientId, String username, byte[] password) {
+                return check;
+            }
+
+            @Override
+            public boolean checkValid(String clientId, String username, byte[] password) {
+                throw new IllegalStateException("The Netty thread must not be blocked");
+            }
+        };
+        sut = new MQTTConnection(channel, CONFIG, asyncAuthenticator, sessionRegistry, postOffice, null);
+
+        final CompletableFuture<?> connected = sut.processConnect(connectWithPassword(TEST_PWD)).completableFuture();
+        assertFalse(channel.config().isAutoRead(), "Reads must be suspended during the authentication");
+        assertNull(channel.readOutbound());
+
+        check.complete(true);
+        awaitCompletion(connected);
+
+        assertFalse(connected.isCompletedExceptionally());
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() ->
+            outboundTypes().contains(MqttMessageType.CONNACK));
+    }
+
+    @Test
+    public void givenRejectedCredentialsThenTheMessagesReceivedDuringTheAuthenticationAreReleased() {
+        final CompletableFuture<?> connected = sut.processConnect(connectWithPassword("wrong")).completableFuture();
+        final MqttPublishMessage publish = MqttMessageBuilders.publish()
+            .topicName("kitchen/temp")
+            .qos(MqttQoS.AT_MOST_ONCE)
+            .payload(Unpooled.copiedBuffer("21.5", StandardCharsets.UTF_8))
+            .build();
+        final ByteBuf payload = publish.content();
+        sut.handleMessage(publish);
+        // like the Netty handler does after handling the message
+        publish.release();
+
+        authenticationGate.countDown();
+        awaitCompletion(connected);
+
+        assertTrue(connected.isCompletedExceptionally());
+        assertEqualsConnAck(CONNECTION_REFUSED_BAD_USER_NAME_OR_PASSWORD, channel.readOutbound());
+        assertFalse(channel.isOpen(), "Connection should be closed by the broker.");
+        assertEquals(0, payload.refCnt(), "Queued message must be released");
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        assertEquals(1, new MpscRingBuffer<String>(1).capacity());
+        assertEquals(4, new MpscRingBuffer<String>(3).capacity());
+        assertEquals(1024, new MpscRingBuffer<String>(1024).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new MpscRingBuffer<String>(0));
+    }
+
+    @Test
+    public void givenFullBufferThenOfferIsRejectedUntilDrained() {
+        final MpscRingBuffer<String> sut = new MpscRingBuffer<>(2);
+        assertTrue(sut.offer("a"));
+        assertTrue(sut.offer("b"));
+        assertFalse(sut.offer("c"), "Full buffer must reject the element");
+        assertEquals(2, sut.size());
+
+        final List<String> drained = new ArrayList<>();
+        assertEquals(1, sut.drain(drained::add, 1));
+        assertTrue(sut.offer("c"));
+
+        assertEquals(2, sut.drain(drained::add, 10));
+        assertEquals(List.of("a", "b", "c"), drained);
+        assertTrue(sut.isEmpty());
+    }
+
+    @Test
+    public void givenConcurrentProducersThenEachElementIsDrainedOnceInProducerOrder() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 50_000;
+        final MpscRingBuffer<int[]> sut = new MpscRingBuffer<>(128);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    final int[] element = {producer, i};
+                    while (!sut.offer(element)) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        final int[] lastSeen = {-1, -1, -1, -1};
+        final int[] received = {0};
+        start.countDown();
+        while (received[0] < producers * perProducer) {
+            sut.drain(element -> {
+                assertEquals(lastSeen[element[0]] + 1, element[1], "Elements of a producer must keep their order");
+                lastSeen[element[0]] = element[1];
+                received[0]++;
+            }, 64);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(sut.isEmpty());
+    }
+}
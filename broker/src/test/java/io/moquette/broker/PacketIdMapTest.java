@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class PacketIdMapTest {
+
+    private final PacketIdMap<String> sut = new PacketIdMap<>(true);
+
+    @Test
+    public void givenCollidingPacketIdsThenAllAreRetrievedAndRemoved() {
+        // all with the same home slot of the initial capacity
+        sut.put(1, "a");
+        sut.put(17, "b");
+        sut.put(33, "c");
+        sut.put(2, "d");
+
+        assertEquals("b", sut.remove(17));
+        assertEquals("a", sut.get(1));
+        assertEquals("c", sut.get(33), "Must be found after the removal of a preceding collision");
+        assertEquals("d", sut.get(2));
+        assertNull(sut.get(17));
+        assertEquals(3, sut.size());
+    }
+
+    @Test
+    public void givenPacketIdsWrappingAroundThenGrowsAndKeepsThemInOrder() {
+        for (int packetId = 65500; packetId <= 65535; packetId++) {
+            sut.put(packetId, "msg" + packetId);
+        }
+        for (int packetId = 1; packetId <= 20; packetId++) {
+            sut.put(packetId, "msg" + packetId);
+        }
+
+        assertEquals(56, sut.size());
+        assertEquals("msg65535", sut.get(65535));
+        assertEquals("msg1", sut.get(1));
+        final int[] packetIds = sut.packetIds();
+        assertEquals(1, packetIds[0]);
+        assertEquals(65535, packetIds[packetIds.length - 1]);
+    }
+
+    @Test
+    public void givenPutOfAnInflightPacketIdThenReplacesTheMessage() {
+        sut.put(10, "publish");
+
+        assertEquals("publish", sut.put(10, "pubrel"));
+        assertEquals("pubrel", sut.get(10));
+        assertEquals(1, sut.size());
+    }
+
+    @Test
+    public void givenDeadlinesThenDrainsOnlyTheExpiredFromTheEarliest() {
+        sut.put(5, "a", 300);
+        sut.put(6, "b", 100);
+        sut.put(7, "c", 200);
+        sut.put(8, "d", PacketIdMap.NO_DEADLINE);
+
+        assertEquals(100, sut.earliestDeadline());
+        assertArrayEquals(new int[] {6, 7}, sut.drainExpired(250));
+        assertArrayEquals(new int[0], sut.drainExpired(250), "Drained deadlines are cleared");
+        assertEquals(300, sut.earliestDeadline());
+
+        sut.setDeadline(6, 400);
+        assertArrayEquals(new int[] {5, 6}, sut.drainExpired(1000));
+        assertEquals(PacketIdMap.NO_DEADLINE, sut.earliestDeadline());
+        assertEquals(4, sut.size(), "Draining doesn't remove the messages");
+    }
+
+    @Test
+    public void givenAllRemovedThenIsEmptyAndReusable() {
+        sut.put(1, "a");
+        sut.put(2, "b");
+        sut.remove(1);
+        sut.remove(2);
+
+        assertTrue(sut.isEmpty());
+        assertArrayEquals(new int[0], sut.packetIds());
+        assertEquals(PacketIdMap.NO_DEADLINE, sut.earliestDeadline());
+
+        sut.put(3, "c");
+        final List<String> values = new ArrayList<>();
+        sut.forEachValue(values::add);
+        assertEquals(List.of("c"), values);
+    }
+
+    @Test
+    public void givenTheLastMessageRemovedThenTheArraysAreKeptUntilTrimmed() {
+        sut.put(1, "a");
+        sut.remove(1);
+        assertEquals(16, sut.capacity(), "The next message in flight must not allocate them again");
+
+        for (int packetId = 1; packetId <= 40; packetId++) {
+            sut.put(packetId, "m" + packetId);
+        }
+        assertEquals(128, sut.capacity());
+        for (int packetId = 1; packetId <= 40; packetId++) {
+            sut.remove(packetId);
+        }
+        assertEquals(16, sut.capacity(), "Once empty shrinks back after a burst");
+
+        sut.trim();
+        assertEquals(0, sut.capacity());
+        sut.put(2, "b");
+        assertEquals("b", sut.get(2));
+    }
+
+    @Test
+    public void givenInvalidPacketIdThenPutFails() {
+        assertThrows(IllegalArgumentException.class, () -> sut.put(0, "a"));
+        assertThrows(IllegalArgumentException.class, () -> sut.put(65536, "a"));
+    }
+}
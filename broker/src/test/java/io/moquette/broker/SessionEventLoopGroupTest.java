@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.metrics.MetricsProviderMock;
+import io.moquette.metrics.MetricsProviderNull;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.awaitility.Awaitility;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionEventLoopGroupTest {
+
+    // "polygenelubricants".hashCode() == Integer.MIN_VALUE
+    private static final String MIN_HASH_CLIENT_ID = "polygenelubricants";
+
+    @Test
+    public void givenClientIdWithMinValueHashThenHashAssignmentReturnsAValidLoop() {
+        final HashSessionLoopAssignment sut = new HashSessionLoopAssignment();
+        sut.init(3);
+
+        final int loop = sut.loopFor(MIN_HASH_CLIENT_ID);
+
+        assertTrue(loop >= 0 && loop < 3, "Loop index out of range: " + loop);
+    }
+
+    @Test
+    public void givenConsistentHashThenSimilarClientIdsAreSpreadOnAllLoops() {
+        final ConsistentHashSessionLoopAssignment sut = new ConsistentHashSessionLoopAssignment();
+        final int loops = 8;
+        sut.init(loops);
+
+        final int[] clientsPerLoop = new int[loops];
+        for (int i = 0; i < 8000; i++) {
+            final String clientId = "sensor-" + i;
+            final int loop = sut.loopFor(clientId);
+            assertEquals(loop, sut.loopFor(clientId), "Assignment must be stable");
+            clientsPerLoop[loop]++;
+        }
+        for (int clients : clientsPerLoop) {
+            // 1000 clients expected on each loop
+            assertTrue(clients > 500 && clients < 1500, "Unbalanced loop with " + clients + " clients");
+        }
+        assertTrue(sut.loopFor(MIN_HASH_CLIENT_ID) >= 0);
+    }
+
+    @Test
+    public void givenLeastLoadedThenNewClientsGoToTheLoopWithLessClients() {
+        final LeastLoadedSessionLoopAssignment sut = new LeastLoadedSessionLoopAssignment();
+        sut.init(2);
+
+        assertEquals(0, sut.acquire("client1"));
+        sut.bind("client1");
+        sut.completed("client1");
+        assertEquals(1, sut.acquire("client2"));
+        sut.bind("client2");
+        sut.completed("client2");
+        assertEquals(0, sut.acquire("client1"), "Assignment must be sticky");
+        sut.completed("client1");
+
+        sut.release("client1");
+        assertEquals(0, sut.assignedClients(0));
+
+        assertEquals(0, sut.acquire("client3"));
+        assertEquals(1, sut.assignedClients(0));
+        assertEquals(1, sut.assignedClients(1));
+    }
+
+    @Test
+    public void givenLeastLoadedWhenReleasedWithPendingCommandsThenTheBindingLastsUntilTheirCompletion() {
+        final LeastLoadedSessionLoopAssignment sut = new LeastLoadedSessionLoopAssignment();
+        sut.init(2);
+        sut.bind("client1");
+        // a command of the reconnecting client, still queued when the old session is released
+        assertEquals(0, sut.acquire("client1"));
+
+        sut.release("client1");
+        sut.bind("client2");
+        assertEquals(0, sut.acquire("client1"), "Pending commands must keep the client on its loop");
+
+        sut.completed("client1");
+        sut.completed("client1");
+        assertEquals(0, sut.assignedClients(0));
+        assertEquals(1, sut.boundClients());
+    }
+
+    @Test
+    public void givenLeastLoadedWhenConnectDoesNotOpenASessionThenTheBindingIsDropped()
+        throws ExecutionException, InterruptedException, TimeoutException {
+        final LeastLoadedSessionLoopAssignment assignment = new LeastLoadedSessionLoopAssignment();
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            16, 0, 2, assignment, new MetricsProviderNull());
+        try {
+            // a refused CONNECT, that closes the connection without opening a session
+            sut.routeCommand("client1", "CONN", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+        } finally {
+            sut.terminate();
+        }
+
+        assertEquals(0, assignment.boundClients());
+        assertEquals(0, assignment.assignedClients(0));
+    }
+
+    @Test
+    public void givenCommandsRoutedThenTheStatsOfTheOwningLoopAreUpdated() throws ExecutionException,
+        InterruptedException, TimeoutException {
+        final LeastLoadedSessionLoopAssignment assignment = new LeastLoadedSessionLoopAssignment();
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            16, 0, 2, assignment, new MetricsProviderNull());
+        // clients with a session, stay bound after their commands
+        sut.bindClient("client1");
+        sut.bindClient("client2");
+        try {
+            sut.routeCommand("client1", "test", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+            sut.routeCommand("client2", "test", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+            sut.routeCommand("client2", "test", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+
+            // the command future completes before the loop accounts the execution
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).untilAsserted(() -> {
+                final List<SessionLoopStats> stats = sut.loopsStats();
+                assertEquals(2, stats.size());
+                assertEquals(1, stats.get(0).getExecutedCommands());
+                assertEquals(2, stats.get(1).getExecutedCommands());
+                assertEquals(0, stats.get(1).getRejectedCommands());
+            });
+        } finally {
+            sut.terminate();
+        }
+    }
+
+    @Test
+    public void givenCommandsRoutedFromOtherThreadsThenTheirWaitAndExecutionTimesAreRecorded() throws ExecutionException,
+        InterruptedException, TimeoutException {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            16, 0, 1, new HashSessionLoopAssignment(), metrics);
+        try {
+            sut.routeCommand("client1", "test", () -> {
+                // executed directly by the loop, doesn't wait in the queue
+                sut.routeCommand("client1", "nested", () -> null);
+                return null;
+            }).completableFuture().get(5, TimeUnit.SECONDS);
+            sut.routeCommand("client1", "test", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).untilAsserted(() -> {
+                assertEquals(2, metrics.getSessionTaskWaits());
+                assertEquals(3, metrics.getSessionTaskExecutions());
+            });
+        } finally {
+            sut.terminate();
+        }
+    }
+
+    @Test
+    public void givenSessionTaskEventEnabledThenTheCommandsExecutionIsRecordedWithTheirAction(@TempDir Path tempDir)
+        throws ExecutionException, InterruptedException, TimeoutException, IOException {
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            16, 0, 1, new HashSessionLoopAssignment(), new MetricsProviderNull());
+        final Path dump = tempDir.resolve("session_tasks.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(SessionTaskEvent.class).withThreshold(Duration.ZERO);
+            recording.start();
+            sut.routeCommand("client1", "traced action", () -> null).completableFuture().get(5, TimeUnit.SECONDS);
+            recording.stop();
+            recording.dump(dump);
+        } finally {
+            sut.terminate();
+        }
+
+        final List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        assertTrue(events.stream().anyMatch(e -> "io.moquette.SessionTask".equals(e.getEventType().getName())
+                && "client1".equals(e.getString("clientId"))
+                && "traced action".equals(e.getString("action"))),
+            "Expected a SessionTask event for the routed command, got " + events);
+    }
+
+    @Test
+    public void givenRingBufferLoopsThenCommandsOfAClientAreExecutedInOrder() throws ExecutionException,
+        InterruptedException, TimeoutException {
+        for (RingBufferSessionEventLoop.WaitStrategy waitStrategy : RingBufferSessionEventLoop.WaitStrategy.values()) {
+            final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+                16, 1000, 2, new HashSessionLoopAssignment(),
+                (queueSize, queueId, offerTimeoutMs, metricsProvider) ->
+                    new RingBufferSessionEventLoop(queueSize, queueId, offerTimeoutMs, waitStrategy, metricsProvider),
+                new MetricsProviderNull());
+            try {
+                final List<Integer> executed = new ArrayList<>();
+                PostOffice.RouteResult last = null;
+                for (int i = 0; i < 100; i++) {
+                    final int commandId = i;
+                    last = sut.routeCommand("client1", "test", () -> {
+                        executed.add(commandId);
+                        return null;
+                    });
+                    assertTrue(last.isSuccess(), "Command must be accepted with " + waitStrategy);
+                }
+                last.completableFuture().get(5, TimeUnit.SECONDS);
+
+                assertEquals(100, executed.size());
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(i, (int) executed.get(i));
+                }
+            } finally {
+                sut.terminate();
+            }
+        }
+    }
+
+    @Test
+    public void givenRingBufferLoopIsFullThenTheCommandIsRejected() throws InterruptedException {
+        final CountDownLatch executing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SessionEventLoopGroup sut = new SessionEventLoopGroup(ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR,
+            1, 0, 1, new HashSessionLoopAssignment(),
+            (queueSize, queueId, offerTimeoutMs, metricsProvider) -> new RingBufferSessionEventLoop(queueSize, queueId,
+                offerTimeoutMs, RingBufferSessionEventLoop.WaitStrategy.PARK, metricsProvider),
+            new MetricsProviderNull());
+        try {
+            // keep the loop busy, so that the next command stays in the single slot
+            sut.routeCommand("client1", "blocking", () -> {
+                executing.countDown();
+                release.await();
+                return null;
+            });
+            assertTrue(executing.await(5, TimeUnit.SECONDS));
+            assertTrue(sut.routeCommand("client1", "queued", () -> null).isSuccess());
+
+            assertFalse(sut.routeCommand("client1", "overflow", () -> null).isSuccess());
+            assertEquals(1, sut.loopsStats().get(0).getRejectedCommands());
+        } finally {
+            release.countDown();
+            sut.terminate();
+        }
+    }
+
+    @Test
+    public void givenNotPositiveLoopsCountThenTheGroupIsNotCreated() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionEventLoopGroup(
+            ConnectionTestUtils.NO_OBSERVERS_INTERCEPTOR, 16, 0, 0, new HashSessionLoopAssignment(),
+            new MetricsProviderNull()));
+    }
+}
@@ -1,6 +1,7 @@
 package io.moquette.broker;
 
 import io.moquette.broker.subscriptions.Topic;
+import io.moquette.metrics.MetricsProviderMock;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.UnpooledByteBufAllocator;
@@ -21,6 +22,7 @@ import org.assertj.core.api.Assertions;
 
 import static io.moquette.BrokerConstants.*;
 import static io.moquette.broker.Session.INFINITE_EXPIRY;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -66,6 +68,33 @@ public class SessionTest {
         testChannel.close();
     }
 
+    @Test
+    public void givenMessagesSentAndAckedThenDeliveryAndRoundTripLatenciesAreRecorded() {
+        final MetricsProviderMock metrics = new MetricsProviderMock();
+        final ISessionsRepository.SessionData data = new ISessionsRepository.SessionData(CLIENT_ID,
+            MqttVersion.MQTT_3_1_1, INFINITE_EXPIRY, Clock.systemDefaultZone());
+        final Session sut = new Session(data, true, new InMemoryQueue(), null, metrics);
+        createConnection(sut);
+        final Topic destinationTopic = new Topic("/a/b");
+        // fill the inflight window, the last one goes through the queue
+        for (int i = 0; i <= INFLIGHT_WINDOW_SIZE; i++) {
+            sendQoS1To(sut, destinationTopic, "Hello World " + i + "!");
+        }
+        assertEquals(INFLIGHT_WINDOW_SIZE, metrics.getMessageDeliveries());
+
+        sut.pubAckReceived(1);
+
+        assertEquals(INFLIGHT_WINDOW_SIZE + 1, metrics.getMessageDeliveries(), "The queued message is sent");
+        assertEquals(1, metrics.getAckRoundTrips(MqttQoS.AT_LEAST_ONCE.value()));
+
+        for (int i = 2; i <= INFLIGHT_WINDOW_SIZE + 1; i++) {
+            sut.pubAckReceived(i);
+        }
+        assertEquals(INFLIGHT_WINDOW_SIZE + 1, metrics.getAckRoundTrips(MqttQoS.AT_LEAST_ONCE.value()));
+        sut.closeImmediately();
+        testChannel.close();
+    }
+
     private ByteBuf sendQoS1To(Session client, Topic destinationTopic, String message) {
         final ByteBuf payload = ByteBufUtil.writeUtf8(UnpooledByteBufAllocator.DEFAULT, message);
         final SessionRegistry.PublishedMessage publishedMessage = new SessionRegistry.PublishedMessage(destinationTopic, MqttQoS.AT_LEAST_ONCE, payload, false, Instant.MAX);
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.timeout.IdleStateEvent;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedIdleStateHandlerTest {
+
+    private final SharedIdleStateHandler sut = new SharedIdleStateHandler(0);
+    private final List<Object> userEvents = new CopyOnWriteArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        sut.stop();
+    }
+
+    private EmbeddedChannel createChannel() {
+        return new EmbeddedChannel(sut, new ChannelInboundHandlerAdapter() {
+            @Override
+            public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+                userEvents.add(evt);
+            }
+        });
+    }
+
+    @Test
+    public void givenIdleChannelThenReaderIdleIsFired() throws InterruptedException {
+        final EmbeddedChannel channel = createChannel();
+        sut.setIdleTime(channel, 1);
+
+        Thread.sleep(1_500);
+        channel.runPendingTasks();
+
+        assertEquals(1, userEvents.size());
+        assertEquals(IdleStateEvent.FIRST_READER_IDLE_STATE_EVENT, userEvents.get(0));
+    }
+
+    @Test
+    public void givenChannelReadingThenReaderIdleIsNotFired() throws InterruptedException {
+        final EmbeddedChannel channel = createChannel();
+        sut.setIdleTime(channel, 1);
+
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(300);
+            channel.writeInbound(Unpooled.wrappedBuffer(new byte[] {(byte) 0xC0, 0x00})); // PINGREQ
+            channel.runPendingTasks();
+        }
+
+        assertTrue(userEvents.isEmpty(), "The reads must postpone the idle timeout");
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    public void givenDisabledIdleTimeOrClosedChannelThenReaderIdleIsNotFired() throws InterruptedException {
+        final EmbeddedChannel disabled = createChannel();
+        sut.setIdleTime(disabled, 1);
+        sut.setIdleTime(disabled, 0);
+        final EmbeddedChannel closed = createChannel();
+        sut.setIdleTime(closed, 1);
+        closed.close();
+
+        Thread.sleep(1_500);
+        disabled.runPendingTasks();
+        closed.runPendingTasks();
+
+        assertTrue(userEvents.isEmpty());
+    }
+
+    @Test
+    public void givenIdleTimeChangedConcurrentlyThenTheChannelKeepsOneTimeout() throws InterruptedException {
+        final EmbeddedChannel channel = createChannel();
+        final List<Thread> changers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            final Thread changer = new Thread(() -> {
+                for (int j = 0; j < 1_000; j++) {
+                    sut.setIdleTime(channel, 1);
+                }
+            });
+            changer.start();
+            changers.add(changer);
+        }
+        for (Thread changer : changers) {
+            changer.join();
+        }
+
+        Thread.sleep(1_500);
+        channel.runPendingTasks();
+
+        assertEquals(1, userEvents.size(), "A single timeout must be left scheduled");
+    }
+}
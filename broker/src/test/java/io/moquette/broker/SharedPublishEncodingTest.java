@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker;
+
+import io.moquette.broker.metrics.MQTTMessageLogger;
+import io.moquette.broker.metrics.MessageMetricsCollector;
+import io.moquette.broker.metrics.MessageMetricsHandler;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.mqtt.MqttEncoder;
+import io.netty.handler.codec.mqtt.MqttProperties;
+import io.netty.handler.codec.mqtt.MqttProperties.MqttPropertyType;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SharedPublishEncodingTest {
+
+    private static final String TOPIC = "kitchen/temp";
+    private static final String PAYLOAD = "21.5";
+
+    private ByteBuf payload;
+
+    @BeforeEach
+    public void setUp() {
+        payload = Unpooled.copiedBuffer(PAYLOAD, StandardCharsets.UTF_8);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        payload.release();
+    }
+
+    private static int readVariableLengthInt(ByteBuf buf) {
+        int value = 0;
+        int multiplier = 1;
+        byte digit;
+        do {
+            digit = buf.readByte();
+            value += (digit & 0x7F) * multiplier;
+            multiplier *= 128;
+        } while ((digit & 0x80) != 0);
+        return value;
+    }
+
+    private static String readUTF8String(ByteBuf buf) {
+        final int length = buf.readUnsignedShort();
+        return buf.readCharSequence(length, StandardCharsets.UTF_8).toString();
+    }
+
+    @Test
+    public void givenMqtt3SubscriberThenThePublishContainsOnlyTopicPacketIdAndPayload() {
+        final SharedPublishEncoding sut = new SharedPublishEncoding(SharedPublishEncoding.sharedProperties(List.of()));
+        final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(Topic.asTopic(TOPIC),
+            MqttQoS.AT_LEAST_ONCE, payload, true, Instant.MAX, sut.properties());
+
+        final ByteBuf encoded = sut.encode(ByteBufAllocator.DEFAULT, false, msg, 42);
+        try {
+            assertEquals(0x30 | (1 << 1) | 0x01, encoded.readUnsignedByte(), "PUBLISH at QoS1 retained");
+            assertEquals(encoded.readableBytes() - 1, readVariableLengthInt(encoded));
+            assertEquals(TOPIC, readUTF8String(encoded));
+            assertEquals(42, encoded.readUnsignedShort());
+            assertEquals(PAYLOAD, encoded.toString(StandardCharsets.UTF_8));
+        } finally {
+            encoded.release();
+        }
+        sut.release();
+        assertEquals(1, payload.refCnt(), "The payload must be released with the packet");
+    }
+
+    @Test
+    public void givenMqtt5SubscriberThenSharedAndSubscriberPropertiesAreEncoded() {
+        final MqttProperties.UserProperty userProperty = new MqttProperties.UserProperty("unit", "celsius");
+        final MqttProperties.IntegerProperty publishedSubscriptionId =
+            new MqttProperties.IntegerProperty(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), 7);
+        final MqttProperties.IntegerProperty expiry =
+            new MqttProperties.IntegerProperty(MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), 60);
+        final SharedPublishEncoding sut = new SharedPublishEncoding(
+            SharedPublishEncoding.sharedProperties(Arrays.asList(userProperty, publishedSubscriptionId, expiry)));
+        assertEquals(2, sut.properties().length, "The subscription identifier of the publisher must be skipped");
+
+        final MqttProperties.MqttProperty[] properties = Arrays.copyOf(sut.properties(), 3);
+        properties[2] = new MqttProperties.IntegerProperty(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), 300);
+        final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(Topic.asTopic(TOPIC),
+            MqttQoS.AT_MOST_ONCE, payload, false, Instant.now().plusSeconds(60), properties);
+
+        final ByteBuf encoded = sut.encode(ByteBufAllocator.DEFAULT, true, msg, 0);
+        try {
+            assertEquals(0x30, encoded.readUnsignedByte(), "PUBLISH at QoS0 not retained");
+            assertEquals(encoded.readableBytes() - 1, readVariableLengthInt(encoded));
+            assertEquals(TOPIC, readUTF8String(encoded));
+            final int propertiesLength = readVariableLengthInt(encoded);
+            final ByteBuf encodedProperties = encoded.readSlice(propertiesLength);
+
+            assertEquals(MqttPropertyType.SUBSCRIPTION_IDENTIFIER.value(), readVariableLengthInt(encodedProperties));
+            assertEquals(300, readVariableLengthInt(encodedProperties));
+            assertEquals(MqttPropertyType.PUBLICATION_EXPIRY_INTERVAL.value(), readVariableLengthInt(encodedProperties));
+            final int remainingSeconds = encodedProperties.readInt();
+            assertTrue(remainingSeconds > 0 && remainingSeconds <= 60, "Expiry must be the remaining time");
+            assertEquals(MqttPropertyType.USER_PROPERTY.value(), readVariableLengthInt(encodedProperties));
+            assertEquals("unit", readUTF8String(encodedProperties));
+            assertEquals("celsius", readUTF8String(encodedProperties));
+            assertFalse(encodedProperties.isReadable(), "The expiry must not be repeated from the shared properties");
+
+            assertEquals(PAYLOAD, encoded.toString(StandardCharsets.UTF_8));
+        } finally {
+            encoded.release();
+        }
+        sut.release();
+        assertEquals(1, payload.refCnt());
+    }
+
+    @Test
+    public void givenManySubscribersThenThePacketsOutliveTheSharedEncoding() {
+        final SharedPublishEncoding sut = new SharedPublishEncoding(SharedPublishEncoding.sharedProperties(
+            List.of(new MqttProperties.StringProperty(MqttPropertyType.CONTENT_TYPE.value(), "text/plain"))));
+        final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(Topic.asTopic(TOPIC),
+            MqttQoS.AT_MOST_ONCE, payload, false, Instant.MAX, sut.properties());
+        assertSame(sut.properties(), msg.updatePublicationExpiryIfPresentOrAdd(),
+            "Properties without expiry must not be copied");
+
+        final ByteBuf first = sut.encode(ByteBufAllocator.DEFAULT, true, msg, 0);
+        final ByteBuf second = sut.encode(ByteBufAllocator.DEFAULT, true, msg, 0);
+        sut.release();
+        try {
+            assertEquals(first, second, "Same message to subscribers without differences");
+            assertEquals(3, payload.refCnt(), "Each packet holds a reference to the payload");
+        } finally {
+            first.release();
+            second.release();
+        }
+        assertEquals(1, payload.refCnt());
+    }
+
+    @Test
+    public void givenEncodedPublishWrittenThenTheMessageMetricsCountIt() {
+        final MessageMetricsCollector collector = new MessageMetricsCollector();
+        // same order of the broker pipeline, the writes go from the last handler to the first
+        final EmbeddedChannel channel = new EmbeddedChannel(MqttEncoder.INSTANCE,
+            new MessageMetricsHandler(collector), new MQTTMessageLogger());
+        final SharedPublishEncoding sut = new SharedPublishEncoding(SharedPublishEncoding.sharedProperties(List.of()));
+        final SessionRegistry.PublishedMessage msg = new SessionRegistry.PublishedMessage(Topic.asTopic(TOPIC),
+            MqttQoS.AT_MOST_ONCE, payload, false, Instant.MAX, sut.properties());
+
+        channel.writeAndFlush(sut.encode(channel.alloc(), false, msg, 0));
+        sut.release();
+
+        assertEquals(1, MessageMetricsHandler.getMessageMetrics(channel).messagesWrote());
+        final ByteBuf written = channel.readOutbound();
+        written.release();
+        channel.finishAndReleaseAll();
+        assertEquals(1, collector.computeMetrics().messagesWrote());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.scheduler;
+
+import io.moquette.broker.ForwardableClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelExpirationServiceTest {
+
+    private static final class ExpiringEntity implements Expirable {
+        private final String id;
+        private final Instant expireAt;
+
+        ExpiringEntity(String id, Instant expireAt) {
+            this.id = id;
+            this.expireAt = expireAt;
+        }
+
+        @Override
+        public Optional<Instant> expireAt() {
+            return Optional.of(expireAt);
+        }
+    }
+
+    private final ForwardableClock clock = new ForwardableClock(
+        Clock.fixed(Instant.parse("2023-03-26T18:09:30.00Z"), ZoneId.of("Europe/Rome")));
+    private final List<String> fired = new CopyOnWriteArrayList<>();
+    private TimingWheelExpirationService<ExpiringEntity> sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new TimingWheelExpirationService<>(clock, entity -> fired.add(entity.id), Duration.ofSeconds(1));
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sut.shutdown();
+    }
+
+    private void track(String id, Duration expireIn) {
+        sut.track(id, new ExpiringEntity(id, clock.instant().plus(expireIn)));
+    }
+
+    private void forward(Duration period) {
+        clock.forward(period);
+        sut.fireExpired();
+    }
+
+    @Test
+    public void givenTrackedEntityThenIsFiredOnlyOnceExpired() {
+        track("session", Duration.ofMillis(10_500));
+
+        forward(Duration.ofSeconds(10));
+        assertTrue(fired.isEmpty(), "Must not be fired before its expiry");
+
+        forward(Duration.ofSeconds(1));
+        assertEquals(Collections.singletonList("session"), fired);
+
+        forward(Duration.ofSeconds(10));
+        assertEquals(1, fired.size(), "Must be fired once");
+    }
+
+    @Test
+    public void givenUntrackedEntityThenIsNotFired() {
+        track("will", Duration.ofSeconds(5));
+
+        assertTrue(sut.untrack("will"));
+        assertFalse(sut.untrack("will"), "Already untracked");
+        forward(Duration.ofSeconds(10));
+
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void givenEntityTrackedAgainThenOnlyTheLastExpiryIsFired() {
+        track("retained", Duration.ofSeconds(5));
+        track("retained", Duration.ofSeconds(20));
+
+        forward(Duration.ofSeconds(10));
+        assertTrue(fired.isEmpty(), "The replaced expiry must not be fired");
+
+        forward(Duration.ofSeconds(10));
+        assertEquals(Collections.singletonList("retained"), fired);
+    }
+
+    @Test
+    public void givenFarExpiriesThenAreCascadedAndFiredInOrder() {
+        // on the first, second and third level of the wheel
+        track("minutes", Duration.ofMinutes(3));
+        track("hours", Duration.ofHours(5));
+        track("days", Duration.ofDays(3));
+        track("past", Duration.ofSeconds(-1));
+
+        forward(Duration.ofSeconds(1));
+        assertEquals(Collections.singletonList("past"), fired, "Already expired, fired at the next tick");
+
+        forward(Duration.ofMinutes(3).minusSeconds(2));
+        assertEquals(1, fired.size());
+        forward(Duration.ofSeconds(1));
+        assertEquals(Arrays.asList("past", "minutes"), fired);
+
+        forward(Duration.ofHours(5).minusMinutes(3).minusSeconds(1));
+        assertEquals(2, fired.size());
+        forward(Duration.ofSeconds(1));
+        assertEquals(Arrays.asList("past", "minutes", "hours"), fired);
+
+        forward(Duration.ofDays(3).minusHours(5).minusSeconds(1));
+        assertEquals(3, fired.size());
+        forward(Duration.ofSeconds(1));
+        assertEquals(Arrays.asList("past", "minutes", "hours", "days"), fired);
+    }
+
+    @Test
+    public void givenManyEntitiesWhenTheClockJumpsThenAllAreFiredInOneBatch() {
+        for (int i = 0; i < 1000; i++) {
+            track("client" + i, Duration.ofSeconds(1 + i * 7L));
+        }
+
+        clock.forward(Duration.ofHours(2));
+        assertEquals(1000, sut.fireExpired());
+    }
+}
@@ -152,4 +152,68 @@ public class AuthorizationsCollectorTest {
         // Verify
         assertTrue(authorizator.canRead(new Topic("/weather/italy/anemometer1"), "italy", "anemometer1"));
     }
+
+    @Test
+    public void testPatternWithPlaceholderInsideTheLevel() throws ParseException {
+        authorizator.parse("pattern read /devices/dev-%c/status");
+
+        // Verify
+        assertTrue(authorizator.canRead(new Topic("/devices/dev-42/status"), "", "42"));
+        assertFalse(authorizator.canRead(new Topic("/devices/dev-43/status"), "", "42"));
+    }
+
+    @Test
+    public void testPatternPlaceholderMatchesOnlyOneLevel() throws ParseException {
+        authorizator.parse("pattern write /devices/%c");
+
+        // Verify
+        assertFalse(authorizator.canWrite(new Topic("/devices/other"), "", "#"));
+        assertFalse(authorizator.canWrite(new Topic("/devices/a/b"), "", "a/b"));
+        assertTrue(authorizator.canWrite(new Topic("/devices/#"), "", "#"));
+    }
+
+    @Test
+    public void testPatternWithoutClientDoesNotMatchThePlaceholder() throws ParseException {
+        authorizator.parse("pattern write /users/%u/%c");
+
+        // Verify
+        assertFalse(authorizator.canWrite(new Topic("/users/john/"), "john", ""));
+    }
+
+    @Test
+    public void testCachedCheckIsUpdatedByParse() throws ParseException {
+        assertFalse(authorizator.canWrite(new Topic("/sensors"), "", ""));
+
+        authorizator.parse("topic write /sensors");
+
+        // verify
+        assertTrue(authorizator.canWrite(new Topic("/sensors"), "", ""));
+    }
+
+    @Test
+    public void testMultiMatcherAlsoMatchesTheParentLevel() throws ParseException {
+        authorizator.parse("topic read /sensors/+/#");
+
+        // verify
+        assertTrue(authorizator.canRead(new Topic("/sensors"), "", ""));
+        assertTrue(authorizator.canRead(new Topic("/sensors/anemometer/wind"), "", ""));
+        assertFalse(authorizator.canRead(new Topic("/weather"), "", ""));
+    }
+
+    @Test
+    public void testReadWriteIsGrantedOnlyByAReadWriteRule() {
+        final ACLMatcher matcher = new ACLMatcher(false);
+        matcher.add(R_ANEMOMETER);
+        matcher.add(W_ANEMOMETER);
+        final Topic anemometer = new Topic("/weather/italy/anemometer");
+
+        // verify
+        assertTrue(matcher.grants(anemometer, Authorization.Permission.READ, "", ""));
+        assertTrue(matcher.grants(anemometer, Authorization.Permission.WRITE, "", ""));
+        assertFalse(matcher.grants(anemometer, Authorization.Permission.READWRITE, "", ""),
+            "Separate read and write rules don't grant readwrite");
+
+        matcher.add(RW_ANEMOMETER);
+        assertTrue(matcher.grants(anemometer, Authorization.Permission.READWRITE, "", ""));
+    }
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.broker.security;
+
+import io.moquette.broker.ForwardableClock;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CredentialsCacheTest {
+
+    private final ForwardableClock clock = new ForwardableClock(Clock.systemUTC());
+    private final CredentialsCache sut = new CredentialsCache(2, Duration.ofSeconds(60), Duration.ofSeconds(10), clock);
+
+    @Test
+    public void givenCachedPasswordThenItExpiresAfterTheTtl() {
+        sut.put("dbuser", "hash");
+
+        clock.forward(Duration.ofSeconds(59));
+        assertEquals("hash", sut.get("dbuser").storedPassword);
+
+        clock.forward(Duration.ofSeconds(1));
+        assertNull(sut.get("dbuser"), "Expired password must not be returned");
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    public void givenUnknownUserThenItIsCachedWithTheNegativeTtl() {
+        sut.put("unknown", null);
+
+        final CredentialsCache.Entry cached = sut.get("unknown");
+        assertNotNull(cached, "Unknown user must be cached");
+        assertNull(cached.storedPassword);
+
+        clock.forward(Duration.ofSeconds(10));
+        assertNull(sut.get("unknown"));
+    }
+
+    @Test
+    public void givenFullCacheThenTheEntryNotRecentlyReadIsEvicted() {
+        sut.put("first", "hash1");
+        sut.put("second", "hash2");
+        sut.get("second");
+
+        sut.put("third", "hash3");
+
+        assertEquals(2, sut.size());
+        assertNull(sut.get("first"));
+        assertNotNull(sut.get("second"));
+        assertNotNull(sut.get("third"));
+    }
+}
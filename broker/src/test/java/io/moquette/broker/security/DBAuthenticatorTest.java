@@ -26,9 +26,13 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class DBAuthenticatorTest {
@@ -97,6 +101,59 @@ public class DBAuthenticatorTest {
         assertFalse(dbAuthenticator.checkValid(null, "dbuser", "wrongPassword".getBytes(UTF_8)));
     }
 
+    @Test
+    public void Db_verifyValidAsync() throws Exception {
+        final DBAuthenticator dbAuthenticator = new DBAuthenticator(
+                ORG_H2_DRIVER,
+                JDBC_H2_MEM_TEST,
+                "SELECT PASSWORD FROM ACCOUNT WHERE LOGIN=?",
+                SHA_256);
+        assertTrue(dbAuthenticator.checkValidAsync(null, "dbuser", "password".getBytes(UTF_8))
+            .toCompletableFuture().get(5, TimeUnit.SECONDS));
+        assertFalse(dbAuthenticator.checkValidAsync(null, "dbuser", "wrongPassword".getBytes(UTF_8))
+            .toCompletableFuture().get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void Db_verifyCachedCredentialsAreCheckedWithoutTheDb() throws SQLException {
+        final DBAuthenticator dbAuthenticator = new DBAuthenticator(
+                ORG_H2_DRIVER,
+                JDBC_H2_MEM_TEST,
+                "SELECT PASSWORD FROM ACCOUNT WHERE LOGIN=?",
+                SHA_256, DBAuthenticator.DEFAULT_POOL_SIZE,
+                100, Duration.ofMinutes(1), Duration.ofMinutes(1));
+        assertTrue(dbAuthenticator.checkValid(null, "dbuser", "password".getBytes(UTF_8)));
+        assertFalse(dbAuthenticator.checkValid(null, "dbuser2", "password".getBytes(UTF_8)));
+
+        try (Statement statement = this.connection.createStatement()) {
+            statement.execute("DELETE FROM ACCOUNT");
+            statement.execute("INSERT INTO ACCOUNT ( LOGIN , PASSWORD ) VALUES ('dbuser2', 'any')");
+        }
+
+        assertTrue(dbAuthenticator.checkValid(null, "dbuser", "password".getBytes(UTF_8)),
+            "Password hash must be cached");
+        assertFalse(dbAuthenticator.checkValid(null, "dbuser", "wrongPassword".getBytes(UTF_8)));
+        assertFalse(dbAuthenticator.checkValid(null, "dbuser2", "password".getBytes(UTF_8)),
+            "Unknown user must be cached");
+    }
+
+    @Test
+    public void Db_verifyClosedAuthenticatorRejectsTheChecks() {
+        final DBAuthenticator dbAuthenticator = new DBAuthenticator(
+                ORG_H2_DRIVER,
+                JDBC_H2_MEM_TEST,
+                "SELECT PASSWORD FROM ACCOUNT WHERE LOGIN=?",
+                SHA_256);
+        assertTrue(dbAuthenticator.checkValid(null, "dbuser", "password".getBytes(UTF_8)));
+
+        dbAuthenticator.close();
+
+        assertFalse(dbAuthenticator.checkValid(null, "dbuser", "password".getBytes(UTF_8)),
+            "Connections pool must be closed");
+        assertThrows(RejectedExecutionException.class,
+            () -> dbAuthenticator.checkValidAsync(null, "dbuser", "password".getBytes(UTF_8)));
+    }
+
     @AfterEach
     public void teardown() {
         try {
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static io.moquette.broker.subscriptions.CTrieSharedSubscriptionDirectoryMatchingTest.asOption;
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CTrieSubscriptionDirectoryMatchCacheTest {
+
+    private CTrieSubscriptionDirectory sut;
+    private SubscriptionsMatchCache cache;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new CTrieSubscriptionDirectory(2);
+        sut.init(new MemorySubscriptionsRepository());
+        cache = sut.matchCache();
+    }
+
+    private static Subscription subscription(String clientId, String topicFilter, MqttQoS qos) {
+        return new Subscription(clientId, asTopic(topicFilter), asOption(qos));
+    }
+
+    @Test
+    public void givenRepeatedPublishOnSameTopicThenTheMatchIsCached() {
+        sut.add(subscription("TempSensor1", "sensors/+/temp", MqttQoS.AT_MOST_ONCE));
+
+        final List<Subscription> first = sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+        final List<Subscription> second = sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        assertEquals(1, first.size());
+        assertEquals(first, second);
+        assertEquals(1, cache.hits(), "Second match must be served from the cache");
+    }
+
+    @Test
+    public void givenCachedTopicWhenAMatchingSubscriptionIsAddedThenTheEntryIsInvalidated() {
+        sut.add(subscription("TempSensor1", "sensors/kitchen/temp", MqttQoS.AT_MOST_ONCE));
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        sut.add(subscription("TempSensor2", "sensors/#", MqttQoS.AT_MOST_ONCE));
+
+        final List<Subscription> matched = sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+        assertEquals(2, matched.size(), "New subscription must be visible after the invalidation");
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void givenCachedTopicWhenAQosUpgradeIsSubscribedThenTheSharpenedQosIsUpdated() {
+        sut.add(subscription("TempSensor1", "sensors/kitchen/temp", MqttQoS.AT_MOST_ONCE));
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        sut.add(subscription("TempSensor1", "sensors/+/temp", MqttQoS.EXACTLY_ONCE));
+
+        final List<Subscription> matched = sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+        assertEquals(1, matched.size());
+        assertEquals(MqttQoS.EXACTLY_ONCE, matched.get(0).getOption().qos());
+    }
+
+    @Test
+    public void givenCachedTopicWhenANotMatchingSubscriptionChangesThenTheEntryIsKept() {
+        sut.add(subscription("TempSensor1", "sensors/kitchen/temp", MqttQoS.AT_MOST_ONCE));
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        sut.add(subscription("TempSensor2", "sensors/garage/+", MqttQoS.AT_MOST_ONCE));
+        sut.removeSubscription(subscription("TempSensor2", "sensors/garage/+", MqttQoS.AT_MOST_ONCE));
+
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+        assertEquals(1, cache.hits(), "Entry not matched by changed filters must survive");
+    }
+
+    @Test
+    public void givenCachedTopicWhenTheSubscriptionIsRemovedThenItsNoMoreMatched() {
+        final Subscription sub = subscription("TempSensor1", "sensors/kitchen/#", MqttQoS.AT_MOST_ONCE);
+        sut.add(sub);
+        assertEquals(1, sut.matchQosSharpening(asTopic("sensors/kitchen/temp")).size());
+
+        sut.removeSubscription(sub);
+
+        assertTrue(sut.matchQosSharpening(asTopic("sensors/kitchen/temp")).isEmpty());
+    }
+
+    @Test
+    public void givenCachedParentLevelWhenAMultiLevelWildcardBelowItIsSubscribedThenTheEntryIsInvalidated() {
+        assertTrue(sut.matchQosSharpening(asTopic("sensors")).isEmpty());
+
+        sut.add(subscription("TempSensor1", "sensors/#", MqttQoS.AT_MOST_ONCE));
+
+        assertEquals(1, sut.matchQosSharpening(asTopic("sensors")).size(),
+            "Multi level wildcard matches also the parent level");
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    public void givenCachedParentLevelWhenASingleLevelWildcardBelowItIsSubscribedThenTheEntryIsKept() {
+        assertTrue(sut.matchQosSharpening(asTopic("sensors")).isEmpty());
+
+        sut.add(subscription("TempSensor1", "sensors/+/#", MqttQoS.AT_MOST_ONCE));
+
+        assertTrue(sut.matchQosSharpening(asTopic("sensors")).isEmpty(),
+            "Single level wildcard requires a level below the parent");
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void givenCachedReservedTopicWhenAMultiLevelWildcardIsSubscribedThenTheEntryIsKept() {
+        assertTrue(sut.matchQosSharpening(asTopic("$SYS/broker")).isEmpty());
+
+        sut.add(subscription("TempSensor1", "#", MqttQoS.AT_MOST_ONCE));
+
+        assertTrue(sut.matchQosSharpening(asTopic("$SYS/broker")).isEmpty());
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    public void givenWildcardSubscriptionsChangedThenTheCachedMatchesAreTheSameOfTheTree() {
+        final CTrieSubscriptionDirectory cached = new CTrieSubscriptionDirectory(100);
+        cached.init(new MemorySubscriptionsRepository());
+        final CTrieSubscriptionDirectory uncached = new CTrieSubscriptionDirectory(0);
+        uncached.init(new MemorySubscriptionsRepository());
+        final List<String> filters = Arrays.asList("a/+/#", "a/#", "+/#", "#", "+", "a/+", "+/+", "$SYS/#", "a");
+        final List<String> topics = Arrays.asList("a", "a/b", "a/b/c", "b", "/", "$SYS", "$SYS/a");
+
+        for (String filter : filters) {
+            matchAll(cached, topics);
+            final Subscription sub = subscription("TempSensor1", filter, MqttQoS.AT_MOST_ONCE);
+            cached.add(sub);
+            uncached.add(sub);
+            assertSameMatches(cached, uncached, topics, "after subscribing " + filter);
+
+            matchAll(cached, topics);
+            cached.removeSubscription(sub);
+            uncached.removeSubscription(sub);
+            assertSameMatches(cached, uncached, topics, "after unsubscribing " + filter);
+        }
+    }
+
+    private static void matchAll(CTrieSubscriptionDirectory directory, List<String> topics) {
+        for (String topic : topics) {
+            directory.matchQosSharpening(asTopic(topic));
+        }
+    }
+
+    private static void assertSameMatches(CTrieSubscriptionDirectory cached, CTrieSubscriptionDirectory uncached,
+                                          List<String> topics, String when) {
+        for (String topic : topics) {
+            assertEquals(uncached.matchQosSharpening(asTopic(topic)), cached.matchQosSharpening(asTopic(topic)),
+                "Stale match for topic " + topic + " " + when);
+        }
+    }
+
+    @Test
+    public void givenSharedSubscriptionMatchedThenTheResultIsNotCached() {
+        sut.addShared(new Subscription("TempSensor1", asTopic("sensors/+/temp"), asOption(MqttQoS.AT_MOST_ONCE),
+            new ShareName("temp_sensors")));
+
+        sut.matchQosSharpening(asTopic("sensors/kitchen/temp"));
+
+        assertEquals(0, cache.size(), "Shared subscriptions select a member per publish, can't be cached");
+    }
+
+    @Test
+    public void givenCacheFullThenSizeIsBounded() {
+        sut.add(subscription("TempSensor1", "sensors/#", MqttQoS.AT_MOST_ONCE));
+
+        sut.matchQosSharpening(asTopic("sensors/kitchen"));
+        sut.matchQosSharpening(asTopic("sensors/garage"));
+        sut.matchQosSharpening(asTopic("sensors/garden"));
+
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void givenSubscriptionChangedWhileMatchingThenTheStaleResultIsNotStored() {
+        final long generation = cache.generation();
+        cache.invalidate(asTopic("sensors/#"));
+
+        cache.put(asTopic("sensors/kitchen"), Collections.emptyList(), generation);
+
+        assertNull(cache.get(asTopic("sensors/kitchen")));
+    }
+
+    @Test
+    public void negativeCacheSizeIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new CTrieSubscriptionDirectory(-1));
+    }
+}
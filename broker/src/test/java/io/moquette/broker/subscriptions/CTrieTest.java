@@ -251,6 +251,15 @@ public class CTrieTest {
         assertThat(matchingSubs).contains(expectedMatchingsub);
     }
 
+    @Test
+    public void givenTopicLevelNamedAsTheRootThenItsMatchedAsAnyOtherLevel() {
+        sut.addToTree(clientSubOnTopic("TempSensor1", "root/temp"));
+
+        assertThat(sut.recursiveMatch(asTopic("root/temp"))).isNotEmpty();
+        assertThat(sut.recursiveMatch(asTopic("root"))).isEmpty();
+        assertThat(sut.recursiveMatch(asTopic("other/temp"))).isEmpty();
+    }
+
     @Test
     public void testRemovalInnerTopicOffRootSameClient() {
         Subscription newSubscription1 = clientSubOnTopic("TempSensor1", "temp");
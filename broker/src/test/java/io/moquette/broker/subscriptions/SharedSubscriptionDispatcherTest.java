@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import io.moquette.persistence.MemorySubscriptionsRepository;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static io.moquette.broker.subscriptions.Topic.asTopic;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SharedSubscriptionDispatcherTest {
+
+    private static final int MEMBERS = 4;
+
+    private static CTrieSubscriptionDirectory createDirectory(SharedSubscriptionDispatcher dispatcher) {
+        final CTrieSubscriptionDirectory directory = new CTrieSubscriptionDirectory(0, dispatcher);
+        directory.init(new MemorySubscriptionsRepository());
+        for (int i = 0; i < MEMBERS; i++) {
+            directory.addShared(new Subscription("worker" + i, asTopic("jobs/+"),
+                MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_LEAST_ONCE), new ShareName("workers")));
+        }
+        return directory;
+    }
+
+    private static String dispatchedTo(CTrieSubscriptionDirectory directory, String topic) {
+        final List<Subscription> matched = directory.matchWithoutQosSharpening(asTopic(topic));
+        assertEquals(1, matched.size(), "One member of the group is selected");
+        return matched.get(0).getClientId();
+    }
+
+    @Test
+    public void givenRoundRobinThenEachMemberIsSelectedInTurn() {
+        final CTrieSubscriptionDirectory sut = createDirectory(SharedSubscriptionDispatcher.roundRobin());
+
+        final Map<String, Integer> received = new HashMap<>();
+        for (int i = 0; i < MEMBERS * 10; i++) {
+            received.merge(dispatchedTo(sut, "jobs/" + i), 1, Integer::sum);
+        }
+
+        assertEquals(MEMBERS, received.size());
+        received.values().forEach(count -> assertEquals(10, count.intValue()));
+    }
+
+    @Test
+    public void givenLeastInflightThenTheMemberWithLessPendingMessagesIsSelected() {
+        final SharedSubscriptionDispatcher dispatcher = SharedSubscriptionDispatcher.leastInflight();
+        final Map<String, Integer> pending = new HashMap<>();
+        pending.put("worker0", 10);
+        pending.put("worker1", 3);
+        pending.put("worker2", 7);
+        pending.put("worker3", Integer.MAX_VALUE);
+        dispatcher.init(clientId -> pending.get(clientId));
+        final CTrieSubscriptionDirectory sut = createDirectory(dispatcher);
+
+        for (int i = 0; i < MEMBERS; i++) {
+            assertEquals("worker1", dispatchedTo(sut, "jobs/" + i));
+        }
+
+        // worker1 gets busy
+        pending.put("worker1", 20);
+        assertEquals("worker2", dispatchedTo(sut, "jobs/a"));
+    }
+
+    @Test
+    public void givenLeastInflightWithSameLoadThenTheMembersAreSelectedInTurn() {
+        final SharedSubscriptionDispatcher dispatcher = SharedSubscriptionDispatcher.leastInflight();
+        dispatcher.init(clientId -> 0);
+        final CTrieSubscriptionDirectory sut = createDirectory(dispatcher);
+
+        final Map<String, Integer> received = new HashMap<>();
+        for (int i = 0; i < MEMBERS; i++) {
+            received.merge(dispatchedTo(sut, "jobs/" + i), 1, Integer::sum);
+        }
+
+        assertEquals(MEMBERS, received.size());
+    }
+
+    @Test
+    public void givenStickyTopicThenAllTheMessagesOfATopicGoToTheSameMember() {
+        final CTrieSubscriptionDirectory sut = createDirectory(SharedSubscriptionDispatcher.stickyTopic());
+
+        final Map<String, String> memberOfTopic = new HashMap<>();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 100; i++) {
+                final String topic = "jobs/" + i;
+                final String member = dispatchedTo(sut, topic);
+                assertEquals(memberOfTopic.computeIfAbsent(topic, unused -> member), member);
+            }
+        }
+
+        // the topics are spread over all the members
+        assertEquals(MEMBERS, memberOfTopic.values().stream().distinct().count());
+    }
+}
@@ -15,11 +15,16 @@
  */
 package io.moquette.broker.subscriptions;
 
+import io.moquette.BrokerConstants;
 import org.assertj.core.api.AbstractAssert;
 import org.assertj.core.api.Assertions;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class TopicTest {
 
@@ -120,6 +125,50 @@ public class TopicTest {
     public void exceptHeadToken() {
         assertEquals(Topic.asTopic("token"), Topic.asTopic("/token").exceptHeadToken());
         assertEquals(Topic.asTopic("a/b"), Topic.asTopic("/a/b").exceptHeadToken());
+        assertEquals(Topic.asTopic(""), Topic.asTopic("a").exceptHeadToken());
+    }
+
+    @Test
+    public void exceptHeadTokenSharesTheParsedTokens() {
+        final Topic remaining = Topic.asTopic("a/+/c").exceptHeadToken();
+
+        assertThat(remaining).containsToken(Token.SINGLE, "c");
+        assertTrue(remaining.hasWildcard());
+        assertFalse(remaining.exceptHeadToken().hasWildcard());
+        assertTrue(remaining.exceptHeadToken().exceptHeadToken().isEmpty());
+    }
+
+    @Test
+    public void internedTopicIsParsedOnce() {
+        final Topic first = Topic.interned("interned/topic");
+        final Topic second = Topic.interned("interned/topic");
+
+        assertSame(first, second);
+        assertEquals(Topic.asTopic("interned/topic"), first);
+        assertThat(first).containsToken("interned", "topic");
+    }
+
+    @Test
+    public void invalidTopicIsNotInterned() {
+        final Topic first = Topic.interned("interned/#/invalid");
+
+        assertNotSame(first, Topic.interned("interned/#/invalid"));
+        assertFalse(first.isValid());
+    }
+
+    @Test
+    public void missingTopicNameIsNotInterned() {
+        assertNotSame(Topic.interned(null), Topic.interned(null));
+    }
+
+    @Test
+    public void givenInterningDisabledThenTopicsAreNotShared() {
+        Topic.setInternedMaxSize(0);
+        try {
+            assertNotSame(Topic.interned("not/interned"), Topic.interned("not/interned"));
+        } finally {
+            Topic.setInternedMaxSize(BrokerConstants.DEFAULT_TOPICS_INTERNED_MAX_SIZE);
+        }
     }
 
     public static TopicAssert assertThat(Topic topic) {
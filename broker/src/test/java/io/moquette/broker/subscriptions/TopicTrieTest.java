@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.broker.subscriptions;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopicTrieTest {
+
+    private TopicTrie<String> sut;
+
+    @BeforeEach
+    public void setUp() {
+        sut = new TopicTrie<>();
+        for (String topic : Arrays.asList("a", "a/b", "a/b/c", "a/d", "x/b", "/a")) {
+            sut.put(Topic.asTopic(topic), topic);
+        }
+    }
+
+    @Test
+    public void testExactMatch() {
+        assertMatches("a/b", "a/b");
+        assertMatches("a/b/c", "a/b/c");
+        assertMatches("a/z");
+        assertMatches("/a", "/a");
+    }
+
+    @Test
+    public void testSingleLevelWildcard() {
+        assertMatches("a/+", "a/b", "a/d");
+        assertMatches("+/b", "a/b", "x/b");
+        assertMatches("+", "a");
+        assertMatches("+/+/+", "a/b/c");
+    }
+
+    @Test
+    public void testMultiLevelWildcardMatchesAlsoParentLevel() {
+        assertMatches("a/#", "a", "a/b", "a/b/c", "a/d");
+        assertMatches("a/b/#", "a/b", "a/b/c");
+        assertMatches("#", "a", "a/b", "a/b/c", "a/d", "x/b", "/a");
+        assertMatches("+/b/#", "a/b", "a/b/c", "x/b");
+    }
+
+    @Test
+    public void testPutReplacesValue() {
+        assertEquals("a/b", sut.put(Topic.asTopic("a/b"), "other"));
+        assertEquals("other", sut.get(Topic.asTopic("a/b")));
+    }
+
+    @Test
+    public void testRemovePrunesEmptyBranches() {
+        assertEquals("a/b/c", sut.remove(Topic.asTopic("a/b/c")));
+        assertMatches("a/b/#", "a/b");
+
+        assertEquals("x/b", sut.remove(Topic.asTopic("x/b")));
+        assertMatches("x/#");
+        assertNull(sut.remove(Topic.asTopic("x/b")), "Removing twice must be a no-op");
+
+        for (String topic : Arrays.asList("a", "a/b", "a/d", "/a")) {
+            sut.remove(Topic.asTopic(topic));
+        }
+        assertTrue(sut.isEmpty(), "All the branches must be pruned when no topic is left");
+    }
+
+    @Test
+    public void testRemoveIntermediateLevelKeepsChildren() {
+        sut.remove(Topic.asTopic("a/b"));
+        assertNull(sut.get(Topic.asTopic("a/b")));
+        assertMatches("a/b/+", "a/b/c");
+    }
+
+    @Test
+    public void testRemoveIfHonorsCondition() {
+        assertNull(sut.removeIf(Topic.asTopic("a/d"), value -> false));
+        assertEquals("a/d", sut.get(Topic.asTopic("a/d")));
+
+        assertEquals("a/d", sut.removeIf(Topic.asTopic("a/d"), "a/d"::equals));
+        assertNull(sut.get(Topic.asTopic("a/d")));
+    }
+
+    @Test
+    public void testInvalidTopicCantBeIndexed() {
+        assertThrows(IllegalArgumentException.class, () -> sut.put(new Topic("a/#/b"), "invalid"));
+    }
+
+    private void assertMatches(String filter, String... expected) {
+        final List<String> matched = sut.match(Topic.asTopic(filter));
+        assertEquals(expected.length, matched.size(), "Unexpected matches for " + filter + ": " + matched);
+        final Set<String> expectedSet = new HashSet<>(Arrays.asList(expected));
+        assertEquals(expectedSet, new HashSet<>(matched));
+    }
+}
@@ -23,6 +23,16 @@ public class DummySegmentAllocator implements SegmentAllocator {
         return new Segment(pageBuffer, begin, end);
     }
 
+    @Override
+    public int currentPageId() {
+        return 0;
+    }
+
+    @Override
+    public boolean deletePage(int pageId) {
+        return false;
+    }
+
     private MappedByteBuffer createFreshPageTmpTile() {
         final MappedByteBuffer pageBuffer;
         try {
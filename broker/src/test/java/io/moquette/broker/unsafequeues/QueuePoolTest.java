@@ -1,5 +1,6 @@
 package io.moquette.broker.unsafequeues;
 
+import org.awaitility.Awaitility;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -14,22 +15,31 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 import static io.moquette.broker.unsafequeues.Queue.LENGTH_HEADER_SIZE;
 import static io.moquette.broker.unsafequeues.QueueTest.generatePayload;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class QueuePoolTest {
@@ -102,12 +112,316 @@ class QueuePoolTest {
         assertEquals("15", checkpoint.get("queues.0.head_offset"), "Queue head must be 16 bytes over the start");
     }
 
+    private static final class CountingForceListener implements QueuePool.ForceListener {
+        final AtomicInteger forces = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+
+        @Override
+        public void forced(long durationNanos, long bytes) {
+            forces.incrementAndGet();
+            this.bytes.addAndGet(bytes);
+        }
+    }
+
+    @Test
+    public void givenSyncDurabilityThenEachEnqueueIsForced() throws QueueException {
+        final CountingForceListener listener = new CountingForceListener();
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE,
+            QueueDurability.SYNC, listener);
+        final Queue queue = queuePool.getOrCreate("test");
+
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queue.enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(2, listener.forces.get());
+        assertEquals(2 * (LENGTH_HEADER_SIZE + 4), listener.bytes.get());
+        assertEquals(0, queuePool.pendingBytes());
+        queuePool.close();
+    }
+
+    @Test
+    public void givenPeriodicDurabilityThenTheForceHappensWhenTooManyBytesAreWaiting() throws QueueException {
+        final CountingForceListener listener = new CountingForceListener();
+        final int messageSize = LENGTH_HEADER_SIZE + 4;
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE,
+            QueueDurability.periodic(Duration.ofHours(1), 3 * messageSize), listener);
+        final Queue queue = queuePool.getOrCreate("test");
+
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queue.enqueue(ByteBuffer.wrap("BBBB".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2 * messageSize, queuePool.pendingBytes(), "Below the threshold nothing is forced");
+        assertEquals(0, listener.forces.get());
+
+        queue.enqueue(ByteBuffer.wrap("CCCC".getBytes(StandardCharsets.UTF_8)));
+        Awaitility.await().atMost(5, TimeUnit.SECONDS).until(() -> listener.forces.get() == 1);
+        assertEquals(3 * messageSize, listener.bytes.get(), "A force covers all the waiting enqueues");
+        assertEquals(0, queuePool.pendingBytes());
+
+        queue.enqueue(ByteBuffer.wrap("DDDD".getBytes(StandardCharsets.UTF_8)));
+        queuePool.close();
+        assertEquals(2, listener.forces.get(), "Close must force the pending data");
+        assertEquals(4 * messageSize, listener.bytes.get());
+    }
+
+    @Test
+    public void givenNoDurabilityThenNothingIsForced() throws QueueException {
+        final CountingForceListener listener = new CountingForceListener();
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE,
+            QueueDurability.NONE, listener);
+        final Queue queue = queuePool.getOrCreate("test");
+
+        queue.enqueue(ByteBuffer.wrap("AAAA".getBytes(StandardCharsets.UTF_8)));
+        queuePool.close();
+
+        assertEquals(0, listener.forces.get());
+        assertEquals(0, queuePool.pendingBytes());
+    }
+
+    // 4 segments per page, a message of COMPACTION_PAYLOAD_SIZE bytes fills a segment
+    private static final int COMPACTION_PAGE_SIZE = 4096;
+    private static final int COMPACTION_SEGMENT_SIZE = 1024;
+    private static final int COMPACTION_PAYLOAD_SIZE = COMPACTION_SEGMENT_SIZE - LENGTH_HEADER_SIZE;
+
+    private QueuePool loadCompactingQueuePool() throws QueueException {
+        return QueuePool.loadQueues(tempQueueFolder, COMPACTION_PAGE_SIZE, COMPACTION_SEGMENT_SIZE,
+            QueueDurability.NONE, QueuePool.ForceListener.NONE, QueueCompaction.every(Duration.ofHours(1), 1.0, 0));
+    }
+
+    private static void enqueueSegments(Queue queue, char firstFill, int count) throws QueueException {
+        for (int i = 0; i < count; i++) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(COMPACTION_PAYLOAD_SIZE, (byte) (firstFill + i))));
+        }
+    }
+
+    private static void assertDequeueSegments(Queue queue, char firstFill, int count) throws QueueException {
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer payload = queue.dequeue().get();
+            assertEquals(COMPACTION_PAYLOAD_SIZE, payload.remaining());
+            assertEquals((byte) (firstFill + i), payload.get(0), "Wrong content at message " + i);
+            assertEquals((byte) (firstFill + i), payload.get(COMPACTION_PAYLOAD_SIZE - 1), "Wrong content at message " + i);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    private boolean pageExists(int pageId) {
+        return tempQueueFolder.resolve(pageId + ".page").toFile().exists();
+    }
+
+    @Test
+    public void givenSparsePagesWhenCompactedThenLiveSegmentsAreMovedAndFreePagesDeleted() throws Exception {
+        QueuePool queuePool = loadCompactingQueuePool();
+        final Queue drained = queuePool.getOrCreate("drained");
+        // pages 0 and 1
+        enqueueSegments(drained, 'a', 8);
+        final Queue live = queuePool.getOrCreate("live");
+        // page 2
+        enqueueSegments(live, 'k', 3);
+        final Queue other = queuePool.getOrCreate("other");
+        // last segment of page 2, page 3 is the current allocation page
+        enqueueSegments(other, 'r', 4);
+        drained.close();
+        other.close();
+
+        assertEquals(1, queuePool.compact(), "Page 0 receives the middle segment of live, page 1 is freed");
+
+        assertTrue(pageExists(0));
+        assertFalse(pageExists(1), "Page without used segments must be deleted");
+        assertTrue(pageExists(2), "Head and tail of live stay where they are");
+        assertEquals(1, queuePool.usedSegmentsByPage().get(0).size());
+        assertEquals(2, queuePool.usedSegmentsByPage().get(2).size());
+
+        // the checkpoint must reference the moved segment
+        queuePool.close();
+        queuePool = loadCompactingQueuePool();
+        assertDequeueSegments(queuePool.getOrCreate("live"), 'k', 3);
+        queuePool.close();
+    }
+
+    @Test
+    public void givenDeletedPagesWhenTheRecycledSegmentsAreExhaustedThenTheLowestIsCreatedAgain() throws Exception {
+        final QueuePool queuePool = loadCompactingQueuePool();
+        final Queue drained = queuePool.getOrCreate("drained");
+        enqueueSegments(drained, 'a', 8);
+        final Queue live = queuePool.getOrCreate("live");
+        enqueueSegments(live, 'k', 2);
+        drained.close();
+
+        assertEquals(2, queuePool.compact());
+        assertFalse(pageExists(0));
+        assertFalse(pageExists(1));
+
+        // no recycled segments left, the deleted pages are recreated before allocating new ones
+        final Queue refill = queuePool.getOrCreate("refill");
+        enqueueSegments(refill, 'p', 4);
+        assertTrue(pageExists(0), "The lowest deleted page must be reused before allocating new pages");
+        assertFalse(pageExists(1));
+        assertFalse(pageExists(3), "No new page must be allocated while deleted ones could be reused");
+
+        assertDequeueSegments(refill, 'p', 4);
+        assertDequeueSegments(live, 'k', 2);
+        queuePool.close();
+    }
+
+    private QueuePool loadSyncQueuePool() throws QueueException {
+        return QueuePool.loadQueues(tempQueueFolder, COMPACTION_PAGE_SIZE, COMPACTION_SEGMENT_SIZE,
+            QueueDurability.SYNC, QueuePool.ForceListener.NONE);
+    }
+
+    @Test
+    public void givenPoolNotClosedWhenReloadedThenTheJournalRestoresTheQueues() throws Exception {
+        final QueuePool crashed = loadSyncQueuePool();
+        final Queue first = crashed.getOrCreate("first");
+        enqueueSegments(first, 'a', 5);
+        assertEquals('a', first.dequeue().get().get(0));
+        assertEquals('b', first.dequeue().get().get(0));
+        final Queue second = crashed.getOrCreate("second");
+        // messages crossing the segments
+        for (int i = 0; i < 3; i++) {
+            second.enqueue(ByteBuffer.wrap(generatePayload(COMPACTION_SEGMENT_SIZE / 2, (byte) ('p' + i))));
+        }
+        // forces the records of the dequeues too
+        enqueueSegments(first, 'f', 1);
+        crashed.getOrCreate("purged").close();
+
+        // no close, then a record torn by the crash
+        final Path journal;
+        try (Stream<Path> files = Files.list(tempQueueFolder)) {
+            journal = files.filter(f -> f.getFileName().toString().endsWith(".journal")).findFirst().get();
+        }
+        Files.write(journal, new byte[] {0, 0, 0, 42, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        final QueuePool reloaded = loadSyncQueuePool();
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), reloaded.queueNames());
+        assertDequeueSegments(reloaded.getOrCreate("first"), 'c', 4);
+        final Queue reloadedSecond = reloaded.getOrCreate("second");
+        for (int i = 0; i < 3; i++) {
+            final ByteBuffer payload = reloadedSecond.dequeue().get();
+            assertEquals(COMPACTION_SEGMENT_SIZE / 2, payload.remaining());
+            assertEquals((byte) ('p' + i), payload.get(0));
+        }
+        assertTrue(reloadedSecond.isEmpty());
+        reloaded.close();
+    }
+
+    @Test
+    public void givenPositionNotYetJournaledWhenReloadedThenTheMessagesAfterTheJournaledHeadAreRecovered()
+        throws Exception {
+        final QueuePool crashed = loadCompactingQueuePool();
+        // the recycled segment keeps the messages of the purged queue
+        final Queue purged = crashed.getOrCreate("purged");
+        for (int i = 0; i < 5; i++) {
+            purged.enqueue(ByteBuffer.wrap(generatePayload(100, (byte) 'x')));
+        }
+        purged.close();
+        final Queue queue = crashed.getOrCreate("test");
+        queue.enqueue(ByteBuffer.wrap(generatePayload(100, (byte) 'a')));
+        crashed.flusher().flush();
+        // only marked dirty, no close
+        queue.enqueue(ByteBuffer.wrap(generatePayload(100, (byte) 'b')));
+        queue.enqueue(ByteBuffer.wrap(generatePayload(100, (byte) 'c')));
+
+        final QueuePool reloaded = loadCompactingQueuePool();
+        final Queue reloadedQueue = reloaded.getOrCreate("test");
+        for (char expected : new char[] {'a', 'b', 'c'}) {
+            final ByteBuffer payload = reloadedQueue.dequeue().get();
+            assertEquals(100, payload.remaining());
+            assertEquals((byte) expected, payload.get(0));
+        }
+        assertTrue(reloadedQueue.isEmpty(), "The messages of the purged queue after the head must not be recovered");
+        reloaded.close();
+    }
+
+    @Test
+    public void givenConcurrentWritersOnDistinctQueuesThenEachQueueKeepsItsOwnSegments() throws Exception {
+        final QueuePool queuePool = loadCompactingQueuePool();
+        final int writers = 4;
+        final int rounds = 200;
+        final ExecutorService pool = Executors.newFixedThreadPool(writers);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                final Queue queue = queuePool.getOrCreate("writer" + w);
+                final char fill = (char) ('a' + w);
+                results.add(pool.submit(() -> {
+                    // rolls a segment at each enqueue, recycling the consumed ones
+                    for (int i = 0; i < rounds; i++) {
+                        enqueueSegments(queue, fill, 3);
+                        for (int j = 0; j < 3; j++) {
+                            final ByteBuffer payload = queue.dequeue().get();
+                            assertEquals((byte) (fill + j), payload.get(0), "Segment overwritten by another writer");
+                            assertEquals((byte) (fill + j), payload.get(COMPACTION_PAYLOAD_SIZE - 1));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        queuePool.close();
+    }
+
     private TreeSet<QueuePool.SegmentRef> asTreeSet(QueuePool.SegmentRef... segments) {
         final TreeSet<QueuePool.SegmentRef> usedSegments = new TreeSet<>();
         usedSegments.addAll(Arrays.asList(segments));
         return usedSegments;
     }
 
+    @Test
+    public void givenSegmentsReservedByATerminatedThreadThenTheyAreRecycledOnceIdle() throws Exception {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Segment allocated = allocateWhileContended(queuePool);
+        assertEquals(QueuePool.ARENA_SEGMENTS - 1, queuePool.reservedSegments());
+
+        // released by the checkpointer when still unused at its second run
+        Awaitility.await().atMost(Duration.ofSeconds(5)).until(() -> queuePool.reservedSegments() == 0);
+
+        final Segment next = queuePool.nextFreeSegment();
+        assertEquals(allocated.begin.pageId(), next.begin.pageId());
+        assertEquals(allocated.begin.offset() + SEGMENT_SIZE, next.begin.offset(),
+            "The lowest free segment is the first one reserved by the terminated thread");
+        queuePool.close();
+    }
+
+    @Test
+    public void givenSegmentsReservedByAThreadWhenThePoolIsClosedThenTheyAreReleased() throws Exception {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        allocateWhileContended(queuePool);
+        assertEquals(QueuePool.ARENA_SEGMENTS - 1, queuePool.reservedSegments());
+
+        queuePool.close();
+
+        assertEquals(0, queuePool.reservedSegments());
+    }
+
+    /**
+     * Allocate a segment from another thread while the allocation lock is held, so that the thread reserves
+     * an arena of segments, then let the thread terminate.
+     * */
+    private static Segment allocateWhileContended(QueuePool queuePool) throws Exception {
+        final ReentrantLock allocationLock = queuePool.segmentsAllocationLock();
+        final CompletableFuture<Segment> allocated = new CompletableFuture<>();
+        final Thread writer = new Thread(() -> {
+            try {
+                allocated.complete(queuePool.nextFreeSegment());
+            } catch (QueueException ex) {
+                allocated.completeExceptionally(ex);
+            }
+        });
+        allocationLock.lock();
+        try {
+            writer.start();
+            Awaitility.await().atMost(Duration.ofSeconds(5)).until(allocationLock::hasQueuedThreads);
+        } finally {
+            allocationLock.unlock();
+        }
+        writer.join();
+        return allocated.get();
+    }
+
     @Test
     public void checkRecreateHolesAtTheStartOfThePage() throws QueueException {
         final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
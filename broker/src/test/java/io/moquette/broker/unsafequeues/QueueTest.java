@@ -473,6 +473,34 @@ class QueueTest {
         assertContainsOnly('B', queue.dequeue().get(), SEGMENT_SIZE - LENGTH_HEADER_SIZE);
     }
 
+    @Test
+    public void dequeueABatchAcrossSegmentsThenReopen() throws QueueException {
+        final QueuePool queuePool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue queue = queuePool.getOrCreate("test");
+        final byte[] contents = {'a', 'A', 'b', 'B', 'c'};
+        for (byte content : contents) {
+            queue.enqueue(ByteBuffer.wrap(generatePayload(SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE, content)));
+        }
+
+        final List<ByteBuffer> batch = new ArrayList<>();
+        assertEquals(4, queue.dequeue(4, batch::add));
+        assertContainsOnly('a', batch.get(0), SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE);
+        assertContainsOnly('A', batch.get(1), SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE);
+        assertContainsOnly('b', batch.get(2), SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE);
+        assertContainsOnly('B', batch.get(3), SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE);
+        queue.force();
+        queuePool.close();
+
+        // the batch is committed as a whole
+        final QueuePool reopenedPool = QueuePool.loadQueues(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE);
+        final Queue reopened = reopenedPool.getOrCreate("test");
+        batch.clear();
+        assertEquals(1, reopened.dequeue(4, batch::add), "Only the last message remains");
+        assertContainsOnly('c', batch.get(0), SEGMENT_SIZE / 2 - LENGTH_HEADER_SIZE);
+        assertTrue(reopened.isEmpty());
+        reopenedPool.close();
+    }
+
     @Test
     public void reopenQueueWithSomeDataInto() throws QueueException {
         // given a queue wth some data split across multiple segments
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2012-2018 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+
+package io.moquette.interception;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SerialExecutorServiceTest {
+
+    @Test
+    public void givenThreadPerTaskDelegateThenTasksRunInSubmissionOrder() throws InterruptedException {
+        final SerialExecutorService sut = new SerialExecutorService(Executors.newCachedThreadPool());
+        // not synchronized, the tasks must never run concurrently
+        final List<Integer> executed = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            final int task = i;
+            sut.execute(() -> executed.add(task));
+        }
+
+        sut.shutdown();
+        assertTrue(sut.awaitTermination(5, TimeUnit.SECONDS));
+
+        assertEquals(10_000, executed.size());
+        for (int i = 0; i < executed.size(); i++) {
+            assertEquals(i, executed.get(i));
+        }
+    }
+
+    @Test
+    public void givenAFailingTaskThenTheFollowingOnesAreExecuted() throws InterruptedException {
+        final SerialExecutorService sut = new SerialExecutorService(Executors.newCachedThreadPool());
+        final List<String> executed = new ArrayList<>();
+        sut.execute(() -> {
+            throw new IllegalStateException("Simulated failure");
+        });
+        sut.execute(() -> executed.add("next"));
+
+        sut.shutdown();
+        assertTrue(sut.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(1, executed.size());
+        assertThrows(RejectedExecutionException.class, () -> sut.execute(() -> executed.add("late")));
+    }
+}
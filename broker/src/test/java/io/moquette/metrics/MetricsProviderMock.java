@@ -18,6 +18,8 @@ package io.moquette.metrics;
 import io.moquette.broker.config.IConfig;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 /**
  * A metrics provider used for testing.
@@ -33,6 +35,18 @@ public class MetricsProviderMock extends AbstractMetricsProvider {
     private int sessionCount;
     private int publishCount;
     private int[][] messageCount;
+    private LongSupplier queuePendingBytes = () -> 0;
+    private final AtomicInteger queueForces = new AtomicInteger();
+    private final AtomicLong queueForcedBytes = new AtomicLong();
+    private final AtomicInteger flushedChannels = new AtomicInteger();
+    private final AtomicLong flushedBytes = new AtomicLong();
+    private final AtomicInteger topicPublishes = new AtomicInteger();
+    private final AtomicLong topicPublishedBytes = new AtomicLong();
+    private final AtomicInteger publishRoutings = new AtomicInteger();
+    private final AtomicInteger sessionTaskWaits = new AtomicInteger();
+    private final AtomicInteger sessionTaskExecutions = new AtomicInteger();
+    private final AtomicInteger messageDeliveries = new AtomicInteger();
+    private final AtomicInteger[] ackRoundTrips = {new AtomicInteger(), new AtomicInteger(), new AtomicInteger()};
 
     @Override
     public void init(IConfig config) {
@@ -94,6 +108,57 @@ public class MetricsProviderMock extends AbstractMetricsProvider {
         getMessageCount()[queue][qos]++;
     }
 
+    @Override
+    public void initQueuePendingBytes(LongSupplier pendingBytes) {
+        this.queuePendingBytes = pendingBytes;
+    }
+
+    @Override
+    public void addQueueForce(long durationNanos, long bytes) {
+        queueForces.incrementAndGet();
+        queueForcedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void addFlush(int channels, long bytes) {
+        flushedChannels.addAndGet(channels);
+        flushedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void addTopicPublish(int queue, String topicName, int bytes) {
+        topicPublishes.incrementAndGet();
+        topicPublishedBytes.addAndGet(bytes);
+    }
+
+    @Override
+    public void addPublishRouting(int queue, long durationNanos) {
+        // like the real providers, drop the samples not recorded by a session loop
+        if (queue >= 0) {
+            publishRoutings.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void addSessionTaskWait(int queue, long durationNanos) {
+        sessionTaskWaits.incrementAndGet();
+    }
+
+    @Override
+    public void addSessionTaskExecution(int queue, long durationNanos) {
+        sessionTaskExecutions.incrementAndGet();
+    }
+
+    @Override
+    public void addMessageDelivery(int queue, long durationNanos) {
+        messageDeliveries.incrementAndGet();
+    }
+
+    @Override
+    public void addAckRoundTrip(int queue, int qos, long durationNanos) {
+        ackRoundTrips[qos].incrementAndGet();
+    }
+
     /**
      * @return the queueCount
      */
@@ -189,4 +254,52 @@ public class MetricsProviderMock extends AbstractMetricsProvider {
         return sessionQueueFillMax[queue];
     }
 
+    public long getQueuePendingBytes() {
+        return queuePendingBytes.getAsLong();
+    }
+
+    public int getQueueForces() {
+        return queueForces.get();
+    }
+
+    public long getQueueForcedBytes() {
+        return queueForcedBytes.get();
+    }
+
+    public int getFlushedChannels() {
+        return flushedChannels.get();
+    }
+
+    public long getFlushedBytes() {
+        return flushedBytes.get();
+    }
+
+    public int getTopicPublishes() {
+        return topicPublishes.get();
+    }
+
+    public long getTopicPublishedBytes() {
+        return topicPublishedBytes.get();
+    }
+
+    public int getPublishRoutings() {
+        return publishRoutings.get();
+    }
+
+    public int getSessionTaskWaits() {
+        return sessionTaskWaits.get();
+    }
+
+    public int getSessionTaskExecutions() {
+        return sessionTaskExecutions.get();
+    }
+
+    public int getMessageDeliveries() {
+        return messageDeliveries.get();
+    }
+
+    public int getAckRoundTrips(int qos) {
+        return ackRoundTrips[qos].get();
+    }
+
 }
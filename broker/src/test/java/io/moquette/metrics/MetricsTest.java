@@ -140,6 +140,14 @@ public class MetricsTest {
         assertEquals(0, mp.getSessionQueueOverrunSum(), "Incorrect value for metric 'SessionQueueOverrunSum'");
         mp.clearSessionQueueFillMax();
 
+        assertEquals(1, mp.getTopicPublishes(), "Incorrect value for metric 'TopicPublishes'");
+        assertEquals(18, mp.getTopicPublishedBytes(), "Incorrect value for metric 'TopicPublishedBytes'");
+        assertEquals(1, mp.getPublishRoutings(), "Incorrect value for metric 'PublishRoutings'");
+        assertEquals(1, mp.getMessageDeliveries(), "Incorrect value for metric 'MessageDeliveries'");
+        assertTrue(mp.getSessionTaskExecutions() > 0, "Incorrect value for metric 'SessionTaskExecutions'");
+        final MetricsProviderMock acked = mp;
+        Awaitility.await().until(() -> acked.getAckRoundTrips(MqttQoS.AT_LEAST_ONCE.value()) == 1);
+
         clientListener.disconnect();
         clientPublisher.disconnect();
 
@@ -27,6 +27,10 @@ import org.junit.jupiter.api.Test;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -60,6 +64,25 @@ public class H2PersistentQueueTest extends H2BaseTest {
         assertTrue(sut.isEmpty(), "after poll 2 elements inserted before, should be empty");
     }
 
+    @Test
+    public void testDequeueBatch() {
+        H2PersistentQueue sut = new H2PersistentQueue(this.mvStore, "test");
+        sut.enqueue(createMessage("Hello"));
+        sut.enqueue(createMessage("crazy"));
+        sut.enqueue(createMessage("world"));
+
+        final List<String> topics = new ArrayList<>();
+        final Consumer<SessionRegistry.EnqueuedMessage> collector =
+            msg -> topics.add(((SessionRegistry.PublishedMessage) msg).getTopic().toString());
+        assertEquals(2, sut.dequeue(2, collector));
+        assertEquals(Arrays.asList("Hello", "crazy"), topics);
+
+        assertEquals(1, sut.dequeue(2, collector), "A batch is limited to the available messages");
+        assertEquals(Arrays.asList("Hello", "crazy", "world"), topics);
+        assertTrue(sut.isEmpty());
+        assertEquals(0, sut.dequeue(2, collector));
+    }
+
     @Disabled
     @Test
     public void testPerformance() {
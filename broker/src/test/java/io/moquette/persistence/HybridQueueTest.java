@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012-2023 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.persistence;
+
+import io.moquette.broker.SessionMessageQueue;
+import io.moquette.broker.SessionRegistry.EnqueuedMessage;
+import io.moquette.broker.SessionRegistry.PublishedMessage;
+import io.moquette.broker.subscriptions.Topic;
+import io.moquette.broker.unsafequeues.QueueException;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HybridQueueTest {
+
+    private static final int PAGE_SIZE = 5000;
+    private static final int SEGMENT_SIZE = 1000;
+    private static final String TOPIC = "/a";
+    // each message is 100 bytes of payload plus topic and overhead
+    private static final long MESSAGE_SIZE = HybridQueue.MESSAGE_OVERHEAD_BYTES + TOPIC.length() + 100;
+
+    @TempDir
+    Path tempQueueFolder;
+
+    private HybridQueueRepository queueRepository;
+
+    @BeforeEach
+    public void setUp() throws QueueException {
+        queueRepository = createRepository(3 * MESSAGE_SIZE, 5 * MESSAGE_SIZE);
+    }
+
+    private HybridQueueRepository createRepository(long sessionBudget, long globalBudget) throws QueueException {
+        return new HybridQueueRepository(new SegmentQueueRepository(tempQueueFolder, PAGE_SIZE, SEGMENT_SIZE),
+            sessionBudget, globalBudget);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        queueRepository.close();
+    }
+
+    private static PublishedMessage createMessage(String name) {
+        final ByteBuf payload = Unpooled.buffer(100);
+        payload.writeBytes(name.getBytes(UTF_8));
+        payload.writeZero(100 - payload.readableBytes());
+        return new PublishedMessage(Topic.asTopic(TOPIC), MqttQoS.AT_LEAST_ONCE, payload, false, Instant.MAX);
+    }
+
+    private static String payloadName(EnqueuedMessage message) {
+        final ByteBuf payload = ((PublishedMessage) message).getPayload();
+        // trim drops the zero padding
+        return payload.toString(UTF_8).trim();
+    }
+
+    @Test
+    public void givenSessionBudgetExceededThenSpillsToDiskAndReadsBackInOrder() {
+        final HybridQueue queue = (HybridQueue) queueRepository.getOrCreateQueue("client");
+        for (int i = 0; i < 8; i++) {
+            queue.enqueue(createMessage("m" + i));
+        }
+        assertTrue(queue.isSpilled(), "Messages over the session budget must go to disk");
+        assertEquals(3 * MESSAGE_SIZE, queue.memoryBytes());
+
+        final List<String> dequeued = new ArrayList<>();
+        assertEquals(5, queue.dequeue(5, msg -> dequeued.add(payloadName(msg))));
+        // a message enqueued while spilled must follow the ones on disk
+        queue.enqueue(createMessage("m8"));
+        assertEquals(4, queue.dequeue(10, msg -> dequeued.add(payloadName(msg))));
+
+        assertEquals(List.of("m0", "m1", "m2", "m3", "m4", "m5", "m6", "m7", "m8"), dequeued);
+        assertTrue(queue.isEmpty());
+        assertFalse(queue.isSpilled(), "Drained disk queue must be purged");
+        assertEquals(0, queueRepository.memoryBytes());
+
+        queue.enqueue(createMessage("m9"));
+        assertFalse(queue.isSpilled(), "A drained queue goes back to memory");
+        assertEquals("m9", payloadName(queue.dequeue()));
+        assertNull(queue.dequeue());
+    }
+
+    @Test
+    public void givenGlobalBudgetExceededThenOtherSessionsSpill() {
+        final HybridQueue first = (HybridQueue) queueRepository.getOrCreateQueue("first");
+        final HybridQueue second = (HybridQueue) queueRepository.getOrCreateQueue("second");
+        for (int i = 0; i < 3; i++) {
+            first.enqueue(createMessage("f" + i));
+        }
+        second.enqueue(createMessage("s0"));
+        second.enqueue(createMessage("s1"));
+        second.enqueue(createMessage("s2"));
+
+        assertFalse(first.isSpilled());
+        assertTrue(second.isSpilled(), "The global budget is consumed by the other session");
+        assertEquals(5 * MESSAGE_SIZE, queueRepository.memoryBytes());
+
+        first.closeAndPurge();
+        assertEquals(2 * MESSAGE_SIZE, queueRepository.memoryBytes(), "Purged queue must give back its memory");
+        assertFalse(queueRepository.containsQueue("first"));
+
+        assertEquals("s0", payloadName(second.dequeue()));
+        assertEquals("s1", payloadName(second.dequeue()));
+        assertEquals("s2", payloadName(second.dequeue()));
+        assertTrue(second.isEmpty());
+    }
+
+    @Test
+    public void givenSpilledMessagesWhenRestartedThenTheyAreReadBack() throws QueueException {
+        final SessionMessageQueue<EnqueuedMessage> queue = queueRepository.getOrCreateQueue("client");
+        for (int i = 0; i < 5; i++) {
+            queue.enqueue(createMessage("m" + i));
+        }
+        queueRepository.close();
+
+        queueRepository = createRepository(3 * MESSAGE_SIZE, 5 * MESSAGE_SIZE);
+        assertTrue(queueRepository.containsQueue("client"), "Spilled queue must survive the restart");
+        final SessionMessageQueue<EnqueuedMessage> reloaded = queueRepository.getOrCreateQueue("client");
+        assertFalse(reloaded.isEmpty());
+        // only the spilled messages are persisted
+        assertEquals("m3", payloadName(reloaded.dequeue()));
+        assertEquals("m4", payloadName(reloaded.dequeue()));
+        assertTrue(reloaded.isEmpty());
+    }
+}
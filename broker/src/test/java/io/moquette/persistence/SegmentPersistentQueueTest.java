@@ -216,6 +216,27 @@ public class SegmentPersistentQueueTest {
         return new PublishedMessage(Topic.asTopic(topic), MqttQoS.AT_LEAST_ONCE, payload, false, Instant.MAX);
     }
 
+    @Test
+    public void testDequeueBatchCrossingSegments() {
+        LOGGER.info("testDequeueBatchCrossingSegments");
+        SessionMessageQueue<EnqueuedMessage> queue = createQueue();
+        // 201 bytes per message in segments of 1000 bytes, so the batches cross the segments
+        for (int i = 0; i < 12; i++) {
+            createAndAddToQueue(queue, "Topic" + i, 201);
+        }
+
+        final List<PublishedMessage> drained = new ArrayList<>();
+        assertEquals(5, queue.dequeue(5, msg -> drained.add((PublishedMessage) msg)));
+        assertEquals(7, queue.dequeue(10, msg -> drained.add((PublishedMessage) msg)));
+        assertEquals(0, queue.dequeue(10, msg -> drained.add((PublishedMessage) msg)));
+        assertTrue(queue.isEmpty(), "should be empty");
+
+        assertEquals(12, drained.size());
+        for (int i = 0; i < 12; i++) {
+            checkMessage(drained.get(i), "Topic" + i);
+        }
+    }
+
     @Test
     public void testPerformance() {
         LOGGER.info("testPerformance");
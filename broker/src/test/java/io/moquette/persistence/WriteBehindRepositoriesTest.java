@@ -0,0 +1,134 @@
+package io.moquette.persistence;
+
+import io.moquette.broker.ISessionsRepository;
+import io.moquette.broker.subscriptions.ShareName;
+import io.moquette.broker.subscriptions.Subscription;
+import io.moquette.broker.subscriptions.Topic;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.netty.handler.codec.mqtt.MqttSubscriptionOption;
+import io.netty.handler.codec.mqtt.MqttVersion;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class WriteBehindRepositoriesTest extends H2BaseTest {
+
+    private static final MqttSubscriptionOption AT_MOST_ONCE = MqttSubscriptionOption.onlyFromQos(MqttQoS.AT_MOST_ONCE);
+
+    private final AtomicInteger commits = new AtomicInteger();
+    private WriteBehindWriter writer;
+    private WriteBehindSubscriptionsRepository subscriptions;
+    private WriteBehindSessionsRepository sessions;
+
+    @BeforeEach
+    @Override
+    public void setUp() {
+        super.setUp();
+        // long lag, the tests flush explicitly
+        writer = new WriteBehindWriter(60_000, () -> {
+            commits.incrementAndGet();
+            mvStore.commit();
+        });
+        subscriptions = new WriteBehindSubscriptionsRepository(new H2SubscriptionsRepository(mvStore), writer);
+        sessions = new WriteBehindSessionsRepository(new H2SessionsRepository(mvStore, Clock.systemDefaultZone()),
+            writer);
+    }
+
+    @AfterEach
+    @Override
+    public void tearDown() {
+        writer.close();
+        super.tearDown();
+    }
+
+    @Test
+    public void givenManySubscriptionsWhenFlushedThenAreCommittedInOneBatch() {
+        for (int i = 0; i < 500; i++) {
+            subscriptions.addNewSubscription(new Subscription("subscriber", Topic.asTopic("sensors/" + i), AT_MOST_ONCE));
+        }
+        assertEquals(500, writer.pendingWrites());
+
+        assertThat(subscriptions.listAllSubscriptions()).hasSize(500);
+        assertEquals(0, writer.pendingWrites());
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    public void givenASubscriptionAddedAndRemovedThenOnlyTheRemoveIsApplied() {
+        final Subscription subscription = new Subscription("subscriber", Topic.asTopic("sensors/temp"), AT_MOST_ONCE);
+        subscriptions.addNewSubscription(subscription);
+        subscriptions.removeSubscription(subscription);
+
+        assertEquals(1, writer.pendingWrites());
+        assertThat(subscriptions.listAllSubscriptions()).isEmpty();
+    }
+
+    @Test
+    public void givenPendingSharedSubscriptionsWhenAllAreRemovedThenOnlyTheFollowingOnesAreStored() {
+        final ShareName share = new ShareName("thermometers");
+        subscriptions.addNewSharedSubscription(new Subscription("subscriber", Topic.asTopic("floor/1/temp"),
+            AT_MOST_ONCE, share));
+        subscriptions.addNewSharedSubscription(new Subscription("subscriber", Topic.asTopic("floor/2/temp"),
+            AT_MOST_ONCE, share));
+        subscriptions.removeAllSharedSubscriptions("subscriber");
+        subscriptions.addNewSharedSubscription(new Subscription("subscriber", Topic.asTopic("floor/3/temp"),
+            AT_MOST_ONCE, share));
+
+        assertEquals(2, writer.pendingWrites(), "The remove all supersedes the previous adds");
+        final Collection<Subscription> shared = subscriptions.listAllSharedSubscription();
+        assertThat(shared).hasSize(1);
+        assertEquals("floor/3/temp", shared.iterator().next().getTopicFilterInternal().toString());
+    }
+
+    @Test
+    public void givenSessionUpdatedManyTimesThenTheLastStateIsStored() {
+        final Clock clock = Clock.systemDefaultZone();
+        final ISessionsRepository.SessionData session =
+            new ISessionsRepository.SessionData("client", MqttVersion.MQTT_5, 10, clock);
+        sessions.saveSession(session);
+        sessions.saveSession(session.withExpirationComputed());
+        sessions.delete(session);
+        final ISessionsRepository.SessionData other =
+            new ISessionsRepository.SessionData("other", MqttVersion.MQTT_3_1_1, 20, clock);
+        sessions.saveSession(other);
+
+        assertEquals(2, writer.pendingWrites());
+        final Collection<ISessionsRepository.SessionData> stored = sessions.list();
+        assertThat(stored).hasSize(1);
+        assertEquals("other", stored.iterator().next().clientId());
+    }
+
+    @Test
+    public void givenSessionAndWillOfTheSameClientThenBothAreStored() {
+        final ISessionsRepository.SessionData session =
+            new ISessionsRepository.SessionData("client", MqttVersion.MQTT_5, 10, Clock.systemDefaultZone());
+        sessions.saveSession(session);
+        sessions.saveWill("client", new ISessionsRepository.Will("last/words", new byte[] {1}, MqttQoS.AT_MOST_ONCE,
+            false, 0));
+
+        assertEquals(2, writer.pendingWrites(), "The will doesn't supersede the session of the same client");
+        final AtomicInteger wills = new AtomicInteger();
+        sessions.listSessionsWill((clientId, will) -> wills.incrementAndGet());
+        assertEquals(1, wills.get());
+        assertThat(sessions.list()).hasSize(1);
+    }
+
+    @Test
+    public void givenWriterClosedThenPendingUpdatesAreFlushedAndNextOnesWrittenDirectly() {
+        subscriptions.addNewSubscription(new Subscription("subscriber", Topic.asTopic("sensors/temp"), AT_MOST_ONCE));
+
+        writer.close();
+        assertEquals(0, writer.pendingWrites());
+
+        subscriptions.addNewSubscription(new Subscription("subscriber", Topic.asTopic("sensors/hum"), AT_MOST_ONCE));
+        assertEquals(0, writer.pendingWrites());
+        assertThat(subscriptions.listAllSubscriptions()).hasSize(2);
+    }
+}
@@ -18,13 +18,23 @@ package io.moquette.metrics.prometheus;
 import io.moquette.broker.config.IConfig;
 import io.moquette.metrics.MetricsProvider;
 import io.prometheus.metrics.core.datapoints.CounterDataPoint;
+import io.prometheus.metrics.core.datapoints.DistributionDataPoint;
 import io.prometheus.metrics.core.metrics.Counter;
 import io.prometheus.metrics.core.metrics.Gauge;
 import io.prometheus.metrics.core.metrics.GaugeWithCallback;
+import io.prometheus.metrics.core.metrics.Histogram;
 import io.prometheus.metrics.exporter.httpserver.HTTPServer;
 import io.prometheus.metrics.instrumentation.jvm.JvmMetrics;
+import io.prometheus.metrics.model.snapshots.Unit;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongFunction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +44,10 @@ import org.slf4j.LoggerFactory;
 public class MetricsProviderPrometheus implements MetricsProvider {
 
     public static final String TAG_ENDPOINT_PORT = "metrics_endpoint_port";
+    /** Levels of the topics that make the prefixes of the per-prefix throughput metrics. */
+    public static final String TAG_TOPIC_PREFIX_LEVELS = "metrics_topic_prefix_levels";
+    /** Most active topic prefixes exported, the others are summed up in one bucket, 0 to disable. */
+    public static final String TAG_TOPIC_PREFIX_TOP = "metrics_topic_prefix_top";
 
     public static final String METRIC_MOQUETTE_PUBLISHES_TOTAL = "moquette_publishes_total";
     public static final String METRIC_MOQUETTE_OPEN_SESSIONS = "moquette_open_sessions";
@@ -41,6 +55,29 @@ public class MetricsProviderPrometheus implements MetricsProvider {
     public static final String METRIC_MOQUETTE_SESSION_MESSAGES_TOTAL = "moquette_session_messages_total";
     public static final String METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL = "moquette_session_queue_overruns_total";
     public static final String METRIC_MOQUETTE_SESSION_QUEUE_FILL = "moquette_session_queue_fill";
+    public static final String METRIC_MOQUETTE_QUEUE_PENDING_BYTES = "moquette_queue_pending_bytes";
+    public static final String METRIC_MOQUETTE_QUEUE_FORCE = "moquette_queue_force";
+    public static final String METRIC_MOQUETTE_QUEUE_FORCED_BYTES_TOTAL = "moquette_queue_forced_bytes_total";
+    public static final String METRIC_MOQUETTE_FLUSH_CHANNELS = "moquette_flush_channels";
+    public static final String METRIC_MOQUETTE_FLUSHES_TOTAL = "moquette_flushes_total";
+    public static final String METRIC_MOQUETTE_FLUSHED_BYTES_TOTAL = "moquette_flushed_bytes_total";
+    public static final String METRIC_MOQUETTE_TOPIC_PREFIX_MESSAGES = "moquette_topic_prefix_messages";
+    public static final String METRIC_MOQUETTE_TOPIC_PREFIX_BYTES = "moquette_topic_prefix_bytes";
+    public static final String TOPIC_PREFIX_OTHER = "__other__";
+    public static final String METRIC_MOQUETTE_PUBLISH_ROUTING = "moquette_publish_routing";
+    public static final String METRIC_MOQUETTE_SESSION_TASK_WAIT = "moquette_session_task_wait";
+    public static final String METRIC_MOQUETTE_SESSION_TASK_EXECUTION = "moquette_session_task_execution";
+    public static final String METRIC_MOQUETTE_MESSAGE_DELIVERY = "moquette_message_delivery";
+    public static final String METRIC_MOQUETTE_ACK_ROUND_TRIP = "moquette_ack_round_trip";
+
+    // the latencies inside the broker go from 1 microsecond to 3 seconds, with 2 buckets each power of 2
+    private static final double BROKER_LATENCY_START = 0.000_001;
+    // the round trips with the clients from 10 microseconds to 30 seconds
+    private static final double ROUND_TRIP_LATENCY_START = 0.000_01;
+    private static final double LATENCY_FACTOR = Math.sqrt(2);
+    private static final int LATENCY_BUCKETS = 44;
+    // tracked prefixes per exported one, the sketch is exact for the prefixes with more than 1/(4*top) of the load
+    private static final int TOPIC_PREFIX_SKETCH_FACTOR = 4;
 
     private static final Logger LOG = LoggerFactory.getLogger(MetricsProviderPrometheus.class);
 
@@ -53,11 +90,33 @@ public class MetricsProviderPrometheus implements MetricsProvider {
     private CounterDataPoint[] sessionQueueOverrunCounters;
     private CounterDataPoint[][] messageCounters;
     private Counter publishCounter;
+    private Histogram queueForceHistogram;
+    private Counter queueForcedBytesCounter;
+    private Histogram flushChannelsHistogram;
+    private Counter flushesCounter;
+    private Counter flushedBytesCounter;
+    private Histogram publishRoutingHistogram;
+    private Histogram sessionTaskWaitHistogram;
+    private Histogram sessionTaskExecutionHistogram;
+    private Histogram messageDeliveryHistogram;
+    private Histogram ackRoundTripHistogram;
+    // the data points of each session queue, looked up once so that the recording doesn't allocate
+    private DistributionDataPoint[] publishRoutings;
+    private DistributionDataPoint[] sessionTaskWaits;
+    private DistributionDataPoint[] sessionTaskExecutions;
+    private DistributionDataPoint[] messageDeliveries;
+    private DistributionDataPoint[][] ackRoundTrips;
+    private int topicPrefixLevels;
+    private int topicPrefixTop;
+    // one sketch per session loop, plus one at index 0 for the publishes from the other threads
+    private TopicPrefixSketch[] topicPrefixSketches;
 
     @Override
     public void init(IConfig config) {
         LOG.info("Initialising Prometheus metrics provider.");
         int metricsPort = config.intProp(TAG_ENDPOINT_PORT, 9400);
+        topicPrefixLevels = config.intProp(TAG_TOPIC_PREFIX_LEVELS, 2);
+        topicPrefixTop = config.intProp(TAG_TOPIC_PREFIX_TOP, 10);
         try {
             // initialize the out-of-the-box JVM metrics
             JvmMetrics.builder().register();
@@ -79,6 +138,60 @@ public class MetricsProviderPrometheus implements MetricsProvider {
                 .name(METRIC_MOQUETTE_PUBLISHES_TOTAL)
                 .help("Number of publishes made on the broker")
                 .register();
+
+        queueForceHistogram = Histogram.builder()
+                .name(METRIC_MOQUETTE_QUEUE_FORCE)
+                .help("Time spent forcing the segmented queues pages to disk")
+                .unit(Unit.SECONDS)
+                .register();
+
+        queueForcedBytesCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_QUEUE_FORCED_BYTES_TOTAL)
+                .help("Bytes of the segmented queues made durable by the forces to disk")
+                .register();
+
+        flushChannelsHistogram = Histogram.builder()
+                .name(METRIC_MOQUETTE_FLUSH_CHANNELS)
+                .help("Channels flushed together by a consolidated flush of a Netty event loop")
+                .classicExponentialUpperBounds(1, 4, 8)
+                .register();
+
+        flushesCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_FLUSHES_TOTAL)
+                .help("Channels flushed by the consolidated flushes")
+                .register();
+
+        flushedBytesCounter = Counter.builder()
+                .name(METRIC_MOQUETTE_FLUSHED_BYTES_TOTAL)
+                .help("Bytes sent by the consolidated flushes, divided by the flushes gives the bytes per flush")
+                .register();
+
+        publishRoutingHistogram = latencyHistogram(METRIC_MOQUETTE_PUBLISH_ROUTING,
+                "Time from the processing of a decoded PUBLISH to its dispatch to the subscribers sessions",
+                BROKER_LATENCY_START, "queue_name");
+        sessionTaskWaitHistogram = latencyHistogram(METRIC_MOQUETTE_SESSION_TASK_WAIT,
+                "Time the commands waited in the Session Queue before the execution",
+                BROKER_LATENCY_START, "queue_name");
+        sessionTaskExecutionHistogram = latencyHistogram(METRIC_MOQUETTE_SESSION_TASK_EXECUTION,
+                "Execution time of the commands of the Session Queue",
+                BROKER_LATENCY_START, "queue_name");
+        messageDeliveryHistogram = latencyHistogram(METRIC_MOQUETTE_MESSAGE_DELIVERY,
+                "Time from the arrival of a message in a session to its write to the client",
+                BROKER_LATENCY_START, "queue_name");
+        ackRoundTripHistogram = latencyHistogram(METRIC_MOQUETTE_ACK_ROUND_TRIP,
+                "Time from the write of a PUBLISH to the client to its PUBACK or PUBCOMP",
+                ROUND_TRIP_LATENCY_START, "queue_name", "QoS");
+    }
+
+    private static Histogram latencyHistogram(String name, String help, double start, String... labelNames) {
+        return Histogram.builder()
+                .name(name)
+                .help(help)
+                .unit(Unit.SECONDS)
+                .classicOnly()
+                .classicExponentialUpperBounds(start, LATENCY_FACTOR, LATENCY_BUCKETS)
+                .labelNames(labelNames)
+                .register();
     }
 
     @Override
@@ -122,6 +235,11 @@ public class MetricsProviderPrometheus implements MetricsProvider {
         sessionQueueOverrunCounters = new CounterDataPoint[queueCount];
         messageCounters = new CounterDataPoint[queueCount][3];
         sessionQueueFillMax = new int[queueCount];
+        publishRoutings = new DistributionDataPoint[queueCount];
+        sessionTaskWaits = new DistributionDataPoint[queueCount];
+        sessionTaskExecutions = new DistributionDataPoint[queueCount];
+        messageDeliveries = new DistributionDataPoint[queueCount];
+        ackRoundTrips = new DistributionDataPoint[queueCount][3];
         for (int id = 0; id < queueCount; id++) {
             final String label = "queue-" + id;
             sessionQueueFill[id] = new AtomicInteger();
@@ -131,6 +249,13 @@ public class MetricsProviderPrometheus implements MetricsProvider {
                 messageCounters[id][qos] = messageCounter.labelValues(label, Integer.toString(qos));
                 messageCounter.initLabelValues(label, Integer.toString(qos));
             }
+            publishRoutings[id] = publishRoutingHistogram.labelValues(label);
+            sessionTaskWaits[id] = sessionTaskWaitHistogram.labelValues(label);
+            sessionTaskExecutions[id] = sessionTaskExecutionHistogram.labelValues(label);
+            messageDeliveries[id] = messageDeliveryHistogram.labelValues(label);
+            for (int qos = 1; qos <= 2; qos++) {
+                ackRoundTrips[id][qos] = ackRoundTripHistogram.labelValues(label, Integer.toString(qos));
+            }
         }
 
         GaugeWithCallback.builder()
@@ -145,6 +270,60 @@ public class MetricsProviderPrometheus implements MetricsProvider {
                     }
                 })
                 .register();
+
+        if (topicPrefixTop > 0 && topicPrefixLevels > 0) {
+            initTopicPrefixes(queueCount);
+        }
+    }
+
+    private void initTopicPrefixes(int queueCount) {
+        final TopicPrefixSketch[] sketches = new TopicPrefixSketch[queueCount + 1];
+        for (int idx = 0; idx < sketches.length; idx++) {
+            sketches[idx] = new TopicPrefixSketch(topicPrefixTop * TOPIC_PREFIX_SKETCH_FACTOR);
+        }
+
+        // gauges, because the estimated counts drop when the top prefixes change
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_TOPIC_PREFIX_MESSAGES)
+                .help("Messages published on the most active topic prefixes, the others are in the "
+                    + TOPIC_PREFIX_OTHER + " prefix")
+                .labelNames("topic_prefix")
+                .callback(cb -> collectTopicPrefixes(sketches, 0, TopicPrefixSketch::totalMessages, cb::call))
+                .register();
+
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_TOPIC_PREFIX_BYTES)
+                .help("Payload bytes published on the most active topic prefixes, the others are in the "
+                    + TOPIC_PREFIX_OTHER + " prefix")
+                .labelNames("topic_prefix")
+                .callback(cb -> collectTopicPrefixes(sketches, 1, TopicPrefixSketch::totalBytes, cb::call))
+                .register();
+        topicPrefixSketches = sketches;
+    }
+
+    /**
+     * Reports the top prefixes by messages of all the loops, with the given count, and the remainder of the
+     * total in the other bucket.
+     * */
+    private void collectTopicPrefixes(TopicPrefixSketch[] sketches, int countIdx,
+                                      ToLongFunction<TopicPrefixSketch> total,
+                                      BiConsumer<Double, String> callback) {
+        final Map<String, long[]> counts = new HashMap<>();
+        long sum = 0;
+        for (TopicPrefixSketch sketch : sketches) {
+            sketch.mergeInto(counts);
+            sum += total.applyAsLong(sketch);
+        }
+        final List<Map.Entry<String, long[]>> top = new ArrayList<>(counts.entrySet());
+        top.sort((e1, e2) -> Long.compare(e2.getValue()[0], e1.getValue()[0]));
+        long reported = 0;
+        for (Map.Entry<String, long[]> entry : top.subList(0, Math.min(topicPrefixTop, top.size()))) {
+            final long count = entry.getValue()[countIdx];
+            callback.accept((double) count, entry.getKey());
+            reported += count;
+        }
+        // the sketch overestimates the counts of the prefixes, so the remainder could go below zero
+        callback.accept((double) Math.max(0, sum - reported), TOPIC_PREFIX_OTHER);
     }
 
     @Override
@@ -197,4 +376,70 @@ public class MetricsProviderPrometheus implements MetricsProvider {
         messageCounters[queue][qos].inc();
     }
 
+    @Override
+    public void initQueuePendingBytes(LongSupplier pendingBytes) {
+        GaugeWithCallback.builder()
+                .name(METRIC_MOQUETTE_QUEUE_PENDING_BYTES)
+                .help("Bytes enqueued in the segmented queues and not yet forced to disk")
+                .callback(cb -> cb.call(pendingBytes.getAsLong()))
+                .register();
+    }
+
+    @Override
+    public void addQueueForce(long durationNanos, long bytes) {
+        queueForceHistogram.observe(Unit.nanosToSeconds(durationNanos));
+        queueForcedBytesCounter.inc(bytes);
+    }
+
+    @Override
+    public void addFlush(int channels, long bytes) {
+        flushChannelsHistogram.observe(channels);
+        flushesCounter.inc(channels);
+        flushedBytesCounter.inc(bytes);
+    }
+
+    @Override
+    public void addTopicPublish(int queue, String topicName, int bytes) {
+        final TopicPrefixSketch[] sketches = topicPrefixSketches;
+        if (sketches == null || queue + 1 >= sketches.length) {
+            return;
+        }
+        sketches[queue + 1].addTopic(topicName, topicPrefixLevels, bytes);
+    }
+
+    @Override
+    public void addPublishRouting(int queue, long durationNanos) {
+        observe(publishRoutings, queue, durationNanos);
+    }
+
+    @Override
+    public void addSessionTaskWait(int queue, long durationNanos) {
+        observe(sessionTaskWaits, queue, durationNanos);
+    }
+
+    @Override
+    public void addSessionTaskExecution(int queue, long durationNanos) {
+        observe(sessionTaskExecutions, queue, durationNanos);
+    }
+
+    @Override
+    public void addMessageDelivery(int queue, long durationNanos) {
+        observe(messageDeliveries, queue, durationNanos);
+    }
+
+    @Override
+    public void addAckRoundTrip(int queue, int qos, long durationNanos) {
+        if (queue < 0 || queue >= ackRoundTrips.length || qos < 1 || qos > 2) {
+            return;
+        }
+        ackRoundTrips[queue][qos].observe(Unit.nanosToSeconds(durationNanos));
+    }
+
+    private static void observe(DistributionDataPoint[] dataPoints, int queue, long durationNanos) {
+        if (queue < 0 || queue >= dataPoints.length) {
+            return;
+        }
+        dataPoints[queue].observe(Unit.nanosToSeconds(durationNanos));
+    }
+
 }
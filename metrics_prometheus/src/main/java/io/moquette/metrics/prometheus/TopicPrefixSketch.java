@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012-2025 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.metrics.prometheus;
+
+import java.util.Map;
+
+/**
+ * Space-saving sketch of the messages and bytes published per topic prefix.
+ *
+ * It tracks at most <code>capacity</code> prefixes: when a new prefix arrives and the sketch is full, it
+ * takes the place of the prefix with the fewest messages, inheriting its counts. So the counts of a
+ * tracked prefix are overestimated by at most the total messages divided by the capacity, while every
+ * prefix more frequent than that is guaranteed to be tracked.
+ *
+ * The prefixes are kept in a hash table looked up with the characters of the topic name, so a publish
+ * on a tracked prefix doesn't allocate, the prefix string is extracted only when it starts to be tracked.
+ * They are also in a min-heap by messages, so the prefix to evict is found without a scan.
+ *
+ * Each session loop updates its own sketch, the lock is contended only by the scrapes.
+ */
+final class TopicPrefixSketch {
+
+    private static final class Entry {
+        final String prefix;
+        final int hash;
+        long messages;
+        long bytes;
+        // next entry in the same bucket
+        Entry next;
+        // position in the heap
+        int heapIndex;
+
+        Entry(String prefix, int hash) {
+            this.prefix = prefix;
+            this.hash = hash;
+        }
+    }
+
+    private final int capacity;
+    // power of two buckets, at least twice the capacity
+    private final Entry[] buckets;
+    // min-heap by messages of the tracked entries
+    private final Entry[] heap;
+    private int size;
+    private long totalMessages;
+    private long totalBytes;
+
+    TopicPrefixSketch(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive, was " + capacity);
+        }
+        this.capacity = capacity;
+        this.buckets = new Entry[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.heap = new Entry[capacity];
+    }
+
+    /**
+     * @return the first <code>levels</code> levels of the topic name, the whole topic name if it has fewer
+     * levels.
+     * */
+    static String prefix(String topicName, int levels) {
+        return topicName.substring(0, prefixEnd(topicName, levels));
+    }
+
+    /**
+     * @return the length of the first <code>levels</code> levels of the topic name.
+     * */
+    static int prefixEnd(String topicName, int levels) {
+        int idx = -1;
+        for (int level = 0; level < levels; level++) {
+            idx = topicName.indexOf('/', idx + 1);
+            if (idx < 0) {
+                return topicName.length();
+            }
+        }
+        return idx;
+    }
+
+    /**
+     * Count a message published on the topic under its first <code>levels</code> levels.
+     * */
+    void addTopic(String topicName, int levels, int bytes) {
+        addPrefix(topicName, prefixEnd(topicName, levels), bytes);
+    }
+
+    void add(String prefix, int bytes) {
+        addPrefix(prefix, prefix.length(), bytes);
+    }
+
+    private synchronized void addPrefix(String topicName, int prefixEnd, int bytes) {
+        totalMessages++;
+        totalBytes += bytes;
+        final int hash = hash(topicName, prefixEnd);
+        Entry entry = find(topicName, prefixEnd, hash);
+        if (entry == null) {
+            entry = new Entry(topicName.substring(0, prefixEnd), hash);
+            if (size >= capacity) {
+                // takes the place of the least frequent, with the same counts the heap stays ordered
+                final Entry evicted = heap[0];
+                unlink(evicted);
+                entry.messages = evicted.messages;
+                entry.bytes = evicted.bytes;
+                place(entry, 0);
+            } else {
+                // with no messages it's the least frequent
+                size++;
+                siftUp(entry, size - 1);
+            }
+            final int bucket = bucket(hash);
+            entry.next = buckets[bucket];
+            buckets[bucket] = entry;
+        }
+        entry.messages++;
+        entry.bytes += bytes;
+        siftDown(entry);
+    }
+
+    private void place(Entry entry, int index) {
+        heap[index] = entry;
+        entry.heapIndex = index;
+    }
+
+    private void siftUp(Entry entry, int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (heap[parent].messages <= entry.messages) {
+                break;
+            }
+            place(heap[parent], index);
+            index = parent;
+        }
+        place(entry, index);
+    }
+
+    /**
+     * Move down the entry whose messages have grown.
+     * */
+    private void siftDown(Entry entry) {
+        int index = entry.heapIndex;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1].messages < heap[child].messages) {
+                child++;
+            }
+            if (entry.messages <= heap[child].messages) {
+                break;
+            }
+            place(heap[child], index);
+            index = child;
+        }
+        place(entry, index);
+    }
+
+    private static int hash(String topicName, int prefixEnd) {
+        int hash = 0;
+        for (int i = 0; i < prefixEnd; i++) {
+            hash = 31 * hash + topicName.charAt(i);
+        }
+        return hash;
+    }
+
+    private int bucket(int hash) {
+        return (hash ^ (hash >>> 16)) & (buckets.length - 1);
+    }
+
+    private Entry find(String topicName, int prefixEnd, int hash) {
+        for (Entry entry = buckets[bucket(hash)]; entry != null; entry = entry.next) {
+            if (entry.hash == hash && entry.prefix.length() == prefixEnd && topicName.startsWith(entry.prefix)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void unlink(Entry removed) {
+        final int bucket = bucket(removed.hash);
+        if (buckets[bucket] == removed) {
+            buckets[bucket] = removed.next;
+            return;
+        }
+        for (Entry entry = buckets[bucket]; entry.next != null; entry = entry.next) {
+            if (entry.next == removed) {
+                entry.next = removed.next;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sums the counts of the tracked prefixes into the map, as [messages, bytes] pairs.
+     * */
+    synchronized void mergeInto(Map<String, long[]> counts) {
+        for (int i = 0; i < size; i++) {
+            final Entry entry = heap[i];
+            final long[] count = counts.computeIfAbsent(entry.prefix, k -> new long[2]);
+            count[0] += entry.messages;
+            count[1] += entry.bytes;
+        }
+    }
+
+    synchronized long totalMessages() {
+        return totalMessages;
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+}
@@ -25,7 +25,10 @@ import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MO
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_FILL;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_TOPIC_PREFIX_BYTES;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.METRIC_MOQUETTE_TOPIC_PREFIX_MESSAGES;
 import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.TAG_ENDPOINT_PORT;
+import static io.moquette.metrics.prometheus.MetricsProviderPrometheus.TOPIC_PREFIX_OTHER;
 import java.io.IOException;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import java.nio.file.Path;
@@ -145,6 +148,9 @@ public class MetricsProviderPrometheusTest {
         assertMetric(data, "0.0", METRIC_MOQUETTE_SESSION_QUEUE_FILL + "{queue_id=\"queue-0\"}");
         assertMetric(data, "0.0", METRIC_MOQUETTE_SESSION_QUEUE_OVERRUNS_TOTAL + "{queue_name=\"queue-0\"}");
         assertTrue(Double.parseDouble(data.get(METRIC_MOQUETTE_SESSION_QUEUE_FILL_MAX)) > 0.0, "Incorrect value for metric moquette_session_queue_fill_max, must be > 0.0");
+        assertMetric(data, "1.0", METRIC_MOQUETTE_TOPIC_PREFIX_MESSAGES + "{topic_prefix=\"test/topic\"}");
+        assertMetric(data, "18.0", METRIC_MOQUETTE_TOPIC_PREFIX_BYTES + "{topic_prefix=\"test/topic\"}");
+        assertMetric(data, "0.0", METRIC_MOQUETTE_TOPIC_PREFIX_MESSAGES + "{topic_prefix=\"" + TOPIC_PREFIX_OTHER + "\"}");
 
         clientListener.disconnect();
         clientPublisher.disconnect();
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2012-2025 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.metrics.prometheus;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TopicPrefixSketchTest {
+
+    @Test
+    public void testPrefixKeepsTheFirstLevels() {
+        assertEquals("devices/sensor", TopicPrefixSketch.prefix("devices/sensor/42/temp", 2));
+        assertEquals("devices", TopicPrefixSketch.prefix("devices/sensor/42/temp", 1));
+        assertEquals("devices/sensor", TopicPrefixSketch.prefix("devices/sensor", 3));
+        assertEquals("", TopicPrefixSketch.prefix("/devices/sensor", 1));
+    }
+
+    @Test
+    public void givenLessPrefixesThanCapacityThenCountsAreExact() {
+        final TopicPrefixSketch sut = new TopicPrefixSketch(4);
+        sut.add("a", 10);
+        sut.add("b", 5);
+        sut.add("a", 1);
+
+        final Map<String, long[]> counts = new HashMap<>();
+        sut.mergeInto(counts);
+
+        assertEquals(2, counts.size());
+        assertArrayEquals(new long[] {2, 11}, counts.get("a"));
+        assertArrayEquals(new long[] {1, 5}, counts.get("b"));
+        assertEquals(3, sut.totalMessages());
+        assertEquals(16, sut.totalBytes());
+    }
+
+    @Test
+    public void givenTopicsThenAreCountedUnderTheirPrefix() {
+        final TopicPrefixSketch sut = new TopicPrefixSketch(4);
+        sut.addTopic("devices/sensor/42/temp", 2, 10);
+        sut.addTopic("devices/sensor/43/hum", 2, 5);
+        sut.addTopic("devices/sensorX/1", 2, 1);
+        sut.addTopic("devices/sensor", 2, 1);
+        sut.addTopic("devices", 2, 1);
+
+        final Map<String, long[]> counts = new HashMap<>();
+        sut.mergeInto(counts);
+
+        assertEquals(3, counts.size());
+        assertArrayEquals(new long[] {3, 16}, counts.get("devices/sensor"));
+        assertArrayEquals(new long[] {1, 1}, counts.get("devices/sensorX"));
+        assertArrayEquals(new long[] {1, 1}, counts.get("devices"));
+    }
+
+    @Test
+    public void givenFullSketchThenTheNewPrefixReplacesTheLeastFrequent() {
+        final TopicPrefixSketch sut = new TopicPrefixSketch(2);
+        sut.add("a", 1);
+        sut.add("b", 1);
+        sut.add("a", 1);
+        sut.add("a", 1);
+        sut.add("c", 1);
+        sut.add("d", 1);
+
+        final Map<String, long[]> counts = new HashMap<>();
+        sut.mergeInto(counts);
+
+        assertEquals(2, counts.size());
+        assertArrayEquals(new long[] {3, 3}, counts.get("a"));
+        assertArrayEquals(new long[] {3, 3}, counts.get("d"), "Inherits the counts of c, that inherited from b");
+    }
+
+    @Test
+    public void givenManyRarePrefixesThenTheHeavyHittersAreStillTrackedAndTheCardinalityIsBounded() {
+        final TopicPrefixSketch sut = new TopicPrefixSketch(8);
+        for (int i = 0; i < 1000; i++) {
+            sut.add("heavy", 1);
+            sut.add("rare-" + i, 1);
+        }
+
+        final Map<String, long[]> counts = new HashMap<>();
+        sut.mergeInto(counts);
+
+        assertEquals(8, counts.size());
+        assertTrue(counts.containsKey("heavy"));
+        assertTrue(counts.get("heavy")[0] >= 1000, "Space saving never underestimates");
+        assertEquals(2000, sut.totalMessages());
+    }
+}